@@ -17,7 +17,9 @@ import uk.ac.ox.well.cortexjdk.utils.packageutils.PackageInspector;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -46,7 +48,7 @@ public class Main {
             showPrimaryHelp();
         } else if (args.length > 0) {
             String moduleName = args[0];
-            String[] moduleArgs = Arrays.copyOfRange(args, 1, args.length);
+            String[] moduleArgs = extractGlobalOptions(Arrays.copyOfRange(args, 1, args.length));
 
             Map<String, Class<? extends Command>> modules = new PackageInspector<>(Command.class, rootPackage).getExtendingClassesMap();
 
@@ -62,6 +64,36 @@ public class Main {
         }
     }
 
+    /**
+     * Remove options that apply to every module (rather than to the chosen module) from the argument list, and
+     * record them as system properties.  Currently this is only --graphCacheMb, the record cache budget for each
+     * Cortex graph (equivalent to -Dcortexjdk.graphCacheMb).
+     *
+     * @param args  the module arguments
+     * @return  the module arguments with global options removed
+     */
+    private static String[] extractGlobalOptions(String[] args) {
+        List<String> moduleArgs = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--graphCacheMb")) {
+                if (i + 1 >= args.length) {
+                    throw new CortexJDKException("Option --graphCacheMb requires a value");
+                }
+
+                try {
+                    System.setProperty("cortexjdk.graphCacheMb", String.valueOf(Long.parseLong(args[++i])));
+                } catch (NumberFormatException e) {
+                    throw new CortexJDKException("Option --graphCacheMb requires an integer number of megabytes", e);
+                }
+            } else {
+                moduleArgs.add(args[i]);
+            }
+        }
+
+        return moduleArgs.toArray(new String[moduleArgs.size()]);
+    }
+
     /**
      * Get the process id for this instance
      *
@@ -28,9 +28,11 @@ import uk.ac.ox.well.cortexjdk.utils.alignment.sw.SmithWaterman;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
 import uk.ac.ox.well.cortexjdk.utils.containers.ContainerUtils;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinks;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRandomAccess;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
 import uk.ac.ox.well.cortexjdk.utils.stoppingrules.ContigStopper;
@@ -49,7 +51,7 @@ import static uk.ac.ox.well.cortexjdk.utils.traversal.TraversalEngineConfigurati
 
 public class Call extends Module {
     @Argument(fullName = "graph", shortName = "g", doc = "Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName = "rois", shortName = "r", doc = "ROIs")
     public CortexGraph ROIS;
@@ -66,6 +68,12 @@ public class Call extends Module {
     @Argument(fullName = "links", shortName = "l", doc = "Links", required=false)
     public ArrayList<CortexLinks> LINKS;
 
+    @Argument(fullName = "linksBlockCacheMb", shortName = "lbc", doc = "Memory for inflated blocks of each indexed links file, in MB")
+    public Long LINKS_BLOCK_CACHE_MB = CortexLinksRandomAccess.DEFAULT_BLOCK_CACHE_MB;
+
+    @Argument(fullName = "linksRecordCacheMb", shortName = "lrc", doc = "Memory for decoded records of each indexed links file, in MB")
+    public Long LINKS_RECORD_CACHE_MB = CortexLinksRandomAccess.DEFAULT_RECORD_CACHE_MB;
+
     @Argument(fullName="partitionName", shortName="pn", doc="Partitions to process", required=false)
     public HashSet<String> PARTITION_NAMES;
 
@@ -98,6 +106,12 @@ public class Call extends Module {
 
     @Override
     public void execute() {
+        if (LINKS != null) {
+            for (CortexLinks lm : LINKS) {
+                lm.setCacheBudgets(LINKS_BLOCK_CACHE_MB, LINKS_RECORD_CACHE_MB);
+            }
+        }
+
         log.info("Loading ROIs...");
         Set<CanonicalKmer> rois = loadRois(ROIS);
         log.info("  {} rois", rois.size());
@@ -2219,7 +2233,7 @@ public class Call extends Module {
         return rois;
     }
 
-    private List<CortexVertex> loadChildWalk(ReferenceSequence seq, CortexGraph graph) {
+    private List<CortexVertex> loadChildWalk(ReferenceSequence seq, DeBruijnGraph graph) {
         List<CortexVertex> w = new ArrayList<>();
 
         Map<String, Integer> seenCount = new HashMap<>();
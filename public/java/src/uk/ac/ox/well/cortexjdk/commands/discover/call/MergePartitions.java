@@ -8,6 +8,7 @@ import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinks;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRandomAccess;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
 import uk.ac.ox.well.cortexjdk.utils.stoppingrules.ContigStopper;
@@ -27,16 +28,28 @@ public class MergePartitions extends Module {
     public FastaSequenceFile PARTITIONS;
 
     @Argument(fullName = "graph", shortName = "g", doc = "Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName = "links", shortName = "l", doc = "Links", required=false)
     public ArrayList<CortexLinks> LINKS;
 
+    @Argument(fullName = "linksBlockCacheMb", shortName = "lbc", doc = "Memory for inflated blocks of each indexed links file, in MB")
+    public Long LINKS_BLOCK_CACHE_MB = CortexLinksRandomAccess.DEFAULT_BLOCK_CACHE_MB;
+
+    @Argument(fullName = "linksRecordCacheMb", shortName = "lrc", doc = "Memory for decoded records of each indexed links file, in MB")
+    public Long LINKS_RECORD_CACHE_MB = CortexLinksRandomAccess.DEFAULT_RECORD_CACHE_MB;
+
     @Argument(fullName = "roi", shortName = "r", doc = "ROI")
     public CortexGraph ROIS;
 
     @Override
     public void execute() {
+        if (LINKS != null) {
+            for (CortexLinks lm : LINKS) {
+                lm.setCacheBudgets(LINKS_BLOCK_CACHE_MB, LINKS_RECORD_CACHE_MB);
+            }
+        }
+
         Map<String, Set<ReferenceSequence>> kmerToPartition = new HashMap<>();
         Set<ReferenceSequence> rseqs = new HashSet<>();
         ReferenceSequence rseq;
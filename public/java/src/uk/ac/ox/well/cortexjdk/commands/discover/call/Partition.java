@@ -10,6 +10,7 @@ import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinks;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRandomAccess;
 import uk.ac.ox.well.cortexjdk.utils.io.table.TableReader;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
@@ -32,11 +33,17 @@ import static uk.ac.ox.well.cortexjdk.utils.traversal.TraversalEngineConfigurati
 
 public class Partition extends Module {
     @Argument(fullName = "graph", shortName = "g", doc = "Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName = "links", shortName = "l", doc = "Links", required=false)
     public ArrayList<CortexLinks> LINKS;
 
+    @Argument(fullName = "linksBlockCacheMb", shortName = "lbc", doc = "Memory for inflated blocks of each indexed links file, in MB")
+    public Long LINKS_BLOCK_CACHE_MB = CortexLinksRandomAccess.DEFAULT_BLOCK_CACHE_MB;
+
+    @Argument(fullName = "linksRecordCacheMb", shortName = "lrc", doc = "Memory for decoded records of each indexed links file, in MB")
+    public Long LINKS_RECORD_CACHE_MB = CortexLinksRandomAccess.DEFAULT_RECORD_CACHE_MB;
+
     @Argument(fullName = "roi", shortName = "r", doc = "ROI")
     public CortexGraph ROIS;
 
@@ -54,6 +61,12 @@ public class Partition extends Module {
 
     @Override
     public void execute() {
+        if (LINKS != null) {
+            for (CortexLinks lm : LINKS) {
+                lm.setCacheBudgets(LINKS_BLOCK_CACHE_MB, LINKS_RECORD_CACHE_MB);
+            }
+        }
+
         Map<CanonicalKmer, Map<String, String>> kmerMap = new HashMap<>();
         Map<CanonicalKmer, Set<Integer>> kmerIds = new HashMap<>();
         Map<Integer, Map<String, String>> variantMap = new HashMap<>();
@@ -1,17 +1,22 @@
 package uk.ac.ox.well.cortexjdk.commands.discover.recover;
 
+import org.apache.commons.math3.util.Pair;
 import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphPartition;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by kiran on 20/06/2017.
@@ -23,6 +28,9 @@ public class RecoverExcludedKmers extends Module {
     @Argument(fullName="dirty", shortName="d", doc="Dirty graph")
     public CortexGraph DIRTY;
 
+    @Argument(fullName="threads", shortName="t", doc="Number of threads")
+    public Integer NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
     @Output
     public File out;
 
@@ -35,64 +43,77 @@ public class RecoverExcludedKmers extends Module {
 
         log.info("Recovering removed kmers for color {} ({})", childColor, GRAPH.getSampleName(childColor));
 
+        List<CortexGraphPartition> partitions = GRAPH.partitions();
+
         ProgressMeter pm = new ProgressMeterFactory()
                 .header("Processing records")
-                .updateRecord(GRAPH.getNumRecords() / 10)
-                .maxRecord(GRAPH.getNumRecords())
-                .message("records processed")
+                .maxRecord(partitions.size())
+                .message("partitions processed")
                 .make(log);
 
-        int numRecordsRecovered = 0;
+        int[] numRecordsRecovered = { 0 };
 
         CortexGraphWriter cgw = new CortexGraphWriter(out);
         cgw.setHeader(makeHeader(GRAPH.getHeader(), childColor));
 
-        for (CortexRecord cr : GRAPH) {
-            if (cr.getCoverage(childColor) > 0) {
-                cgw.addRecord(cr);
-            } else {
-                int otherSamplesWithCoverage = 0;
-
-                for (int c = 0; c < cr.getNumColors(); c++) {
-                    if (c != childColor && cr.getCoverage(c) > 0) {
-                        otherSamplesWithCoverage++;
+        // Partitions are processed concurrently (DIRTY lookups are thread-safe) and written back in order.
+        ParallelUtils.mapReduce(partitions, NUM_THREADS, p -> {
+            List<CortexRecord> records = new ArrayList<>();
+            int[] recovered = { 0 };
+
+            p.scan(cr -> {
+                if (cr.getCoverage(childColor) > 0) {
+                    records.add(cr.toRecord());
+                } else {
+                    int otherSamplesWithCoverage = 0;
+
+                    for (int c = 0; c < cr.getNumColors(); c++) {
+                        if (c != childColor && cr.getCoverage(c) > 0) {
+                            otherSamplesWithCoverage++;
+                        }
                     }
-                }
-
-                if (otherSamplesWithCoverage > 0) {
-                    CortexRecord dr = DIRTY.findRecord(cr.getCanonicalKmer());
 
-                    if (dr != null && dr.getCoverage(0) > 0) {
-                        long[] binaryKmer = new long[cr.getBinaryKmer().length];
-                        int[] coverages = new int[cr.getCoverages().length];
-                        byte[] edges = new byte[cr.getEdges().length];
+                    if (otherSamplesWithCoverage > 0) {
+                        CortexRecord dr = DIRTY.findRecord(cr.getKmerAsBytes());
 
-                        System.arraycopy(cr.getBinaryKmer(), 0, binaryKmer, 0, binaryKmer.length);
-                        System.arraycopy(cr.getCoverages(), 0, coverages, 0, coverages.length);
-                        System.arraycopy(cr.getEdges(), 0, edges, 0, edges.length);
+                        if (dr != null && dr.getCoverage(0) > 0) {
+                            long[] binaryKmer = cr.getBinaryKmer();
+                            int[] coverages = cr.getCoverages();
+                            byte[] edges = cr.getEdges();
 
-                        coverages[childColor] = dr.getCoverage(0);
-                        //edges[childColor] = dr.getEdges()[0];
+                            coverages[childColor] = dr.getCoverage(0);
+                            //edges[childColor] = dr.getEdges()[0];
 
-                        int kmerSize = cr.getKmerSize();
-                        int kmerBits = cr.getKmerBits();
+                            int kmerSize = cr.getKmerSize();
+                            int kmerBits = cr.getKmerBits();
 
-                        CortexRecord nr = new CortexRecord(binaryKmer, coverages, edges, kmerSize, kmerBits);
-                        cgw.addRecord(nr);
+                            CortexRecord nr = new CortexRecord(binaryKmer, coverages, edges, kmerSize, kmerBits);
+                            records.add(nr);
 
-                        log.debug("old: {}", cr);
-                        log.debug("new: {}", nr);
-                        log.debug("---");
+                            log.debug("old: {}", cr);
+                            log.debug("new: {}", nr);
+                            log.debug("---");
 
-                        numRecordsRecovered++;
+                            recovered[0]++;
+                        }
                     }
                 }
+            });
+
+            return new Pair<>(records, recovered[0]);
+        }, result -> {
+            for (CortexRecord cr : result.getFirst()) {
+                cgw.addRecord(cr);
             }
 
+            numRecordsRecovered[0] += result.getSecond();
+
             pm.update();
-        }
+        });
+
+        cgw.close();
 
-        log.info("Number of dirty records recovered: {}/{}", numRecordsRecovered, DIRTY.getNumRecords());
+        log.info("Number of dirty records recovered: {}/{}", numRecordsRecovered[0], DIRTY.getNumRecords());
     }
 
     private CortexHeader makeHeader(CortexHeader fullHeader, int color) {
@@ -1,11 +1,15 @@
 package uk.ac.ox.well.cortexjdk.commands.discover.roi;
 
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
 import org.jetbrains.annotations.NotNull;
 import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.*;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
 
@@ -15,6 +19,12 @@ import java.util.List;
 
 @Description(text="Generate a (very liberal) list of kmers that identify potential de novo mutations")
 public class FindROIs extends Module {
+    private static class NovelRecords {
+        private final LongArrayList binaryKmers = new LongArrayList();
+        private final IntArrayList coverages = new IntArrayList();
+        private final ByteArrayList edges = new ByteArrayList();
+    }
+
     @Argument(fullName="graph", shortName="g", doc="Graph")
     public CortexGraph GRAPH;
 
@@ -24,6 +34,9 @@ public class FindROIs extends Module {
     @Argument(fullName="child", shortName="c", doc="Child")
     public String CHILD;
 
+    @Argument(fullName="threads", shortName="t", doc="Number of threads")
+    public Integer NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
     @Output
     public File out;
 
@@ -38,38 +51,50 @@ public class FindROIs extends Module {
 
         log.info("Color: {} {}", CHILD, childColor);
 
+        List<CortexGraphPartition> partitions = GRAPH.partitions();
+
         ProgressMeter pm = new ProgressMeterFactory()
                 .header("Processing graph...")
-                .message("records processed")
-                .maxRecord(GRAPH.getNumRecords())
+                .message("partitions processed")
+                .maxRecord(partitions.size())
                 .make(log);
 
-        long numNovelRecords = 0L;
+        long[] numNovelRecords = { 0L };
 
         CortexGraphWriter cgw = new CortexGraphWriter(out);
         cgw.setHeader(makeCortexHeader(childColor));
 
-        for (CortexRecord cr : GRAPH) {
-            if (isNovel(cr, parentColors, childColor)) {
-                CortexRecord novelCr = new CortexRecord(
-                    cr.getBinaryKmer(),
-                    new int[] { cr.getCoverages()[childColor] },
-                    new byte[] { cr.getEdges()[childColor] },
-                    cr.getKmerSize(), cr.getKmerBits()
-                );
+        // Partitions collect their novel records independently as primitive arrays; they are written in bulk in
+        // partition order, so the output stays sorted.
+        ParallelUtils.mapReduce(partitions, NUM_THREADS, p -> {
+            NovelRecords novelRecords = new NovelRecords();
+            long[] binaryKmer = new long[GRAPH.getKmerBits()];
 
-                cgw.addRecord(novelCr);
+            p.scan(cr -> {
+                if (isNovel(cr, parentColors, childColor)) {
+                    cr.getBinaryKmer(binaryKmer);
 
-                numNovelRecords++;
-            }
+                    novelRecords.binaryKmers.addElements(novelRecords.binaryKmers.size(), binaryKmer);
+                    novelRecords.coverages.add(cr.getCoverage(childColor));
+                    novelRecords.edges.add(cr.getEdge(childColor));
+                }
+            });
 
-            pm.update("records processed (" + numNovelRecords + " novel so far)");
-        }
+            return novelRecords;
+        }, novelRecords -> {
+            int numRecords = novelRecords.coverages.size();
+
+            cgw.addRecords(novelRecords.binaryKmers.elements(), novelRecords.coverages.elements(), novelRecords.edges.elements(), numRecords);
+
+            numNovelRecords[0] += numRecords;
+
+            pm.update("partitions processed (" + numNovelRecords[0] + " novel so far)");
+        });
 
         cgw.close();
     }
 
-    private boolean isNovel(CortexRecord cr, List<Integer> parentColors, int childColor) {
+    private boolean isNovel(CortexRecordView cr, List<Integer> parentColors, int childColor) {
         boolean parentsLackCoverage = true;
 
         for (int c : parentColors) {
@@ -45,6 +45,7 @@ public class CompareROIs extends Module {
 
         int privateToTruth = 0, privateToEval = 0, overlap = 0;
 
+        Set<CanonicalKmer> kmersPrivateToTruth = new HashSet<>();
         Set<CanonicalKmer> kmersPrivateToEval = new HashSet<>();
 
         for (CanonicalKmer ck : all) {
@@ -53,8 +54,7 @@ public class CompareROIs extends Module {
                     overlap++;
                 } else {
                     privateToTruth++;
-
-                    log.debug("{} {} {}", EVAL.getSampleName(0), GRAPH.getColorForSampleName(EVAL.getSampleName(0)), GRAPH.findRecord(ck));
+                    kmersPrivateToTruth.add(ck);
                 }
             } else {
                 privateToEval++;
@@ -62,11 +62,21 @@ public class CompareROIs extends Module {
             }
         }
 
+        if (log.isDebugEnabled()) {
+            Map<CanonicalKmer, CortexRecord> truthRecords = GRAPH.findRecords(kmersPrivateToTruth);
+
+            for (CanonicalKmer ck : kmersPrivateToTruth) {
+                log.debug("{} {} {}", EVAL.getSampleName(0), GRAPH.getColorForSampleName(EVAL.getSampleName(0)), truthRecords.get(ck));
+            }
+        }
+
         log.info("t={} e={} pt={} pe={} o={}", trs.size(), ers.size(), privateToTruth, privateToEval, overlap);
         out.println("t=" + trs.size() + " e=" + ers.size() + " pt=" + privateToTruth + " pe=" + privateToEval + " o=" + overlap);
 
+        Map<CanonicalKmer, CortexRecord> evalRecords = GRAPH.findRecords(kmersPrivateToEval);
+
         for (CanonicalKmer ck : kmersPrivateToEval) {
-            log.info("pe: {} {} {}", ck, GRAPH.findRecord(ck), SequenceUtils.computeCompressionRatio(ck));
+            log.info("pe: {} {} {}", ck, evalRecords.get(ck), SequenceUtils.computeCompressionRatio(ck));
         }
     }
 }
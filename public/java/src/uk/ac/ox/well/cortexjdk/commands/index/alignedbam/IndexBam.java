@@ -4,17 +4,17 @@ import htsjdk.samtools.*;
 import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
-import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
 import uk.ac.ox.well.cortexjdk.utils.performance.PerformanceUtils;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
+import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
+import uk.ac.ox.well.cortexjdk.utils.sort.ExternalRecordSorter;
 
 import java.io.File;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 public class IndexBam extends Module {
     @Argument(fullName="bam", shortName="b", doc="BAM")
@@ -23,6 +23,12 @@ public class IndexBam extends Module {
     @Argument(fullName="kmerSize", shortName="k", doc="Kmer size")
     public Integer KMER_SIZE = 47;
 
+    @Argument(fullName="memory", shortName="m", doc="Memory budget for in-memory sorting, in megabytes (default: a quarter of the maximum heap)", required=false)
+    public Integer MEMORY_MB;
+
+    @Argument(fullName="tempDir", shortName="tmp", doc="Directory for temporary sort runs", required=false)
+    public File TEMP_DIR;
+
     @Output
     public PrintStream out;
 
@@ -37,20 +43,6 @@ public class IndexBam extends Module {
         return la;
     }
 
-    private List<Chunk> toChunks(long[] la) {
-        List<Chunk> chunks = new ArrayList<>();
-
-        if (la != null && la.length >= 2) {
-            for (int i = 0; i < la.length; i += 2) {
-                Chunk chunk = new Chunk(la[i], la[i + 1]);
-
-                chunks.add(chunk);
-            }
-        }
-
-        return chunks;
-    }
-
     @Override
     public void execute() {
         SamReader sreader = SamReaderFactory.make()
@@ -67,54 +59,78 @@ public class IndexBam extends Module {
             .message("reads processed")
             .make(log);
 
-        Map<CortexBinaryKmer, long[]> m = new TreeMap<>();
-        long numKmersSeen = 0;
+        int kmerBits = CortexRecord.getKmerBits(KMER_SIZE);
+        long memoryBytes = MEMORY_MB != null ? MEMORY_MB*1024L*1024L : ExternalRecordSorter.defaultMemoryBudget();
 
-        for (SAMRecord sr : sreader) {
-            BAMFileSpan sfs = (BAMFileSpan) sr.getFileSource().getFilePointer();
+        // Each record is a binary kmer followed by one chunk's start and end, ordered by kmer as KmerIndex expects.
+        try (ExternalRecordSorter sorter = new ExternalRecordSorter(kmerBits + 2, kmerBits, false, memoryBytes, TEMP_DIR)) {
+            long[] record = new long[kmerBits + 2];
+            long numKmersSeen = 0;
 
-            byte[] rs = sr.getReadBases();
+            for (SAMRecord sr : sreader) {
+                BAMFileSpan sfs = (BAMFileSpan) sr.getFileSource().getFilePointer();
+                List<Chunk> chunks = sfs.getChunks();
 
-            for (int i = 0; i <= rs.length - KMER_SIZE; i++) {
-                byte[] kmer = new byte[KMER_SIZE];
+                byte[] rs = sr.getReadBases();
 
-                System.arraycopy(rs, i, kmer, 0, KMER_SIZE);
+                for (int i = 0; i <= rs.length - KMER_SIZE; i++) {
+                    byte[] kmer = new byte[KMER_SIZE];
 
-                boolean kmerHasNs = false;
-                for (int j = 0; j < kmer.length; j++) {
-                    if (kmer[j] == 'N' || kmer[j] == 'n' || kmer[j] == '.') {
-                        kmerHasNs = true;
+                    System.arraycopy(rs, i, kmer, 0, KMER_SIZE);
+
+                    boolean kmerHasNs = false;
+                    for (int j = 0; j < kmer.length; j++) {
+                        if (kmer[j] == 'N' || kmer[j] == 'n' || kmer[j] == '.') {
+                            kmerHasNs = true;
+                        }
                     }
-                }
 
-                if (!kmerHasNs) {
-                    numKmersSeen++;
+                    if (!kmerHasNs) {
+                        numKmersSeen++;
 
-                    CortexBinaryKmer bk = new CortexBinaryKmer(kmer);
+                        long[] bk = CortexRecord.encodeBinaryKmer(SequenceUtils.alphanumericallyLowestOrientation(kmer));
+                        System.arraycopy(bk, 0, record, 0, kmerBits);
 
-                    List<Chunk> nchunks = sfs.getChunks();
+                        for (Chunk chunk : chunks) {
+                            record[kmerBits] = chunk.getChunkStart();
+                            record[kmerBits + 1] = chunk.getChunkEnd();
 
-                    if (!m.containsKey(bk)) {
-                        m.put(bk, toLongArray(nchunks));
-                    } else {
-                        List<Chunk> ochunks = toChunks(m.get(bk));
+                            sorter.add(record);
+                        }
+                    }
+                }
+
+                pm.update("reads processed, kmers seen " + numKmersSeen + ", sort runs " + sorter.getNumRuns() + ", " + PerformanceUtils.getCompactMemoryUsageStats());
+            }
+
+            log.info("Writing index...");
 
-                        List<Chunk> achunks = new ArrayList<>();
-                        achunks.addAll(nchunks);
-                        achunks.addAll(ochunks);
+            long[] bk = new long[kmerBits];
+            List<Chunk> achunks = new ArrayList<>();
 
-                        achunks = Chunk.optimizeChunkList(achunks, 0);
+            sorter.forEachSorted(r -> {
+                boolean same = !achunks.isEmpty();
+                for (int w = 0; same && w < kmerBits; w++) {
+                    same = r[w] == bk[w];
+                }
 
-                        m.put(bk, toLongArray(achunks));
+                if (!same) {
+                    if (!achunks.isEmpty()) {
+                        ki.put(bk, toLongArray(Chunk.optimizeChunkList(achunks, 0)));
+                        achunks.clear();
                     }
+
+                    System.arraycopy(r, 0, bk, 0, kmerBits);
                 }
-            }
 
-            pm.update("reads processed, kmers seen " + numKmersSeen + ", map size " + m.size() + ", " + PerformanceUtils.getCompactMemoryUsageStats());
-        }
+                achunks.add(new Chunk(r[kmerBits], r[kmerBits + 1]));
+            });
 
-        log.info("Writing index...");
+            if (!achunks.isEmpty()) {
+                ki.put(bk, toLongArray(Chunk.optimizeChunkList(achunks, 0)));
+            }
+        }
 
-        ki.putAll(m);
+        ki.close();
     }
 }
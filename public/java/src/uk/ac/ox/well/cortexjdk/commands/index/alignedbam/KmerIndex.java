@@ -115,29 +115,33 @@ public class KmerIndex {
     }
 
     public void putAll(Map<CortexBinaryKmer, long[]> m) {
-        int numEntries;
-        int bufferSize;
-        ByteBuffer buffer;
-
-        try {
-            for (CortexBinaryKmer bk : m.keySet()) {
-                long[] locs = m.get(bk);
-
-                numEntries = locs.length / 2;
-                bufferSize = numEntries*recordSize;
+        for (CortexBinaryKmer bk : m.keySet()) {
+            put(bk.getBinaryKmer(), m.get(bk));
+        }
+    }
 
-                buffer = ByteBuffer.allocate(bufferSize);
+    /**
+     * Append the entries for one kmer.  Kmers must be added in CortexBinaryKmer order for find() to work.
+     *
+     * @param binaryKmer  the binary kmer
+     * @param locs  the chunk start and end pairs for the kmer
+     */
+    public void put(long[] binaryKmer, long[] locs) {
+        int numEntries = locs.length / 2;
+        ByteBuffer buffer = ByteBuffer.allocate(numEntries*recordSize);
 
-                for (int i = 0; i < locs.length - 1; i += 2) {
-                    for (int l = 0; l < kmerBits; l++) {
-                        buffer.putLong(bk.getBinaryKmer()[l]);
-                    }
-                    buffer.putLong(locs[i]);
-                    buffer.putLong(locs[i+1]);
+        try {
+            for (int i = 0; i < locs.length - 1; i += 2) {
+                for (int l = 0; l < kmerBits; l++) {
+                    buffer.putLong(binaryKmer[l]);
                 }
+                buffer.putLong(locs[i]);
+                buffer.putLong(locs[i+1]);
+            }
 
-                buffer.flip();
+            buffer.flip();
 
+            while (buffer.hasRemaining()) {
                 fc.write(buffer);
             }
         } catch (IOException e) {
@@ -0,0 +1,58 @@
+package uk.ac.ox.well.cortexjdk.commands.index.graph;
+
+import uk.ac.ox.well.cortexjdk.commands.Module;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphBloomFilter;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphIndex;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphMinimalPerfectHash;
+
+import java.io.File;
+
+@Description(text="Build a sparse prefix index (.ctx.idx) to speed up random access to a sorted Cortex graph")
+public class IndexGraph extends Module {
+    @Argument(fullName="graph", shortName="g", doc="Graph")
+    public CortexGraph GRAPH;
+
+    @Argument(fullName="mph", shortName="m", doc="Also build a minimal perfect hash (.ctx.mph) for constant-time lookups")
+    public Boolean MPH = false;
+
+    @Argument(fullName="bloom", shortName="b", doc="Also build a Bloom filter (.ctx.bloom) to reject lookups for absent kmers")
+    public Boolean BLOOM = false;
+
+    @Argument(fullName="bloomFpr", shortName="fpr", doc="Bloom filter false positive rate")
+    public Double BLOOM_FPR = CortexGraphBloomFilter.DEFAULT_FALSE_POSITIVE_RATE;
+
+    @Argument(fullName="bloomMaxMb", shortName="bm", doc="Bloom filter memory budget in megabytes (0 for no limit)")
+    public Long BLOOM_MAX_MB = 0L;
+
+    @Override
+    public void execute() {
+        File indexFile = CortexGraphIndex.getIndexFile(GRAPH.getFile());
+
+        log.info("Indexing {} records", GRAPH.getNumRecords());
+
+        CortexGraphIndex index = CortexGraphIndex.build(GRAPH);
+        index.write(indexFile);
+
+        log.info("  wrote {} prefix buckets (prefix length {}) to {}", index.getNumBuckets(), index.getPrefixLength(), indexFile.getAbsolutePath());
+
+        if (MPH) {
+            File mphFile = CortexGraphMinimalPerfectHash.getIndexFile(GRAPH.getFile());
+
+            CortexGraphMinimalPerfectHash mph = CortexGraphMinimalPerfectHash.build(GRAPH, mphFile);
+
+            log.info("  wrote minimal perfect hash ({} levels) to {}", mph.getNumLevels(), mphFile.getAbsolutePath());
+        }
+
+        if (BLOOM) {
+            File bloomFile = CortexGraphBloomFilter.getIndexFile(GRAPH.getFile());
+
+            CortexGraphBloomFilter bloom = CortexGraphBloomFilter.build(GRAPH, BLOOM_FPR, BLOOM_MAX_MB * 1024L * 1024L);
+            bloom.write(bloomFile, GRAPH);
+
+            log.info("  wrote Bloom filter ({} bits, {} hashes) to {}", bloom.getNumBits(), bloom.getNumHashes(), bloomFile.getAbsolutePath());
+        }
+    }
+}
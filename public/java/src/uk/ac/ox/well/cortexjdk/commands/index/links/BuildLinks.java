@@ -0,0 +1,305 @@
+package uk.ac.ox.well.cortexjdk.commands.index.links;
+
+import htsjdk.samtools.fastq.FastqRecord;
+import org.apache.commons.math3.util.Pair;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import uk.ac.ox.well.cortexjdk.commands.Module;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksAccumulator;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksIndexWriter;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.reads.Reads;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
+import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
+import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
+import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
+import uk.ac.ox.well.cortexjdk.utils.sort.ExternalRecordSorter;
+
+import java.io.File;
+import java.util.*;
+
+@Description(text="Thread reads through a graph to build links, writing them bgzipped and indexed")
+public class BuildLinks extends Module {
+    @Argument(fullName="graph", shortName="g", doc="Graph")
+    public CortexGraph GRAPH;
+
+    @Argument(fullName="reads", shortName="r", doc="Reads (FASTQ, SAM/BAM, FASTA or one sequence per line; join paired-end files with ':')")
+    public ArrayList<Reads> READS;
+
+    @Argument(fullName="sample", shortName="s", doc="Sample whose graph color the reads are threaded through (default: the first color)", required=false)
+    public String SAMPLE;
+
+    @Argument(fullName="source", shortName="src", doc="Link source (default: the sample name)", required=false)
+    public String SOURCE;
+
+    @Argument(fullName="out", shortName="o", doc="Output links file (.ctp.bgz; the index is written alongside it as .ctp.bgz.idx)")
+    public File OUT;
+
+    @Argument(fullName="binary", shortName="b", doc="Store records in the compact binary format (readable only through the index)")
+    public Boolean BINARY = false;
+
+    @Argument(fullName="threads", shortName="t", doc="Number of threads for threading reads and compression")
+    public Integer NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    @Argument(fullName="compressionLevel", shortName="c", doc="BGZF compression level (0-9)")
+    public Integer COMPRESSION_LEVEL = 9;
+
+    @Argument(fullName="memory", shortName="m", doc="Memory budget for in-memory sorting of the index, in megabytes (default: a quarter of the maximum heap)", required=false)
+    public Integer MEMORY_MB;
+
+    @Argument(fullName="tempDir", shortName="tmp", doc="Directory for temporary sort runs", required=false)
+    public File TEMP_DIR;
+
+    // The number of reads threaded per task.
+    private static final int BATCH_SIZE = 1024;
+
+    @Override
+    public void execute() {
+        int color = SAMPLE == null ? 0 : GRAPH.getColorForSampleName(SAMPLE);
+        if (color < 0) {
+            throw new CortexJDKException("Sample '" + SAMPLE + "' is not in graph '" + GRAPH.getFile().getAbsolutePath() + "'");
+        }
+
+        String sampleName = GRAPH.getSampleName(color);
+        String source = SOURCE == null ? sampleName : SOURCE;
+
+        if (!OUT.getName().endsWith(".ctp.bgz")) {
+            OUT = new File(OUT.getAbsolutePath() + ".ctp.bgz");
+        }
+
+        CortexLinksAccumulator acc = new CortexLinksAccumulator(GRAPH.getKmerSize(), 8*NUM_THREADS);
+
+        ProgressMeter pm = new ProgressMeterFactory()
+                .header("Threading reads")
+                .message("reads")
+                .updateRecord(BATCH_SIZE*100)
+                .make(log);
+
+        // Reads are decoded on this thread and threaded through the graph in batches on the pool.
+        ParallelUtils.mapReduce(batches(READS), NUM_THREADS, batch -> {
+            for (String read : batch) {
+                threadRead(read, color, acc);
+                threadRead(SequenceUtils.reverseComplement(read), color, acc);
+            }
+
+            return batch.size();
+        }, n -> {
+            for (int i = 0; i < n; i++) {
+                pm.update();
+            }
+        });
+
+        long numKmersWithLinks = acc.getNumKmers();
+        long numLinks = acc.getNumLinks();
+        long numLinkBytes = acc.getNumJunctionBytes();
+
+        log.info("Found {} links on {} kmers", numLinks, numKmersWithLinks);
+
+        long memoryBytes = MEMORY_MB != null ? MEMORY_MB*1024L*1024L : ExternalRecordSorter.defaultMemoryBudget();
+
+        try (CortexLinksIndexWriter writer = new CortexLinksIndexWriter(OUT, source, Collections.singletonList(sampleName), GRAPH.getKmerSize(), GRAPH.getNumRecords(), numLinkBytes, BINARY, COMPRESSION_LEVEL, NUM_THREADS, memoryBytes, TEMP_DIR)) {
+            log.info("Writing bgzipped links and link index to:");
+            log.info("  - {}", writer.getFile());
+            log.info("  - {}", writer.getIndexFile());
+
+            writer.writeHeader(constructLinksHeader(sampleName, numKmersWithLinks, numLinks, numLinkBytes).toString(8), "");
+
+            List<Integer> shards = new ArrayList<>();
+            for (int i = 0; i < acc.getNumShards(); i++) {
+                shards.add(i);
+            }
+
+            // Shards are turned into records on the pool, and written in shard order on this thread.
+            ParallelUtils.mapReduce(shards, NUM_THREADS, shard -> {
+                List<Pair<long[], byte[]>> records = new ArrayList<>();
+
+                for (CortexBinaryKmer cbk : acc.getKmers(shard)) {
+                    CortexLinksRecord clr = acc.getRecord(shard, cbk);
+                    records.add(new Pair<>(cbk.getBinaryKmer(), CortexLinksIndexWriter.encode(clr, GRAPH.getKmerSize(), 1, BINARY)));
+                }
+
+                return records;
+            }, records -> {
+                for (Pair<long[], byte[]> p : records) {
+                    writer.add(p.getFirst(), p.getSecond());
+                }
+            });
+
+            writer.finish();
+        }
+    }
+
+    private static Iterable<List<String>> batches(List<Reads> reads) {
+        return () -> new Iterator<List<String>>() {
+            private final Iterator<Reads> files = reads.iterator();
+            private Iterator<Pair<FastqRecord, FastqRecord>> records = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!records.hasNext() && files.hasNext()) {
+                    records = files.next().iterator();
+                }
+
+                return records.hasNext();
+            }
+
+            @Override
+            public List<String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                // Paired ends are threaded independently.
+                List<String> batch = new ArrayList<>(BATCH_SIZE);
+                while (batch.size() < BATCH_SIZE && hasNext()) {
+                    Pair<FastqRecord, FastqRecord> p = records.next();
+
+                    batch.add(p.getFirst().getReadString().toUpperCase());
+                    if (p.getSecond() != null) {
+                        batch.add(p.getSecond().getReadString().toUpperCase());
+                    }
+                }
+
+                return batch;
+            }
+        };
+    }
+
+    /**
+     * Thread one read through the graph in one orientation.  The read is broken into runs of kmers that are in the
+     * sample's color and joined by its edges.  Within a run, every kmer entering an in-junction (a kmer with more than
+     * one incoming edge) anchors a link listing the choices the read makes at each later out-junction.
+     */
+    private void threadRead(String read, int color, CortexLinksAccumulator acc) {
+        int kmerSize = GRAPH.getKmerSize();
+        int numKmers = read.length() - kmerSize + 1;
+
+        if (numKmers < 2) {
+            return;
+        }
+
+        PackedKmer[] run = new PackedKmer[numKmers];
+        int[] inDegrees = new int[numKmers];
+        int[] outDegrees = new int[numKmers];
+        char[] lastBases = new char[numKmers];
+
+        int runLength = 0;
+        int prevOutEdges = 0;
+
+        PackedKmer pk = null;
+
+        for (int i = 0; i < numKmers; i++) {
+            byte base = (byte) read.charAt(i + kmerSize - 1);
+
+            if (pk != null && PackedKmer.encodeBase(base) >= 0) {
+                pk = pk.next(base);
+            } else {
+                byte[] kmer = read.substring(i, i + kmerSize).getBytes();
+                pk = PackedKmer.isPackable(kmer) ? PackedKmer.fromBytes(kmer) : null;
+            }
+
+            CortexRecord cr = pk == null ? null : GRAPH.findRecord(pk);
+
+            if (cr == null || cr.getCoverage(color) == 0) {
+                addLinks(run, inDegrees, outDegrees, lastBases, runLength, acc);
+                runLength = 0;
+                continue;
+            }
+
+            // Edges are stored for the canonical orientation; a kmer read in the other orientation swaps them.
+            int edges = cr.getEdges()[color];
+            boolean flipped = !pk.isCanonical();
+            int inEdges = flipped ? (edges & 0xf) : ((edges >> 4) & 0xf);
+            int outEdges = flipped ? ((edges >> 4) & 0xf) : (edges & 0xf);
+
+            if (runLength > 0 && (prevOutEdges & (1 << PackedKmer.encodeBase(base))) == 0) {
+                addLinks(run, inDegrees, outDegrees, lastBases, runLength, acc);
+                runLength = 0;
+            }
+
+            run[runLength] = pk;
+            inDegrees[runLength] = Integer.bitCount(inEdges);
+            outDegrees[runLength] = Integer.bitCount(outEdges);
+            lastBases[runLength] = (char) base;
+            runLength++;
+
+            prevOutEdges = outEdges;
+        }
+
+        addLinks(run, inDegrees, outDegrees, lastBases, runLength, acc);
+    }
+
+    private static void addLinks(PackedKmer[] run, int[] inDegrees, int[] outDegrees, char[] lastBases, int runLength, CortexLinksAccumulator acc) {
+        StringBuilder junctions = new StringBuilder();
+        int[] junctionPositions = new int[runLength];
+
+        for (int t = 1; t < runLength; t++) {
+            if (outDegrees[t - 1] > 1) {
+                junctionPositions[junctions.length()] = t;
+                junctions.append(lastBases[t]);
+            }
+        }
+
+        if (junctions.length() == 0) {
+            return;
+        }
+
+        int lastJunction = junctionPositions[junctions.length() - 1];
+
+        for (int t = 1, j = 0; t < runLength; t++) {
+            while (j < junctions.length() && junctionPositions[j] < t) {
+                j++;
+            }
+
+            if (j == junctions.length()) {
+                break;
+            }
+
+            if (inDegrees[t] > 1) {
+                PackedKmer anchor = run[t - 1];
+
+                acc.add(anchor.canonical().toBinaryKmer(), anchor.isCanonical(), lastJunction - (t - 1), junctions.substring(j));
+            }
+        }
+    }
+
+    private JSONObject constructLinksHeader(String sample, long numKmersWithLinks, long numLinks, long numLinkBytes) {
+        JSONObject header = new JSONObject();
+        header.put("file_format", "ctp");
+        header.put("format_version", 4);
+        header.put("file_key", 0);
+
+        JSONArray colors = new JSONArray();
+        JSONObject color = new JSONObject();
+        color.put("colour", 0);
+        color.put("sample", sample);
+        color.put("total_sequence", 0);
+        color.put("cleaned_tips", false);
+        color.put("cleaned_unitigs", false);
+        colors.put(color);
+
+        JSONObject jsonGraph = new JSONObject();
+        jsonGraph.put("num_colours", 1);
+        jsonGraph.put("kmer_size", GRAPH.getKmerSize());
+        jsonGraph.put("num_kmers_in_graph", GRAPH.getNumRecords());
+        jsonGraph.put("colours", colors);
+
+        header.put("graph", jsonGraph);
+
+        JSONObject jsonPaths = new JSONObject();
+        jsonPaths.put("num_kmers_with_paths", numKmersWithLinks);
+        jsonPaths.put("num_paths", numLinks);
+        jsonPaths.put("path_bytes", numLinkBytes);
+
+        header.put("paths", jsonPaths);
+
+        return header;
+    }
+}
@@ -1,27 +1,19 @@
 package uk.ac.ox.well.cortexjdk.commands.index.links;
 
-import htsjdk.samtools.util.BlockCompressedOutputStream;
-import org.apache.commons.math3.util.Pair;
 import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
-import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
-import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksIndexWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksIterable;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRecord;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
-import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
+import uk.ac.ox.well.cortexjdk.utils.sort.ExternalRecordSorter;
 
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.Map;
-import java.util.TreeMap;
-
-import static java.nio.file.StandardOpenOption.*;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by kiran on 13/09/2017.
@@ -33,74 +25,76 @@ public class IndexLinks extends Module {
     @Argument(fullName="source", shortName="s", doc="Link source")
     public String SOURCE;
 
-    @Override
-    public void execute() {
-        Path bgzipPath = Paths.get(LINKS.getFile().getAbsolutePath().replace(".ctp.gz", ".ctp.bgz"));
-        Path indexPath = Paths.get(LINKS.getFile().getAbsolutePath().replace(".ctp.gz", ".ctp.bgz.idx"));
+    @Argument(fullName="binary", shortName="b", doc="Store records in the compact binary format (readable only through the index)")
+    public Boolean BINARY = false;
 
-        if (indexPath.toFile().exists()) {
-            indexPath.toFile().delete();
-        }
+    @Argument(fullName="threads", shortName="t", doc="Number of threads for parsing and compression")
+    public Integer NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    @Argument(fullName="compressionLevel", shortName="c", doc="BGZF compression level (0-9)")
+    public Integer COMPRESSION_LEVEL = 9;
+
+    @Argument(fullName="memory", shortName="m", doc="Memory budget for in-memory sorting of the index, in megabytes (default: a quarter of the maximum heap)", required=false)
+    public Integer MEMORY_MB;
 
-        BlockCompressedOutputStream bc = new BlockCompressedOutputStream(bgzipPath.toFile().getAbsolutePath(), 9);
+    @Argument(fullName="tempDir", shortName="tmp", doc="Directory for temporary sort runs", required=false)
+    public File TEMP_DIR;
 
-        log.info("Writing bgzipped links and link index to:");
-        log.info("  - {}", bgzipPath);
-        log.info("  - {}", indexPath);
+    // The number of records parsed and encoded per task.
+    private static final int BATCH_SIZE = 4096;
 
-        try (FileChannel fc = FileChannel.open(indexPath, CREATE_NEW, READ, WRITE)) {
-            storeHeader(fc, LINKS, SOURCE);
-            storeRecordsAndIndex(fc, bc, LINKS);
+    private static class EncodedBatch {
+        private final long[][] kmers;
+        private final byte[][] records;
 
-            fc.close();
-            bc.close();
-        } catch (IOException e) {
-            throw new CortexJDKException("IOException", e);
+        private EncodedBatch(int size) {
+            kmers = new long[size][];
+            records = new byte[size][];
         }
     }
 
-    private void storeHeader(FileChannel fc, CortexLinksIterable links, String source) throws IOException {
-        int capacity = 6 + 4 + 4 + 8 + 8 + 8;
-        capacity += 4 + source.length();
-        for (int c = 0; c < links.getNumColors(); c++) {
-            capacity += 4 + links.getColor(c).getSampleName().length();
+    @Override
+    public void execute() {
+        File bgzipFile = new File(LINKS.getFile().getAbsolutePath().replace(".ctp.gz", ".ctp.bgz"));
+
+        List<String> sampleNames = new ArrayList<>();
+        for (int c = 0; c < LINKS.getNumColors(); c++) {
+            sampleNames.add(LINKS.getColor(c).getSampleName());
         }
-        capacity += 6;
 
-        ByteBuffer bb = ByteBuffer.allocateDirect(capacity);
+        long memoryBytes = MEMORY_MB != null ? MEMORY_MB*1024L*1024L : ExternalRecordSorter.defaultMemoryBudget();
 
-        bb.put("LNKIDX".getBytes());
-        bb.putInt(links.getNumColors());
-        bb.putInt(links.getKmerSize());
-        bb.putLong(links.getNumKmersInGraph());
-        bb.putLong(links.getNumKmersWithLinks());
-        bb.putLong(links.getLinkBytes());
+        try (CortexLinksIndexWriter writer = new CortexLinksIndexWriter(bgzipFile, SOURCE, sampleNames, LINKS.getKmerSize(), LINKS.getNumKmersInGraph(), LINKS.getLinkBytes(), BINARY, COMPRESSION_LEVEL, NUM_THREADS, memoryBytes, TEMP_DIR)) {
+            log.info("Writing bgzipped links and link index to:");
+            log.info("  - {}", writer.getFile());
+            log.info("  - {}", writer.getIndexFile());
 
-        bb.putInt(source.length());
-        bb.put(source.getBytes());
+            storeRecords(writer, LINKS);
 
-        for (int c = 0; c < links.getNumColors(); c++) {
-            String sn = links.getColor(c).getSampleName();
-            bb.putInt(sn.length());
-            bb.put(sn.getBytes());
+            log.info("Writing index ({} records, {} sort runs)", writer.getNumRecords(), writer.getNumSortRuns());
+
+            long numEntries = writer.finish();
+            if (numEntries != LINKS.getNumKmersWithLinks()) {
+                log.info("Indexed {} distinct kmers ({} records in file)", numEntries, LINKS.getNumKmersWithLinks());
+            }
         }
+    }
 
-        bb.put("LNKIDX".getBytes());
+    private EncodedBatch encode(CortexLinksIterable links, List<String[]> batch) {
+        EncodedBatch eb = new EncodedBatch(batch.size());
 
-        bb.flip();
-        fc.write(bb);
-    }
+        for (int i = 0; i < batch.size(); i++) {
+            CortexLinksRecord clr = links.parseRecord(batch.get(i));
 
-    private void storeRecordsAndIndex(FileChannel fc, BlockCompressedOutputStream bc, CortexLinksIterable links) throws IOException {
-        int numKmerBits = CortexRecord.getKmerBits(links.getKmerSize());
-        int bufferSize = (int) (links.getNumKmersWithLinks() * ((8*numKmerBits) + 8 + 4));
+            eb.kmers[i] = new CortexBinaryKmer(clr.getKmerAsByteKmer().getKmer()).getBinaryKmer();
+            eb.records[i] = CortexLinksIndexWriter.encode(clr, links.getKmerSize(), links.getNumColors(), BINARY);
+        }
 
-        log.info("Allocating kmer table ({} records, {} bytes)", links.getNumKmersWithLinks(), bufferSize);
+        return eb;
+    }
 
-        bc.write(links.getJSONHeader().getBytes());
-        bc.write("\n".getBytes());
-        bc.write(links.getComments().getBytes());
-        bc.write("\n".getBytes());
+    private void storeRecords(CortexLinksIndexWriter writer, CortexLinksIterable links) {
+        writer.writeHeader(links.getJSONHeader(), links.getComments());
 
         ProgressMeter pm = new ProgressMeterFactory()
                 .header("Processing links")
@@ -108,29 +102,14 @@ public class IndexLinks extends Module {
                 .maxRecord(links.getNumKmersWithLinks())
                 .make(log);
 
-        Map<CortexByteKmer, Pair<Long, Integer>> kmerTable = new TreeMap<>();
-
-        for (CortexLinksRecord clr : links) {
-            CortexByteKmer cbk = clr.getKmerAsByteKmer();
-            kmerTable.put(cbk, new Pair<>(bc.getPosition(), clr.toString().length()));
+        // Records are read on this thread, parsed and encoded in batches on the pool, then written and queued for
+        // the index sort back on this thread in file order.
+        ParallelUtils.mapReduce(links.rawRecordBatches(BATCH_SIZE), NUM_THREADS, batch -> encode(links, batch), eb -> {
+            for (int i = 0; i < eb.records.length; i++) {
+                writer.add(eb.kmers[i], eb.records[i]);
 
-            bc.write(clr.toString().getBytes());
-            bc.write("\n".getBytes());
-
-            pm.update();
-        }
-
-        ByteBuffer bb = ByteBuffer.allocateDirect(bufferSize);
-        for (CortexByteKmer cb : kmerTable.keySet()) {
-            CortexBinaryKmer cbk = new CortexBinaryKmer(cb.getKmer());
-            for (long l : cbk.getBinaryKmer()) {
-                bb.putLong(l);
+                pm.update();
             }
-            bb.putLong(kmerTable.get(cb).getFirst());
-            bb.putInt(kmerTable.get(cb).getSecond());
-        }
-
-        bb.flip();
-        fc.write(bb);
+        });
     }
 }
@@ -5,6 +5,7 @@ import htsjdk.samtools.reference.ReferenceSequence;
 import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
 import uk.ac.ox.well.cortexjdk.utils.io.table.TableWriter;
@@ -19,7 +20,7 @@ import java.util.*;
 
 public class CompileFeatureTable extends Module {
     @Argument(fullName="graph", shortName="g", doc="Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName="rois", shortName="r", doc="ROIs")
     public CortexGraph ROIS;
@@ -48,7 +49,7 @@ public class CompileFeatureTable extends Module {
 
         StatisticsOnStream sos = new StatisticsOnStream();
 
-        for (CortexRecord cr : GRAPH) {
+        for (CortexRecord cr : GRAPH.sequentialIterator()) {
             sos.push(cr.getCoverage(color));
             pm.update();
         }
@@ -59,13 +60,13 @@ public class CompileFeatureTable extends Module {
         log.info("  coverage mean={} sd={}", mean, sd);
 
         Set<CanonicalKmer> truth = new HashSet<>();
-        for (CortexRecord cr : ROIS_TRUTH) {
+        for (CortexRecord cr : ROIS_TRUTH.sequentialIterator()) {
             truth.add(cr.getCanonicalKmer());
         }
 
         Map<CanonicalKmer, Map<String, Object>> featureTable = new LinkedHashMap<>();
 
-        for (CortexRecord cr : ROIS) {
+        for (CortexRecord cr : ROIS.sequentialIterator()) {
             featureTable.put(cr.getCanonicalKmer(), new HashMap<>());
             featureTable.get(cr.getCanonicalKmer()).put("covZScore", (((double) cr.getCoverage(0)) - mean) / sd);
         }
@@ -7,6 +7,7 @@ import uk.ac.ox.well.cortexjdk.utils.alignment.reference.IndexedReference;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.*;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
@@ -25,7 +26,7 @@ import static uk.ac.ox.well.cortexjdk.utils.traversal.TraversalEngineConfigurati
 @Description(text="Find chains of contaminating kmers")
 public class FindContamination extends Module {
     @Argument(fullName="graph", shortName="g", doc="Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName="parents", shortName="p", doc="Parents")
     public ArrayList<String> PARENTS;
@@ -63,7 +64,7 @@ public class FindContamination extends Module {
                 .make(log);
 
         Map<CanonicalKmer, Boolean> roiKmers = new HashMap<>();
-        for (CortexRecord rc : ROI) {
+        for (CortexRecord rc : ROI.sequentialIterator()) {
             roiKmers.put(rc.getCanonicalKmer(), false);
         }
 
@@ -80,7 +81,7 @@ public class FindContamination extends Module {
                 .graph(GRAPH)
                 .make();
 
-        for (CortexRecord cr : CONTAM) {
+        for (CortexRecord cr : CONTAM.sequentialIterator()) {
             if (roiKmers.containsKey(cr.getCanonicalKmer()) && !roiKmers.get(cr.getCanonicalKmer())) {
                 List<CortexVertex> l = e.walk(cr.getKmerAsString());
 
@@ -155,7 +156,7 @@ public class FindContamination extends Module {
         //cgc.setHeader(ROI.getHeader());
 
         int numKept = 0, numExcluded = 0;
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             if (!contamKmers.contains(rr.getCanonicalKmer())) {
                 //cgw.addRecord(rr);
                 numKept++;
@@ -5,6 +5,7 @@ import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
@@ -28,7 +29,7 @@ import static uk.ac.ox.well.cortexjdk.utils.traversal.TraversalEngineConfigurati
 @Description(text="Find chains of low-complexity kmers")
 public class FindDust extends Module {
     @Argument(fullName="graph", shortName="g", doc="Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName="parents", shortName="p", doc="Parents")
     public ArrayList<String> PARENTS;
@@ -75,7 +76,7 @@ public class FindDust extends Module {
                 .make();
                 */
 
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             if (!dust.contains(rr.getCanonicalKmer()) && isDust(rr, 0)) {
                 dust.add(rr.getCanonicalKmer());
 
@@ -110,7 +111,7 @@ public class FindDust extends Module {
         //cgo.setHeader(ROI.getHeader());
 
         int numKept = 0, numExcluded = 0;
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             if (!dust.contains(rr.getCanonicalKmer())) {
                 //cgw.addRecord(rr);
                 numKept++;
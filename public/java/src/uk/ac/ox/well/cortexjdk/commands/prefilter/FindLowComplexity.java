@@ -3,6 +3,7 @@ package uk.ac.ox.well.cortexjdk.commands.prefilter;
 import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
@@ -18,7 +19,7 @@ import java.util.Set;
 
 public class FindLowComplexity extends Module {
     @Argument(fullName="graph", shortName="g", doc="Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName="parents", shortName="p", doc="Parents")
     public ArrayList<String> PARENTS;
@@ -51,7 +52,7 @@ public class FindLowComplexity extends Module {
 
         Set<CanonicalKmer> lowComplexity = new HashSet<>();
 
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             //log.info("{} {} {}", rr.getCanonicalKmer(), SequenceUtils.computeCompressionRatio(rr.getCanonicalKmer()), isLowComplexity(rr, COMPLEXITY_THRESHOLD));
 
             if (isLowComplexity(rr, COMPLEXITY_THRESHOLD)) {
@@ -73,7 +74,7 @@ public class FindLowComplexity extends Module {
         //cgo.setHeader(ROI.getHeader());
 
         int numKept = 0, numExcluded = 0;
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             if (!lowComplexity.contains(rr.getCanonicalKmer())) {
                 //cgw.addRecord(rr);
                 numKept++;
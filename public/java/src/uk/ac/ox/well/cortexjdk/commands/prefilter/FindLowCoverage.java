@@ -1,16 +1,21 @@
 package uk.ac.ox.well.cortexjdk.commands.prefilter;
 
+import org.apache.commons.math3.util.Pair;
 import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphPartition;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by kiran on 28/08/2017.
@@ -23,6 +28,9 @@ public class FindLowCoverage extends Module {
     @Argument(fullName="minCoverage", shortName="m", doc="Coverage limit")
     public Integer MIN_COVERAGE = 10;
 
+    @Argument(fullName="threads", shortName="t", doc="Number of threads")
+    public Integer NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
     @Output
     public File out;
 
@@ -37,32 +45,43 @@ public class FindLowCoverage extends Module {
         //CortexGraphWriter lgw = new CortexGraphWriter(lowcoverage_out);
         //lgw.setHeader(ROI.getHeader());
 
+        List<CortexGraphPartition> partitions = ROI.partitions();
+
         ProgressMeter pm = new ProgressMeterFactory()
                 .header("Removing low-coverage records (< " + MIN_COVERAGE + ")")
-                .message("records processed")
-                .maxRecord(ROI.getNumRecords())
+                .message("partitions processed")
+                .maxRecord(partitions.size())
                 .make(log);
 
-        int numKept = 0, numExcluded = 0;
-        for (CortexRecord cr : ROI) {
-            if (cr.getCoverage(0) >= MIN_COVERAGE) {
-                //cgw.addRecord(cr);
-                numKept++;
-            } else {
+        long[] numKept = { 0 }, numExcluded = { 0 };
+        ParallelUtils.mapReduce(partitions, NUM_THREADS, p -> {
+            List<CortexRecord> excluded = new ArrayList<>();
+
+            p.scan(cr -> {
+                if (cr.getCoverage(0) < MIN_COVERAGE) {
+                    excluded.add(cr.toRecord());
+                }
+            });
+
+            return new Pair<>(p.getNumRecords(), excluded);
+        }, result -> {
+            for (CortexRecord cr : result.getSecond()) {
                 //lgw.addRecord(cr);
                 cgw.addRecord(cr);
-                numExcluded++;
             }
 
+            numKept[0] += result.getFirst() - result.getSecond().size();
+            numExcluded[0] += result.getSecond().size();
+
             pm.update();
-        }
+        });
 
         cgw.close();
         //lgw.close();
 
         log.info("  {}/{} ({}%) kept, {}/{} ({}%) excluded",
-                numKept,     ROI.getNumRecords(), 100.0f * (float) numKept / (float) ROI.getNumRecords(),
-                numExcluded, ROI.getNumRecords(), 100.0f * (float) numExcluded / (float) ROI.getNumRecords()
+                numKept[0],     ROI.getNumRecords(), 100.0f * (float) numKept[0] / (float) ROI.getNumRecords(),
+                numExcluded[0], ROI.getNumRecords(), 100.0f * (float) numExcluded[0] / (float) ROI.getNumRecords()
         );
     }
 }
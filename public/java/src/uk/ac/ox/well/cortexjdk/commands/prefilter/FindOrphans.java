@@ -5,6 +5,7 @@ import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
@@ -28,7 +29,7 @@ import static uk.ac.ox.well.cortexjdk.utils.traversal.TraversalEngineConfigurati
 @Description(text="Find chains of orphaned kmers (those that don't ever weight to parents)")
 public class FindOrphans extends Module {
     @Argument(fullName="graph", shortName="g", doc="Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName="parents", shortName="p", doc="Parents")
     public ArrayList<String> PARENTS;
@@ -71,7 +72,7 @@ public class FindOrphans extends Module {
                 .graph(GRAPH)
                 .make();
 
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             if (!orphans.contains(rr.getCanonicalKmer())) {
                 /*
                 Graph<CortexVertex, CortexEdge> dfs = e.dfs(rr.getKmerAsString());
@@ -113,7 +114,7 @@ public class FindOrphans extends Module {
         //cgo.setHeader(ROI.getHeader());
 
         int numKept = 0, numExcluded = 0;
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             if (!orphans.contains(rr.getCanonicalKmer())) {
                 //cgw.addRecord(rr);
                 numKept++;
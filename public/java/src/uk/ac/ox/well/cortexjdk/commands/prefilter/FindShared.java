@@ -5,6 +5,7 @@ import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
@@ -21,7 +22,7 @@ import java.util.Set;
 @Description(text="Find kmers shared among children (as these are unlikely to tag de novo mutations)")
 public class FindShared extends Module {
     @Argument(fullName="graph", shortName="g", doc="Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName="parents", shortName="p", doc="Parents")
     public ArrayList<String> PARENTS;
@@ -58,34 +59,30 @@ public class FindShared extends Module {
 
         Set<CanonicalKmer> sharedKmers = new HashSet<>();
 
-        for (CortexRecord rr : ROI) {
-            if (!sharedKmers.contains(rr.getCanonicalKmer())) {
-                CortexRecord cr = GRAPH.findRecord(rr.getCanonicalKmer());
-
-                boolean isShared = false;
+        ROI.joinSorted(GRAPH, (rr, cr) -> {
+            boolean isShared = false;
 
-                for (int c = 0; c < GRAPH.getNumColors(); c++) {
-                    if (c != childColor && !parentColors.contains(c) && !ignoreColors.contains(c) && cr.getCoverage(c) > 0) {
-                        sharedKmers.add(rr.getCanonicalKmer());
-                        isShared = true;
+            for (int c = 0; cr != null && c < GRAPH.getNumColors(); c++) {
+                if (c != childColor && !parentColors.contains(c) && !ignoreColors.contains(c) && cr.getCoverage(c) > 0) {
+                    sharedKmers.add(rr.getCanonicalKmer());
+                    isShared = true;
 
-                        break;
-                    }
+                    break;
                 }
+            }
 
-                if (isShared && log.isDebugEnabled()) {
-                    List<String> records = new ArrayList<>();
-
-                    for (int c = 0; c < GRAPH.getNumColors(); c++) {
-                        records.add(String.format("%d:%d", c, cr.getCoverage(c)));
-                    }
+            if (isShared && log.isDebugEnabled()) {
+                List<String> records = new ArrayList<>();
 
-                    log.debug("{}", Joiner.on(' ').join(records));
+                for (int c = 0; c < GRAPH.getNumColors(); c++) {
+                    records.add(String.format("%d:%d", c, cr.getCoverage(c)));
                 }
+
+                log.debug("{}", Joiner.on(' ').join(records));
             }
 
             pm.update();
-        }
+        });
 
         log.info("Found {} shared kmers", sharedKmers.size());
 
@@ -98,7 +95,7 @@ public class FindShared extends Module {
         //cgo.setHeader(ROI.getHeader());
 
         int numKept = 0, numExcluded = 0;
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             if (!sharedKmers.contains(rr.getCanonicalKmer())) {
                 //cgw.addRecord(rr);
                 numKept++;
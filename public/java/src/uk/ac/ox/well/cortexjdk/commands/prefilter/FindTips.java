@@ -4,6 +4,7 @@ import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
@@ -25,7 +26,7 @@ import static uk.ac.ox.well.cortexjdk.utils.traversal.TraversalEngineConfigurati
 @Description(text="Find chains of novel kmers only anchored at one end")
 public class FindTips extends Module {
     @Argument(fullName="graph", shortName="g", doc="Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName = "links", shortName = "l", doc = "Links", required = false)
     public ArrayList<CortexLinks> LINKS;
@@ -58,7 +59,7 @@ public class FindTips extends Module {
                 .make(log);
 
         Map<CanonicalKmer, Boolean> used = new HashMap<>();
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             used.put(rr.getCanonicalKmer(), false);
         }
 
@@ -119,7 +120,7 @@ public class FindTips extends Module {
         //cgt.setHeader(ROI.getHeader());
 
         int numKept = 0, numExcluded = 0;
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             if (!tips.contains(rr.getCanonicalKmer())) {
                 //cgw.addRecord(rr);
                 numKept++;
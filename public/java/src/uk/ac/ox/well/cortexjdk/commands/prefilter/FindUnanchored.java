@@ -7,6 +7,7 @@ import uk.ac.ox.well.cortexjdk.utils.alignment.reference.IndexedReference;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
@@ -29,7 +30,7 @@ import java.util.*;
 @Description(text="Find novel kmers in contigs that cannot be confidently placed on any available reference")
 public class FindUnanchored extends Module {
     @Argument(fullName = "graph", shortName = "g", doc = "Graph")
-    public CortexGraph GRAPH;
+    public DeBruijnGraph GRAPH;
 
     @Argument(fullName = "links", shortName = "l", doc = "Links", required = false)
     public ArrayList<CortexLinks> LINKS;
@@ -83,7 +84,7 @@ public class FindUnanchored extends Module {
         int numUnanchoredChains = 0;
 
         Set<CanonicalKmer> rois = new HashSet<>();
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             rois.add(rr.getCanonicalKmer());
         }
 
@@ -155,7 +156,7 @@ public class FindUnanchored extends Module {
         cgw.setHeader(ROI.getHeader());
 
         int numKept = 0, numExcluded = 0;
-        for (CortexRecord rr : ROI) {
+        for (CortexRecord rr : ROI.sequentialIterator()) {
             if (!unanchored.contains(rr.getCanonicalKmer())) {
                 numKept++;
             } else {
@@ -38,6 +38,9 @@ public class ComputeAssemblyQuality extends Module {
     @Argument(fullName="evalRef", shortName="r", doc="")
     public IndexedReference REF;
 
+    @Argument(fullName="collectionIndex", shortName="ci", doc="Index the kmers of both graphs before looking them up")
+    public Boolean COLLECTION_INDEX = false;
+
     @Output
     public PrintStream out;
 
@@ -45,6 +48,10 @@ public class ComputeAssemblyQuality extends Module {
     public void execute() {
         CortexCollection cc = new CortexCollection(EVAL, COMP);
 
+        if (COLLECTION_INDEX) {
+            cc.buildCollectionIndex();
+        }
+
         Set<CanonicalKmer> seeds = getVariantSeeds(cc, 0, 1);
 
         int numBases = 0;
@@ -73,9 +80,11 @@ public class ComputeAssemblyQuality extends Module {
 
         Map<Interval, Map<String, String>> entries = new TreeMap<>();
 
+        Map<CanonicalKmer, CortexRecord> seedRecords = cc.findRecords(seeds);
+
         int numVariants = 0;
         for (CanonicalKmer ck : seeds) {
-            Map<String, String> te = callVariant(cc, evalColor, compColor, e, ck);
+            Map<String, String> te = callVariant(seedRecords.get(ck), evalColor, compColor, e, ck);
 
             if (te != null) {
                 Interval it = new Interval(te.get("chrom"), Integer.valueOf(te.get("pos")), Integer.valueOf(te.get("pos")));
@@ -96,9 +105,8 @@ public class ComputeAssemblyQuality extends Module {
         return numVariants;
     }
 
-    private Map<String, String> callVariant(CortexCollection cc, int evalColor, int compColor, TraversalEngine e, CanonicalKmer ck) {
-        CortexRecord cr = cc.findRecord(ck);
-        if (cr.getCoverage(evalColor) > 0) {
+    private Map<String, String> callVariant(CortexRecord cr, int evalColor, int compColor, TraversalEngine e, CanonicalKmer ck) {
+        if (cr != null && cr.getCoverage(evalColor) > 0) {
             e.getConfiguration().setTraversalColors(evalColor);
 
             String sk = ck.getKmerAsString();
@@ -0,0 +1,48 @@
+package uk.ac.ox.well.cortexjdk.commands.utils;
+
+import uk.ac.ox.well.cortexjdk.commands.Module;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexCompressedGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexCompressedGraphWriter;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
+import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
+
+import java.io.File;
+
+@Description(text="Convert a Cortex graph (.ctx) to the block-compressed format (.ctz)")
+public class Compress extends Module {
+    @Argument(fullName="graph", shortName="g", doc="Graph")
+    public CortexGraph GRAPH;
+
+    @Argument(fullName="recordsPerBlock", shortName="b", doc="Number of records per compressed block")
+    public Integer RECORDS_PER_BLOCK = CortexCompressedGraph.DEFAULT_RECORDS_PER_BLOCK;
+
+    @Output
+    public File out;
+
+    @Override
+    public void execute() {
+        CortexCompressedGraphWriter ccgw = new CortexCompressedGraphWriter(out);
+        ccgw.setHeader(GRAPH.getHeader(), GRAPH.getRawHeader());
+        ccgw.setRecordsPerBlock(RECORDS_PER_BLOCK);
+
+        ProgressMeter pm = new ProgressMeterFactory()
+                .header("Compressing graph...")
+                .message("records compressed")
+                .maxRecord(GRAPH.getNumRecords())
+                .make(log);
+
+        GRAPH.scan(cr -> {
+            ccgw.addRecord(cr.toRecord());
+
+            pm.update();
+        });
+
+        ccgw.close();
+
+        log.info("  {} bytes -> {} bytes ({}%)", GRAPH.getFile().length(), out.length(), String.format("%.2f", 100.0 * out.length() / GRAPH.getFile().length()));
+    }
+}
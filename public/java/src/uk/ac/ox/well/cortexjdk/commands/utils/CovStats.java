@@ -1,15 +1,19 @@
 package uk.ac.ox.well.cortexjdk.commands.utils;
 
+import org.apache.commons.math3.util.Pair;
 import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
-import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphPartition;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
 
 import java.io.PrintStream;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -24,6 +28,9 @@ public class CovStats extends Module {
     @Argument(fullName="parent", shortName="p", doc="Parents")
     public HashSet<String> PARENTS;
 
+    @Argument(fullName="threads", shortName="t", doc="Number of threads")
+    public Integer NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
     @Output
     public PrintStream out;
 
@@ -33,42 +40,50 @@ public class CovStats extends Module {
         Set<Integer> parentColors = getColorsForSampleNames(PARENTS);
 
         Map<Integer, Integer> hist = new TreeMap<>();
-        long sharedRecords = 0L;
+        long[] sharedRecords = { 0L };
+
+        List<CortexGraphPartition> partitions = GRAPH.partitions();
 
         ProgressMeter pm = new ProgressMeterFactory()
                 .header("Processing graph...")
-                .message("records processed")
-                .updateRecord(GRAPH.getNumRecords() / 10)
-                .maxRecord(GRAPH.getNumRecords())
+                .message("partitions processed")
+                .maxRecord(partitions.size())
                 .make(log);
 
-        for (CortexRecord cr : GRAPH) {
-            pm.update("records processed (" + sharedRecords + " shared records so far)");
-
-            boolean isInChild = cr.getCoverage(childColor) > 0;
-            int numberOfParents = 0;
-            int numberOfChildren = 0;
-
-            for (int c = 0; c < cr.getNumColors(); c++) {
-                if (cr.getCoverage(c) > 0) {
-                    if (childColor == c) { isInChild = true; }
-                    else if (parentColors.contains(c)) { numberOfParents++; }
-                    else { numberOfChildren++; }
+        // Each partition builds its own histogram; the partial histograms are summed as they complete.
+        ParallelUtils.mapReduce(partitions, NUM_THREADS, p -> {
+            Map<Integer, Integer> partialHist = new HashMap<>();
+            long[] partialShared = { 0L };
+
+            p.scan(cr -> {
+                boolean isInChild = cr.getCoverage(childColor) > 0;
+                int numberOfParents = 0;
+                int numberOfChildren = 0;
+
+                for (int c = 0; c < cr.getNumColors(); c++) {
+                    if (cr.getCoverage(c) > 0) {
+                        if (childColor == c) { isInChild = true; }
+                        else if (parentColors.contains(c)) { numberOfParents++; }
+                        else { numberOfChildren++; }
+                    }
                 }
-            }
 
-            int childCov = cr.getCoverage(childColor);
+                int childCov = cr.getCoverage(childColor);
+
+                if (isInChild && numberOfParents > 0 && numberOfChildren > 0) {
+                    partialHist.merge(childCov, numberOfParents + numberOfChildren, Integer::sum);
 
-            if (isInChild && numberOfParents > 0 && numberOfChildren > 0) {
-                if (!hist.containsKey(childCov)) {
-                    hist.put(childCov, 0);
+                    partialShared[0]++;
                 }
+            });
 
-                hist.put(childCov, hist.get(childCov) + numberOfParents + numberOfChildren);
+            return new Pair<>(partialHist, partialShared[0]);
+        }, partial -> {
+            partial.getFirst().forEach((cov, count) -> hist.merge(cov, count, Integer::sum));
+            sharedRecords[0] += partial.getSecond();
 
-                sharedRecords++;
-            }
-        }
+            pm.update("partitions processed (" + sharedRecords[0] + " shared records so far)");
+        });
 
         for (int cov : hist.keySet()) {
             out.println(cov + "\t" + hist.get(cov));
@@ -0,0 +1,42 @@
+package uk.ac.ox.well.cortexjdk.commands.utils;
+
+import uk.ac.ox.well.cortexjdk.commands.Module;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexCompressedGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
+import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
+
+import java.io.File;
+
+@Description(text="Convert a block-compressed Cortex graph (.ctz) back to the standard format (.ctx)")
+public class Decompress extends Module {
+    @Argument(fullName="graph", shortName="g", doc="Compressed graph")
+    public CortexCompressedGraph GRAPH;
+
+    @Output
+    public File out;
+
+    @Override
+    public void execute() {
+        CortexGraphWriter cgw = new CortexGraphWriter(out);
+        cgw.setHeader(GRAPH.getHeader(), GRAPH.getRawHeader());
+
+        ProgressMeter pm = new ProgressMeterFactory()
+                .header("Decompressing graph...")
+                .message("records decompressed")
+                .maxRecord(GRAPH.getNumRecords())
+                .make(log);
+
+        for (CortexRecord cr : GRAPH) {
+            cgw.addRecord(cr);
+
+            pm.update();
+        }
+
+        cgw.close();
+    }
+}
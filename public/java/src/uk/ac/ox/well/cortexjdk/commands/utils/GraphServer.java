@@ -0,0 +1,59 @@
+package uk.ac.ox.well.cortexjdk.commands.utils;
+
+import uk.ac.ox.well.cortexjdk.commands.Module;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
+import uk.ac.ox.well.cortexjdk.utils.arguments.Description;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinks;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.server.GraphQueryServer;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.server.GraphServerProtocol;
+
+import java.util.ArrayList;
+
+@Description(text="Keep graphs and links loaded and serve lookups to other commands (address them as graphserver://port/name)")
+public class GraphServer extends Module {
+    @Argument(fullName="graph", shortName="g", doc="Graph", required=false)
+    public ArrayList<CortexGraph> GRAPHS;
+
+    @Argument(fullName="links", shortName="l", doc="Links", required=false)
+    public ArrayList<CortexLinks> LINKS;
+
+    @Argument(fullName="port", shortName="p", doc="Port to listen on (loopback interface only)")
+    public Integer PORT = GraphServerProtocol.DEFAULT_PORT;
+
+    @Override
+    public void execute() {
+        if ((GRAPHS == null || GRAPHS.isEmpty()) && (LINKS == null || LINKS.isEmpty())) {
+            throw new CortexJDKException("Nothing to serve; specify at least one graph or links file");
+        }
+
+        GraphQueryServer server = new GraphQueryServer(PORT);
+
+        if (GRAPHS != null) {
+            for (CortexGraph g : GRAPHS) {
+                server.addGraph(g);
+                log.info("Serving graph: {} ({} colors, {} kmers)", g.getFile().getName(), g.getNumColors(), g.getNumRecords());
+            }
+        }
+
+        if (LINKS != null) {
+            for (CortexLinks l : LINKS) {
+                server.addLinks(l);
+                log.info("Serving links: {} ({} kmers with links)", l.getFile().getName(), l.size());
+            }
+        }
+
+        server.start();
+
+        log.info("Listening on port {}", server.getPort());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            server.stop();
+        }
+    }
+}
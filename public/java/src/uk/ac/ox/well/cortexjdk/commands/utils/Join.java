@@ -12,11 +12,15 @@ import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.List;
 
 public class Join extends Module {
     @Argument(fullName="graph", shortName="g", doc="Graph")
     public ArrayList<CortexGraph> GRAPHS;
 
+    @Argument(fullName="threads", shortName="t", doc="Number of threads")
+    public Integer NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
     @Output
     public File out;
 
@@ -48,10 +52,28 @@ public class Join extends Module {
                 .updateRecord(maxRecords / 10)
                 .make(log);
 
-        for (CortexRecord cr : cc) {
-            cgw.addRecord(cr);
+        if (NUM_THREADS <= 1) {
+            // A single thread gains nothing from batching ranges, so stream merged records straight to the writer.
+            for (CortexRecord cr : cc) {
+                cgw.addRecord(cr);
+
+                pm.update();
+            }
+        } else {
+            cc.process(NUM_THREADS, range -> {
+                List<CortexRecord> records = new ArrayList<>();
+                for (CortexRecord cr : range) {
+                    records.add(cr);
+                }
+
+                return records;
+            }, records -> {
+                for (CortexRecord cr : records) {
+                    cgw.addRecord(cr);
 
-            pm.update();
+                    pm.update();
+                }
+            });
         }
 
         cgw.close();
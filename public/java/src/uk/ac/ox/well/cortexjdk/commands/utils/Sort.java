@@ -4,47 +4,56 @@ import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphSorter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
-import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
+import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
+import uk.ac.ox.well.cortexjdk.utils.sort.ExternalRecordSorter;
 
-import java.util.Arrays;
+import java.io.File;
 
 public class Sort extends Module {
     @Argument(fullName="cortexGraph", shortName="cg", doc="Cortex graph")
     public CortexGraph CORTEX_GRAPH;
 
+    @Argument(fullName="memory", shortName="m", doc="Memory budget for in-memory sorting, in megabytes (default: a quarter of the maximum heap)", required=false)
+    public Integer MEMORY_MB;
+
+    @Argument(fullName="tempDir", shortName="tmp", doc="Directory for temporary sort runs", required=false)
+    public File TEMP_DIR;
+
+    @Argument(fullName="threads", shortName="t", doc="Number of threads")
+    public Integer NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
     @Output
     public CortexGraphWriter out;
 
     @Override
     public void execute() {
-        CortexRecord[] records = new CortexRecord[(int) CORTEX_GRAPH.getNumRecords()];
+        long memoryBytes = MEMORY_MB != null ? MEMORY_MB*1024L*1024L : ExternalRecordSorter.defaultMemoryBudget();
 
-        log.info("Processing Cortex records...");
-        int recordsProcessed = 0;
-        for (CortexRecord cr : CORTEX_GRAPH) {
-            records[recordsProcessed] = cr;
+        ProgressMeter pm = new ProgressMeterFactory()
+                .header("Processing Cortex records...")
+                .message("records processed")
+                .maxRecord(CORTEX_GRAPH.getNumRecords())
+                .make(log);
 
-            recordsProcessed++;
-            if (recordsProcessed % (CORTEX_GRAPH.getNumRecords() / 10) == 0) {
-                log.info("  {}/{} records", recordsProcessed, CORTEX_GRAPH.getNumRecords());
-            }
-        }
+        try (CortexGraphSorter sorter = new CortexGraphSorter(CORTEX_GRAPH.getHeader(), memoryBytes, TEMP_DIR)) {
+            sorter.setNumThreads(NUM_THREADS);
 
-        log.info("Sorting records (this may take a while)...");
-        Arrays.sort(records, 0, records.length);
+            CORTEX_GRAPH.scan(view -> {
+                sorter.add(view);
+                pm.update();
+            });
 
-        log.info("Writing records...");
-        recordsProcessed = 0;
-        out.setHeader(CORTEX_GRAPH.getHeader());
-        for (CortexRecord cr : records) {
-            recordsProcessed++;
+            log.info("Writing records ({} sorted runs spilled to disk)...", sorter.getNumRuns());
 
-            out.addRecord(cr);
+            out.setHeader(CORTEX_GRAPH.getHeader());
+            long numWritten = sorter.write(out);
 
-            if (recordsProcessed % (records.length / 10) == 0) {
-                log.info("  {}/{} records", recordsProcessed, records.length);
-            }
+            log.info("  {} records written", numWritten);
         }
+
+        out.close();
     }
 }
@@ -1,18 +1,15 @@
 package uk.ac.ox.well.cortexjdk.playground.assemble.raw;
 
-import com.carrotsearch.sizeof.RamUsageEstimator;
 import org.apache.commons.math3.util.Pair;
 import uk.ac.ox.well.cortexjdk.commands.Module;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Argument;
 import uk.ac.ox.well.cortexjdk.utils.arguments.Output;
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.*;
-import uk.ac.ox.well.cortexjdk.utils.math.MoreMathUtils;
-import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
+import uk.ac.ox.well.cortexjdk.utils.sort.ExternalRecordSorter;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.*;
 
@@ -29,18 +26,45 @@ public class BuildRawGraph extends Module {
     @Argument(fullName="threads", shortName="t", doc="Number of threads")
     public Integer NUM_THREADS = 1;
 
+    @Argument(fullName="memory", shortName="m", doc="Memory budget for in-memory sorting, in megabytes (default: a quarter of the maximum heap)", required=false)
+    public Integer MEMORY_MB;
+
+    @Argument(fullName="tempDir", shortName="tmp", doc="Directory for temporary sort runs", required=false)
+    public File TEMP_DIR;
+
     @Output
     public File out;
 
+    private static final int RECORDS_PER_BATCH = 100000;
+
     @Override
     public void execute() {
         verifyFiles(READ_FILES);
 
-        log.info("Loading and sorting graph chunks...");
-        Pair<List<CortexGraph>, Pair<Long, Integer>> val = buildSortedTempGraphs(READ_FILES, KMER_SIZE, SAMPLE_NAME, NUM_THREADS, out);
+        long memoryBytes = MEMORY_MB != null ? MEMORY_MB*1024L*1024L : ExternalRecordSorter.defaultMemoryBudget();
+
+        CortexHeader ch = makeHeader(SAMPLE_NAME, KMER_SIZE);
+
+        try (CortexGraphSorter sorter = new CortexGraphSorter(ch, memoryBytes, TEMP_DIR)) {
+            sorter.setNumThreads(NUM_THREADS);
+            sorter.setMergeDuplicates(true);
+
+            log.info("Loading and sorting records...");
+            Pair<Long, Integer> gstats = loadRecords(READ_FILES, KMER_SIZE, sorter);
 
-        log.info("Merging sorted graph chunks...");
-        mergeSortedTempGraphs(val.getFirst(), val.getSecond());
+            log.info("Merging {} sorted runs...", sorter.getNumRuns());
+
+            ch.getColor(0).setTotalSequence(gstats.getFirst());
+            ch.getColor(0).setMeanReadLength(gstats.getSecond());
+            ch.getColor(0).setErrorRate(0.01);
+
+            CortexGraphWriter cgw = new CortexGraphWriter(out);
+            cgw.setHeader(ch);
+            long numWritten = sorter.write(cgw);
+            cgw.close();
+
+            log.info("  -  wrote: {} unique records to {}", numWritten, out.getAbsolutePath());
+        }
     }
 
     private void verifyFiles(List<File> readFiles) {
@@ -55,106 +79,39 @@ public class BuildRawGraph extends Module {
         }
     }
 
-    private long presumableFreeMemory() {
-        long allocatedMemory = (Runtime.getRuntime().totalMemory()-Runtime.getRuntime().freeMemory());
+    private CortexHeader makeHeader(String sampleName, int kmerSize) {
+        CortexColor cc = new CortexColor();
+        cc.setSampleName(sampleName);
 
-        return Runtime.getRuntime().maxMemory() - allocatedMemory;
-    }
+        CortexHeader ch = new CortexHeader();
+        ch.setVersion(6);
+        ch.setNumColors(1);
+        ch.setKmerSize(kmerSize);
+        ch.setKmerBits(CortexRecord.getKmerBits(kmerSize));
+        ch.addColor(cc);
 
-    private Pair<List<CortexGraph>, Pair<Long, Integer>> buildSortedTempGraphs(List<File> readFiles, int kmerSize, String sampleName, int numThreads, File cgout) {
-        final long assumedRecordSize = RamUsageEstimator.sizeOf(new CortexRecord(CortexRecord.encodeBinaryKmer(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(kmerSize)),
-                                                       new int[1],
-                                                       new byte[1],
-                                                       kmerSize,
-                                                       CortexRecord.getKmerBits(kmerSize)));
-
-        long freeMem = presumableFreeMemory();
-        int overheadFactor = 1;
-        int maxRecordsPerThread = (int) ((float) freeMem / (float) (overheadFactor*assumedRecordSize*numThreads));
-
-        log.info("  using {} threads, approx {} records per thread", numThreads, maxRecordsPerThread);
-
-        ThreadPoolExecutor execInput  = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
-        ThreadPoolExecutor execSort   = (ThreadPoolExecutor) Executors.newFixedThreadPool(numThreads);
-        ThreadPoolExecutor execOutput = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        return ch;
+    }
 
+    private Pair<Long, Integer> loadRecords(List<File> readFiles, int kmerSize, CortexGraphSorter sorter) {
+        ExecutorService execInput = Executors.newSingleThreadExecutor();
         BlockingQueue<List<CortexRecord>> readQueue = new ArrayBlockingQueue<>(2);
-        BlockingQueue<List<CortexRecord>> writeQueue = new ArrayBlockingQueue<>(2);
-
-        Future<Pair<Long, Integer>> gStatsFuture = execInput.submit(new RecordsProducer(readQueue, readFiles, kmerSize, maxRecordsPerThread, log));
 
-        for (int i = 0; i < numThreads; i++) {
-            execSort.submit(new RecordsSorter(readQueue, writeQueue, log));
-        }
-
-        List<Future<List<CortexGraph>>> futures = new ArrayList<>();
-        futures.add(execOutput.submit(new RecordsWriter(out, sampleName, kmerSize, writeQueue, numThreads, log)));
+        Future<Pair<Long, Integer>> gStatsFuture = execInput.submit(new RecordsProducer(readQueue, readFiles, kmerSize, RECORDS_PER_BATCH, log));
 
-        List<CortexGraph> pieces = new ArrayList<>();
-        Pair<Long, Integer> gstats;
         try {
-            for (Future<List<CortexGraph>> future : futures) {
-                pieces.addAll(future.get());
-            }
-            gstats = gStatsFuture.get();
-        } catch (InterruptedException | ExecutionException e) {
-            throw new CortexJDKException("Error retrieving temp graph results", e);
-        }
-
-        execInput.shutdown();
-        execSort.shutdown();
-
-        return new Pair<>(pieces, gstats);
-    }
-
-    private CortexGraph mergeSortedTempGraphs(List<CortexGraph> pieces, Pair<Long, Integer> gstats) {
-        log.info("  merging {} chunks", pieces.size());
-
-        CortexGraphWriter cgw = new CortexGraphWriter(out);
-
-        CortexHeader ch = pieces.get(0).getHeader();
-        ch.getColor(0).setTotalSequence(gstats.getFirst());
-        ch.getColor(0).setMeanReadLength(gstats.getSecond());
-        ch.getColor(0).setErrorRate(0.01);
-        cgw.setHeader(ch);
-
-        int kmerBits = CortexRecord.getKmerBits(KMER_SIZE);
-
-        CortexCollection cc = new CortexCollection(pieces);
-
-        long[] bk = null;
-        int[] cov = new int[1];
-        byte[] edges = new byte[1];
-        for (CortexRecord cr : cc) {
-            if (bk == null || !Arrays.equals(bk, cr.getBinaryKmer())) {
-                if (bk != null) {
-                    cgw.addRecord(new CortexRecord(bk, cov, edges, KMER_SIZE, kmerBits));
-                }
-
-                bk = cr.getBinaryKmer();
-                cov[0] = 0;
-                edges[0] = 0;
-
-                cov[0] = MoreMathUtils.sum(cr.getCoverages());
-                for (byte ed : cr.getEdges()) {
-                    edges[0] |= ed;
-                }
-            } else if (Arrays.equals(bk, cr.getBinaryKmer())) {
-                cov[0] += MoreMathUtils.sum(cr.getCoverages());
-                for (byte ed : cr.getEdges()) {
-                    edges[0] |= ed;
+            List<CortexRecord> lrs;
+            while ((lrs = readQueue.take()).size() > 0) {
+                for (CortexRecord cr : lrs) {
+                    sorter.add(cr);
                 }
             }
-        }
-
-        cgw.addRecord(new CortexRecord(bk, cov, edges, KMER_SIZE, kmerBits));
-        cgw.close();
 
-        CortexGraph cg = new CortexGraph(out);
-
-        log.info("  -  wrote: {} unique records to {}", cg.getNumRecords(), cg.getFile().getAbsolutePath());
-
-        return cg;
+            return gStatsFuture.get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new CortexJDKException("Error retrieving graph records", e);
+        } finally {
+            execInput.shutdown();
+        }
     }
-
-}
\ No newline at end of file
+}
@@ -16,13 +16,19 @@ import uk.ac.ox.well.cortexjdk.commands.Command;
 import uk.ac.ox.well.cortexjdk.utils.alignment.reference.IndexedReference;
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.gff.GFF3;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexCollection;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexCompressedGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexMap;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinks;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksIterable;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksMap;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.server.GraphServerProtocol;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.server.RemoteGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.reads.Reads;
 import uk.ac.ox.well.cortexjdk.utils.io.xmfa.XMFASequenceFile;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 
@@ -269,7 +275,19 @@ public class ArgumentHandler {
             } else if (type.equals(CanonicalKmer.class)) {
                 return new CanonicalKmer(value);
             } else if (type.equals(CortexGraph.class)) {
-                return new CortexGraph(value);
+                if (CortexCompressedGraph.isCompressedGraph(new File(value))) {
+                    throw new CortexJDKException("Argument '" + value + "' is a compressed graph, but this module needs a .ctx graph (convert it with Decompress)");
+                }
+
+                return openCortexGraph(value);
+            } else if (type.equals(CortexCompressedGraph.class)) {
+                return new CortexCompressedGraph(value);
+            } else if (type.equals(DeBruijnGraph.class)) {
+                if (GraphServerProtocol.isServerUri(value)) {
+                    return new RemoteGraph(value);
+                }
+
+                return CortexCompressedGraph.isCompressedGraph(new File(value)) ? new CortexCompressedGraph(value) : openCortexGraph(value);
             } else if (type.equals(CortexMap.class)) {
                 return new CortexMap(value);
             } else if (type.equals(CortexLinksIterable.class)) {
@@ -304,6 +322,8 @@ public class ArgumentHandler {
                         .open(new File(value));
             } else if (type.equals(FastqReader.class)) {
                 return new FastqReader(new File(value));
+            } else if (type.equals(Reads.class)) {
+                return new Reads(new File(value));
             } else if (type.equals(VCFFileReader.class)) {
                 return new VCFFileReader(new File(value), false);
             } else if (type.equals(Color.class)) {
@@ -326,6 +346,39 @@ public class ArgumentHandler {
         }
     }
 
+    /**
+     * Open a Cortex graph argument.  The value may name a subset of colors to load, as 'graph.ctx:colors', where
+     * colors is a list of color indices or sample names separated by '+' (or ',' when the argument is not itself a
+     * list), e.g. 'graph.ctx:0+3' or 'graph.ctx:mother+father'.
+     *
+     * @param value  the argument value
+     * @return  the graph
+     */
+    private static CortexGraph openCortexGraph(String value) {
+        int sep = value.lastIndexOf(':');
+        if (sep <= 0 || new File(value).exists()) {
+            return new CortexGraph(value);
+        }
+
+        String path = value.substring(0, sep);
+        String[] names = value.substring(sep + 1).split("[+,]");
+
+        CortexHeader header = CortexGraph.readHeader(new File(path));
+        List<Integer> colors = new ArrayList<>();
+
+        for (String name : names) {
+            int color = CortexGraph.getColorForSampleName(header, name);
+
+            if (color < 0 || color >= header.getNumColors()) {
+                throw new CortexJDKException("Color '" + name + "' not found (or ambiguous) in Cortex graph '" + path + "'");
+            }
+
+            colors.add(color);
+        }
+
+        return new CortexGraph(path, colors);
+    }
+
     private static void initializeJexlEngine() {
         if (je == null) {
             je = new JexlEngine();
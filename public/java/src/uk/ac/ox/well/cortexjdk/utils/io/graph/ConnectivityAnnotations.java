@@ -2,10 +2,12 @@ package uk.ac.ox.well.cortexjdk.utils.io.graph;
 
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksBinaryRecord;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRecord;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
 
 import java.io.File;
 
@@ -23,6 +25,25 @@ public interface ConnectivityAnnotations {
 
     CortexLinksRecord get(Object key);
 
+    /**
+     * Get a kmer's links in the compact binary form, which traversal code reads without decoding strings.  Sources
+     * that keep their records encoded return them directly; others encode the record returned by {@link #get(Object)}.
+     *
+     * @param key  the kmer, in any form {@link #convert(Object)} accepts
+     * @return  the links, or null if the kmer has none
+     */
+    default CortexLinksBinaryRecord getBinaryRecord(Object key) {
+        CortexLinksRecord clr = get(key);
+
+        if (clr == null) {
+            return null;
+        }
+
+        CortexHeader header = getHeader();
+
+        return new CortexLinksBinaryRecord(CortexLinksBinaryRecord.encode(clr, header.getKmerSize(), header.getNumColors()), header.getKmerSize(), header.getNumColors());
+    }
+
     CortexHeader getHeader();
 
     default String getSource() { return "unknown"; }
@@ -30,6 +51,8 @@ public interface ConnectivityAnnotations {
     default CortexBinaryKmer convert(Object key) {
         if (key instanceof CortexBinaryKmer) {
             return (CortexBinaryKmer) key;
+        } else if (key instanceof PackedKmer) {
+            return new CortexBinaryKmer(((PackedKmer) key).canonical().toBinaryKmer());
         } else if (key instanceof byte[]) {
             return new CortexBinaryKmer((byte[]) key);
         } else if (key instanceof CanonicalKmer) {
@@ -4,11 +4,15 @@ import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexColor;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
 
 import java.io.File;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
 
 /**
  * Created by kiran on 20/08/2017.
@@ -32,6 +36,51 @@ public interface DeBruijnGraph extends Iterable<CortexRecord>, Iterator<CortexRe
     CortexRecord findRecord(CanonicalKmer ck);
     CortexRecord findRecord(String sk);
 
+    default CortexRecord findRecord(PackedKmer pk) { return findRecord(pk.getKmerAsBytes()); }
+
+    /**
+     * Find the records for many kmers at once.  Implementations backed by a sorted file answer the whole batch in
+     * a single forward pass rather than one search per kmer.
+     *
+     * @param kmers  the kmers to look up
+     * @return  a map from each kmer present in the graph to its record (absent kmers are omitted)
+     */
+    default Map<CanonicalKmer, CortexRecord> findRecords(Iterable<CanonicalKmer> kmers) {
+        Map<CanonicalKmer, CortexRecord> records = new HashMap<>();
+
+        for (CanonicalKmer ck : kmers) {
+            CortexRecord cr = findRecord(ck);
+
+            if (cr != null) {
+                records.put(ck, cr);
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Visit every record of this graph, in record order, alongside the other graph's record for the same kmer.
+     * Implementations backed by sorted files merge the two graphs in one forward pass rather than searching for
+     * each kmer.
+     *
+     * @param other  the graph to join against
+     * @param consumer  receives this graph's record and the other graph's record, or null if the kmer is absent there
+     */
+    default void joinSorted(DeBruijnGraph other, BiConsumer<CortexRecord, CortexRecord> consumer) {
+        for (CortexRecord cr : this) {
+            consumer.accept(cr, other.findRecord(cr.getCanonicalKmer()));
+        }
+    }
+
+    /**
+     * Get the records for a single linear pass over the graph.  Implementations backed by a file may stream them
+     * without disturbing the cursor or the lookup caches.
+     *
+     * @return  the records in graph order
+     */
+    default Iterable<CortexRecord> sequentialIterator() { return this; }
+
     // Graph information
     File getFile();
     CortexHeader getHeader();
@@ -6,16 +6,27 @@ import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.utils.LineReader;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
 
 public class CortexCollection implements uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph {
-    private CortexRecord[] nextRecs;
+    private Iterator<CortexRecord> merger;
 
     private List<CortexGraph> graphList = new ArrayList<>();
+    private List<int[]> graphAccessColors = new ArrayList<>();
     private Map<CortexGraph, Pair<List<Integer>, List<Integer>>> graphs = new HashMap<>();
-    private Map<CortexGraph, Pair<List<Integer>, List<Integer>>> fgraphs = new HashMap<>();
+
+    private CortexCollectionIndex collectionIndex;
+    private ForkJoinPool lookupPool;
 
     private int numColors = 0;
     private int kmerSize = 0;
@@ -53,8 +64,8 @@ public class CortexCollection implements uk.ac.ox.well.cortexjdk.utils.io.graph.
             }
 
             graphs.put(g, new Pair<>(accessColors, loadingColors));
-            fgraphs.put(new CortexGraph(g.getFile()), new Pair<>(accessColors, loadingColors));
             graphList.add(g);
+            graphAccessColors.add(accessColors.stream().mapToInt(Integer::intValue).toArray());
 
             numColors += accessColors.size();
 
@@ -158,34 +169,116 @@ public class CortexCollection implements uk.ac.ox.well.cortexjdk.utils.io.graph.
     @Override
     public int getVersion() { return 6; }
 
+    public CortexCollectionIndex getCollectionIndex() { return collectionIndex; }
+
+    public void setCollectionIndex(CortexCollectionIndex collectionIndex) {
+        if (collectionIndex != null && collectionIndex.getNumGraphs() != graphList.size()) {
+            throw new CortexJDKException("Collection index covers " + collectionIndex.getNumGraphs() + " graphs, but the collection has " + graphList.size());
+        }
+
+        this.collectionIndex = collectionIndex;
+    }
+
+    /**
+     * Build a shared membership index over the member graphs, so that lookups skip graphs that cannot contain the
+     * kmer.  This costs one sequential pass over every graph.
+     */
+    public void buildCollectionIndex() {
+        setCollectionIndex(CortexCollectionIndex.build(graphList));
+    }
+
+    /**
+     * Search member graphs concurrently during lookups.  Worthwhile for collections of many graphs whose records
+     * are not already cached; with one thread (the default) graphs are searched in turn.
+     *
+     * @param numThreads  the number of threads to search with
+     */
+    public void setNumLookupThreads(int numThreads) {
+        if (lookupPool != null) {
+            lookupPool.shutdown();
+        }
+
+        lookupPool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+    }
+
     public CortexRecord findRecord(byte[] bk) {
-        long[] binaryKmer = null;
+        if (bk.length != kmerSize || !PackedKmer.isPackable(bk)) {
+            return null;
+        }
+
+        return findRecordByBinaryKmer(PackedKmer.fromBytes(bk).canonical().toBinaryKmer());
+    }
+
+    @Override
+    public CortexRecord findRecord(PackedKmer pk) {
+        if (pk.length() != kmerSize) {
+            return null;
+        }
+
+        return findRecordByBinaryKmer(pk.canonical().toBinaryKmer());
+    }
+
+    private CortexRecord findRecordByBinaryKmer(long[] binaryKmer) {
+        int[] candidates = new int[graphList.size()];
+        int numCandidates = 0;
+
+        CortexCollectionIndex collectionIndex = this.collectionIndex;
+        int bucket = collectionIndex == null ? 0 : collectionIndex.bucket(binaryKmer);
+
+        for (int i = 0; i < graphList.size(); i++) {
+            if (collectionIndex == null || collectionIndex.mightContain(bucket, i)) {
+                candidates[numCandidates++] = i;
+            }
+        }
+
+        if (numCandidates == 0) {
+            return null;
+        }
+
         int[] coverages = new int[numColors];
         byte[] edges = new byte[numColors];
 
-        for (int assignmentColor = 0; assignmentColor <= numColors; assignmentColor++) {
-            for (CortexGraph g : fgraphs.keySet()) {
-                CortexRecord cr = g.findRecord(bk);
+        // Each graph fills in its own colors, so concurrent searches never write to the same slots.
+        IntPredicate search = i -> {
+            CortexRecord cr = graphList.get(i).findRecordByBinaryKmer(binaryKmer);
+
+            if (cr != null) {
+                int[] accessColors = graphAccessColors.get(i);
+
+                for (int c = 0; c < accessColors.length; c++) {
+                    coverages[accessColors[c]] = cr.getCoverage(c);
+                    edges[accessColors[c]] = cr.getEdges()[c];
+                }
+            }
 
-                if (cr != null) {
-                    binaryKmer = cr.getBinaryKmer();
+            return cr != null;
+        };
 
-                    Pair<List<Integer>, List<Integer>> p = fgraphs.get(g);
-                    List<Integer> accessColors = p.getFirst();
-                    List<Integer> loadingColors = p.getSecond();
+        boolean found = false;
+        ForkJoinPool lookupPool = this.lookupPool;
 
-                    for (int c = 0; c < accessColors.size(); c++) {
-                        int ac = accessColors.get(c);
-                        int lc = loadingColors.get(c);
+        if (lookupPool != null && numCandidates > 1) {
+            IntStream s = Arrays.stream(candidates, 0, numCandidates);
 
-                        coverages[ac] = cr.getCoverage(lc);
-                        edges[ac] = cr.getEdges()[lc];
-                    }
+            try {
+                found = lookupPool.submit(() -> s.parallel().map(i -> search.test(i) ? 1 : 0).sum() > 0).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CortexJDKException("Interrupted while searching collection", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
                 }
+
+                throw new CortexJDKException("Error while searching collection", e.getCause());
+            }
+        } else {
+            for (int c = 0; c < numCandidates; c++) {
+                found |= search.test(candidates[c]);
             }
         }
 
-        return (binaryKmer == null) ? null : new CortexRecord(binaryKmer, coverages, edges, kmerSize, kmerBits);
+        return found ? new CortexRecord(binaryKmer, coverages, edges, kmerSize, kmerBits) : null;
     }
 
     public CortexRecord findRecord(CortexByteKmer bk) {
@@ -204,13 +297,92 @@ public class CortexCollection implements uk.ac.ox.well.cortexjdk.utils.io.graph.
     }
 
     private void moveToBeginningOfRecordsSection() {
-        nextRecs = new CortexRecord[graphs.keySet().size() + 1];
+        long[] starts = new long[graphList.size()];
+        long[] ends = new long[graphList.size()];
+
+        for (int i = 0; i < graphList.size(); i++) {
+            ends[i] = graphList.get(i).getNumRecords();
+        }
+
+        merger = new CortexCollectionIterator(graphList, graphAccessColors.toArray(new int[0][]), starts, ends, numColors);
+    }
+
+    /**
+     * Split the collection's kmer space into about n ranges that can be merged independently.  Boundary kmers are
+     * sampled at evenly spaced records of the largest graph, and every graph is cut at the first record not
+     * before each boundary, so each range holds every graph's records for its slice of the kmer space.
+     *
+     * @param n  the number of ranges
+     * @return  the ranges, in kmer order
+     */
+    public List<Iterable<CortexRecord>> ranges(int n) {
+        CortexGraph largest = null;
+        for (CortexGraph g : graphList) {
+            if (largest == null || g.getNumRecords() > largest.getNumRecords()) {
+                largest = g;
+            }
+        }
+
+        List<long[]> boundaries = new ArrayList<>();
+        if (largest != null) {
+            CortexRecordView view = largest.newRecordView();
+            long numRecords = largest.getNumRecords();
+
+            for (int r = 1; r < n && r < numRecords; r++) {
+                long[] boundary = largest.getRecordView(r*numRecords / n, view).getBinaryKmer();
 
-        int i = 0;
+                if (boundaries.isEmpty() || CortexRecord.compareBinaryKmers(boundaries.get(boundaries.size() - 1), boundary) < 0) {
+                    boundaries.add(boundary);
+                }
+            }
+        }
+
+        long[][] cuts = new long[boundaries.size() + 2][graphList.size()];
+        for (int i = 0; i < graphList.size(); i++) {
+            CortexGraph g = graphList.get(i);
+            CortexRecordView view = g.newRecordView();
+
+            for (int b = 0; b < boundaries.size(); b++) {
+                cuts[b + 1][i] = g.seek(cuts[b][i], boundaries.get(b), view);
+            }
+
+            cuts[boundaries.size() + 1][i] = g.getNumRecords();
+        }
+
+        int[][] accessColors = graphAccessColors.toArray(new int[0][]);
+
+        List<Iterable<CortexRecord>> ranges = new ArrayList<>();
+        for (int r = 0; r <= boundaries.size(); r++) {
+            long[] starts = cuts[r];
+            long[] ends = cuts[r + 1];
+
+            ranges.add(() -> new CortexCollectionIterator(graphList, accessColors, starts, ends, numColors));
+        }
+
+        return ranges;
+    }
+
+    /**
+     * Merge the collection on a pool of threads, one kmer range at a time, and hand the results to a reducer on
+     * the calling thread in kmer order.  Ranges hold about as many records as a default graph partition (fewer,
+     * when that would leave threads idle), so mappers that collect records hold a bounded number of them even when
+     * run on a single thread.
+     *
+     * @param numThreads  the number of worker threads
+     * @param mapper  the per-range computation over merged records, called concurrently
+     * @param reducer  the consumer of each range's result, called sequentially in kmer order
+     * @param <T>  the per-range result type
+     */
+    public <T> void process(int numThreads, Function<Iterable<CortexRecord>, T> mapper, Consumer<T> reducer) {
+        long maxRecords = 0;
         for (CortexGraph g : graphList) {
-            nextRecs[i] = g.next();
-            i++;
+            maxRecords = Math.max(maxRecords, g.getNumRecords());
         }
+
+        long numPartitions = (maxRecords + CortexGraphPartition.DEFAULT_PARTITION_RECORDS - 1) / CortexGraphPartition.DEFAULT_PARTITION_RECORDS;
+        int numRanges = (int) Math.min(Integer.MAX_VALUE, Math.max(numThreads <= 1 ? 1 : 4*numThreads, numPartitions));
+
+        ParallelUtils.mapReduce(ranges(numRanges), numThreads, mapper, reducer);
     }
 
     @Override
@@ -232,64 +404,16 @@ public class CortexCollection implements uk.ac.ox.well.cortexjdk.utils.io.graph.
 
     @Override
     public boolean hasNext() {
-        for (int i = 0; i < nextRecs.length; i++) {
-            if (nextRecs[i] != null) {
-                return true;
-            }
-        }
+        if (merger == null) { moveToBeginningOfRecordsSection(); }
 
-        return false;
+        return merger.hasNext();
     }
 
     @Override
     public CortexRecord next() {
-        int lowc = -1;
-
-        for (int i = 0; i < nextRecs.length; i++) {
-            if (nextRecs[i] != null) {
-                if (lowc == -1 || nextRecs[i].getKmerAsString().compareTo(nextRecs[lowc].getKmerAsString()) < 0) {
-                    lowc = i;
-                }
-            }
-        }
-
-        if (lowc >= 0) {
-            String compKmer = nextRecs[lowc].getKmerAsString();
-
-            long[] binaryKmer = null;
-            int[] coverages = new int[numColors];
-            byte[] edges = new byte[numColors];
-
-            for (int i = 0; i < nextRecs.length; i++) {
-                if (nextRecs[i] != null && nextRecs[i].getKmerAsString().equals(compKmer)) {
-                    CortexRecord cr = nextRecs[i];
-
-                    if (cr != null) {
-                        binaryKmer = cr.getBinaryKmer();
-
-                        CortexGraph g = graphList.get(i);
+        if (merger == null) { moveToBeginningOfRecordsSection(); }
 
-                        Pair<List<Integer>, List<Integer>> p = graphs.get(g);
-                        List<Integer> accessColors = p.getFirst();
-                        List<Integer> loadingColors = p.getSecond();
-
-                        for (int c = 0; c < accessColors.size(); c++) {
-                            int ac = accessColors.get(c);
-                            int lc = loadingColors.get(c);
-
-                            coverages[ac] = cr.getCoverage(lc);
-                            edges[ac] = cr.getEdges()[lc];
-                        }
-
-                        nextRecs[i] = graphList.get(i).next();
-                    }
-                }
-            }
-
-            return (binaryKmer == null) ? null : new CortexRecord(binaryKmer, coverages, edges, kmerSize, kmerBits);
-        }
-
-        return null;
+        return merger.hasNext() ? merger.next() : null;
     }
 
     @Override
@@ -299,6 +423,10 @@ public class CortexCollection implements uk.ac.ox.well.cortexjdk.utils.io.graph.
 
     @Override
     public void close() {
+        if (lookupPool != null) {
+            lookupPool.shutdown();
+        }
+
         for (CortexGraph g : graphList) {
             g.close();
         }
@@ -0,0 +1,112 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.math3.util.Pair;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A membership index shared by all graphs in a collection.  The kmer space is split into buckets by the first few
+ * bases of each kmer, and each bucket stores a bitmask of the member graphs that have any records in it.  A
+ * collection lookup computes the kmer's bucket once and then only searches the graphs whose bit is set, which
+ * skips most members when they are small or cover different parts of the kmer space.
+ *
+ * Rows are stored bucket-major, so the masks for one lookup sit next to each other in memory.
+ */
+public class CortexCollectionIndex {
+    public static final int DEFAULT_PREFIX_LENGTH = 10;
+
+    private final int kmerSize;
+    private final int prefixLength;
+    private final int numGraphs;
+    private final int wordsPerBucket;
+    private final long[] masks;
+
+    private CortexCollectionIndex(int kmerSize, int prefixLength, int numGraphs) {
+        this.kmerSize = kmerSize;
+        this.prefixLength = prefixLength;
+        this.numGraphs = numGraphs;
+        this.wordsPerBucket = (numGraphs + 63) / 64;
+        this.masks = new long[(1 << (2*prefixLength))*wordsPerBucket];
+    }
+
+    public int getPrefixLength() { return prefixLength; }
+
+    public int getNumGraphs() { return numGraphs; }
+
+    /**
+     * Get the bucket for a canonical binary kmer.
+     *
+     * @param binaryKmer  the binary kmer
+     * @return  the bucket
+     */
+    public int bucket(long[] binaryKmer) {
+        return CortexGraphIndex.prefix(binaryKmer, kmerSize, prefixLength);
+    }
+
+    /**
+     * Check whether a member graph might hold kmers in a bucket.
+     *
+     * @param bucket  the bucket, from {@link #bucket(long[])}
+     * @param graph  the member graph's position in the collection
+     * @return  false if the graph definitely has no kmers in the bucket
+     */
+    public boolean mightContain(int bucket, int graph) {
+        return (masks[bucket*wordsPerBucket + (graph >>> 6)] & (1L << (graph & 63))) != 0;
+    }
+
+    private void set(int bucket, int graph) {
+        masks[bucket*wordsPerBucket + (graph >>> 6)] |= 1L << (graph & 63);
+    }
+
+    /**
+     * Build the index with one sequential pass over each member graph, scanning graphs in parallel.
+     *
+     * @param graphs  the member graphs, in collection order
+     * @param prefixLength  the number of leading bases that define a bucket
+     * @param numThreads  the number of graphs to scan at once
+     * @return  the index
+     */
+    public static CortexCollectionIndex build(List<CortexGraph> graphs, int prefixLength, int numThreads) {
+        int kmerSize = graphs.isEmpty() ? 0 : graphs.get(0).getKmerSize();
+        CortexCollectionIndex index = new CortexCollectionIndex(kmerSize, Math.max(1, Math.min(prefixLength, kmerSize)), graphs.size());
+
+        List<Integer> members = new ArrayList<>();
+        for (int g = 0; g < graphs.size(); g++) {
+            members.add(g);
+        }
+
+        // Workers only collect the buckets present in their graph; masks are set on the calling thread.
+        ParallelUtils.mapReduce(members, numThreads, g -> {
+            CortexGraph graph = graphs.get(g);
+            long[] binaryKmer = new long[graph.getKmerBits()];
+            IntArrayList buckets = new IntArrayList();
+            int[] last = { -1 };
+
+            graph.scan(view -> {
+                view.getBinaryKmer(binaryKmer);
+                int bucket = index.bucket(binaryKmer);
+
+                // Records are sorted, so each bucket's records are contiguous.
+                if (bucket != last[0]) {
+                    buckets.add(bucket);
+                    last[0] = bucket;
+                }
+            });
+
+            return new Pair<>(g, buckets.toIntArray());
+        }, result -> {
+            for (int bucket : result.getSecond()) {
+                index.set(bucket, result.getFirst());
+            }
+        });
+
+        return index;
+    }
+
+    public static CortexCollectionIndex build(List<CortexGraph> graphs) {
+        return build(graphs, DEFAULT_PREFIX_LENGTH, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,137 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges record ranges from several sorted Cortex graphs into combined multi-color records.  Each graph is read
+ * through its own view, and its current kmer is cached as byte-swapped words so the heap orders cursors with plain
+ * unsigned comparisons rather than decoding kmer strings.
+ */
+class CortexCollectionIterator implements Iterator<CortexRecord> {
+    private final int numColors;
+    private final int kmerSize;
+    private final int kmerBits;
+
+    private final PriorityQueue<Cursor> heap;
+
+    /**
+     * @param graphs  the graphs to merge
+     * @param accessColors  for each graph, the collection color of each of its colors
+     * @param starts  for each graph, the first record to merge
+     * @param ends  for each graph, one past the last record to merge
+     * @param numColors  the total number of colors in the collection
+     */
+    CortexCollectionIterator(List<CortexGraph> graphs, int[][] accessColors, long[] starts, long[] ends, int numColors) {
+        this.numColors = numColors;
+        this.kmerSize = graphs.isEmpty() ? 0 : graphs.get(0).getKmerSize();
+        this.kmerBits = graphs.isEmpty() ? 0 : graphs.get(0).getKmerBits();
+
+        this.heap = new PriorityQueue<>(Math.max(1, graphs.size()));
+
+        for (int i = 0; i < graphs.size(); i++) {
+            Cursor cursor = new Cursor(graphs.get(i), accessColors[i], starts[i], ends[i]);
+
+            if (cursor.advance()) {
+                heap.add(cursor);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public CortexRecord next() {
+        if (heap.isEmpty()) {
+            throw new NoSuchElementException();
+        }
+
+        Cursor first = heap.poll();
+
+        long[] binaryKmer = first.view.getBinaryKmer();
+        int[] coverages = new int[numColors];
+        byte[] edges = new byte[numColors];
+
+        first.copyTo(coverages, edges);
+
+        while (!heap.isEmpty() && heap.peek().sameKmer(first)) {
+            Cursor other = heap.poll();
+            other.copyTo(coverages, edges);
+
+            if (other.advance()) {
+                heap.add(other);
+            }
+        }
+
+        if (first.advance()) {
+            heap.add(first);
+        }
+
+        return new CortexRecord(binaryKmer, coverages, edges, kmerSize, kmerBits);
+    }
+
+    private static final class Cursor implements Comparable<Cursor> {
+        private final CortexGraph graph;
+        private final int[] accessColors;
+        private final CortexRecordView view;
+        private final long[] key;
+        private long index;
+        private final long end;
+
+        Cursor(CortexGraph graph, int[] accessColors, long start, long end) {
+            this.graph = graph;
+            this.accessColors = accessColors;
+            this.view = graph.newRecordView();
+            this.key = new long[graph.getKmerBits()];
+            this.index = start;
+            this.end = Math.min(end, graph.getNumRecords());
+        }
+
+        boolean advance() {
+            if (index >= end) {
+                return false;
+            }
+
+            graph.getRecordView(index++, view);
+
+            for (int w = 0; w < key.length; w++) {
+                key[w] = Long.reverseBytes(view.getBinaryKmerWord(w));
+            }
+
+            return true;
+        }
+
+        boolean sameKmer(Cursor o) {
+            for (int w = 0; w < key.length; w++) {
+                if (key[w] != o.key[w]) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        void copyTo(int[] coverages, byte[] edges) {
+            for (int c = 0; c < accessColors.length; c++) {
+                coverages[accessColors[c]] = view.getCoverage(c);
+                edges[accessColors[c]] = view.getEdge(c);
+            }
+        }
+
+        @Override
+        public int compareTo(Cursor o) {
+            for (int w = 0; w < key.length; w++) {
+                if (key[w] != o.key[w]) {
+                    return Long.compareUnsigned(key[w], o.key[w]);
+                }
+            }
+
+            return 0;
+        }
+    }
+}
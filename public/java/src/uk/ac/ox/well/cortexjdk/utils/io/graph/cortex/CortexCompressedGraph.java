@@ -0,0 +1,496 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import org.xerial.snappy.Snappy;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.utils.BinaryFile;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * A Cortex graph stored in the block-compressed '.ctz' format.  Records are grouped into fixed-size blocks; within
+ * a block, kmers are delta-encoded against their predecessor, coverages are varint-encoded by color, and the block
+ * is then Snappy-compressed.  An index of each block's offset and first kmer lets findRecord decode a single block,
+ * and the fixed block size lets getRecord find a record's block by division.
+ *
+ * The original .ctx header is stored verbatim, so a graph survives a round trip through this format byte for byte.
+ *
+ * Layout: magic, version, header length, header, blocks, block index (offsets, then first kmers), and a fixed-size
+ * trailer holding the index offset, record count, block size, block count and the magic again.
+ */
+public class CortexCompressedGraph implements DeBruijnGraph {
+    public static final String EXTENSION = ".ctz";
+
+    public static final int DEFAULT_RECORDS_PER_BLOCK = 1024;
+
+    static final byte[] MAGIC = "CTXZIP".getBytes();
+    static final int VERSION = 1;
+    static final int TRAILER_SIZE = 8 + 8 + 4 + 4 + 6;
+
+    private final File cortexFile;
+    private BinaryFile in;
+    private FileChannel channel;
+
+    private CortexHeader header;
+    private byte[] rawHeader;
+
+    private long numRecords;
+    private int recordsPerBlock;
+    private int numBlocks;
+    private long[] blockOffsets;
+    private long[] firstKmers;
+
+    private long recordsSeen = 0;
+    private Block cursorBlock = null;
+    private CortexRecord nextRecord = null;
+
+    // Each thread keeps its most recently decoded block, so runs of nearby lookups decode it only once.
+    private final ThreadLocal<Block> lookupBlock = new ThreadLocal<>();
+
+    private static final class Block {
+        private final int block;
+        private final int numRecords;
+        private final long[] kmers;
+        private final int[] coverages;
+        private final byte[] edges;
+
+        private Block(int block, int numRecords, long[] kmers, int[] coverages, byte[] edges) {
+            this.block = block;
+            this.numRecords = numRecords;
+            this.kmers = kmers;
+            this.coverages = coverages;
+            this.edges = edges;
+        }
+    }
+
+    public CortexCompressedGraph(String cortexFilePath) {
+        this(new File(cortexFilePath));
+    }
+
+    public CortexCompressedGraph(File cortexFile) {
+        this.cortexFile = cortexFile;
+        loadCompressedGraph();
+    }
+
+    public static boolean isCompressedGraph(File file) {
+        return file.getName().endsWith(EXTENSION);
+    }
+
+    private void loadCompressedGraph() {
+        try {
+            in = new BinaryFile(cortexFile, "r");
+            channel = in.getChannel();
+
+            long size = channel.size();
+            if (size < MAGIC.length + 8 + TRAILER_SIZE) {
+                throw new CortexJDKException("The file '" + cortexFile.getAbsolutePath() + "' does not appear to be a compressed Cortex graph");
+            }
+
+            ByteBuffer preamble = read(0, MAGIC.length + 8);
+            byte[] magic = new byte[MAGIC.length];
+            preamble.get(magic);
+
+            if (!Arrays.equals(magic, MAGIC) || preamble.getInt() != VERSION) {
+                throw new CortexJDKException("The file '" + cortexFile.getAbsolutePath() + "' does not appear to be a compressed Cortex graph");
+            }
+
+            int headerLength = preamble.getInt();
+            long headerStart = MAGIC.length + 8;
+
+            rawHeader = read(headerStart, headerLength).array();
+
+            in.seek(headerStart);
+            header = CortexGraph.readHeader(in, cortexFile);
+
+            if (in.getFilePointer() != headerStart + headerLength) {
+                throw new CortexJDKException("Corrupt header in compressed Cortex graph '" + cortexFile.getAbsolutePath() + "'");
+            }
+
+            ByteBuffer trailer = read(size - TRAILER_SIZE, TRAILER_SIZE);
+            long indexOffset = trailer.getLong();
+            numRecords = trailer.getLong();
+            recordsPerBlock = trailer.getInt();
+            numBlocks = trailer.getInt();
+
+            trailer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new CortexJDKException("The compressed Cortex graph '" + cortexFile.getAbsolutePath() + "' is truncated");
+            }
+
+            int kmerBits = header.getKmerBits();
+            ByteBuffer index = read(indexOffset, 8L*numBlocks*(1 + kmerBits));
+
+            blockOffsets = new long[numBlocks + 1];
+            for (int b = 0; b < numBlocks; b++) {
+                blockOffsets[b] = index.getLong();
+            }
+            blockOffsets[numBlocks] = indexOffset;
+
+            firstKmers = new long[numBlocks*kmerBits];
+            for (int i = 0; i < firstKmers.length; i++) {
+                firstKmers[i] = index.getLong();
+            }
+
+            position(0);
+        } catch (FileNotFoundException e) {
+            throw new CortexJDKException("Compressed Cortex graph file '" + cortexFile.getAbsolutePath() + "' not found: " + e);
+        } catch (IOException e) {
+            throw new CortexJDKException("Error while parsing compressed Cortex graph file '" + cortexFile.getAbsolutePath() + "': " + e);
+        }
+    }
+
+    private ByteBuffer read(long position, long length) throws IOException {
+        ByteBuffer bb = ByteBuffer.allocate((int) length);
+
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position()) < 0) {
+                throw new CortexJDKException("Unexpected end of compressed Cortex graph '" + cortexFile.getAbsolutePath() + "'");
+            }
+        }
+
+        bb.flip();
+
+        return bb;
+    }
+
+    private Block decodeBlock(int block) {
+        int kmerBits = header.getKmerBits();
+        int numColors = header.getNumColors();
+        int n = (int) Math.min(recordsPerBlock, numRecords - (long) block*recordsPerBlock);
+
+        long[] kmers = new long[n*kmerBits];
+        int[] coverages = new int[n*numColors];
+        byte[] edges = new byte[n*numColors];
+
+        try {
+            byte[] compressed = read(blockOffsets[block], blockOffsets[block + 1] - blockOffsets[block]).array();
+            byte[] raw = new byte[Snappy.uncompressedLength(compressed)];
+            Snappy.uncompress(compressed, 0, compressed.length, raw, 0);
+
+            ByteBuffer bb = ByteBuffer.wrap(raw);
+
+            for (int w = 0; w < kmerBits; w++) {
+                kmers[w] = bb.getLong();
+            }
+
+            for (int r = 1; r < n; r++) {
+                int first = (int) getVarLong(bb);
+
+                System.arraycopy(kmers, (r - 1)*kmerBits, kmers, r*kmerBits, first);
+
+                if (first < kmerBits) {
+                    long prev = Long.reverseBytes(kmers[(r - 1)*kmerBits + first]);
+                    kmers[r*kmerBits + first] = Long.reverseBytes(prev + getVarLong(bb));
+
+                    for (int w = first + 1; w < kmerBits; w++) {
+                        kmers[r*kmerBits + w] = bb.getLong();
+                    }
+                }
+            }
+
+            for (int c = 0; c < numColors; c++) {
+                for (int r = 0; r < n; r++) {
+                    coverages[r*numColors + c] = (int) getVarLong(bb);
+                }
+            }
+
+            for (int c = 0; c < numColors; c++) {
+                for (int r = 0; r < n; r++) {
+                    edges[r*numColors + c] = bb.get();
+                }
+            }
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to decode block " + block + " of compressed Cortex graph '" + cortexFile.getAbsolutePath() + "'", e);
+        }
+
+        return new Block(block, n, kmers, coverages, edges);
+    }
+
+    private Block getLookupBlock(int block) {
+        Block b = lookupBlock.get();
+
+        if (b == null || b.block != block) {
+            b = decodeBlock(block);
+            lookupBlock.set(b);
+        }
+
+        return b;
+    }
+
+    private CortexRecord toRecord(Block b, int r) {
+        int kmerBits = header.getKmerBits();
+        int numColors = header.getNumColors();
+
+        return new CortexRecord(
+                Arrays.copyOfRange(b.kmers, r*kmerBits, (r + 1)*kmerBits),
+                Arrays.copyOfRange(b.coverages, r*numColors, (r + 1)*numColors),
+                Arrays.copyOfRange(b.edges, r*numColors, (r + 1)*numColors),
+                header.getKmerSize(), kmerBits
+        );
+    }
+
+    static void putVarLong(ByteBuffer bb, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bb.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        bb.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer bb) {
+        long value = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            byte b = bb.get();
+            value |= (long) (b & 0x7F) << shift;
+
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    // Compare a binary kmer against one stored at an offset in a flat array, in the graph's sort order.
+    private static int compareKmer(long[] kmers, int offset, long[] binaryKmer) {
+        for (int w = 0; w < binaryKmer.length; w++) {
+            int c = Long.compareUnsigned(Long.reverseBytes(kmers[offset + w]), Long.reverseBytes(binaryKmer[w]));
+
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return 0;
+    }
+
+    private CortexRecord findRecordByBinaryKmer(long[] binaryKmer) {
+        int kmerBits = header.getKmerBits();
+
+        // Find the last block whose first kmer is not greater than the query.
+        int lo = 0, hi = numBlocks;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+
+            if (compareKmer(firstKmers, mid*kmerBits, binaryKmer) <= 0) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+
+        if (lo == 0) {
+            return null;
+        }
+
+        Block b = getLookupBlock(lo - 1);
+
+        int rlo = 0, rhi = b.numRecords - 1;
+        while (rlo <= rhi) {
+            int mid = (rlo + rhi) >>> 1;
+            int c = compareKmer(b.kmers, mid*kmerBits, binaryKmer);
+
+            if (c < 0) { rlo = mid + 1; }
+            else if (c > 0) { rhi = mid - 1; }
+            else { return toRecord(b, mid); }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get the graph's .ctx header exactly as it was stored when the graph was compressed.
+     *
+     * @return  the header bytes
+     */
+    public byte[] getRawHeader() { return rawHeader; }
+
+    public int getRecordsPerBlock() { return recordsPerBlock; }
+
+    public int getNumBlocks() { return numBlocks; }
+
+    @Override
+    public long position() { return recordsSeen; }
+
+    @Override
+    public void position(long i) {
+        if (i < 0) {
+            throw new CortexJDKException("Record index is outside of range (" + i + " vs 0-" + (numRecords - 1) + ")");
+        }
+
+        recordsSeen = i;
+        nextRecord = getNextRecord();
+    }
+
+    private CortexRecord getNextRecord() {
+        if (recordsSeen >= numRecords) {
+            return null;
+        }
+
+        int block = (int) (recordsSeen / recordsPerBlock);
+        if (cursorBlock == null || cursorBlock.block != block) {
+            cursorBlock = decodeBlock(block);
+        }
+
+        CortexRecord cr = toRecord(cursorBlock, (int) (recordsSeen % recordsPerBlock));
+        recordsSeen++;
+
+        return cr;
+    }
+
+    @Override
+    public Iterator<CortexRecord> iterator() {
+        position(0);
+
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() { return nextRecord != null; }
+
+    @Override
+    public CortexRecord next() {
+        CortexRecord currentRecord = nextRecord;
+
+        nextRecord = getNextRecord();
+
+        return currentRecord;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            throw new CortexJDKException("Error while closing compressed graph file", e);
+        }
+    }
+
+    @Override
+    public CortexRecord getRecord(long i) {
+        if (i < 0) {
+            throw new CortexJDKException("Record index is outside of range (" + i + " vs 0-" + (numRecords - 1) + ")");
+        }
+
+        if (i >= numRecords) {
+            return null;
+        }
+
+        return toRecord(getLookupBlock((int) (i / recordsPerBlock)), (int) (i % recordsPerBlock));
+    }
+
+    @Override
+    public CortexRecord findRecord(byte[] bk) {
+        if (bk.length != getKmerSize() || !PackedKmer.isPackable(bk)) {
+            return null;
+        }
+
+        return findRecordByBinaryKmer(PackedKmer.fromBytes(bk).canonical().toBinaryKmer());
+    }
+
+    @Override
+    public CortexRecord findRecord(PackedKmer pk) {
+        if (pk.length() != getKmerSize()) {
+            return null;
+        }
+
+        return findRecordByBinaryKmer(pk.canonical().toBinaryKmer());
+    }
+
+    @Override
+    public CortexRecord findRecord(CortexByteKmer bk) { return findRecord(bk.getKmer()); }
+
+    @Override
+    public CortexRecord findRecord(CanonicalKmer ck) { return findRecord(ck.getKmerAsBytes()); }
+
+    @Override
+    public CortexRecord findRecord(String sk) { return findRecord(sk.getBytes()); }
+
+    @Override
+    public File getFile() { return cortexFile; }
+
+    @Override
+    public CortexHeader getHeader() { return header; }
+
+    @Override
+    public int getVersion() { return header.getVersion(); }
+
+    @Override
+    public int getKmerSize() { return header.getKmerSize(); }
+
+    @Override
+    public int getKmerBits() { return header.getKmerBits(); }
+
+    @Override
+    public int getNumColors() { return header.getNumColors(); }
+
+    @Override
+    public long getNumRecords() { return numRecords; }
+
+    @Override
+    public List<CortexColor> getColors() { return header.getColors(); }
+
+    @Override
+    public boolean hasColor(int color) { return header.hasColor(color); }
+
+    @Override
+    public CortexColor getColor(int color) { return header.getColor(color); }
+
+    @Override
+    public int getColorForSampleName(String sampleName) {
+        int sampleColor = -1;
+        int sampleCopies = 0;
+
+        for (int color = 0; color < header.getNumColors(); color++) {
+            if (header.getColor(color).getSampleName().equalsIgnoreCase(sampleName)) {
+                sampleColor = color;
+                sampleCopies++;
+            }
+        }
+
+        if (sampleColor == -1) {
+            try {
+                sampleColor = Integer.valueOf(sampleName);
+                sampleCopies = 1;
+            } catch (NumberFormatException e) {}
+        }
+
+        return (sampleCopies == 1) ? sampleColor : -1;
+    }
+
+    @Override
+    public List<Integer> getColorsForSampleNames(Collection<String> sampleNames) {
+        List<Integer> colors = new ArrayList<>();
+
+        if (sampleNames != null) {
+            for (String sampleName : sampleNames) {
+                colors.add(getColorForSampleName(sampleName));
+            }
+        }
+
+        return colors;
+    }
+
+    @Override
+    public String getSampleName(int color) { return getColor(color).getSampleName(); }
+
+    @Override
+    public String toString() {
+        return "file: " + cortexFile.getAbsolutePath() + "\n"
+                + "----" + "\n"
+                + "kmer size: " + getKmerSize() + "\n"
+                + "colors: " + getNumColors() + "\n"
+                + "records: " + numRecords + "\n"
+                + "blocks: " + numBlocks + " (" + recordsPerBlock + " records per block)\n";
+    }
+}
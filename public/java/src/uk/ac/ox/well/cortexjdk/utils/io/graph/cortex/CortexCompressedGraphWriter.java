@@ -0,0 +1,229 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.xerial.snappy.Snappy;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a Cortex graph in the block-compressed '.ctz' format (see {@link CortexCompressedGraph}).  Records must be
+ * added in sorted order for findRecord to work on the result; the encoding itself is lossless for any order.
+ */
+public class CortexCompressedGraphWriter {
+    private final File cortexFile;
+    private FileOutputStream fos = null;
+    private FileChannel channel;
+    private long filePosition = 0;
+
+    private CortexHeader header;
+    private byte[] rawHeader = null;
+    private int recordsPerBlock = CortexCompressedGraph.DEFAULT_RECORDS_PER_BLOCK;
+
+    private long[] blockKmers;
+    private int[] blockCoverages;
+    private byte[] blockEdges;
+    private int blockRecords = 0;
+
+    private ByteBuffer encoded;
+    private byte[] compressed;
+
+    private long numRecords = 0;
+    private final LongArrayList blockOffsets = new LongArrayList();
+    private final LongArrayList firstKmers = new LongArrayList();
+
+    public CortexCompressedGraphWriter(File cortexFile) {
+        this.cortexFile = cortexFile;
+    }
+
+    public CortexCompressedGraphWriter(String cortexFilePath) {
+        this.cortexFile = new File(cortexFilePath);
+    }
+
+    public void setHeader(CortexHeader header) { this.header = header; }
+
+    /**
+     * Set the header, storing the given .ctx header bytes verbatim so that decompression reproduces them exactly.
+     *
+     * @param header  the parsed header
+     * @param rawHeader  the header exactly as stored in the source graph
+     */
+    public void setHeader(CortexHeader header, byte[] rawHeader) {
+        this.header = header;
+        this.rawHeader = rawHeader;
+    }
+
+    public CortexHeader getHeader() { return header; }
+
+    public void setRecordsPerBlock(int recordsPerBlock) {
+        if (fos != null) {
+            throw new CortexJDKException("Cannot change the block size after records have been written");
+        }
+
+        this.recordsPerBlock = Math.max(1, recordsPerBlock);
+    }
+
+    private void initialize() {
+        int kmerBits = header.getKmerBits();
+        int numColors = header.getNumColors();
+
+        blockKmers = new long[recordsPerBlock*kmerBits];
+        blockCoverages = new int[recordsPerBlock*numColors];
+        blockEdges = new byte[recordsPerBlock*numColors];
+
+        // Worst case per record: a varint word index and delta, the remaining raw words, and varint coverages plus
+        // edges for every color.
+        encoded = ByteBuffer.allocate(recordsPerBlock*(11 + 8*kmerBits + 6*numColors));
+        compressed = new byte[Snappy.maxCompressedLength(encoded.capacity())];
+
+        try {
+            fos = new FileOutputStream(cortexFile);
+            channel = fos.getChannel();
+
+            ByteBuffer encodedHeader = rawHeader != null ? ByteBuffer.wrap(rawHeader) : CortexGraphWriter.encodeHeader(header);
+
+            ByteBuffer preamble = ByteBuffer.allocate(CortexCompressedGraph.MAGIC.length + 8);
+            preamble.put(CortexCompressedGraph.MAGIC);
+            preamble.putInt(CortexCompressedGraph.VERSION);
+            preamble.putInt(encodedHeader.remaining());
+            preamble.flip();
+
+            write(preamble);
+            write(encodedHeader);
+        } catch (FileNotFoundException e) {
+            throw new CortexJDKException("Unable to open file '" + cortexFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    private void write(ByteBuffer bb) {
+        try {
+            while (bb.hasRemaining()) {
+                filePosition += channel.write(bb);
+            }
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to write to file '" + cortexFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    public void addRecord(CortexRecord record) {
+        if (fos == null) { initialize(); }
+
+        int kmerBits = header.getKmerBits();
+        int numColors = header.getNumColors();
+
+        System.arraycopy(record.getBinaryKmer(), 0, blockKmers, blockRecords*kmerBits, kmerBits);
+        System.arraycopy(record.getCoverages(), 0, blockCoverages, blockRecords*numColors, numColors);
+        System.arraycopy(record.getEdges(), 0, blockEdges, blockRecords*numColors, numColors);
+
+        blockRecords++;
+        numRecords++;
+
+        if (blockRecords == recordsPerBlock) {
+            flushBlock();
+        }
+    }
+
+    private void flushBlock() {
+        if (blockRecords == 0) {
+            return;
+        }
+
+        int kmerBits = header.getKmerBits();
+        int numColors = header.getNumColors();
+
+        encoded.clear();
+
+        for (int w = 0; w < kmerBits; w++) {
+            encoded.putLong(blockKmers[w]);
+        }
+
+        // Sorted neighbours share leading words, so each kmer stores the index of the first word that differs,
+        // the (usually small) difference in that word, and any words after it.
+        for (int r = 1; r < blockRecords; r++) {
+            int first = 0;
+            while (first < kmerBits && blockKmers[r*kmerBits + first] == blockKmers[(r - 1)*kmerBits + first]) {
+                first++;
+            }
+
+            CortexCompressedGraph.putVarLong(encoded, first);
+
+            if (first < kmerBits) {
+                long prev = Long.reverseBytes(blockKmers[(r - 1)*kmerBits + first]);
+                long cur = Long.reverseBytes(blockKmers[r*kmerBits + first]);
+
+                CortexCompressedGraph.putVarLong(encoded, cur - prev);
+
+                for (int w = first + 1; w < kmerBits; w++) {
+                    encoded.putLong(blockKmers[r*kmerBits + w]);
+                }
+            }
+        }
+
+        for (int c = 0; c < numColors; c++) {
+            for (int r = 0; r < blockRecords; r++) {
+                CortexCompressedGraph.putVarLong(encoded, blockCoverages[r*numColors + c] & 0xFFFFFFFFL);
+            }
+        }
+
+        for (int c = 0; c < numColors; c++) {
+            for (int r = 0; r < blockRecords; r++) {
+                encoded.put(blockEdges[r*numColors + c]);
+            }
+        }
+
+        int compressedLength;
+        try {
+            compressedLength = Snappy.compress(encoded.array(), 0, encoded.position(), compressed, 0);
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to compress block for file '" + cortexFile.getAbsolutePath() + "'", e);
+        }
+
+        blockOffsets.add(filePosition);
+        for (int w = 0; w < kmerBits; w++) {
+            firstKmers.add(blockKmers[w]);
+        }
+
+        write(ByteBuffer.wrap(compressed, 0, compressedLength));
+
+        blockRecords = 0;
+    }
+
+    public void close() {
+        if (fos == null) { initialize(); }
+
+        flushBlock();
+
+        long indexOffset = filePosition;
+
+        ByteBuffer index = ByteBuffer.allocate(8*(blockOffsets.size() + firstKmers.size()));
+        for (int b = 0; b < blockOffsets.size(); b++) {
+            index.putLong(blockOffsets.getLong(b));
+        }
+        for (int i = 0; i < firstKmers.size(); i++) {
+            index.putLong(firstKmers.getLong(i));
+        }
+        index.flip();
+        write(index);
+
+        ByteBuffer trailer = ByteBuffer.allocate(CortexCompressedGraph.TRAILER_SIZE);
+        trailer.putLong(indexOffset);
+        trailer.putLong(numRecords);
+        trailer.putInt(recordsPerBlock);
+        trailer.putInt(blockOffsets.size());
+        trailer.put(CortexCompressedGraph.MAGIC);
+        trailer.flip();
+        write(trailer);
+
+        try {
+            channel.close();
+            fos.close();
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to close '" + cortexFile.getAbsolutePath() + "'", e);
+        }
+    }
+}
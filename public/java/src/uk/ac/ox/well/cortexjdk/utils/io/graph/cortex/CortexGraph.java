@@ -1,41 +1,68 @@
 package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
 
 import com.carrotsearch.sizeof.RamUsageEstimator;
-import it.unimi.dsi.io.ByteBufferInputStream;
-import org.apache.commons.collections.map.LRUMap;
+import org.apache.commons.math3.util.Pair;
 import uk.ac.ox.well.cortexjdk.Main;
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.utils.BinaryFile;
-import uk.ac.ox.well.cortexjdk.utils.io.utils.BinaryUtils;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
-import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.*;
-
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A Cortex graph backed by a memory-mapped .ctx file.  Iteration (position/next) moves a single shared cursor and
+ * is not thread-safe, but findRecord, getRecord, getRecordView and scan only read the shared mapping at absolute
+ * offsets, so any number of threads may call them concurrently on one graph.  Whole-graph passes can be spread
+ * across threads with {@link #partitions(int)} or {@link #parallelStream()}.
+ */
 public class CortexGraph implements DeBruijnGraph {
     private File cortexFile;
     private BinaryFile in;
 
     private CortexHeader header;
 
+    // When the graph is opened with a color projection, colorMap gives the on-disk color of each exposed color.
+    private int[] colorMap = null;
+    private int fileNumColors;
+
     private long recordSize;
     private long numRecords;
     private long dataOffset;
     private long recordsSeen = 0;
 
-    private ByteBufferInputStream mappedRecordBuffer = null;
+    // Records are mapped in chunks that hold a whole number of records, so no record straddles two buffers.
+    private static final long MAX_MAPPED_CHUNK_SIZE = Integer.MAX_VALUE;
+    private ByteBuffer[] mappedRecordChunks = null;
+    private long recordsPerChunk;
+    private CortexRecordView cursorView = null;
     private CortexRecord nextRecord = null;
 
-    private LRUMap cache = null;
-    private long cacheHitsByIndex = 0;
-    private long cacheHitsByKmer = 0;
+    // Lookups read the shared mapping at absolute offsets through a per-thread view, so they never touch the cursor.
+    private final ThreadLocal<CortexRecordView> lookupView = ThreadLocal.withInitial(this::newRecordView);
+
+    // The kmers of the records bracketing a binary search so far, used to detect unsorted graphs.
+    private final ThreadLocal<long[][]> searchBounds = ThreadLocal.withInitial(() -> new long[2][getKmerBits()]);
+
+    private volatile CortexGraphIndex index = null;
+    private volatile CortexGraphMinimalPerfectHash mph = null;
+    private volatile CortexGraphBloomFilter bloom = null;
+
+    public static final long DEFAULT_CACHE_MB = 128;
+
+    private volatile CortexRecordCache cache = null;
 
     public CortexGraph(String cortexFilePath) {
         this.cortexFile = new File(cortexFilePath);
@@ -47,7 +74,31 @@ public class CortexGraph implements DeBruijnGraph {
         loadCortexGraph(this.cortexFile);
     }
 
-    private byte[] fixStringsWithEarlyTerminators(byte[] string) {
+    /**
+     * Open a graph exposing only a subset of its colors.  The selected colors are renumbered from zero in the order
+     * given, and records read from the graph carry only their coverages and edges, so callers that need a few colors
+     * of a large multi-color graph never decode the rest.
+     *
+     * @param cortexFilePath  the graph file
+     * @param colors  the on-disk colors to expose
+     */
+    public CortexGraph(String cortexFilePath, Collection<Integer> colors) {
+        this(new File(cortexFilePath), colors);
+    }
+
+    public CortexGraph(File cortexFile, Collection<Integer> colors) {
+        this.cortexFile = cortexFile;
+
+        this.colorMap = new int[colors.size()];
+        int i = 0;
+        for (Integer color : colors) {
+            colorMap[i++] = color;
+        }
+
+        loadCortexGraph(this.cortexFile);
+    }
+
+    private static byte[] fixStringsWithEarlyTerminators(byte[] string) {
         // Sometimes the names have an early terminator character (a bug in the old CORTEX output format).
         int earlyTerminatorPosition = string.length;
         for (int i = string.length - 1; i >= 0; i--) {
@@ -63,101 +114,134 @@ public class CortexGraph implements DeBruijnGraph {
         return string;
     }
 
-    private void loadCortexGraph(File cortexFile) {
-        try {
-            in = new BinaryFile(cortexFile, "r");
+    /**
+     * Parse a version 6 Cortex graph header from the current position of a file, leaving the file positioned at
+     * the first record.
+     *
+     * @param in  the file
+     * @param cortexFile  the file's path, for error messages
+     * @return  the parsed header
+     * @throws IOException  if the header cannot be read
+     */
+    /**
+     * Read just the header of a Cortex graph, without mapping its records or loading its index files.
+     *
+     * @param cortexFile  the graph
+     * @return  the parsed header
+     */
+    public static CortexHeader readHeader(File cortexFile) {
+        try (BinaryFile in = new BinaryFile(cortexFile, "r")) {
+            return readHeader(in, cortexFile);
+        } catch (FileNotFoundException e) {
+            throw new CortexJDKException("Cortex graph file '" + cortexFile.getAbsolutePath() + "' not found: " + e);
+        } catch (IOException e) {
+            throw new CortexJDKException("Error while parsing Cortex graph file '" + cortexFile.getAbsolutePath() + "': " + e);
+        }
+    }
 
-            byte[] headerStart = new byte[6];
-            in.read(headerStart);
-            String headerStartStr = new String(headerStart);
+    static CortexHeader readHeader(BinaryFile in, File cortexFile) throws IOException {
+        byte[] headerStart = new byte[6];
+        in.read(headerStart);
+        String headerStartStr = new String(headerStart);
 
-            if (!headerStartStr.equalsIgnoreCase("CORTEX")) {
-                throw new CortexJDKException("The file '" + cortexFile.getAbsolutePath() + "' does not appear to be a Cortex graph");
-            }
+        if (!headerStartStr.equalsIgnoreCase("CORTEX")) {
+            throw new CortexJDKException("The file '" + cortexFile.getAbsolutePath() + "' does not appear to be a Cortex graph");
+        }
 
-            header = new CortexHeader();
+        CortexHeader header = new CortexHeader();
 
-            header.setVersion(in.readUnsignedInt());
+        header.setVersion(in.readUnsignedInt());
 
-            if (header.getVersion() != 6) {
-                throw new CortexJDKException("The file '" + cortexFile.getAbsolutePath() + "' is not a version 6 Cortex graph");
-            }
+        if (header.getVersion() != 6) {
+            throw new CortexJDKException("The file '" + cortexFile.getAbsolutePath() + "' is not a version 6 Cortex graph");
+        }
 
-            header.setKmerSize(in.readUnsignedInt());
-            header.setKmerBits(in.readUnsignedInt());
-            header.setNumColors(in.readUnsignedInt());
+        header.setKmerSize(in.readUnsignedInt());
+        header.setKmerBits(in.readUnsignedInt());
+        header.setNumColors(in.readUnsignedInt());
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                header.addColor(new CortexColor());
-            }
+        for (int color = 0; color < header.getNumColors(); color++) {
+            header.addColor(new CortexColor());
+        }
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                header.getColor(color).setMeanReadLength(in.readUnsignedInt());
-            }
+        for (int color = 0; color < header.getNumColors(); color++) {
+            header.getColor(color).setMeanReadLength(in.readUnsignedInt());
+        }
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                header.getColor(color).setTotalSequence(in.readUnsignedLong());
-            }
+        for (int color = 0; color < header.getNumColors(); color++) {
+            header.getColor(color).setTotalSequence(in.readUnsignedLong());
+        }
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                int sampleNameLength = in.readUnsignedInt();
-                byte[] sampleName = new byte[sampleNameLength];
-                in.read(sampleName);
+        for (int color = 0; color < header.getNumColors(); color++) {
+            int sampleNameLength = in.readUnsignedInt();
+            byte[] sampleName = new byte[sampleNameLength];
+            in.read(sampleName);
 
-                sampleName = fixStringsWithEarlyTerminators(sampleName);
-                String sampleNameStr = new String(sampleName);
+            sampleName = fixStringsWithEarlyTerminators(sampleName);
+            String sampleNameStr = new String(sampleName);
 
-                header.getColor(color).setSampleName(sampleNameStr);
-            }
+            header.getColor(color).setSampleName(sampleNameStr);
+        }
 
-            // Todo: fix this at some point - we're not actually getting the error rate properly
-            for (int color = 0; color < header.getNumColors(); color++) {
-                byte[] errorRate = new byte[16];
-                in.read(errorRate);
-            }
+        // Todo: fix this at some point - we're not actually getting the error rate properly
+        for (int color = 0; color < header.getNumColors(); color++) {
+            byte[] errorRate = new byte[16];
+            in.read(errorRate);
+        }
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                header.getColor(color).setTipClippingApplied(in.readBoolean());
-                header.getColor(color).setLowCovgSupernodesRemoved(in.readBoolean());
-                header.getColor(color).setLowCovgKmersRemoved(in.readBoolean());
-                header.getColor(color).setCleanedAgainstGraph(in.readBoolean());
-                header.getColor(color).setLowCovSupernodesThreshold(in.readUnsignedInt());
-                header.getColor(color).setLowCovKmerThreshold(in.readUnsignedInt());
+        for (int color = 0; color < header.getNumColors(); color++) {
+            header.getColor(color).setTipClippingApplied(in.readBoolean());
+            header.getColor(color).setLowCovgSupernodesRemoved(in.readBoolean());
+            header.getColor(color).setLowCovgKmersRemoved(in.readBoolean());
+            header.getColor(color).setCleanedAgainstGraph(in.readBoolean());
+            header.getColor(color).setLowCovSupernodesThreshold(in.readUnsignedInt());
+            header.getColor(color).setLowCovKmerThreshold(in.readUnsignedInt());
 
-                int graphNameLength = in.readUnsignedInt();
-                byte[] graphName = new byte[graphNameLength];
-                in.read(graphName);
+            int graphNameLength = in.readUnsignedInt();
+            byte[] graphName = new byte[graphNameLength];
+            in.read(graphName);
 
-                graphName = fixStringsWithEarlyTerminators(graphName);
+            graphName = fixStringsWithEarlyTerminators(graphName);
 
-                header.getColor(color).setCleanedAgainstGraphName(new String(graphName));
-            }
+            header.getColor(color).setCleanedAgainstGraphName(new String(graphName));
+        }
 
-            byte[] headerEnd = new byte[6];
-            in.read(headerEnd);
-            String headerEndStr = new String(headerEnd);
+        byte[] headerEnd = new byte[6];
+        in.read(headerEnd);
+        String headerEndStr = new String(headerEnd);
 
-            if (!headerEndStr.equalsIgnoreCase("CORTEX")) {
-                throw new CortexJDKException("We didn't see a proper header terminator at the expected place in Cortex graph '" + cortexFile.getAbsolutePath() + "'");
-            }
+        if (!headerEndStr.equalsIgnoreCase("CORTEX")) {
+            throw new CortexJDKException("We didn't see a proper header terminator at the expected place in Cortex graph '" + cortexFile.getAbsolutePath() + "'");
+        }
+
+        return header;
+    }
+
+    private void loadCortexGraph(File cortexFile) {
+        try {
+            in = new BinaryFile(cortexFile, "r");
+
+            header = readHeader(in, cortexFile);
 
             long size = in.getChannel().size();
             dataOffset = in.getFilePointer();
             long dataSize = size - dataOffset;
 
-            recordSize = (8*header.getKmerBits() + 5*header.getNumColors());
+            fileNumColors = header.getNumColors();
+            recordSize = (8*header.getKmerBits() + 5*fileNumColors);
             numRecords = (dataSize / recordSize);
 
-            mappedRecordBuffer = ByteBufferInputStream.map(in.getChannel(), FileChannel.MapMode.READ_ONLY);
+            if (colorMap != null) {
+                header = projectHeader(header, colorMap);
+            }
 
-            //long maxMem = Runtime.getRuntime().maxMemory();
-            //long memPortion = maxMem / 2;
-            //int numItems = (int) (memPortion / recordSize);
-            //cache = new LRUMap(numItems);
+            mapRecords(in.getChannel());
+            cursorView = newRecordView();
 
-            //Main.getLogger().info("Will cache {} CortexRecord objects", numItems);
+            long cacheBytes = Long.getLong("cortexjdk.graphCacheMb", DEFAULT_CACHE_MB) * 1024L * 1024L;
+            cache = new StripedCortexRecordCache(cacheBytes, header.getKmerBits(), header.getNumColors());
 
-            cache = new LRUMap(1000000);
+            loadIndex();
 
             position(0);
         } catch (FileNotFoundException e) {
@@ -167,6 +251,180 @@ public class CortexGraph implements DeBruijnGraph {
         }
     }
 
+    private CortexHeader projectHeader(CortexHeader fileHeader, int[] colorMap) {
+        if (colorMap.length == 0) {
+            throw new CortexJDKException("No colors selected from Cortex graph '" + cortexFile.getAbsolutePath() + "'");
+        }
+
+        CortexHeader projected = new CortexHeader();
+        projected.setVersion(fileHeader.getVersion());
+        projected.setKmerSize(fileHeader.getKmerSize());
+        projected.setKmerBits(fileHeader.getKmerBits());
+        projected.setNumColors(colorMap.length);
+
+        for (int color : colorMap) {
+            if (color < 0 || color >= fileHeader.getNumColors()) {
+                throw new CortexJDKException("Color " + color + " is out of range for Cortex graph '" + cortexFile.getAbsolutePath() + "' (" + fileHeader.getNumColors() + " colors)");
+            }
+
+            projected.addColor(fileHeader.getColor(color));
+        }
+
+        return projected;
+    }
+
+    private void mapRecords(FileChannel channel) throws IOException {
+        recordsPerChunk = Math.max(1, MAX_MAPPED_CHUNK_SIZE / recordSize);
+
+        int numChunks = (int) ((numRecords + recordsPerChunk - 1) / recordsPerChunk);
+        mappedRecordChunks = new ByteBuffer[numChunks];
+
+        for (int i = 0; i < numChunks; i++) {
+            long firstRecord = i*recordsPerChunk;
+            long chunkRecords = Math.min(recordsPerChunk, numRecords - firstRecord);
+
+            mappedRecordChunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + firstRecord*recordSize, chunkRecords*recordSize);
+        }
+    }
+
+    private void loadIndex() {
+        File indexFile = CortexGraphIndex.getIndexFile(cortexFile);
+
+        index = CortexGraphIndex.load(indexFile, this);
+
+        if (index == null && indexFile.exists()) {
+            Main.getLogger().warn("Ignoring out-of-date graph index '{}'", indexFile.getAbsolutePath());
+        }
+
+        File mphFile = CortexGraphMinimalPerfectHash.getIndexFile(cortexFile);
+
+        mph = CortexGraphMinimalPerfectHash.load(mphFile, this);
+
+        if (mph == null && mphFile.exists()) {
+            Main.getLogger().warn("Ignoring out-of-date graph hash '{}'", mphFile.getAbsolutePath());
+        }
+
+        File bloomFile = CortexGraphBloomFilter.getIndexFile(cortexFile);
+
+        bloom = CortexGraphBloomFilter.load(bloomFile, this);
+
+        if (bloom == null && bloomFile.exists()) {
+            Main.getLogger().warn("Ignoring out-of-date graph Bloom filter '{}'", bloomFile.getAbsolutePath());
+        }
+    }
+
+    public CortexGraphIndex getIndex() { return index; }
+
+    public void setIndex(CortexGraphIndex index) { this.index = index; }
+
+    public CortexGraphMinimalPerfectHash getMinimalPerfectHash() { return mph; }
+
+    public void setMinimalPerfectHash(CortexGraphMinimalPerfectHash mph) { this.mph = mph; }
+
+    public CortexGraphBloomFilter getBloomFilter() { return bloom; }
+
+    public void setBloomFilter(CortexGraphBloomFilter bloom) { this.bloom = bloom; }
+
+    CortexRecordView newRecordView() {
+        return new CortexRecordView(header.getKmerSize(), header.getKmerBits(), fileNumColors, colorMap);
+    }
+
+    CortexRecordView getRecordView(long i, CortexRecordView view) {
+        int chunk = (int) (i / recordsPerChunk);
+        int offset = (int) ((i % recordsPerChunk) * recordSize);
+
+        return view.wrap(mappedRecordChunks[chunk], offset, i);
+    }
+
+    /**
+     * Get a zero-copy view of the i-th record.  The view remains valid for as long as the graph is open.
+     *
+     * @param i  the record index
+     * @return  a view of the record
+     */
+    public CortexRecordView getRecordView(long i) {
+        if (i < 0 || i >= numRecords) {
+            throw new CortexJDKException("Record index is outside of range (" + i + " vs 0-" + (numRecords - 1) + ")");
+        }
+
+        return getRecordView(i, newRecordView());
+    }
+
+    /**
+     * Visit every record in the graph through a single reusable view, without allocating a CortexRecord per
+     * record or touching the record cache.  The view passed to the consumer is repositioned after each call, so
+     * use {@link CortexRecordView#toRecord()} to keep a copy.
+     *
+     * @param consumer  the record visitor
+     */
+    public void scan(Consumer<CortexRecordView> consumer) {
+        scan(0, numRecords, consumer);
+    }
+
+    /**
+     * Visit records in the range [start, end) through a single reusable view.
+     *
+     * @param start  the first record index (inclusive)
+     * @param end  the last record index (exclusive)
+     * @param consumer  the record visitor
+     */
+    public void scan(long start, long end, Consumer<CortexRecordView> consumer) {
+        CortexRecordView view = newRecordView();
+
+        for (long i = Math.max(0, start); i < Math.min(end, numRecords); i++) {
+            consumer.accept(getRecordView(i, view));
+        }
+    }
+
+    /**
+     * Split the graph into n contiguous ranges of (nearly) equal size.  Records have a fixed size, so the split
+     * costs nothing, and each partition can be scanned on its own thread.
+     *
+     * @param n  the number of partitions
+     * @return  the partitions, in record order
+     */
+    public List<CortexGraphPartition> partitions(int n) {
+        int numPartitions = (int) Math.max(1, Math.min(n, numRecords));
+
+        List<CortexGraphPartition> partitions = new ArrayList<>(numPartitions);
+        for (int i = 0; i < numPartitions; i++) {
+            partitions.add(new CortexGraphPartition(this, i, i*numRecords / numPartitions, (i + 1)*numRecords / numPartitions));
+        }
+
+        return partitions;
+    }
+
+    /**
+     * Split the graph into partitions of about {@link CortexGraphPartition#DEFAULT_PARTITION_RECORDS} records.
+     *
+     * @return  the partitions, in record order
+     */
+    public List<CortexGraphPartition> partitions() {
+        return partitions((int) Math.min(Integer.MAX_VALUE, (numRecords + CortexGraphPartition.DEFAULT_PARTITION_RECORDS - 1) / CortexGraphPartition.DEFAULT_PARTITION_RECORDS));
+    }
+
+    /**
+     * Get a parallel stream over every record, split by record range.  It uses neither the cursor nor the record
+     * cache, so it can run alongside lookups on the same graph.
+     *
+     * @return  a parallel record stream
+     */
+    public Stream<CortexRecord> parallelStream() {
+        return StreamSupport.stream(new CortexGraphSpliterator(this, 0, numRecords), true);
+    }
+
+    /**
+     * Get an iterator that streams records through large read-ahead windows on a separate file handle, bypassing
+     * the record cache and leaving this graph's cursor untouched.  The iterator holds its own file handle until it
+     * is drained; callers that may stop early must close it.
+     *
+     * @return  a sequential, cache-bypassing record iterator
+     */
+    @Override
+    public CortexGraphSequentialIterator sequentialIterator() {
+        return new CortexGraphSequentialIterator(this);
+    }
+
     public long position() { return recordsSeen; }
 
     public void position(long i) {
@@ -174,63 +432,32 @@ public class CortexGraph implements DeBruijnGraph {
             throw new CortexJDKException("Record index is prefix of range (" + i + " vs 0-" + (numRecords - 1) + ")");
         }
 
-        long offset = dataOffset + i*recordSize;
-        mappedRecordBuffer.position(offset);
         recordsSeen = i;
         nextRecord = getNextRecord();
     }
 
+    /**
+     * Get the i-th record.  Unlike {@link #position(long)}, this does not move the graph's cursor, so it is safe
+     * to call from several threads at once.
+     *
+     * @param i  the record index
+     * @return  the record, or null if the index is past the end of the graph
+     */
     public CortexRecord getRecord(long i) {
-        position(i);
+        if (i < 0) {
+            throw new CortexJDKException("Record index is outside of range (" + i + " vs 0-" + (numRecords - 1) + ")");
+        }
 
-        return nextRecord;
+        return i < numRecords ? getRecordView(i, lookupView.get()).toRecord() : null;
     }
 
     private CortexRecord getNextRecord() {
         if (recordsSeen < getNumRecords()) {
-            try {
-                CortexRecord cr;
-
-                if (cache.containsKey(recordsSeen)) {
-                    cr = getFromCache(recordsSeen);
-                } else {
-                    long newpos = dataOffset + (recordsSeen*recordSize);
-                    if (mappedRecordBuffer.position() != newpos) {
-                        mappedRecordBuffer.position(newpos);
-                    }
+            CortexRecord cr = getRecordView(recordsSeen, cursorView).toRecord();
 
-                    long[] binaryKmer = new long[header.getKmerBits()];
-                    for (int bits = 0; bits < header.getKmerBits(); bits++) {
-                        byte[] b = new byte[8];
+            recordsSeen++;
 
-                        mappedRecordBuffer.read(b);
-
-                        ByteBuffer bb = ByteBuffer.wrap(b);
-                        binaryKmer[bits] = bb.getLong();
-                    }
-
-                    int[] coverages = new int[header.getNumColors()];
-                    for (int color = 0; color < header.getNumColors(); color++) {
-                        byte[] coverage = new byte[4];
-                        mappedRecordBuffer.read(coverage);
-
-                        coverages[color] = BinaryUtils.toUnsignedInt(coverage);
-                    }
-
-                    byte[] edges = new byte[header.getNumColors()];
-                    mappedRecordBuffer.read(edges);
-
-                    cr = new CortexRecord(binaryKmer, coverages, edges, header.getKmerSize(), header.getKmerBits());
-                    cache.put(recordsSeen, cr);
-                    cache.put(cr.getKmerAsByteKmer(), cr);
-                }
-
-                recordsSeen++;
-
-                return cr;
-            } catch (IOException e) {
-                return null;
-            }
+            return cr;
         }
 
         return null;
@@ -270,56 +497,277 @@ public class CortexGraph implements DeBruijnGraph {
     }
 
     public CortexRecord findRecord(byte[] bk) {
-        CortexByteKmer kmer = new CortexByteKmer(SequenceUtils.alphanumericallyLowestOrientation(bk));
-        if (cache.containsKey(kmer)) {
-            return getFromCache(kmer);
+        if (!isValidKmer(bk)) {
+            return null;
+        }
+
+        return findRecordByBinaryKmer(PackedKmer.fromBytes(bk).canonical().toBinaryKmer());
+    }
+
+    @Override
+    public CortexRecord findRecord(PackedKmer pk) {
+        if (pk.length() != getKmerSize()) {
+            return null;
         }
 
-        long startIndex = 0;
-        long stopIndex = getNumRecords() - 1;
-        long midIndex = startIndex + (stopIndex - startIndex) / 2;
+        return findRecordByBinaryKmer(pk.canonical().toBinaryKmer());
+    }
+
+    CortexRecord findRecordByBinaryKmer(long[] binaryKmer) {
+        CortexRecord cr = cache.get(cacheKey(binaryKmer), key -> loadRecord(binaryKmer));
+
+        // Keys for kmers longer than 32 bases are hashes, so a hit might belong to a different kmer.
+        if (cr != null && binaryKmer.length > 1 && !Arrays.equals(cr.getBinaryKmer(), binaryKmer)) {
+            cr = loadRecord(binaryKmer);
+        }
+
+        return cr;
+    }
+
+    private static long cacheKey(long[] binaryKmer) {
+        return binaryKmer.length == 1 ? binaryKmer[0] : CortexGraphMinimalPerfectHash.hash(binaryKmer);
+    }
+
+    private CortexRecord loadRecord(long[] binaryKmer) {
+        long i = findRecordIndex(binaryKmer);
+
+        return i < 0 ? null : getRecordView(i, lookupView.get()).toRecord();
+    }
+
+    private boolean isValidKmer(byte[] ck) {
+        if (ck.length != getKmerSize()) {
+            return false;
+        }
 
-        while (startIndex != midIndex && midIndex != stopIndex) {
-            long oldRecordsSeen = recordsSeen;
+        for (byte b : ck) {
+            switch (b) {
+                case 'A': case 'C': case 'G': case 'T':
+                case 'a': case 'c': case 'g': case 't':
+                    break;
+                default:
+                    return false;
+            }
+        }
 
-            CortexRecord startRecord = getRecord(startIndex);
-            CortexRecord midRecord = getRecord(midIndex);
-            CortexRecord stopRecord = getRecord(stopIndex);
+        return true;
+    }
 
-            recordsSeen = oldRecordsSeen;
+    /**
+     * Find the record holding a canonical binary kmer.  Kmers rejected by the Bloom filter (if any) are reported
+     * missing without reading any records.  A minimal perfect hash, if available, resolves the kmer
+     * to a single candidate record.  Otherwise we binary search, confined to the records sharing the kmer's prefix
+     * if a prefix index is available.
+     *
+     * @param binaryKmer  the canonical binary kmer
+     * @return  the record index, or -1 if the kmer is not in the graph
+     */
+    private long findRecordIndex(long[] binaryKmer) {
+        CortexGraphBloomFilter bloom = this.bloom;
+        if (bloom != null && !bloom.mightContain(binaryKmer)) {
+            return -1;
+        }
+
+        CortexRecordView view = lookupView.get();
+
+        CortexGraphMinimalPerfectHash mph = this.mph;
+        if (mph != null) {
+            return mph.find(binaryKmer, i -> getRecordView(i, view).compareKmer(binaryKmer) == 0);
+        }
 
-            CortexByteKmer startKmer = startRecord.getKmerAsByteKmer();
-            CortexByteKmer midKmer = midRecord.getKmerAsByteKmer();
-            CortexByteKmer stopKmer = stopRecord.getKmerAsByteKmer();
+        long lo = 0;
+        long hi = numRecords;
 
-            if (startKmer.compareTo(stopKmer) > 0) {
-                throw new CortexJDKException("Records are not sorted ('" + startKmer + "' is found before '" + stopKmer + "' but is lexicographically greater)");
+        CortexGraphIndex index = this.index;
+        if (index != null) {
+            lo = index.getBucketStart(binaryKmer);
+            hi = index.getBucketEnd(binaryKmer);
+        }
+
+        long[] below = searchBounds.get()[0];
+        long[] above = searchBounds.get()[1];
+        boolean hasBelow = false, hasAbove = false;
+
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            int c = getRecordView(mid, view).compareKmer(binaryKmer);
+
+            if (c == 0) { return mid; }
+
+            if (hasBelow && view.compareKmer(below) < 0) {
+                throw new CortexJDKException("Records are not sorted ('" + decode(below) + "' is found before '" + view.getKmerAsString() + "' but is lexicographically greater)");
             }
 
-            if (startKmer.compareTo(midKmer) > 0) {
-                throw new CortexJDKException("Records are not sorted ('" + startKmer + "' is found before '" + midKmer + "' but is lexicographically greater)");
+            if (hasAbove && view.compareKmer(above) > 0) {
+                throw new CortexJDKException("Records are not sorted ('" + view.getKmerAsString() + "' is found before '" + decode(above) + "' but is lexicographically greater)");
             }
 
-            if (kmer.compareTo(stopKmer) > 0 || kmer.compareTo(startKmer) < 0) { return null; }
-            else if (startKmer.equals(kmer)) { return startRecord; }
-            else if (midKmer.equals(kmer)) { return midRecord; }
-            else if (stopKmer.equals(kmer)) { return stopRecord; }
-            else if (kmer.compareTo(startKmer) > 0 && kmer.compareTo(midKmer) < 0) {
-                stopIndex = midIndex;
-                midIndex = startIndex + (stopIndex - startIndex) / 2;
-            } else if (kmer.compareTo(midKmer) > 0 && kmer.compareTo(stopKmer) < 0) {
-                startIndex = midIndex;
-                midIndex = startIndex + ((stopIndex - startIndex) / 2);
+            if (c < 0) {
+                view.getBinaryKmer(below);
+                hasBelow = true;
+                lo = mid + 1;
+            } else {
+                view.getBinaryKmer(above);
+                hasAbove = true;
+                hi = mid;
             }
         }
 
-        return null;
+        return -1;
+    }
+
+    private String decode(long[] binaryKmer) {
+        return new String(CortexRecord.decodeBinaryKmer(binaryKmer, getKmerSize(), getKmerBits()));
     }
 
     public CortexRecord findRecord(CortexByteKmer bk) { return findRecord(bk.getKmer()); }
     public CortexRecord findRecord(CanonicalKmer ck) { return findRecord(ck.getKmerAsBytes()); }
     public CortexRecord findRecord(String sk) { return findRecord(sk.getBytes()); }
 
+    /**
+     * Find the records for many kmers in one forward pass.  The queries are sorted, then each is located by
+     * galloping forward from the previous one, so the batch never costs more than one sweep over the file.
+     *
+     * @param kmers  the kmers to look up
+     * @return  a map from each kmer present in the graph to its record (absent kmers are omitted)
+     */
+    @Override
+    public Map<CanonicalKmer, CortexRecord> findRecords(Iterable<CanonicalKmer> kmers) {
+        List<Pair<long[], CanonicalKmer>> queries = new ArrayList<>();
+        for (CanonicalKmer ck : kmers) {
+            if (isValidKmer(ck.getKmerAsBytes())) {
+                queries.add(new Pair<>(CortexRecord.encodeBinaryKmer(ck.getKmerAsBytes()), ck));
+            }
+        }
+
+        queries.sort((a, b) -> CortexRecord.compareBinaryKmers(a.getFirst(), b.getFirst()));
+
+        Map<CanonicalKmer, CortexRecord> records = new HashMap<>();
+        CortexRecordView view = lookupView.get();
+        CortexGraphBloomFilter bloom = this.bloom;
+        long pos = 0;
+
+        for (Pair<long[], CanonicalKmer> q : queries) {
+            long[] binaryKmer = q.getFirst();
+
+            if (bloom == null || bloom.mightContain(binaryKmer)) {
+                pos = seek(pos, binaryKmer, view);
+
+                if (pos < numRecords && getRecordView(pos, view).compareKmer(binaryKmer) == 0) {
+                    records.put(q.getSecond(), view.toRecord());
+                }
+            }
+        }
+
+        return records;
+    }
+
+    /**
+     * Visit every record of this graph alongside the other graph's record for the same kmer.  When the other graph
+     * is also a Cortex graph, the two sorted files are merged in one forward pass over each.
+     *
+     * @param other  the graph to join against
+     * @param consumer  receives this graph's record and the other graph's record, or null if the kmer is absent there
+     */
+    @Override
+    public void joinSorted(DeBruijnGraph other, BiConsumer<CortexRecord, CortexRecord> consumer) {
+        if (!(other instanceof CortexGraph)) {
+            scan(cv -> consumer.accept(cv.toRecord(), other.findRecord(new CanonicalKmer(cv.getKmerAsBytes(), true))));
+
+            return;
+        }
+
+        CortexGraph og = (CortexGraph) other;
+        if (og.getKmerSize() != getKmerSize()) {
+            throw new CortexJDKException("Cannot join graphs with different kmer sizes (" + getKmerSize() + " vs " + og.getKmerSize() + ")");
+        }
+
+        long[] binaryKmer = new long[getKmerBits()];
+        long[] previousKmer = new long[getKmerBits()];
+        CortexRecordView otherView = og.newRecordView();
+        long[] pos = { 0 };
+
+        scan(cv -> {
+            cv.getBinaryKmer(binaryKmer);
+
+            if (cv.getIndex() > 0 && CortexRecord.compareBinaryKmers(binaryKmer, previousKmer) < 0) {
+                throw new CortexJDKException("Cannot join graph '" + cortexFile.getAbsolutePath() + "': records are not sorted (see record " + cv.getIndex() + ")");
+            }
+            System.arraycopy(binaryKmer, 0, previousKmer, 0, binaryKmer.length);
+
+            pos[0] = og.seek(pos[0], binaryKmer, otherView);
+
+            if (pos[0] < og.numRecords && og.getRecordView(pos[0], otherView).compareKmer(binaryKmer) == 0) {
+                consumer.accept(cv.toRecord(), otherView.toRecord());
+            } else {
+                consumer.accept(cv.toRecord(), null);
+            }
+        });
+    }
+
+    /**
+     * Find the first record at or after a starting point whose kmer does not sort before the given kmer.  We
+     * gallop forward in doubling strides and then binary search the last stride, so nearby kmers are found in a
+     * few reads and distant ones in logarithmic time.
+     *
+     * @param from  the record to start from
+     * @param binaryKmer  the canonical binary kmer
+     * @param view  a view to read records through
+     * @return  the index of the first record >= the kmer, or the number of records if there is none
+     */
+    long seek(long from, long[] binaryKmer, CortexRecordView view) {
+        CortexGraphIndex index = this.index;
+        if (index != null) {
+            from = Math.max(from, index.getBucketStart(binaryKmer));
+        }
+
+        long lo = from;
+        long hi = from;
+        long stride = 1;
+
+        while (hi < numRecords && getRecordView(hi, view).compareKmer(binaryKmer) < 0) {
+            lo = hi + 1;
+            hi += stride;
+            stride <<= 1;
+        }
+
+        hi = Math.min(hi, numRecords);
+
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+
+            if (getRecordView(mid, view).compareKmer(binaryKmer) < 0) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+
+        return lo;
+    }
+
+    /**
+     * Get the graph's header exactly as stored on disk, e.g. to copy it verbatim into another file.  A graph opened
+     * with a color projection instead returns its projected header, freshly encoded, since the stored one describes
+     * colors the records no longer carry.
+     *
+     * @return  the header bytes
+     */
+    public byte[] getRawHeader() {
+        if (colorMap != null) {
+            ByteBuffer encodedHeader = CortexGraphWriter.encodeHeader(header);
+            byte[] rawHeader = new byte[encodedHeader.remaining()];
+            encodedHeader.get(rawHeader);
+
+            return rawHeader;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(cortexFile, "r")) {
+            byte[] rawHeader = new byte[(int) dataOffset];
+            raf.readFully(rawHeader);
+
+            return rawHeader;
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to read header of Cortex graph '" + cortexFile.getAbsolutePath() + "'", e);
+        }
+    }
+
     public File getFile() { return cortexFile; }
     public CortexHeader getHeader() { return header; }
     public int getVersion() { return header.getVersion(); }
@@ -327,12 +775,31 @@ public class CortexGraph implements DeBruijnGraph {
     public int getKmerBits() { return header.getKmerBits(); }
     public String getSampleName(int color) { return getColor(color).getSampleName(); }
     public int getNumColors() { return header.getNumColors(); }
+
+    /**
+     * Get the on-disk color behind an exposed color.  Without a color projection the two are the same.
+     *
+     * @param color  the exposed color
+     * @return  the color's index in the graph file
+     */
+    public int getFileColor(int color) { return colorMap == null ? color : colorMap[color]; }
     public long getNumRecords() { return numRecords; }
+    public long getRecordSize() { return recordSize; }
+    long getDataOffset() { return dataOffset; }
     public List<CortexColor> getColors() { return header.getColors(); }
     public boolean hasColor(int color) { return header.hasColor(color); }
     public CortexColor getColor(int color) { return header.getColor(color); }
 
-    public int getColorForSampleName(String sampleName) {
+    public int getColorForSampleName(String sampleName) { return getColorForSampleName(header, sampleName); }
+
+    /**
+     * Find the color holding a sample.  The name is matched case-insensitively, and may also be a color number.
+     *
+     * @param header  the graph header
+     * @param sampleName  the sample name
+     * @return  the color, or -1 if the sample is absent or appears more than once
+     */
+    public static int getColorForSampleName(CortexHeader header, String sampleName) {
         int sampleColor = -1;
         int sampleCopies = 0;
 
@@ -395,21 +862,14 @@ public class CortexGraph implements DeBruijnGraph {
         return info;
     }
 
-    private CortexRecord getFromCache(long recordNum) {
-        cacheHitsByIndex++;
-        return (CortexRecord) cache.get(recordNum);
-    }
-
-    private CortexRecord getFromCache(CortexByteKmer kmer) {
-        cacheHitsByKmer++;
-        return (CortexRecord) cache.get(kmer);
-    }
+    public CortexRecordCache getCache() { return cache; }
 
-    public long getCacheHitsByIndex() {
-        return cacheHitsByIndex;
-    }
+    /**
+     * Replace the record cache, e.g. with one that has a different budget or eviction policy.
+     *
+     * @param cache  the new cache
+     */
+    public void setCache(CortexRecordCache cache) { this.cache = cache; }
 
-    public long getCacheHitsByKmer() {
-        return cacheHitsByKmer;
-    }
+    public CortexRecordCacheStats getCacheStats() { return cache.getStats(); }
 }
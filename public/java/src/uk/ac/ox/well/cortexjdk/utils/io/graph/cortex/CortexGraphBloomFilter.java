@@ -0,0 +1,224 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A Bloom filter over the kmers of a Cortex graph, used to reject lookups for absent kmers without touching the
+ * record data.  The filter is either built in memory when a graph is opened or stored as a '.ctx.bloom' sidecar
+ * and memory-mapped.
+ *
+ * The filter is blocked: each kmer selects a single 512-bit block (one cache line) and sets all of its bits there,
+ * so a query costs at most one cache miss.
+ */
+public class CortexGraphBloomFilter {
+    public static final String EXTENSION = ".bloom";
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    private static final byte[] MAGIC = "CTXBLM".getBytes();
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int BLOCK_BYTES = 64;
+    private static final int MAX_HASHES = 16;
+
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final long numBlocks;
+    private final int numHashes;
+    private final ByteBuffer[] chunks;
+
+    private CortexGraphBloomFilter(long numBlocks, int numHashes, ByteBuffer[] chunks) {
+        this.numBlocks = numBlocks;
+        this.numHashes = numHashes;
+        this.chunks = chunks;
+    }
+
+    public static File getIndexFile(File cortexFile) {
+        return new File(cortexFile.getAbsolutePath() + EXTENSION);
+    }
+
+    public long getNumBits() { return 8L*BLOCK_BYTES*numBlocks; }
+
+    public int getNumHashes() { return numHashes; }
+
+    /**
+     * Check whether a kmer may be present in the graph.  False means the kmer is definitely absent.
+     *
+     * @param binaryKmer  the canonical binary kmer
+     * @return  true if the kmer may be present, false if it is absent
+     */
+    public boolean mightContain(long[] binaryKmer) {
+        long h = CortexGraphMinimalPerfectHash.hash(binaryKmer);
+        long g = HashCommon.murmurHash3(h);
+        long step = HashCommon.murmurHash3(g) | 1;
+
+        long blockStart = BLOCK_BYTES * Long.remainderUnsigned(h, numBlocks);
+        ByteBuffer chunk = chunks[(int) (blockStart >>> CHUNK_SHIFT)];
+        int offset = (int) (blockStart & CHUNK_MASK);
+
+        for (int i = 0; i < numHashes; i++, g += step) {
+            int bit = (int) (g >>> 55);
+
+            if ((chunk.getLong(offset + 8*(bit >>> 6)) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void put(long[] binaryKmer) {
+        long h = CortexGraphMinimalPerfectHash.hash(binaryKmer);
+        long g = HashCommon.murmurHash3(h);
+        long step = HashCommon.murmurHash3(g) | 1;
+
+        long blockStart = BLOCK_BYTES * Long.remainderUnsigned(h, numBlocks);
+        ByteBuffer chunk = chunks[(int) (blockStart >>> CHUNK_SHIFT)];
+        int offset = (int) (blockStart & CHUNK_MASK);
+
+        for (int i = 0; i < numHashes; i++, g += step) {
+            int bit = (int) (g >>> 55);
+            int word = offset + 8*(bit >>> 6);
+
+            chunk.putLong(word, chunk.getLong(word) | (1L << (bit & 63)));
+        }
+    }
+
+    /**
+     * Build a filter for a graph in memory.  The filter is sized for the requested false positive rate, unless
+     * that would exceed the memory budget, in which case it is shrunk to fit (and the false positive rate rises).
+     *
+     * @param graph  the graph to index
+     * @param falsePositiveRate  the target false positive rate
+     * @param maxBytes  the memory budget in bytes, or 0 for no limit
+     * @return  the filter
+     */
+    public static CortexGraphBloomFilter build(CortexGraph graph, double falsePositiveRate, long maxBytes) {
+        if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+            throw new CortexJDKException("Bloom filter false positive rate must be between 0 and 1 (got " + falsePositiveRate + ")");
+        }
+
+        long n = Math.max(1, graph.getNumRecords());
+        double bits = -n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+
+        // Uneven block loads make a blocked filter less accurate than a classic one of the same size, and the
+        // gap widens as the target rate falls.  Pad the size to compensate.
+        bits *= 1.0 - 0.05*Math.log10(falsePositiveRate);
+
+        long numBlocks = Math.max(1, (long) Math.ceil(bits / (8*BLOCK_BYTES)));
+        if (maxBytes > 0) {
+            numBlocks = Math.max(1, Math.min(numBlocks, maxBytes / BLOCK_BYTES));
+        }
+
+        int numHashes = (int) Math.round(8.0*BLOCK_BYTES*numBlocks / n * Math.log(2));
+        numHashes = Math.max(1, Math.min(MAX_HASHES, numHashes));
+
+        long numBytes = numBlocks * BLOCK_BYTES;
+        ByteBuffer[] chunks = new ByteBuffer[(int) ((numBytes + CHUNK_MASK) >>> CHUNK_SHIFT)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = ByteBuffer.allocate((int) Math.min(CHUNK_MASK + 1, numBytes - ((long) i << CHUNK_SHIFT)));
+        }
+
+        CortexGraphBloomFilter bloom = new CortexGraphBloomFilter(numBlocks, numHashes, chunks);
+
+        long[] binaryKmer = new long[graph.getKmerBits()];
+        graph.scan(cv -> {
+            cv.getBinaryKmer(binaryKmer);
+            bloom.put(binaryKmer);
+        });
+
+        return bloom;
+    }
+
+    /**
+     * Load and memory-map a filter from disk.
+     *
+     * @param bloomFile  the filter sidecar
+     * @param graph  the graph the filter should describe
+     * @return  the filter, or null if it is missing or stale
+     */
+    public static CortexGraphBloomFilter load(File bloomFile, CortexGraph graph) {
+        if (!bloomFile.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(bloomFile, "r")) {
+            FileChannel fc = raf.getChannel();
+            ByteBuffer header = fc.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+
+            if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+                throw new CortexJDKException("File '" + bloomFile.getAbsolutePath() + "' is not a Cortex graph Bloom filter");
+            }
+
+            long numRecords = header.getLong();
+            long graphSize = header.getLong();
+            long numBlocks = header.getLong();
+            int numHashes = header.getInt();
+
+            long numBytes = numBlocks * BLOCK_BYTES;
+            if (numRecords != graph.getNumRecords() || graphSize != graph.getFile().length() || raf.length() != HEADER_SIZE + numBytes) {
+                return null;
+            }
+
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((numBytes + CHUNK_MASK) >>> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; i++) {
+                long start = (long) i << CHUNK_SHIFT;
+                chunks[i] = fc.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start, Math.min(CHUNK_MASK + 1, numBytes - start));
+            }
+
+            return new CortexGraphBloomFilter(numBlocks, numHashes, chunks);
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to read Cortex graph Bloom filter '" + bloomFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Write the filter to disk.
+     *
+     * @param bloomFile  the filter sidecar
+     * @param graph  the graph the filter describes
+     */
+    public void write(File bloomFile, CortexGraph graph) {
+        try (FileOutputStream fos = new FileOutputStream(bloomFile)) {
+            FileChannel fc = fos.getChannel();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.put(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(graph.getNumRecords());
+            header.putLong(graph.getFile().length());
+            header.putLong(numBlocks);
+            header.putInt(numHashes);
+            header.clear();
+
+            while (header.hasRemaining()) {
+                fc.write(header);
+            }
+
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer bb = chunk.duplicate();
+                bb.clear();
+
+                while (bb.hasRemaining()) {
+                    fc.write(bb);
+                }
+            }
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to write Cortex graph Bloom filter '" + bloomFile.getAbsolutePath() + "'", e);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A sparse prefix index over a sorted Cortex graph, stored as a '.ctx.idx' sidecar.  For every possible binary
+ * prefix of the first few bases of a kmer, the index records the first record whose kmer carries that prefix.
+ * A lookup therefore narrows the binary search to the handful of records sharing the query's prefix.
+ *
+ * The table is memory-mapped when loaded from disk, so concurrent processes share a single copy.
+ */
+public class CortexGraphIndex {
+    public static final String EXTENSION = ".idx";
+
+    private static final byte[] MAGIC = "CTXIDX".getBytes();
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6 + 4 + 4 + 8 + 8;
+
+    private static final int MAX_PREFIX_LENGTH = 12;
+    private static final int TARGET_RECORDS_PER_BUCKET = 16;
+
+    private final int kmerSize;
+    private final int prefixLength;
+    private final ByteBuffer table;
+
+    private CortexGraphIndex(int kmerSize, int prefixLength, ByteBuffer table) {
+        this.kmerSize = kmerSize;
+        this.prefixLength = prefixLength;
+        this.table = table;
+    }
+
+    public static File getIndexFile(File cortexFile) {
+        return new File(cortexFile.getAbsolutePath() + EXTENSION);
+    }
+
+    public int getPrefixLength() { return prefixLength; }
+
+    public int getNumBuckets() { return 1 << (2*prefixLength); }
+
+    /**
+     * Get the index of the first record in the bucket for the given kmer.
+     *
+     * @param binaryKmer  the binary kmer (in canonical orientation)
+     * @return  the first record index that could hold the kmer
+     */
+    public long getBucketStart(long[] binaryKmer) {
+        return table.getLong(HEADER_SIZE + 8*prefix(binaryKmer, kmerSize, prefixLength));
+    }
+
+    /**
+     * Get the index one past the last record in the bucket for the given kmer.
+     *
+     * @param binaryKmer  the binary kmer (in canonical orientation)
+     * @return  the exclusive end of the range of records that could hold the kmer
+     */
+    public long getBucketEnd(long[] binaryKmer) {
+        return table.getLong(HEADER_SIZE + 8*(prefix(binaryKmer, kmerSize, prefixLength) + 1));
+    }
+
+    /**
+     * Extract the 2-bit encoded value of the first prefixLength bases of a binary kmer.
+     *
+     * @param binaryKmer  the binary kmer, as stored in a Cortex record
+     * @param kmerSize  the kmer size
+     * @param prefixLength  the number of leading bases to extract
+     * @return  the prefix value
+     */
+    public static int prefix(long[] binaryKmer, int kmerSize, int prefixLength) {
+        // The first word holds the leading (kmerSize mod 32) bases right-aligned, the rest hold 32 bases each.
+        int basesInWord = kmerSize - 32*(binaryKmer.length - 1);
+        int remaining = prefixLength;
+        int prefix = 0;
+
+        for (int word = 0; remaining > 0; word++) {
+            long w = Long.reverseBytes(binaryKmer[word]);
+            int take = Math.min(remaining, basesInWord);
+
+            prefix = (prefix << (2*take)) | (int) ((w >>> (2*(basesInWord - take))) & ((1L << (2*take)) - 1));
+
+            remaining -= take;
+            basesInWord = 32;
+        }
+
+        return prefix;
+    }
+
+    private static int choosePrefixLength(long numRecords, int kmerSize) {
+        int prefixLength = 1;
+        while (prefixLength < MAX_PREFIX_LENGTH && prefixLength < kmerSize && (1L << (2*(prefixLength + 1))) * TARGET_RECORDS_PER_BUCKET <= numRecords) {
+            prefixLength++;
+        }
+
+        return prefixLength;
+    }
+
+    /**
+     * Build an index for a sorted graph in memory.
+     *
+     * @param graph  the graph to index
+     * @return  the index
+     */
+    public static CortexGraphIndex build(CortexGraph graph) {
+        int prefixLength = choosePrefixLength(graph.getNumRecords(), graph.getKmerSize());
+        int numBuckets = 1 << (2*prefixLength);
+
+        ByteBuffer table = ByteBuffer.allocate(HEADER_SIZE + 8*(numBuckets + 1));
+        table.put(MAGIC);
+        table.putInt(VERSION);
+        table.putInt(prefixLength);
+        table.putLong(graph.getNumRecords());
+        table.putLong(graph.getFile().length());
+
+        long[] binaryKmer = new long[graph.getKmerBits()];
+        int[] nextBucket = { 0 };
+
+        graph.scan(cv -> {
+            cv.getBinaryKmer(binaryKmer);
+            int p = prefix(binaryKmer, graph.getKmerSize(), prefixLength);
+
+            if (p < nextBucket[0] - 1) {
+                throw new CortexJDKException("Cannot index graph '" + graph.getFile().getAbsolutePath() + "': records are not sorted (see record " + cv.getIndex() + ")");
+            }
+
+            while (nextBucket[0] <= p) {
+                table.putLong(HEADER_SIZE + 8*nextBucket[0], cv.getIndex());
+                nextBucket[0]++;
+            }
+        });
+
+        for (int b = nextBucket[0]; b <= numBuckets; b++) {
+            table.putLong(HEADER_SIZE + 8*b, graph.getNumRecords());
+        }
+
+        table.clear();
+
+        return new CortexGraphIndex(graph.getKmerSize(), prefixLength, table);
+    }
+
+    /**
+     * Load and memory-map an index from disk.  Returns null if the index does not match the graph (e.g. because
+     * the graph was rewritten after the index was built).
+     *
+     * @param indexFile  the index sidecar
+     * @param graph  the graph the index should describe
+     * @return  the index, or null if it is missing or stale
+     */
+    public static CortexGraphIndex load(File indexFile, CortexGraph graph) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+            ByteBuffer table = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+            byte[] magic = new byte[MAGIC.length];
+            table.get(magic);
+
+            if (!Arrays.equals(magic, MAGIC) || table.getInt() != VERSION) {
+                throw new CortexJDKException("File '" + indexFile.getAbsolutePath() + "' is not a Cortex graph index");
+            }
+
+            int prefixLength = table.getInt();
+            long numRecords = table.getLong();
+            long graphSize = table.getLong();
+
+            if (numRecords != graph.getNumRecords() || graphSize != graph.getFile().length() || raf.length() != HEADER_SIZE + 8L*((1L << (2*prefixLength)) + 1)) {
+                return null;
+            }
+
+            return new CortexGraphIndex(graph.getKmerSize(), prefixLength, table);
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to read Cortex graph index '" + indexFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    public void write(File indexFile) {
+        try (FileOutputStream fos = new FileOutputStream(indexFile)) {
+            ByteBuffer bb = table.duplicate();
+            bb.clear();
+
+            FileChannel fc = fos.getChannel();
+            while (bb.hasRemaining()) {
+                fc.write(bb);
+            }
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to write Cortex graph index '" + indexFile.getAbsolutePath() + "'", e);
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * A minimal perfect hash over the kmers of a Cortex graph, stored as a '.ctx.mph' sidecar.  Each kmer hashes to
+ * a unique slot holding its record number and a 16-bit fingerprint, so a lookup costs one hash evaluation and
+ * (for kmers that pass the fingerprint check) one record read to confirm the match.
+ *
+ * The hash follows the BBHash construction: keys are hashed into successive bit arrays, and each key lands in
+ * the first level where it does not collide with another key.  A key's slot is the rank of its bit across all
+ * levels.  The handful of keys that never find a free bit (e.g. 64-bit hash collisions) are kept in a small
+ * sorted fallback table.  Every section is a flat array in the file, so the whole structure is memory-mapped and
+ * shared between processes rather than deserialised onto the heap.
+ */
+public class CortexGraphMinimalPerfectHash {
+    public static final String EXTENSION = ".mph";
+
+    private static final byte[] MAGIC = "CTXMPH".getBytes();
+    private static final int VERSION = 1;
+
+    private static final double GAMMA = 2.0;
+    private static final int MAX_LEVELS = 32;
+    private static final int WORDS_PER_RANK_BLOCK = 8;
+
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+    private final long numKeys;
+    private final long[] levelOffsets;
+    private final long[] levelSizes;
+    private final int valueWidth;
+
+    private final MappedSection bits;
+    private final MappedSection ranks;
+    private final MappedSection fallbackHashes;
+    private final MappedSection fallbackRecords;
+    private final long numFallback;
+    private final MappedSection values;
+    private final MappedSection fingerprints;
+
+    private CortexGraphMinimalPerfectHash(FileChannel fc) throws IOException {
+        ByteBuffer header = fc.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fc.size(), 4096));
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || header.getInt() != VERSION) {
+            throw new CortexJDKException("Not a Cortex graph minimal perfect hash");
+        }
+
+        numKeys = header.getLong();
+        header.getLong(); // graph file size, checked by load()
+        valueWidth = header.getInt();
+        numFallback = header.getLong();
+
+        int numLevels = header.getInt();
+        levelOffsets = new long[numLevels];
+        levelSizes = new long[numLevels];
+
+        long totalBits = 0;
+        for (int l = 0; l < numLevels; l++) {
+            levelOffsets[l] = totalBits;
+            levelSizes[l] = header.getLong();
+            totalBits += levelSizes[l];
+        }
+
+        long offset = headerSize(numLevels);
+        long numWords = totalBits / 64;
+        long numBlocks = numWords / WORDS_PER_RANK_BLOCK + 1;
+
+        bits = new MappedSection(fc, FileChannel.MapMode.READ_ONLY, offset, 8*numWords);                      offset += 8*numWords;
+        ranks = new MappedSection(fc, FileChannel.MapMode.READ_ONLY, offset, 8*numBlocks);                    offset += 8*numBlocks;
+        fallbackHashes = new MappedSection(fc, FileChannel.MapMode.READ_ONLY, offset, 8*numFallback);         offset += 8*numFallback;
+        fallbackRecords = new MappedSection(fc, FileChannel.MapMode.READ_ONLY, offset, 8*numFallback);        offset += 8*numFallback;
+        values = new MappedSection(fc, FileChannel.MapMode.READ_ONLY, offset, valueWidth*(numKeys - numFallback)); offset += valueWidth*(numKeys - numFallback);
+        fingerprints = new MappedSection(fc, FileChannel.MapMode.READ_ONLY, offset, 2*(numKeys - numFallback));
+    }
+
+    public static File getIndexFile(File cortexFile) {
+        return new File(cortexFile.getAbsolutePath() + EXTENSION);
+    }
+
+    private static long headerSize(int numLevels) {
+        return 6 + 4 + 8 + 8 + 4 + 8 + 4 + 8L*numLevels;
+    }
+
+    public long getNumKeys() { return numKeys; }
+
+    public int getNumLevels() { return levelSizes.length; }
+
+    static long hash(long[] binaryKmer) {
+        long h = GOLDEN_RATIO;
+        for (long w : binaryKmer) {
+            h = HashCommon.murmurHash3(h ^ w);
+        }
+
+        return h;
+    }
+
+    private static long levelPosition(long h, int level, long levelSize) {
+        return Long.remainderUnsigned(HashCommon.murmurHash3(h + (level + 1) * GOLDEN_RATIO), levelSize);
+    }
+
+    private static short fingerprint(long h) {
+        return (short) (HashCommon.murmurHash3(h ^ 0x5DEECE66DL) >>> 48);
+    }
+
+    private long rank(long pos) {
+        long word = pos >>> 6;
+        long block = word / WORDS_PER_RANK_BLOCK;
+
+        long r = ranks.getLong(8*block);
+        for (long w = block*WORDS_PER_RANK_BLOCK; w < word; w++) {
+            r += Long.bitCount(bits.getLong(8*w));
+        }
+
+        return r + Long.bitCount(bits.getLong(8*word) & ((1L << (pos & 63)) - 1));
+    }
+
+    private long value(long slot) {
+        return valueWidth == 4 ? Integer.toUnsignedLong(values.getInt(4*slot)) : values.getLong(8*slot);
+    }
+
+    /**
+     * Find the record number of a kmer.
+     *
+     * @param binaryKmer  the canonical binary kmer
+     * @param isMatch  confirms that a candidate record really holds the kmer
+     * @return  the record number, or -1 if the kmer is not in the graph
+     */
+    public long find(long[] binaryKmer, LongPredicate isMatch) {
+        long h = hash(binaryKmer);
+
+        for (int l = 0; l < levelSizes.length; l++) {
+            long pos = levelOffsets[l] + levelPosition(h, l, levelSizes[l]);
+
+            if ((bits.getLong(8*(pos >>> 6)) & (1L << (pos & 63))) != 0) {
+                long slot = rank(pos);
+
+                if (fingerprints.getShort(2*slot) != fingerprint(h)) {
+                    return -1;
+                }
+
+                long record = value(slot);
+                return isMatch.test(record) ? record : -1;
+            }
+        }
+
+        // Keys that never found a free bit live in a sorted (hash, record) table.
+        long lo = 0, hi = numFallback;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (fallbackHashes.getLong(8*mid) < h) { lo = mid + 1; } else { hi = mid; }
+        }
+
+        for (long i = lo; i < numFallback && fallbackHashes.getLong(8*i) == h; i++) {
+            long record = fallbackRecords.getLong(8*i);
+            if (isMatch.test(record)) {
+                return record;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Load and memory-map a minimal perfect hash from disk.
+     *
+     * @param mphFile  the sidecar file
+     * @param graph  the graph the hash should describe
+     * @return  the hash, or null if it is missing or does not match the graph
+     */
+    public static CortexGraphMinimalPerfectHash load(File mphFile, CortexGraph graph) {
+        if (!mphFile.exists()) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(mphFile, "r")) {
+            ByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, 6 + 4 + 8 + 8);
+            header.position(6 + 4);
+
+            if (header.getLong() != graph.getNumRecords() || header.getLong() != graph.getFile().length()) {
+                return null;
+            }
+
+            return new CortexGraphMinimalPerfectHash(raf.getChannel());
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to read minimal perfect hash '" + mphFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Build a minimal perfect hash for a graph and write it to disk.
+     *
+     * @param graph  the graph to index
+     * @param mphFile  the sidecar file to write
+     * @return  the memory-mapped hash
+     */
+    public static CortexGraphMinimalPerfectHash build(CortexGraph graph, File mphFile) {
+        long n = graph.getNumRecords();
+        long[] binaryKmer = new long[graph.getKmerBits()];
+
+        long[][] levelBits = new long[MAX_LEVELS][];
+        int numLevels = 0;
+
+        // The first level is built by streaming over the graph so that we never hold every key hash at once.
+        long[] seen = newLevel(n);
+        long[] collided = new long[seen.length];
+        long level0Size = 64L*seen.length;
+
+        graph.scan(cv -> {
+            cv.getBinaryKmer(binaryKmer);
+            markLevel(seen, collided, levelPosition(hash(binaryKmer), 0, level0Size));
+        });
+        clearCollisions(seen, collided);
+        levelBits[numLevels++] = seen;
+
+        long remainingCount = n;
+        for (long w : seen) { remainingCount -= Long.bitCount(w); }
+
+        if (remainingCount > Integer.MAX_VALUE - 8) {
+            throw new CortexJDKException("Graph '" + graph.getFile().getAbsolutePath() + "' is too large to index with a minimal perfect hash");
+        }
+
+        long[] remaining = new long[(int) remainingCount];
+        int[] r = { 0 };
+        graph.scan(cv -> {
+            cv.getBinaryKmer(binaryKmer);
+            long h = hash(binaryKmer);
+            long pos = levelPosition(h, 0, level0Size);
+
+            if ((seen[(int) (pos >>> 6)] & (1L << (pos & 63))) == 0) {
+                remaining[r[0]++] = h;
+            }
+        });
+
+        int numRemaining = remaining.length;
+        while (numRemaining > 0 && numLevels < MAX_LEVELS) {
+            long[] levelSeen = newLevel(numRemaining);
+            long[] levelCollided = new long[levelSeen.length];
+            long levelSize = 64L*levelSeen.length;
+            int level = numLevels;
+
+            for (int i = 0; i < numRemaining; i++) {
+                markLevel(levelSeen, levelCollided, levelPosition(remaining[i], level, levelSize));
+            }
+            clearCollisions(levelSeen, levelCollided);
+
+            int kept = 0;
+            for (int i = 0; i < numRemaining; i++) {
+                long pos = levelPosition(remaining[i], level, levelSize);
+                if ((levelSeen[(int) (pos >>> 6)] & (1L << (pos & 63))) == 0) {
+                    remaining[kept++] = remaining[i];
+                }
+            }
+
+            levelBits[numLevels++] = levelSeen;
+            numRemaining = kept;
+        }
+
+        long[] fallback = Arrays.copyOf(remaining, numRemaining);
+        Arrays.sort(fallback);
+
+        return write(graph, mphFile, Arrays.copyOf(levelBits, numLevels), fallback);
+    }
+
+    private static long[] newLevel(long numKeys) {
+        long numWords = Math.max(1, (long) Math.ceil(GAMMA * numKeys / 64.0));
+        if (numWords > Integer.MAX_VALUE - 8) {
+            throw new CortexJDKException("Too many keys for a single minimal perfect hash level (" + numKeys + ")");
+        }
+
+        return new long[(int) numWords];
+    }
+
+    private static void markLevel(long[] seen, long[] collided, long pos) {
+        int word = (int) (pos >>> 6);
+        long mask = 1L << (pos & 63);
+
+        if ((seen[word] & mask) != 0) {
+            collided[word] |= mask;
+        } else {
+            seen[word] |= mask;
+        }
+    }
+
+    private static void clearCollisions(long[] seen, long[] collided) {
+        for (int i = 0; i < seen.length; i++) {
+            seen[i] &= ~collided[i];
+        }
+    }
+
+    private static CortexGraphMinimalPerfectHash write(CortexGraph graph, File mphFile, long[][] levelBits, long[] fallback) {
+        long n = graph.getNumRecords();
+        int valueWidth = n <= 0xFFFFFFFFL ? 4 : 8;
+
+        long numWords = 0;
+        for (long[] level : levelBits) { numWords += level.length; }
+        long numBlocks = numWords / WORDS_PER_RANK_BLOCK + 1;
+        long numSlots = n - fallback.length;
+
+        long valuesOffset = headerSize(levelBits.length) + 8*numWords + 8*numBlocks + 16L*fallback.length;
+        long fileSize = valuesOffset + (valueWidth + 2)*numSlots;
+
+        try (RandomAccessFile raf = new RandomAccessFile(mphFile, "rw")) {
+            raf.setLength(0);
+            raf.setLength(fileSize);
+            FileChannel fc = raf.getChannel();
+
+            MappedSection out = new MappedSection(fc, FileChannel.MapMode.READ_WRITE, 0, valuesOffset);
+            long offset = 0;
+
+            for (byte b : MAGIC) { out.putByte(offset++, b); }
+            out.putInt(offset, VERSION);                     offset += 4;
+            out.putLong(offset, n);                          offset += 8;
+            out.putLong(offset, graph.getFile().length());   offset += 8;
+            out.putInt(offset, valueWidth);                  offset += 4;
+            out.putLong(offset, fallback.length);            offset += 8;
+            out.putInt(offset, levelBits.length);            offset += 4;
+            for (long[] level : levelBits) {
+                out.putLong(offset, 64L*level.length);       offset += 8;
+            }
+
+            for (long[] level : levelBits) {
+                for (long w : level) {
+                    out.putLong(offset, w);                  offset += 8;
+                }
+            }
+
+            long rank = 0, word = 0;
+            for (long[] level : levelBits) {
+                for (long w : level) {
+                    if (word % WORDS_PER_RANK_BLOCK == 0) {
+                        out.putLong(offset, rank);           offset += 8;
+                    }
+
+                    rank += Long.bitCount(w);
+                    word++;
+                }
+            }
+            if (word % WORDS_PER_RANK_BLOCK == 0) {
+                out.putLong(offset, rank);                   offset += 8;
+            }
+
+            for (long h : fallback) {
+                out.putLong(offset, h);                      offset += 8;
+            }
+            long fallbackRecordsOffset = offset;
+
+            MappedSection slots = new MappedSection(fc, FileChannel.MapMode.READ_WRITE, valuesOffset, (valueWidth + 2)*numSlots);
+            CortexGraphMinimalPerfectHash mph = new CortexGraphMinimalPerfectHash(fc);
+
+            long[] fallbackRecords = new long[fallback.length];
+            Arrays.fill(fallbackRecords, -1);
+
+            long[] binaryKmer = new long[graph.getKmerBits()];
+            graph.scan(cv -> {
+                cv.getBinaryKmer(binaryKmer);
+                long h = hash(binaryKmer);
+
+                long slot = mph.slot(h);
+                if (slot >= 0) {
+                    if (valueWidth == 4) {
+                        slots.putInt(4*slot, (int) cv.getIndex());
+                    } else {
+                        slots.putLong(8*slot, cv.getIndex());
+                    }
+
+                    slots.putShort(valueWidth*numSlots + 2*slot, fingerprint(h));
+                } else {
+                    // Fallback hashes are sorted; records with equal hashes fill consecutive entries in file order.
+                    int i = Arrays.binarySearch(fallback, h);
+                    while (i > 0 && fallback[i - 1] == h) { i--; }
+                    while (fallbackRecords[i] >= 0) { i++; }
+
+                    fallbackRecords[i] = cv.getIndex();
+                }
+            });
+
+            for (int i = 0; i < fallbackRecords.length; i++) {
+                out.putLong(fallbackRecordsOffset + 8L*i, fallbackRecords[i]);
+            }
+
+            slots.force();
+            out.force();
+
+            return new CortexGraphMinimalPerfectHash(fc);
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to write minimal perfect hash '" + mphFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    private long slot(long h) {
+        for (int l = 0; l < levelSizes.length; l++) {
+            long pos = levelOffsets[l] + levelPosition(h, l, levelSizes[l]);
+
+            if ((bits.getLong(8*(pos >>> 6)) & (1L << (pos & 63))) != 0) {
+                return rank(pos);
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * A region of a file mapped as a sequence of buffers, addressed with long offsets.  The region is split at
+     * 1GB boundaries (relative to its start), so elements of 2, 4 or 8 bytes never straddle two buffers.
+     */
+    private static class MappedSection {
+        private static final int CHUNK_SHIFT = 30;
+        private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+        private final ByteBuffer[] chunks;
+
+        MappedSection(FileChannel fc, FileChannel.MapMode mode, long offset, long length) throws IOException {
+            int numChunks = (int) ((length + CHUNK_MASK) >>> CHUNK_SHIFT);
+            chunks = new ByteBuffer[numChunks];
+
+            for (int i = 0; i < numChunks; i++) {
+                long start = ((long) i) << CHUNK_SHIFT;
+                chunks[i] = fc.map(mode, offset + start, Math.min(CHUNK_MASK + 1, length - start));
+            }
+        }
+
+        long getLong(long pos) { return chunks[(int) (pos >>> CHUNK_SHIFT)].getLong((int) (pos & CHUNK_MASK)); }
+        int getInt(long pos) { return chunks[(int) (pos >>> CHUNK_SHIFT)].getInt((int) (pos & CHUNK_MASK)); }
+        short getShort(long pos) { return chunks[(int) (pos >>> CHUNK_SHIFT)].getShort((int) (pos & CHUNK_MASK)); }
+
+        void putLong(long pos, long v) { chunks[(int) (pos >>> CHUNK_SHIFT)].putLong((int) (pos & CHUNK_MASK), v); }
+        void putInt(long pos, int v) { chunks[(int) (pos >>> CHUNK_SHIFT)].putInt((int) (pos & CHUNK_MASK), v); }
+        void putShort(long pos, short v) { chunks[(int) (pos >>> CHUNK_SHIFT)].putShort((int) (pos & CHUNK_MASK), v); }
+        void putByte(long pos, byte v) { chunks[(int) (pos >>> CHUNK_SHIFT)].put((int) (pos & CHUNK_MASK), v); }
+
+        void force() {
+            for (ByteBuffer bb : chunks) {
+                if (bb instanceof java.nio.MappedByteBuffer) {
+                    ((java.nio.MappedByteBuffer) bb).force();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import java.util.Iterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A contiguous range of records in a Cortex graph.  Partitions read the graph's shared mapping through their own
+ * views, so different partitions of one graph can be scanned on different threads at the same time.
+ */
+public class CortexGraphPartition implements Iterable<CortexRecord> {
+    public static final long DEFAULT_PARTITION_RECORDS = 1L << 20;
+
+    private final CortexGraph graph;
+    private final int partition;
+    private final long start;
+    private final long end;
+
+    CortexGraphPartition(CortexGraph graph, int partition, long start, long end) {
+        this.graph = graph;
+        this.partition = partition;
+        this.start = start;
+        this.end = end;
+    }
+
+    public CortexGraph getGraph() { return graph; }
+
+    public int getPartition() { return partition; }
+
+    public long getStart() { return start; }
+
+    public long getEnd() { return end; }
+
+    public long getNumRecords() { return end - start; }
+
+    /**
+     * Visit every record in the partition through a single reusable view.
+     *
+     * @param consumer  the record visitor
+     */
+    public void scan(Consumer<CortexRecordView> consumer) {
+        graph.scan(start, end, consumer);
+    }
+
+    public Stream<CortexRecord> stream() {
+        return StreamSupport.stream(new CortexGraphSpliterator(graph, start, end), false);
+    }
+
+    @Override
+    public Iterator<CortexRecord> iterator() {
+        return Spliterators.iterator(new CortexGraphSpliterator(graph, start, end));
+    }
+
+    @Override
+    public String toString() {
+        return "partition " + partition + " [" + start + ", " + end + ")";
+    }
+}
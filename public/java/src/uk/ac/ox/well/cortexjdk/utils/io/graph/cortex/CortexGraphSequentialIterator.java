@@ -0,0 +1,138 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams records from a Cortex graph in file order through large read-ahead windows.  The iterator opens its
+ * own handle on the graph file, so it neither moves the parent graph's cursor nor inserts records into (and
+ * evicts entries from) the parent's record cache.  This makes it suitable for linear passes over a graph that
+ * is concurrently being used for random access lookups.
+ *
+ * The handle is released when the last record has been returned.  Callers that may stop before then (by breaking
+ * out of the loop or on an exception) must call {@link #close()}, e.g. with try-with-resources; the read-ahead
+ * window is a direct buffer, so it is freed once the closed iterator is no longer referenced.
+ */
+public class CortexGraphSequentialIterator implements Iterable<CortexRecord>, Iterator<CortexRecord>, AutoCloseable {
+    public static final int DEFAULT_WINDOW_SIZE = 8*1024*1024;
+
+    private final CortexGraph graph;
+    private final long endRecord;
+    private final int recordSize;
+    private final int recordsPerWindow;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final ByteBuffer window;
+    private final CortexRecordView view;
+
+    private long windowStart;
+    private int windowRecords = 0;
+    private int windowIndex = 0;
+
+    public CortexGraphSequentialIterator(CortexGraph graph) {
+        this(graph, 0, graph.getNumRecords(), DEFAULT_WINDOW_SIZE);
+    }
+
+    public CortexGraphSequentialIterator(CortexGraph graph, long startRecord, long endRecord, int windowSize) {
+        this.graph = graph;
+        this.endRecord = Math.min(endRecord, graph.getNumRecords());
+        this.recordSize = (int) graph.getRecordSize();
+        this.recordsPerWindow = Math.max(1, windowSize / recordSize);
+        this.windowStart = Math.max(0, startRecord);
+
+        this.window = ByteBuffer.allocateDirect(recordsPerWindow * recordSize);
+        this.view = graph.newRecordView();
+
+        try {
+            raf = new RandomAccessFile(graph.getFile(), "r");
+            channel = raf.getChannel();
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to open Cortex graph '" + graph.getFile().getAbsolutePath() + "' for streaming", e);
+        }
+
+        if (!hasNext()) {
+            close();
+        }
+    }
+
+    private void fill() {
+        windowStart += windowRecords;
+        windowIndex = 0;
+        windowRecords = (int) Math.max(0, Math.min(recordsPerWindow, endRecord - windowStart));
+
+        window.clear();
+        window.limit(windowRecords * recordSize);
+
+        try {
+            long filePos = graph.getDataOffset() + windowStart * recordSize;
+            while (window.hasRemaining()) {
+                if (channel.read(window, filePos + window.position()) < 0) {
+                    throw new CortexJDKException("Unexpected end of Cortex graph '" + graph.getFile().getAbsolutePath() + "'");
+                }
+            }
+        } catch (IOException e) {
+            throw new CortexJDKException("Error while streaming Cortex graph '" + graph.getFile().getAbsolutePath() + "'", e);
+        }
+    }
+
+    @Override
+    public Iterator<CortexRecord> iterator() {
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return raf != null && (windowIndex < windowRecords || windowStart + windowRecords < endRecord);
+    }
+
+    /**
+     * Advance to the next record and return a view of it.  The view is only valid until the next call.
+     *
+     * @return  a view of the next record
+     */
+    public CortexRecordView nextView() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        if (windowIndex == windowRecords) {
+            fill();
+        }
+
+        view.wrap(window, windowIndex * recordSize, windowStart + windowIndex);
+        windowIndex++;
+
+        if (!hasNext()) {
+            close();
+        }
+
+        return view;
+    }
+
+    @Override
+    public CortexRecord next() {
+        return nextView().toRecord();
+    }
+
+    /**
+     * Release the file handle.  After this, {@link #hasNext()} returns false.  Safe to call more than once.
+     */
+    @Override
+    public void close() {
+        try {
+            if (raf != null) {
+                raf.close();
+                raf = null;
+            }
+        } catch (IOException e) {
+            throw new CortexJDKException("Error while closing graph file", e);
+        }
+    }
+}
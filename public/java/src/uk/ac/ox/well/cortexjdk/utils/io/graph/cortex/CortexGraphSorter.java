@@ -0,0 +1,143 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import uk.ac.ox.well.cortexjdk.utils.sort.ExternalRecordSorter;
+
+import java.io.File;
+
+/**
+ * Sorts Cortex records into graph order within a fixed memory budget, spilling to disk as needed.  Records are
+ * packed into primitive longs for the underlying {@link ExternalRecordSorter}: the kmer words (byte-swapped, so an
+ * unsigned comparison gives the on-disk order), then the coverages two to a word, then the edges eight to a word.
+ */
+public class CortexGraphSorter implements AutoCloseable {
+    private final int kmerBits;
+    private final int numColors;
+    private final int coverageWords;
+    private final ExternalRecordSorter sorter;
+    private final long[] packed;
+
+    private boolean mergeDuplicates = false;
+
+    public CortexGraphSorter(int kmerBits, int numColors, long memoryBytes, File tempDir) {
+        this.kmerBits = kmerBits;
+        this.numColors = numColors;
+        this.coverageWords = (numColors + 1) / 2;
+
+        int recordWords = kmerBits + coverageWords + (numColors + 7) / 8;
+
+        this.sorter = new ExternalRecordSorter(recordWords, kmerBits, true, memoryBytes, tempDir);
+        this.packed = new long[recordWords];
+    }
+
+    public CortexGraphSorter(CortexHeader header, long memoryBytes, File tempDir) {
+        this(header.getKmerBits(), header.getNumColors(), memoryBytes, tempDir);
+    }
+
+    /**
+     * Collapse records with the same kmer into one, summing their coverages and combining their edges.
+     *
+     * @param mergeDuplicates  whether to merge records with equal kmers
+     */
+    public void setMergeDuplicates(boolean mergeDuplicates) { this.mergeDuplicates = mergeDuplicates; }
+
+    public void setNumThreads(int numThreads) { sorter.setNumThreads(numThreads); }
+
+    public long getNumRecords() { return sorter.getNumRecords(); }
+
+    public int getNumRuns() { return sorter.getNumRuns(); }
+
+    public void add(long[] binaryKmer, int[] coverages, byte[] edges) {
+        for (int i = 0; i < kmerBits; i++) {
+            packed[i] = Long.reverseBytes(binaryKmer[i]);
+        }
+
+        for (int i = kmerBits; i < packed.length; i++) {
+            packed[i] = 0;
+        }
+
+        for (int c = 0; c < numColors; c++) {
+            packed[kmerBits + c/2] |= (coverages[c] & 0xFFFFFFFFL) << (32*(c % 2));
+            packed[kmerBits + coverageWords + c/8] |= (edges[c] & 0xFFL) << (8*(c % 8));
+        }
+
+        sorter.add(packed);
+    }
+
+    public void add(CortexRecord record) {
+        add(record.getBinaryKmer(), record.getCoverages(), record.getEdges());
+    }
+
+    public void add(CortexRecordView view) {
+        for (int i = 0; i < kmerBits; i++) {
+            packed[i] = Long.reverseBytes(view.getBinaryKmerWord(i));
+        }
+
+        for (int i = kmerBits; i < packed.length; i++) {
+            packed[i] = 0;
+        }
+
+        for (int c = 0; c < numColors; c++) {
+            packed[kmerBits + c/2] |= (view.getCoverage(c) & 0xFFFFFFFFL) << (32*(c % 2));
+            packed[kmerBits + coverageWords + c/8] |= (view.getEdge(c) & 0xFFL) << (8*(c % 8));
+        }
+
+        sorter.add(packed);
+    }
+
+    /**
+     * Write all records, in sorted order, through the given writer.  The writer's header must already be set; it
+     * is not closed.
+     *
+     * @param cgw  the graph writer
+     * @return  the number of records written
+     */
+    public long write(CortexGraphWriter cgw) {
+        long[] bk = new long[kmerBits];
+        int[] cov = new int[numColors];
+        byte[] edges = new byte[numColors];
+        long[] numWritten = { 0 };
+        boolean[] pending = { false };
+
+        sorter.forEachSorted(r -> {
+            boolean same = pending[0] && mergeDuplicates;
+            for (int i = 0; same && i < kmerBits; i++) {
+                same = r[i] == Long.reverseBytes(bk[i]);
+            }
+
+            if (!same) {
+                if (pending[0]) {
+                    cgw.addRecord(bk, cov, edges);
+                    numWritten[0]++;
+                }
+
+                for (int i = 0; i < kmerBits; i++) {
+                    bk[i] = Long.reverseBytes(r[i]);
+                }
+
+                for (int c = 0; c < numColors; c++) {
+                    cov[c] = 0;
+                    edges[c] = 0;
+                }
+
+                pending[0] = true;
+            }
+
+            for (int c = 0; c < numColors; c++) {
+                cov[c] += (int) (r[kmerBits + c/2] >>> (32*(c % 2)));
+                edges[c] |= (byte) (r[kmerBits + coverageWords + c/8] >>> (8*(c % 8)));
+            }
+        });
+
+        if (pending[0]) {
+            cgw.addRecord(bk, cov, edges);
+            numWritten[0]++;
+        }
+
+        return numWritten[0];
+    }
+
+    @Override
+    public void close() {
+        sorter.close();
+    }
+}
@@ -0,0 +1,66 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Splits a range of graph records for parallel streams.  Records have a fixed size, so a range splits exactly at
+ * its midpoint; each half reads the shared mapping through its own view.
+ */
+class CortexGraphSpliterator implements Spliterator<CortexRecord> {
+    // Below this many records, splitting costs more than it saves.
+    private static final long MIN_SPLIT_RECORDS = 4096;
+
+    private final CortexGraph graph;
+    private final CortexRecordView view;
+    private long index;
+    private final long fence;
+
+    CortexGraphSpliterator(CortexGraph graph, long start, long end) {
+        this.graph = graph;
+        this.view = graph.newRecordView();
+        this.index = Math.max(0, start);
+        this.fence = Math.min(end, graph.getNumRecords());
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super CortexRecord> action) {
+        if (index >= fence) {
+            return false;
+        }
+
+        action.accept(graph.getRecordView(index++, view).toRecord());
+
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super CortexRecord> action) {
+        for (; index < fence; index++) {
+            action.accept(graph.getRecordView(index, view).toRecord());
+        }
+    }
+
+    @Override
+    public Spliterator<CortexRecord> trySplit() {
+        if (fence - index < 2*MIN_SPLIT_RECORDS) {
+            return null;
+        }
+
+        long mid = index + (fence - index) / 2;
+        CortexGraphSpliterator prefix = new CortexGraphSpliterator(graph, index, mid);
+        index = mid;
+
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Math.max(0, fence - index);
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE | DISTINCT;
+    }
+}
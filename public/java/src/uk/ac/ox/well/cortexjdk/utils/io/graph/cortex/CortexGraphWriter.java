@@ -9,93 +9,155 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
-
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes a version 6 Cortex graph.  Records are encoded into a large reusable buffer rather than written one at a
+ * time; full buffers are handed to a background thread that writes them while the caller fills the next one (or,
+ * with asynchronous flushing disabled, are written by the caller).  Nothing is guaranteed to be on disk until
+ * {@link #close()} returns.
+ */
 public class CortexGraphWriter {
+    public static final int DEFAULT_BUFFER_SIZE = 8*1024*1024;
+
+    // The number of buffers: one being filled, one being written, and one spare so the two rarely wait on each other.
+    private static final int NUM_BUFFERS = 3;
+
     private File cortexFile;
     private FileOutputStream fos = null;
     private FileChannel channel;
 
     private CortexHeader header;
+    private byte[] rawHeader = null;
+
+    private final int bufferSize;
+    private final boolean asyncFlush;
+    private int recordSize;
+    private ByteBuffer buffer;
+
+    private BlockingQueue<ByteBuffer> freeBuffers;
+    private BlockingQueue<ByteBuffer> fullBuffers;
+    private Thread flusher;
+    private volatile Throwable flushError = null;
 
     public CortexGraphWriter(File cortexFile) {
-        this.cortexFile = cortexFile;
+        this(cortexFile, DEFAULT_BUFFER_SIZE, true);
     }
 
     public CortexGraphWriter(String cortexFilePath) {
-        this.cortexFile = new File(cortexFilePath);
+        this(new File(cortexFilePath));
+    }
+
+    /**
+     * @param cortexFile  the graph file to write
+     * @param bufferSize  the size in bytes of each record buffer
+     * @param asyncFlush  whether full buffers are written on a background thread
+     */
+    public CortexGraphWriter(File cortexFile, int bufferSize, boolean asyncFlush) {
+        this.cortexFile = cortexFile;
+        this.bufferSize = bufferSize;
+        this.asyncFlush = asyncFlush;
     }
 
     public void setHeader(CortexHeader header) { this.header = header; }
+
+    /**
+     * Set the header, writing the given bytes verbatim rather than re-encoding it.  This keeps fields the header
+     * parser does not retain (such as the error rates) when copying a graph.
+     *
+     * @param header  the parsed header
+     * @param rawHeader  the header exactly as stored in the source graph
+     */
+    public void setHeader(CortexHeader header, byte[] rawHeader) {
+        this.header = header;
+        this.rawHeader = rawHeader;
+    }
+
     public CortexHeader getHeader() { return this.header; }
 
-    private void initialize() {
-        try {
-            fos = new FileOutputStream(cortexFile);
-            channel = fos.getChannel();
+    /**
+     * Encode a header in the version 6 Cortex graph format.
+     *
+     * @param header  the header
+     * @return  a buffer holding the encoded header, ready to be written
+     */
+    static ByteBuffer encodeHeader(CortexHeader header) {
+        int stringLengths = 0;
+        for (CortexColor c : header.getColors()) {
+            stringLengths += c.getSampleName().length() + c.getCleanedAgainstGraphName().length();
+        }
 
-            int stringLengths = 0;
-            for (CortexColor c : header.getColors()) {
-                stringLengths += c.getSampleName().length() + c.getCleanedAgainstGraphName().length();
-            }
+        ByteBuffer bb = ByteBuffer.allocateDirect(2 * (44 + header.getNumColors()*32 + stringLengths));
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        bb.clear();
 
-            ByteBuffer bb = ByteBuffer.allocateDirect(2 * (44 + header.getNumColors()*32 + stringLengths));
-            bb.order(ByteOrder.LITTLE_ENDIAN);
-            bb.clear();
+        bb.put("CORTEX".getBytes());
 
-            bb.put("CORTEX".getBytes());
+        bb.putInt(header.getVersion());
+        bb.putInt(header.getKmerSize());
+        bb.putInt(header.getKmerBits());
+        bb.putInt(header.getNumColors());
 
-            bb.putInt(header.getVersion());
-            bb.putInt(header.getKmerSize());
-            bb.putInt(header.getKmerBits());
-            bb.putInt(header.getNumColors());
+        for (int color = 0; color < header.getNumColors(); color++) {
+            int meanReadLength = header.getColor(color).getMeanReadLength();
+            bb.putInt(meanReadLength);
+        }
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                int meanReadLength = header.getColor(color).getMeanReadLength();
-                bb.putInt(meanReadLength);
-            }
+        for (int color = 0; color < header.getNumColors(); color++) {
+            long totalSequence = header.getColor(color).getTotalSequence();
+            bb.putLong(totalSequence);
+        }
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                long totalSequence = header.getColor(color).getTotalSequence();
-                bb.putLong(totalSequence);
-            }
+        for (int color = 0; color < header.getNumColors(); color++) {
+            String sampleName = header.getColor(color).getSampleName();
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                String sampleName = header.getColor(color).getSampleName();
+            bb.putInt(sampleName.length());
+            bb.put(sampleName.getBytes());
+        }
 
-                bb.putInt(sampleName.length());
-                bb.put(sampleName.getBytes());
-            }
+        for (int color = 0; color < header.getNumColors(); color++) {
+            // The Cortex ctx spec requires a 16-byte long double that specifies the error rate of the
+            // sequencing data.  However, 1. I don't know how this is calculated, and 2. there's no
+            // easy way of writing a long double in Java, and 3. it seems that McCortex always sets the
+            // error rate to 0.01.  Therefore, the following line encodes a 16-byte array that hard-codes
+            // the error rate of new graphs to the same value.  This ensures that a diff of a McCortex
+            // graph and a CortexJDK graph will return no differences.
+            byte[] errorRate = new byte[] { 0, (byte) 0xd8, (byte) 0xa3, (byte) 0x70, (byte) 0x3d, (byte) 0x0a, (byte) 0xd7, (byte) 0xa3, (byte) 0xf8, (byte) 0x3f, 0, 0, 0, 0, 0, 0 };
+            bb.put(errorRate);
+        }
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                // The Cortex ctx spec requires a 16-byte long double that specifies the error rate of the
-                // sequencing data.  However, 1. I don't know how this is calculated, and 2. there's no
-                // easy way of writing a long double in Java, and 3. it seems that McCortex always sets the
-                // error rate to 0.01.  Therefore, the following line encodes a 16-byte array that hard-codes
-                // the error rate of new graphs to the same value.  This ensures that a diff of a McCortex
-                // graph and a CortexJDK graph will return no differences.
-                byte[] errorRate = new byte[] { 0, (byte) 0xd8, (byte) 0xa3, (byte) 0x70, (byte) 0x3d, (byte) 0x0a, (byte) 0xd7, (byte) 0xa3, (byte) 0xf8, (byte) 0x3f, 0, 0, 0, 0, 0, 0 };
-                bb.put(errorRate);
-            }
+        for (int color = 0; color < header.getNumColors(); color++) {
+            bb.put((byte) (header.getColor(color).isTipClippingApplied() ? 1 : 0));
+            bb.put((byte) (header.getColor(color).isLowCovgSupernodesRemoved() ? 1 : 0));
+            bb.put((byte) (header.getColor(color).isLowCovgKmersRemoved() ? 1 : 0));
+            bb.put((byte) (header.getColor(color).isCleanedAgainstGraph() ? 1 : 0));
+            bb.putInt(header.getColor(color).getLowCovSupernodesThreshold());
+            bb.putInt(header.getColor(color).getLowCovKmerThreshold());
 
-            for (int color = 0; color < header.getNumColors(); color++) {
-                bb.put((byte) (header.getColor(color).isTipClippingApplied() ? 1 : 0));
-                bb.put((byte) (header.getColor(color).isLowCovgSupernodesRemoved() ? 1 : 0));
-                bb.put((byte) (header.getColor(color).isLowCovgKmersRemoved() ? 1 : 0));
-                bb.put((byte) (header.getColor(color).isCleanedAgainstGraph() ? 1 : 0));
-                bb.putInt(header.getColor(color).getLowCovSupernodesThreshold());
-                bb.putInt(header.getColor(color).getLowCovKmerThreshold());
+            String cleanedAgainst = header.getColor(color).getCleanedAgainstGraphName();
 
-                String cleanedAgainst = header.getColor(color).getCleanedAgainstGraphName();
+            bb.putInt(cleanedAgainst.length());
+            bb.put(cleanedAgainst.getBytes());
+        }
 
-                bb.putInt(cleanedAgainst.length());
-                bb.put(cleanedAgainst.getBytes());
-            }
+        bb.put("CORTEX".getBytes());
 
-            bb.put("CORTEX".getBytes());
+        bb.flip();
 
-            bb.flip();
+        return bb;
+    }
 
-            channel.write(bb);
+    private void initialize() {
+        try {
+            fos = new FileOutputStream(cortexFile);
+            channel = fos.getChannel();
+
+            ByteBuffer bb = rawHeader != null ? ByteBuffer.wrap(rawHeader) : encodeHeader(header);
+
+            writeFully(bb);
+
+            initializeBuffers();
         } catch (FileNotFoundException e) {
             throw new CortexJDKException("Unable to open file '" + cortexFile.getAbsolutePath() + "'", e);
         } catch (IOException e) {
@@ -103,43 +165,161 @@ public class CortexGraphWriter {
         }
     }
 
-    public void addRecord(CortexRecord record) {
-        if (fos == null) { initialize(); }
+    private void initializeBuffers() {
+        recordSize = 8*header.getKmerBits() + 5*header.getNumColors();
 
-        ByteBuffer bb = ByteBuffer.allocateDirect(8*header.getKmerBits() + header.getNumColors()*5);
-        bb.clear();
+        // Buffers hold a whole number of records, so a record is never split across two writes.
+        int capacity = Math.max(1, bufferSize / recordSize) * recordSize;
+
+        buffer = ByteBuffer.allocateDirect(capacity);
 
-        bb.order(ByteOrder.BIG_ENDIAN);
+        if (asyncFlush) {
+            freeBuffers = new ArrayBlockingQueue<>(NUM_BUFFERS);
+            fullBuffers = new ArrayBlockingQueue<>(NUM_BUFFERS + 1);
 
-        long[] binaryKmer = record.getBinaryKmer();
-        for (int i = 0; i < header.getKmerBits(); i++) {
-            bb.putLong(binaryKmer[i]);
+            for (int i = 1; i < NUM_BUFFERS; i++) {
+                freeBuffers.add(ByteBuffer.allocateDirect(capacity));
+            }
+
+            flusher = new Thread(this::flushBuffers, "CortexGraphWriter-" + cortexFile.getName());
+            flusher.setDaemon(true);
+            flusher.start();
         }
+    }
 
-        bb.order(ByteOrder.LITTLE_ENDIAN);
+    private void flushBuffers() {
+        try {
+            while (true) {
+                ByteBuffer bb = fullBuffers.take();
+
+                // An empty buffer signals that the writer is closing.
+                if (!bb.hasRemaining()) {
+                    break;
+                }
+
+                writeFully(bb);
+
+                bb.clear();
+                freeBuffers.put(bb);
+            }
+        } catch (Throwable e) {
+            flushError = e;
 
-        int[] coverage = record.getCoverages();
-        for (int c = 0; c < header.getNumColors(); c++) {
-            bb.putInt(coverage[c]);
+            // Keep returning buffers so the producer never blocks on a dead flusher.
+            freeBuffers.clear();
+            for (int i = 0; i < NUM_BUFFERS; i++) {
+                freeBuffers.offer(ByteBuffer.allocateDirect(buffer.capacity()));
+            }
         }
+    }
 
-        byte[] edges = record.getEdges();
-        for (int c = 0; c < header.getNumColors(); c++) {
-            bb.put(edges[c]);
+    private void writeFully(ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            channel.write(bb);
         }
+    }
 
-        bb.flip();
+    private void checkFlushError() {
+        if (flushError != null) {
+            throw new CortexJDKException("Unable to write records to file '" + cortexFile.getAbsolutePath() + "'", flushError);
+        }
+    }
 
-        try {
-            channel.write(bb);
-        } catch (IOException e) {
-            throw new CortexJDKException("Unable to write record to file '" + cortexFile.getAbsolutePath() + "'", e);
+    private void flush() {
+        buffer.flip();
+
+        if (!buffer.hasRemaining()) {
+            buffer.clear();
+            return;
+        }
+
+        if (asyncFlush) {
+            checkFlushError();
+
+            try {
+                fullBuffers.put(buffer);
+                buffer = freeBuffers.take();
+            } catch (InterruptedException e) {
+                throw new CortexJDKException("Interrupted while writing to file '" + cortexFile.getAbsolutePath() + "'", e);
+            }
+        } else {
+            try {
+                writeFully(buffer);
+            } catch (IOException e) {
+                throw new CortexJDKException("Unable to write records to file '" + cortexFile.getAbsolutePath() + "'", e);
+            }
+
+            buffer.clear();
+        }
+    }
+
+    public void addRecord(CortexRecord record) {
+        addRecord(record.getBinaryKmer(), record.getCoverages(), record.getEdges());
+    }
+
+    /**
+     * Add a record given as primitive arrays, avoiding the construction of a CortexRecord.
+     *
+     * @param binaryKmer  the binary kmer
+     * @param coverages  the coverage for each color
+     * @param edges  the edges for each color
+     */
+    public void addRecord(long[] binaryKmer, int[] coverages, byte[] edges) {
+        addRecords(binaryKmer, coverages, edges, 1);
+    }
+
+    /**
+     * Add many records at once from flat, record-major arrays: record i's kmer occupies
+     * binaryKmers[i*kmerBits .. (i+1)*kmerBits), and its coverages and edges occupy [i*numColors .. (i+1)*numColors)
+     * of their arrays.
+     *
+     * @param binaryKmers  the binary kmers
+     * @param coverages  the coverages
+     * @param edges  the edges
+     * @param numRecords  the number of records to add
+     */
+    public void addRecords(long[] binaryKmers, int[] coverages, byte[] edges, int numRecords) {
+        if (fos == null) { initialize(); }
+
+        int kmerBits = header.getKmerBits();
+        int numColors = header.getNumColors();
+
+        for (int r = 0; r < numRecords; r++) {
+            if (buffer.remaining() < recordSize) {
+                flush();
+            }
+
+            for (int i = 0; i < kmerBits; i++) {
+                buffer.putLong(binaryKmers[r*kmerBits + i]);
+            }
+
+            // Coverages are stored little-endian; the buffer stays big-endian for the kmer words.
+            for (int c = 0; c < numColors; c++) {
+                buffer.putInt(Integer.reverseBytes(coverages[r*numColors + c]));
+            }
+
+            for (int c = 0; c < numColors; c++) {
+                buffer.put(edges[r*numColors + c]);
+            }
         }
     }
 
     public void close() {
         if (fos == null) { initialize(); }
 
+        flush();
+
+        if (asyncFlush) {
+            try {
+                fullBuffers.put(ByteBuffer.allocate(0));
+                flusher.join();
+            } catch (InterruptedException e) {
+                throw new CortexJDKException("Interrupted while closing '" + cortexFile.getAbsolutePath() + "'", e);
+            }
+
+            checkFlushError();
+        }
+
         try {
             channel.close();
             fos.close();
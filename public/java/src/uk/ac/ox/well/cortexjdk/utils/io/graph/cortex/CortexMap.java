@@ -3,24 +3,32 @@ package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
 import uk.ac.ox.well.cortexjdk.Main;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
-import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeter;
 import uk.ac.ox.well.cortexjdk.utils.progress.ProgressMeterFactory;
 
 import java.io.File;
 import java.util.*;
 
+/**
+ * A Cortex graph pre-loaded into an off-heap hash table, for fast random lookups.  Records are stored inline in
+ * direct memory (see {@link CortexRecordTable}) rather than as objects, so large graphs neither exhaust the Java
+ * heap nor add to garbage collection work.
+ */
 public class CortexMap implements DeBruijnGraph {
     private CortexGraph graph;
 
-    private Map<CortexBinaryKmer, CortexRecord> recs = new HashMap<>();
+    private CortexRecordTable recs;
+    private ThreadLocal<CortexRecordView> lookupView;
 
     public CortexMap(String cortexFilePath) { loadGraph(new File(cortexFilePath)); }
     public CortexMap(File cortexFile) { loadGraph(cortexFile); }
 
     private void loadGraph(File cortexFile) {
         this.graph = new CortexGraph(cortexFile);
+        this.recs = new CortexRecordTable(graph.getKmerSize(), graph.getKmerBits(), graph.getNumColors(), graph.getNumRecords());
+        this.lookupView = ThreadLocal.withInitial(recs::newRecordView);
 
         ProgressMeter pm = new ProgressMeterFactory()
                 .header("Pre-loading graph...")
@@ -28,11 +36,28 @@ public class CortexMap implements DeBruijnGraph {
                 .maxRecord(this.graph.getNumRecords())
                 .make(Main.getLogger());
 
-        for (CortexRecord cr : graph) {
-            recs.put(cr.getCortexBinaryKmer(), cr);
+        graph.scan(view -> {
+            recs.put(view);
 
             pm.update();
+        });
+    }
+
+    public CortexRecordView newRecordView() { return recs.newRecordView(); }
+
+    /**
+     * Position a view over the stored record for a kmer, without copying it.
+     *
+     * @param pk  the kmer, in either orientation
+     * @param view  a view from {@link #newRecordView()}
+     * @return  the view, or null if the kmer is not in the graph
+     */
+    public CortexRecordView findRecordView(PackedKmer pk, CortexRecordView view) {
+        if (pk.length() != getKmerSize()) {
+            return null;
         }
+
+        return recs.find(pk.canonical().toBinaryKmer(), view);
     }
 
     @Override
@@ -75,28 +100,39 @@ public class CortexMap implements DeBruijnGraph {
         return graph.getRecord(i);
     }
 
-    private CortexRecord get(CortexBinaryKmer cbk) {
-        return recs.getOrDefault(cbk, null);
+    private CortexRecord get(byte[] bk) {
+        if (bk.length != getKmerSize() || !PackedKmer.isPackable(bk)) {
+            return null;
+        }
+
+        return findRecord(PackedKmer.fromBytes(bk));
     }
 
     @Override
     public CortexRecord findRecord(byte[] bk) {
-        return get(new CortexBinaryKmer(bk));
+        return get(bk);
     }
 
     @Override
     public CortexRecord findRecord(CortexByteKmer bk) {
-        return get(new CortexBinaryKmer(bk.getKmer()));
+        return get(bk.getKmer());
     }
 
     @Override
     public CortexRecord findRecord(CanonicalKmer ck) {
-        return get(new CortexBinaryKmer(ck.getKmerAsBytes()));
+        return get(ck.getKmerAsBytes());
     }
 
     @Override
     public CortexRecord findRecord(String sk) {
-        return get(new CortexBinaryKmer(sk.getBytes()));
+        return get(sk.getBytes());
+    }
+
+    @Override
+    public CortexRecord findRecord(PackedKmer pk) {
+        CortexRecordView view = findRecordView(pk, lookupView.get());
+
+        return view == null ? null : view.toRecord();
     }
 
     @Override
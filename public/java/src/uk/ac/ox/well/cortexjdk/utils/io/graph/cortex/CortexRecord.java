@@ -4,6 +4,7 @@ import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
 
 import java.io.Serializable;
 import java.nio.ByteBuffer;
@@ -16,8 +17,8 @@ public class CortexRecord implements Comparable<CortexRecord>, Serializable {
     private int[] coverages;
     private byte[] edges;
 
-    private transient byte[][] lazyLoadedEdgesTable = null;
-    private transient String[] lazyLoadedEdgeStrings = null;
+    private transient volatile byte[][] lazyLoadedEdgesTable = null;
+    private transient volatile String[] lazyLoadedEdgeStrings = null;
 
     public CortexRecord(long[] binaryKmer, int[] coverages, byte[] edges, int kmerSize, int kmerBits) {
         this.binaryKmer = new long[binaryKmer.length];
@@ -32,6 +33,20 @@ public class CortexRecord implements Comparable<CortexRecord>, Serializable {
         this.kmerBits = kmerBits;
     }
 
+    private CortexRecord() {}
+
+    // Takes ownership of the supplied arrays instead of copying them; only for callers that just allocated them.
+    static CortexRecord adopt(long[] binaryKmer, int[] coverages, byte[] edges, int kmerSize, int kmerBits) {
+        CortexRecord cr = new CortexRecord();
+        cr.binaryKmer = binaryKmer;
+        cr.coverages = coverages;
+        cr.edges = edges;
+        cr.kmerSize = kmerSize;
+        cr.kmerBits = kmerBits;
+
+        return cr;
+    }
+
     public CortexRecord(String sk, List<Integer> coverageList, List<Set<String>> inEdgesList, List<Set<String>> outEdgesList) {
         if (coverageList.size() != inEdgesList.size() && coverageList.size() != outEdgesList.size()) {
             throw new CortexJDKException("Coverage, in-edge, and prefix-edge lists must be equal length.");
@@ -108,6 +123,7 @@ public class CortexRecord implements Comparable<CortexRecord>, Serializable {
     public long[] getBinaryKmer() { return this.binaryKmer; }
     public byte[] getKmerAsBytes() { return decodeBinaryKmer(binaryKmer, kmerSize, kmerBits); }
     public CortexBinaryKmer getCortexBinaryKmer() { return new CortexBinaryKmer(this.binaryKmer); }
+    public PackedKmer getPackedKmer() { return PackedKmer.fromBinaryKmer(binaryKmer, kmerSize); }
     public CanonicalKmer getCanonicalKmer() { return new CanonicalKmer(getKmerAsBytes(), true); }
     public String getKmerAsString() { return getCanonicalKmer().getKmerAsString(); }
     public CortexByteKmer getKmerAsByteKmer() { return new CortexByteKmer(getKmerAsBytes()); }
@@ -119,7 +135,9 @@ public class CortexRecord implements Comparable<CortexRecord>, Serializable {
             int numColors = edges.length;
             byte[] str = {'a', 'c', 'g', 't', 'A', 'C', 'G', 'T'};
 
-            lazyLoadedEdgesTable = new byte[numColors][8];
+            // Fill a local table and publish it when complete, so threads sharing a cached record never see a
+            // partially built table.
+            byte[][] edgesTable = new byte[numColors][8];
             for (int color = 0; color < numColors; color++) {
                 byte edge = edges[color];
 
@@ -128,12 +146,14 @@ public class CortexRecord implements Comparable<CortexRecord>, Serializable {
 
                 for (int i = 0; i < 4; i++) {
                     int leftEdge = (left & (0x1 << (3 - i)));
-                    lazyLoadedEdgesTable[color][i] = (byte) ((leftEdge != 0) ? str[i] : '.');
+                    edgesTable[color][i] = (byte) ((leftEdge != 0) ? str[i] : '.');
 
                     int rightEdge = (right & (0x1 << i));
-                    lazyLoadedEdgesTable[color][i + 4] = (byte) ((rightEdge != 0) ? str[i + 4] : '.');
+                    edgesTable[color][i + 4] = (byte) ((rightEdge != 0) ? str[i + 4] : '.');
                 }
             }
+
+            lazyLoadedEdgesTable = edgesTable;
         }
 
         return lazyLoadedEdgesTable;
@@ -143,11 +163,13 @@ public class CortexRecord implements Comparable<CortexRecord>, Serializable {
         byte[][] edgesTable = getEdgesAsBytes();
 
         if (lazyLoadedEdgeStrings == null) {
-            lazyLoadedEdgeStrings = new String[edges.length];
+            String[] edgeStrings = new String[edges.length];
 
             for (int i = 0; i < edges.length; i++) {
-                lazyLoadedEdgeStrings[i] = new String(edgesTable[i]);
+                edgeStrings[i] = new String(edgesTable[i]);
             }
+
+            lazyLoadedEdgeStrings = edgeStrings;
         }
 
         return lazyLoadedEdgeStrings;
@@ -310,6 +332,26 @@ public class CortexRecord implements Comparable<CortexRecord>, Serializable {
         return (int) Math.ceil(((float) kmerSize)/32.0);
     }
 
+    /**
+     * Compare two binary kmers in the order Cortex graphs are sorted in (the lexicographic order of the kmer
+     * strings).
+     *
+     * @param a  the first binary kmer
+     * @param b  the second binary kmer
+     * @return  a negative value, zero, or a positive value as a sorts before, equal to, or after b
+     */
+    public static int compareBinaryKmers(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int c = Long.compareUnsigned(Long.reverseBytes(a[i]), Long.reverseBytes(b[i]));
+
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return 0;
+    }
+
     public static long[] encodeBinaryKmer(byte[] kmer) {
         int numBits = getKmerBits(kmer.length);
         long[] binaryKmer = new long[numBits];
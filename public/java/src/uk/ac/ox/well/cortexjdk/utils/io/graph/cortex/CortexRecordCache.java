@@ -0,0 +1,33 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import java.util.function.LongFunction;
+
+/**
+ * A cache of decoded Cortex records, keyed on a packed kmer.  For kmers of up to 32 bases the key is the binary
+ * kmer itself; for longer kmers it is a 64-bit hash of the binary kmer, so callers must check that a returned
+ * record really holds the kmer they asked for.  Implementations must be safe for concurrent use.
+ */
+public interface CortexRecordCache {
+    /**
+     * Get a record from the cache, loading (and caching) it on a miss.
+     *
+     * @param key  the packed kmer
+     * @param loader  loads the record for a key, returning null if there is no such record
+     * @return  the record, or null if the loader found nothing
+     */
+    CortexRecord get(long key, LongFunction<CortexRecord> loader);
+
+    /**
+     * Get a record from the cache without loading it.
+     *
+     * @param key  the packed kmer
+     * @return  the cached record, or null if it is not cached
+     */
+    CortexRecord getIfPresent(long key);
+
+    void put(long key, CortexRecord record);
+
+    void clear();
+
+    CortexRecordCacheStats getStats();
+}
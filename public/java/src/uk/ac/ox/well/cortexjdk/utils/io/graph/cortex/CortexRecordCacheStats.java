@@ -0,0 +1,43 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+/**
+ * A snapshot of the counters of a record cache.
+ */
+public class CortexRecordCacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long loadTimeNanos;
+    private final long sizeInBytes;
+    private final long budgetInBytes;
+
+    public CortexRecordCacheStats(long hits, long misses, long evictions, long loadTimeNanos, long sizeInBytes, long budgetInBytes) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.loadTimeNanos = loadTimeNanos;
+        this.sizeInBytes = sizeInBytes;
+        this.budgetInBytes = budgetInBytes;
+    }
+
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public long getEvictions() { return evictions; }
+    public long getLoadTimeNanos() { return loadTimeNanos; }
+    public long getSizeInBytes() { return sizeInBytes; }
+    public long getBudgetInBytes() { return budgetInBytes; }
+
+    public double getHitRate() {
+        return hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+    }
+
+    public double getMeanLoadTimeNanos() {
+        return misses == 0 ? 0.0 : (double) loadTimeNanos / misses;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d hitRate=%.3f evictions=%d meanLoadTime=%.0fns size=%d/%d bytes",
+                hits, misses, getHitRate(), evictions, getMeanLoadTimeNanos(), sizeInBytes, budgetInBytes);
+    }
+}
@@ -0,0 +1,180 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An off-heap, open-addressing hash table of Cortex records.  Each slot holds one record laid out exactly as in a
+ * .ctx file (kmer words, then little-endian coverages, then edges), so a {@link CortexRecordView} can read a slot
+ * in place, and the only per-record cost on the Java heap is one occupancy bit.  Slots live in direct buffers of
+ * up to 1GB each, so tables are not limited by the 2GB size of a single buffer.
+ *
+ * Collisions are resolved by linear probing.  The table has a fixed capacity chosen up front and does not support
+ * removal.  Lookups may run concurrently with each other, but not with insertions.
+ */
+public class CortexRecordTable {
+    public static final float DEFAULT_LOAD_FACTOR = 0.7f;
+
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int kmerSize;
+    private final int kmerBits;
+    private final int numColors;
+    private final int recordSize;
+
+    private final long capacity;
+    private final long mask;
+    private final int chunkShift;
+    private final long chunkMask;
+    private final ByteBuffer[] chunks;
+    private final long[] occupied;
+
+    private long size = 0;
+
+    /**
+     * @param kmerSize  the kmer size
+     * @param kmerBits  the number of 64-bit words per kmer
+     * @param numColors  the number of colors per record
+     * @param expectedRecords  the number of records the table must hold
+     * @param loadFactor  the maximum fraction of slots to fill
+     */
+    public CortexRecordTable(int kmerSize, int kmerBits, int numColors, long expectedRecords, float loadFactor) {
+        this.kmerSize = kmerSize;
+        this.kmerBits = kmerBits;
+        this.numColors = numColors;
+        this.recordSize = 8*kmerBits + 5*numColors;
+
+        this.capacity = Math.max(2, HashCommon.bigArraySize(Math.max(1, expectedRecords), loadFactor));
+        this.mask = capacity - 1;
+
+        long slotsPerChunk = Long.highestOneBit(Math.max(1, MAX_CHUNK_BYTES / recordSize));
+        slotsPerChunk = Math.min(slotsPerChunk, capacity);
+        this.chunkShift = Long.numberOfTrailingZeros(slotsPerChunk);
+        this.chunkMask = slotsPerChunk - 1;
+
+        long numChunks = capacity >>> chunkShift;
+        if (numChunks > Integer.MAX_VALUE || (capacity >>> 6) >= Integer.MAX_VALUE) {
+            throw new CortexJDKException("Too many records for an in-memory table (" + expectedRecords + ")");
+        }
+
+        this.chunks = new ByteBuffer[(int) numChunks];
+        try {
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = ByteBuffer.allocateDirect((int) (slotsPerChunk*recordSize));
+            }
+        } catch (OutOfMemoryError e) {
+            throw new CortexJDKException("Unable to allocate " + (capacity*recordSize >> 20) + " MB of off-heap memory for " + expectedRecords + " records (try raising -XX:MaxDirectMemorySize)", e);
+        }
+
+        this.occupied = new long[(int) Math.max(1, capacity >>> 6)];
+    }
+
+    public CortexRecordTable(int kmerSize, int kmerBits, int numColors, long expectedRecords) {
+        this(kmerSize, kmerBits, numColors, expectedRecords, DEFAULT_LOAD_FACTOR);
+    }
+
+    public long size() { return size; }
+
+    public long getCapacity() { return capacity; }
+
+    public int getNumColors() { return numColors; }
+
+    /**
+     * Create a view that can be positioned over this table's slots.  Views are not thread-safe; use one per thread.
+     *
+     * @return  a new view
+     */
+    public CortexRecordView newRecordView() {
+        return new CortexRecordView(kmerSize, kmerBits, numColors);
+    }
+
+    private static long hash(long[] binaryKmer) {
+        return binaryKmer.length == 1 ? HashCommon.mix(binaryKmer[0]) : CortexGraphMinimalPerfectHash.hash(binaryKmer);
+    }
+
+    private ByteBuffer chunk(long slot) { return chunks[(int) (slot >>> chunkShift)]; }
+
+    private int offset(long slot) { return (int) (slot & chunkMask)*recordSize; }
+
+    private boolean isOccupied(long slot) { return (occupied[(int) (slot >>> 6)] & (1L << (slot & 63))) != 0; }
+
+    private boolean kmerEquals(long slot, long[] binaryKmer) {
+        ByteBuffer b = chunk(slot);
+        int o = offset(slot);
+
+        for (int w = 0; w < kmerBits; w++) {
+            if (b.getLong(o + 8*w) != binaryKmer[w]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Find the slot holding a kmer, or the empty slot where it would go.
+     */
+    private long probe(long[] binaryKmer) {
+        long slot = hash(binaryKmer) & mask;
+
+        while (isOccupied(slot) && !kmerEquals(slot, binaryKmer)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    /**
+     * Copy a record into the table, replacing any record with the same kmer.
+     *
+     * @param view  the record to store; it must have this table's number of colors
+     */
+    public void put(CortexRecordView view) {
+        long[] binaryKmer = view.getBinaryKmer();
+        long slot = probe(binaryKmer);
+
+        if (!isOccupied(slot)) {
+            if (size + 1 > capacity - 1) {
+                throw new CortexJDKException("Record table is full (" + capacity + " slots)");
+            }
+
+            occupied[(int) (slot >>> 6)] |= 1L << (slot & 63);
+            size++;
+        }
+
+        ByteBuffer b = chunk(slot);
+        int o = offset(slot);
+
+        for (int w = 0; w < kmerBits; w++) {
+            b.putLong(o + 8*w, binaryKmer[w]);
+        }
+
+        for (int c = 0; c < numColors; c++) {
+            b.putInt(o + 8*kmerBits + 4*c, Integer.reverseBytes(view.getCoverage(c)));
+            b.put(o + 8*kmerBits + 4*numColors + c, view.getEdge(c));
+        }
+    }
+
+    /**
+     * Position a view over the record for a canonical binary kmer, without copying it.
+     *
+     * @param binaryKmer  the canonical binary kmer
+     * @param view  a view from {@link #newRecordView()}
+     * @return  the view, or null if the kmer is not in the table
+     */
+    public CortexRecordView find(long[] binaryKmer, CortexRecordView view) {
+        if (binaryKmer.length != kmerBits) {
+            return null;
+        }
+
+        long slot = probe(binaryKmer);
+
+        return isOccupied(slot) ? view.wrap(chunk(slot), offset(slot), slot) : null;
+    }
+
+    public boolean contains(long[] binaryKmer) {
+        return binaryKmer.length == kmerBits && isOccupied(probe(binaryKmer));
+    }
+}
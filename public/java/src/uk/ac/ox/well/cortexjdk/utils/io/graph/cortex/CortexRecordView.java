@@ -0,0 +1,145 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable, zero-copy view of a single record in a memory-mapped Cortex graph.  Kmer words, coverages and
+ * edges are read directly from the underlying buffer at the record's offset, so repositioning the view over a
+ * new record allocates nothing.  Call {@link #toRecord()} to materialise an independent copy.
+ *
+ * The view is only valid until it is repositioned; callers that need to keep a record must copy it.
+ *
+ * If the graph was opened with a color projection, the view exposes only the projected colors (renumbered from
+ * zero) and never reads the others.
+ */
+public class CortexRecordView {
+    private final int kmerSize;
+    private final int kmerBits;
+    private final int numColors;
+    private final int fileNumColors;
+    private final int[] colorMap;
+
+    private ByteBuffer buffer;
+    private int offset;
+    private long index = -1;
+
+    CortexRecordView(int kmerSize, int kmerBits, int numColors) {
+        this(kmerSize, kmerBits, numColors, null);
+    }
+
+    /**
+     * @param kmerSize  the kmer size
+     * @param kmerBits  the number of 64-bit words per kmer
+     * @param fileNumColors  the number of colors stored in each record on disk
+     * @param colorMap  the on-disk color for each exposed color, or null to expose every color
+     */
+    CortexRecordView(int kmerSize, int kmerBits, int fileNumColors, int[] colorMap) {
+        this.kmerSize = kmerSize;
+        this.kmerBits = kmerBits;
+        this.fileNumColors = fileNumColors;
+        this.colorMap = colorMap;
+        this.numColors = colorMap == null ? fileNumColors : colorMap.length;
+    }
+
+    CortexRecordView wrap(ByteBuffer buffer, int offset, long index) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.index = index;
+
+        return this;
+    }
+
+    public long getIndex() { return index; }
+
+    public int getKmerSize() { return kmerSize; }
+    public int getKmerBits() { return kmerBits; }
+    public int getNumColors() { return numColors; }
+
+    public long getBinaryKmerWord(int word) {
+        return buffer.getLong(offset + 8*word);
+    }
+
+    public void getBinaryKmer(long[] binaryKmer) {
+        for (int i = 0; i < kmerBits; i++) {
+            binaryKmer[i] = getBinaryKmerWord(i);
+        }
+    }
+
+    public long[] getBinaryKmer() {
+        long[] binaryKmer = new long[kmerBits];
+        getBinaryKmer(binaryKmer);
+
+        return binaryKmer;
+    }
+
+    /**
+     * Compare this record's kmer to a binary kmer in the graph's sort order (i.e. the lexicographic order of the
+     * kmer strings), without decoding either kmer.
+     *
+     * @param binaryKmer  the binary kmer to compare against
+     * @return  a negative value, zero, or a positive value as this kmer sorts before, equal to, or after the other
+     */
+    public int compareKmer(long[] binaryKmer) {
+        for (int i = 0; i < kmerBits; i++) {
+            int c = Long.compareUnsigned(Long.reverseBytes(getBinaryKmerWord(i)), Long.reverseBytes(binaryKmer[i]));
+
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return 0;
+    }
+
+    public int getCoverage(int color) {
+        // Coverages are stored little-endian, but the mapped buffer is read big-endian like the kmer words.
+        int fileColor = colorMap == null ? color : colorMap[color];
+
+        return Integer.reverseBytes(buffer.getInt(offset + 8*kmerBits + 4*fileColor));
+    }
+
+    public int[] getCoverages() {
+        int[] coverages = new int[numColors];
+        for (int c = 0; c < numColors; c++) {
+            coverages[c] = getCoverage(c);
+        }
+
+        return coverages;
+    }
+
+    public byte getEdge(int color) {
+        int fileColor = colorMap == null ? color : colorMap[color];
+
+        return buffer.get(offset + 8*kmerBits + 4*fileNumColors + fileColor);
+    }
+
+    public byte[] getEdges() {
+        byte[] edges = new byte[numColors];
+        for (int c = 0; c < numColors; c++) {
+            edges[c] = getEdge(c);
+        }
+
+        return edges;
+    }
+
+    public int getInDegree(int color) { return Integer.bitCount((getEdge(color) >> 4) & 0xf); }
+
+    public int getOutDegree(int color) { return Integer.bitCount(getEdge(color) & 0xf); }
+
+    public byte[] getKmerAsBytes() { return CortexRecord.decodeBinaryKmer(getBinaryKmer(), kmerSize, kmerBits); }
+
+    public String getKmerAsString() { return new String(getKmerAsBytes()); }
+
+    public PackedKmer getPackedKmer() { return PackedKmer.fromBinaryKmer(getBinaryKmer(), kmerSize); }
+
+    public CortexRecord toRecord() {
+        return CortexRecord.adopt(getBinaryKmer(), getCoverages(), getEdges(), kmerSize, kmerBits);
+    }
+
+    @Override
+    public String toString() {
+        return toRecord().toString();
+    }
+}
@@ -0,0 +1,177 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * A long-keyed LRU cache bounded by an approximate byte budget and split into independently locked stripes, so
+ * lookups from different threads rarely contend.  Each stripe is a primitive-keyed linked hash map, so keys are
+ * never boxed, and gets an equal share of the budget.  Entries are counted against the budget at the size given by
+ * a weigher.  Values are loaded outside the stripe lock; if two threads miss on the same key at once, both load it
+ * and the second insertion wins.
+ *
+ * @param <V>  the value type
+ */
+public class StripedCache<V> {
+    /**
+     * Overhead of one map entry: key, value reference and the two link fields of the linked map, plus slack for the
+     * table's load factor.  Weighers should include it.
+     */
+    public static final long ENTRY_OVERHEAD = 8 + 8 + 16 + 16;
+
+    public static final long OBJECT_HEADER = 16;
+    public static final long ARRAY_HEADER = 16;
+
+    private final Stripe<V>[] stripes;
+    private final int stripeMask;
+    private final long budgetInBytes;
+    private final long budgetPerStripe;
+    private final ToLongFunction<V> weigher;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder loadTimeNanos = new LongAdder();
+
+    private static class Stripe<V> {
+        private final Long2ObjectLinkedOpenHashMap<V> map = new Long2ObjectLinkedOpenHashMap<>();
+        private long sizeInBytes = 0;
+    }
+
+    /**
+     * @param budgetInBytes  the memory budget, in bytes (0 disables caching)
+     * @param weigher  the approximate heap footprint of an entry, in bytes
+     */
+    public StripedCache(long budgetInBytes, ToLongFunction<V> weigher) {
+        this(budgetInBytes, defaultNumStripes(), weigher);
+    }
+
+    /**
+     * @param budgetInBytes  the memory budget, in bytes (0 disables caching)
+     * @param numStripes  the number of stripes (rounded down to a power of two)
+     * @param weigher  the approximate heap footprint of an entry, in bytes
+     */
+    @SuppressWarnings("unchecked")
+    public StripedCache(long budgetInBytes, int numStripes, ToLongFunction<V> weigher) {
+        int n = Integer.highestOneBit(Math.max(1, numStripes));
+
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe<>();
+        }
+
+        this.stripeMask = n - 1;
+        this.budgetInBytes = Math.max(0, budgetInBytes);
+        this.budgetPerStripe = this.budgetInBytes / n;
+        this.weigher = weigher;
+    }
+
+    public static int defaultNumStripes() {
+        return Math.min(64, Integer.highestOneBit(4*Runtime.getRuntime().availableProcessors()));
+    }
+
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    private Stripe<V> stripe(long key) {
+        return stripes[(int) (HashCommon.mix(key) >>> 32) & stripeMask];
+    }
+
+    /**
+     * Get a value from the cache, loading (and caching) it on a miss.
+     *
+     * @param key  the key
+     * @param loader  loads the value for a key, returning null if there is no such value
+     * @return  the value, or null if the loader found nothing
+     */
+    public V get(long key, LongFunction<V> loader) {
+        V value = getIfPresent(key);
+        if (value != null) {
+            return value;
+        }
+
+        long start = System.nanoTime();
+        value = loader.apply(key);
+        loadTimeNanos.add(System.nanoTime() - start);
+        misses.increment();
+
+        if (value != null) {
+            put(key, value);
+        }
+
+        return value;
+    }
+
+    /**
+     * Get a value from the cache without loading it.
+     *
+     * @param key  the key
+     * @return  the cached value, or null if it is not cached
+     */
+    public V getIfPresent(long key) {
+        if (budgetPerStripe == 0) {
+            return null;
+        }
+
+        Stripe<V> s = stripe(key);
+        V value;
+
+        synchronized (s) {
+            value = s.map.getAndMoveToLast(key);
+        }
+
+        if (value != null) {
+            hits.increment();
+        }
+
+        return value;
+    }
+
+    public void put(long key, V value) {
+        if (budgetPerStripe == 0) {
+            return;
+        }
+
+        long weight = weigher.applyAsLong(value);
+        Stripe<V> s = stripe(key);
+
+        synchronized (s) {
+            V previous = s.map.putAndMoveToLast(key, value);
+
+            s.sizeInBytes += weight;
+            if (previous != null) {
+                s.sizeInBytes -= weigher.applyAsLong(previous);
+            }
+
+            while (s.sizeInBytes > budgetPerStripe && !s.map.isEmpty()) {
+                s.sizeInBytes -= weigher.applyAsLong(s.map.removeFirst());
+                evictions.increment();
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe<V> s : stripes) {
+            synchronized (s) {
+                s.map.clear();
+                s.sizeInBytes = 0;
+            }
+        }
+    }
+
+    public CortexRecordCacheStats getStats() {
+        long size = 0;
+        for (Stripe<V> s : stripes) {
+            synchronized (s) {
+                size += s.sizeInBytes;
+            }
+        }
+
+        return new CortexRecordCacheStats(hits.sum(), misses.sum(), evictions.sum(), loadTimeNanos.sum(), size, budgetInBytes);
+    }
+}
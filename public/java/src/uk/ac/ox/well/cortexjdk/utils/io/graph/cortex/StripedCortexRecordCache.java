@@ -0,0 +1,31 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.cortex;
+
+/**
+ * The default record cache: a {@link StripedCache} of decoded records, each counted at the estimated footprint of a
+ * record of the graph's kmer size and color count.
+ */
+public class StripedCortexRecordCache extends StripedCache<CortexRecord> implements CortexRecordCache {
+    public StripedCortexRecordCache(long budgetInBytes, int kmerBits, int numColors) {
+        this(budgetInBytes, estimateRecordBytes(kmerBits, numColors), defaultNumStripes());
+    }
+
+    public StripedCortexRecordCache(long budgetInBytes, long bytesPerRecord, int numStripes) {
+        super(budgetInBytes, numStripes, cr -> bytesPerRecord);
+    }
+
+    /**
+     * Estimate the heap footprint of one cached record (the record object, its three arrays and the cache entry).
+     *
+     * @param kmerBits  the number of 64-bit words per kmer
+     * @param numColors  the number of colors per record
+     * @return  the approximate number of bytes per cached record
+     */
+    public static long estimateRecordBytes(int kmerBits, int numColors) {
+        long record = OBJECT_HEADER + 2*4 + 5*8;
+        long kmer = ARRAY_HEADER + 8L*kmerBits;
+        long coverages = ARRAY_HEADER + 4L*numColors;
+        long edges = ARRAY_HEADER + numColors;
+
+        return ENTRY_OVERHEAD + record + align(kmer) + align(coverages) + align(edges);
+    }
+}
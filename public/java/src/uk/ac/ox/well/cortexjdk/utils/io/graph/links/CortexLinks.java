@@ -3,13 +3,21 @@ package uk.ac.ox.well.cortexjdk.utils.io.graph.links;
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.ConnectivityAnnotations;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.server.GraphServerProtocol;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.server.RemoteLinks;
 
 import java.io.File;
 
 public class CortexLinks implements ConnectivityAnnotations {
     ConnectivityAnnotations links;
 
-    public CortexLinks(String linksPath) { initialize(new File(linksPath)); }
+    public CortexLinks(String linksPath) {
+        if (GraphServerProtocol.isServerUri(linksPath)) {
+            links = new RemoteLinks(linksPath);
+        } else {
+            initialize(new File(linksPath));
+        }
+    }
 
     public CortexLinks(File linksFile) { initialize(linksFile); }
 
@@ -24,6 +32,18 @@ public class CortexLinks implements ConnectivityAnnotations {
         }
     }
 
+    /**
+     * Set the cache budgets for indexed links files.  Other links sources are held in memory and are unaffected.
+     *
+     * @param blockCacheMb  the memory budget for inflated blocks, in megabytes
+     * @param recordCacheMb  the memory budget for decoded records, in megabytes
+     */
+    public void setCacheBudgets(long blockCacheMb, long recordCacheMb) {
+        if (links instanceof CortexLinksRandomAccess) {
+            ((CortexLinksRandomAccess) links).setCacheBudgets(blockCacheMb * 1024L * 1024L, recordCacheMb * 1024L * 1024L);
+        }
+    }
+
     @Override
     public File getFile() { return links.getFile(); }
 
@@ -47,6 +67,9 @@ public class CortexLinks implements ConnectivityAnnotations {
         return links.get(key);
     }
 
+    @Override
+    public CortexLinksBinaryRecord getBinaryRecord(Object key) { return links.getBinaryRecord(key); }
+
     @Override
     public CortexHeader getHeader() {
         return links.getHeader();
@@ -0,0 +1,148 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.links;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts links as reads are threaded through a graph.  Links are keyed by their canonical anchor kmer, orientation
+ * and junction choices, and each distinct link keeps a coverage count.  The table is split into independently
+ * locked shards (chosen by kmer hash) so many threading workers can add links at once; shards can then be turned
+ * into records independently, e.g. on the same pool.
+ */
+public class CortexLinksAccumulator {
+    private final int kmerSize;
+    private final Map<CortexBinaryKmer, Map<String, int[]>>[] shards;
+
+    /**
+     * @param kmerSize  the kmer size
+     * @param numShards  the number of independently locked shards (rounded up to a power of two)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public CortexLinksAccumulator(int kmerSize, int numShards) {
+        int n = Integer.highestOneBit(Math.max(1, 2*numShards - 1));
+
+        this.kmerSize = kmerSize;
+        this.shards = new Map[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new HashMap<>();
+        }
+    }
+
+    public CortexLinksAccumulator(int kmerSize) {
+        this(kmerSize, 8*Runtime.getRuntime().availableProcessors());
+    }
+
+    public int getNumShards() { return shards.length; }
+
+    private Map<CortexBinaryKmer, Map<String, int[]>> shard(CortexBinaryKmer cbk) {
+        return shards[HashCommon.mix(cbk.hashCode()) & (shards.length - 1)];
+    }
+
+    /**
+     * Count one observation of a link.  Safe to call from several threads at once.
+     *
+     * @param binaryKmer  the canonical binary kmer the link is anchored at
+     * @param isForward  whether the link leaves the kmer in its canonical orientation
+     * @param numKmers  the number of kmers from the anchor to the last junction
+     * @param junctions  the junction choices
+     */
+    public void add(long[] binaryKmer, boolean isForward, int numKmers, String junctions) {
+        CortexBinaryKmer cbk = new CortexBinaryKmer(binaryKmer);
+        String key = (isForward ? "F" : "R") + junctions;
+
+        Map<CortexBinaryKmer, Map<String, int[]>> shard = shard(cbk);
+
+        synchronized (shard) {
+            int[] stats = shard.computeIfAbsent(cbk, k -> new HashMap<>()).computeIfAbsent(key, k -> new int[] { numKmers, 0 });
+            stats[1]++;
+        }
+    }
+
+    /**
+     * @param shard  the shard index
+     * @return  the shard's anchor kmers
+     */
+    public List<CortexBinaryKmer> getKmers(int shard) {
+        synchronized (shards[shard]) {
+            return new ArrayList<>(shards[shard].keySet());
+        }
+    }
+
+    /**
+     * Build the single-color record for a kmer in a shard.
+     *
+     * @param shard  the shard index
+     * @param cbk  the anchor kmer
+     * @return  the record, or null if no links are anchored at the kmer
+     */
+    public CortexLinksRecord getRecord(int shard, CortexBinaryKmer cbk) {
+        Map<String, int[]> links;
+
+        synchronized (shards[shard]) {
+            links = shards[shard].get(cbk);
+        }
+
+        if (links == null) {
+            return null;
+        }
+
+        List<CortexJunctionsRecord> cjs = new ArrayList<>(links.size());
+        for (Map.Entry<String, int[]> e : links.entrySet()) {
+            String junctions = e.getKey().substring(1);
+
+            cjs.add(new CortexJunctionsRecord(e.getKey().charAt(0) == 'F', e.getValue()[0], junctions.length(), new int[] { e.getValue()[1] }, junctions));
+        }
+
+        String kmer = new String(CortexRecord.decodeBinaryKmer(cbk.getBinaryKmer(), kmerSize, CortexRecord.getKmerBits(kmerSize)));
+
+        return new CortexLinksRecord(kmer, cjs);
+    }
+
+    public long getNumKmers() {
+        long n = 0;
+        for (Map<CortexBinaryKmer, Map<String, int[]>> shard : shards) {
+            synchronized (shard) {
+                n += shard.size();
+            }
+        }
+
+        return n;
+    }
+
+    public long getNumLinks() {
+        long n = 0;
+        for (Map<CortexBinaryKmer, Map<String, int[]>> shard : shards) {
+            synchronized (shard) {
+                for (Map<String, int[]> links : shard.values()) {
+                    n += links.size();
+                }
+            }
+        }
+
+        return n;
+    }
+
+    /**
+     * @return  the total number of junction choices over all distinct links
+     */
+    public long getNumJunctionBytes() {
+        long n = 0;
+        for (Map<CortexBinaryKmer, Map<String, int[]>> shard : shards) {
+            synchronized (shard) {
+                for (Map<String, int[]> links : shard.values()) {
+                    for (String key : links.keySet()) {
+                        n += key.length() - 1;
+                    }
+                }
+            }
+        }
+
+        return n;
+    }
+}
@@ -0,0 +1,265 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.links;
+
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compact binary form of a links record, as written by IndexLinks --binary.  A record is laid out as:
+ *
+ *   kmer           2 bits per base, first base in the high bits, ceil(k/4) bytes
+ *   numLinks       varint
+ *   for each link:
+ *     length       varint, (number of junction bases &lt;&lt; 1) | 1 if forward
+ *     numKmers     varint, stored plus one (links from version 4 files have no kmer count, i.e. -1)
+ *     numJunctions varint
+ *     coverages    one varint per color
+ *     junctions    2 bits per base, first base in the high bits, ceil(length/4) bytes
+ *
+ * An instance decodes a record in place: the link offsets are found once, and junction choices are then read
+ * straight from the packed bytes, so traversal code can follow links without building strings.  Once constructed,
+ * an instance is read-only and can be shared between threads.
+ */
+public class CortexLinksBinaryRecord {
+    private final byte[] block;
+    private final int kmerSize;
+    private final int numColors;
+
+    private final int[] coverageOffsets;
+    private final int[] junctionOffsets;
+    private final int[] lengths;
+    private final int[] numKmers;
+    private final int[] numJunctions;
+
+    // The decoding position, used only while the record is being laid out.
+    private int pos;
+
+    /**
+     * @param block  the encoded record
+     * @param kmerSize  the kmer size
+     * @param numColors  the number of colors per link
+     */
+    public CortexLinksBinaryRecord(byte[] block, int kmerSize, int numColors) {
+        this.block = block;
+        this.kmerSize = kmerSize;
+        this.numColors = numColors;
+
+        pos = (kmerSize + 3) / 4;
+        int numLinks = readVarint();
+
+        coverageOffsets = new int[numLinks];
+        junctionOffsets = new int[numLinks];
+        lengths = new int[numLinks];
+        numKmers = new int[numLinks];
+        numJunctions = new int[numLinks];
+
+        for (int i = 0; i < numLinks; i++) {
+            lengths[i] = readVarint();
+            numKmers[i] = readVarint() - 1;
+            numJunctions[i] = readVarint();
+
+            coverageOffsets[i] = pos;
+            for (int c = 0; c < numColors; c++) {
+                readVarint();
+            }
+
+            junctionOffsets[i] = pos;
+            pos += ((lengths[i] >>> 1) + 3) / 4;
+        }
+
+        if (pos != block.length) {
+            throw new CortexJDKException("Malformed binary links record (" + pos + " of " + block.length + " bytes decoded)");
+        }
+    }
+
+    private int readVarint() {
+        int value = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            if (pos >= block.length || shift > 28) {
+                throw new CortexJDKException("Malformed varint in binary links record");
+            }
+
+            byte b = block[pos++];
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static int skipVarint(byte[] block, int offset) {
+        while ((block[offset] & 0x80) != 0) {
+            offset++;
+        }
+
+        return offset + 1;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.write(value);
+    }
+
+    private static byte unpack(byte[] packed, int offset, int i) {
+        return PackedKmer.decodeBase((packed[offset + (i >>> 2)] >>> (6 - 2*(i & 3))) & 0x3);
+    }
+
+    private static void pack(ByteArrayOutputStream out, String bases) {
+        byte[] packed = new byte[(bases.length() + 3) / 4];
+
+        for (int i = 0; i < bases.length(); i++) {
+            int b = PackedKmer.encodeBase((byte) bases.charAt(i));
+            if (b < 0) {
+                throw new CortexJDKException("Cannot pack non-ACGT base '" + bases.charAt(i) + "' in links record");
+            }
+
+            packed[i >>> 2] |= b << (6 - 2*(i & 3));
+        }
+
+        out.write(packed, 0, packed.length);
+    }
+
+    /**
+     * Encode a links record.
+     *
+     * @param clr  the record
+     * @param kmerSize  the kmer size
+     * @param numColors  the number of colors per link
+     * @return  the encoded record
+     */
+    public static byte[] encode(CortexLinksRecord clr, int kmerSize, int numColors) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        if (clr.getKmerAsString().length() != kmerSize) {
+            throw new CortexJDKException("Links record kmer '" + clr.getKmerAsString() + "' is not of length " + kmerSize);
+        }
+
+        pack(out, clr.getKmerAsString());
+        writeVarint(out, clr.getJunctions().size());
+
+        for (CortexJunctionsRecord cjr : clr.getJunctions()) {
+            if (cjr.getCoverages().length != numColors) {
+                throw new CortexJDKException("Links record has " + cjr.getCoverages().length + " colors, expected " + numColors);
+            }
+
+            writeVarint(out, (cjr.getJunctions().length() << 1) | (cjr.isForward() ? 1 : 0));
+            writeVarint(out, cjr.getNumKmers() + 1);
+            writeVarint(out, cjr.getNumJunctions());
+
+            for (int cov : cjr.getCoverages()) {
+                writeVarint(out, cov);
+            }
+
+            pack(out, cjr.getJunctions());
+        }
+
+        return out.toByteArray();
+    }
+
+    public int getKmerSize() { return kmerSize; }
+
+    public int getNumLinks() { return lengths.length; }
+
+    public byte getKmerBase(int i) { return unpack(block, 0, i); }
+
+    /**
+     * @param kmer  a kmer, as bases
+     * @return  true if the record's kmer is the given kmer in the same orientation
+     */
+    public boolean isKmer(byte[] kmer) {
+        if (kmer.length != kmerSize) {
+            return false;
+        }
+
+        for (int i = 0; i < kmerSize; i++) {
+            if (getKmerBase(i) != kmer[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public boolean isForward(int link) { return (lengths[link] & 1) == 1; }
+
+    public int getNumKmers(int link) { return numKmers[link]; }
+
+    public int getNumJunctions(int link) { return numJunctions[link]; }
+
+    /**
+     * @param link  the link
+     * @return  the number of junction choices stored for the link
+     */
+    public int getJunctionsLength(int link) { return lengths[link] >>> 1; }
+
+    /**
+     * @param link  the link
+     * @param i  the junction index
+     * @return  the base chosen at the i-th junction
+     */
+    public byte getJunction(int link, int i) { return unpack(block, junctionOffsets[link], i); }
+
+    public int[] getCoverages(int link) {
+        int[] coverages = new int[numColors];
+
+        int offset = coverageOffsets[link];
+        for (int c = 0; c < numColors; c++) {
+            int next = skipVarint(block, offset);
+
+            for (int i = next - 1; i >= offset; i--) {
+                coverages[c] = (coverages[c] << 7) | (block[i] & 0x7F);
+            }
+
+            offset = next;
+        }
+
+        return coverages;
+    }
+
+    public byte[] getKmerAsBytes() {
+        byte[] kmer = new byte[kmerSize];
+        for (int i = 0; i < kmerSize; i++) {
+            kmer[i] = getKmerBase(i);
+        }
+
+        return kmer;
+    }
+
+    public String getJunctions(int link) {
+        byte[] junctions = new byte[getJunctionsLength(link)];
+        for (int i = 0; i < junctions.length; i++) {
+            junctions[i] = getJunction(link, i);
+        }
+
+        return new String(junctions);
+    }
+
+    /**
+     * @return  the size of the encoded record, in bytes
+     */
+    public int getEncodedLength() { return block.length; }
+
+    /**
+     * Decode into the object form (whose toString() is the text links format).
+     *
+     * @return  the record
+     */
+    public CortexLinksRecord toRecord() {
+        List<CortexJunctionsRecord> cjs = new ArrayList<>(getNumLinks());
+
+        for (int link = 0; link < getNumLinks(); link++) {
+            cjs.add(new CortexJunctionsRecord(isForward(link), getNumKmers(link), getNumJunctions(link), getCoverages(link), getJunctions(link)));
+        }
+
+        return new CortexLinksRecord(new String(getKmerAsBytes()), cjs);
+    }
+}
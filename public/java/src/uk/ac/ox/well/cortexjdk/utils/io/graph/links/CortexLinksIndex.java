@@ -0,0 +1,138 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.links;
+
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The kmer table of a links index (.ctp.bgz.idx), searched in place through a memory map.  Each entry is a
+ * canonical binary kmer followed by the position (8 bytes) and length (4 bytes) of its record in the bgzipped links
+ * file, and entries are sorted by kmer, so nothing needs to be loaded onto the heap.
+ *
+ * Lookups start with a few interpolation steps on the kmer's leading word (linked kmers are spread roughly
+ * uniformly through kmer space), then finish with a binary search.
+ */
+class CortexLinksIndex {
+    private static final int MAX_INTERPOLATION_STEPS = 4;
+    private static final int BINARY_SEARCH_THRESHOLD = 64;
+
+    private final int kmerBits;
+    private final int entrySize;
+    private final long numEntries;
+    private final long entriesPerChunk;
+    private final ByteBuffer[] chunks;
+
+    /**
+     * @param fc  the index file
+     * @param offset  the offset of the first entry (the end of the header)
+     * @param kmerBits  the number of 64-bit words per kmer
+     * @param numEntries  the number of entries
+     */
+    CortexLinksIndex(FileChannel fc, long offset, int kmerBits, long numEntries) throws IOException {
+        this.kmerBits = kmerBits;
+        this.entrySize = 8*kmerBits + 8 + 4;
+        this.numEntries = numEntries;
+
+        if (offset + numEntries*entrySize > fc.size()) {
+            throw new CortexJDKException("Links index is truncated (expected " + numEntries + " entries)");
+        }
+
+        // Chunks hold whole entries, so no entry straddles two buffers.
+        this.entriesPerChunk = Math.max(1, (1 << 30) / entrySize);
+
+        int numChunks = (int) ((numEntries + entriesPerChunk - 1) / entriesPerChunk);
+        this.chunks = new ByteBuffer[numChunks];
+
+        for (int i = 0; i < numChunks; i++) {
+            long first = i*entriesPerChunk;
+            long count = Math.min(entriesPerChunk, numEntries - first);
+
+            chunks[i] = fc.map(FileChannel.MapMode.READ_ONLY, offset + first*entrySize, count*entrySize);
+        }
+    }
+
+    long size() { return numEntries; }
+
+    private ByteBuffer chunk(long i) { return chunks[(int) (i / entriesPerChunk)]; }
+
+    private int offset(long i) { return (int) (i % entriesPerChunk)*entrySize; }
+
+    long getPosition(long i) { return chunk(i).getLong(offset(i) + 8*kmerBits); }
+
+    int getLength(long i) { return chunk(i).getInt(offset(i) + 8*kmerBits + 8); }
+
+    private int compare(long i, long[] binaryKmer) {
+        ByteBuffer b = chunk(i);
+        int o = offset(i);
+
+        for (int w = 0; w < kmerBits; w++) {
+            int c = Long.compareUnsigned(Long.reverseBytes(b.getLong(o + 8*w)), Long.reverseBytes(binaryKmer[w]));
+
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return 0;
+    }
+
+    private static double unsigned(long v) {
+        return (double) (v >>> 1) * 2.0 + (v & 1);
+    }
+
+    private double leadingKey(long i) {
+        return unsigned(Long.reverseBytes(chunk(i).getLong(offset(i))));
+    }
+
+    /**
+     * Find the entry for a canonical binary kmer.
+     *
+     * @param binaryKmer  the canonical binary kmer
+     * @return  the entry index, or -1 if the kmer has no links
+     */
+    long find(long[] binaryKmer) {
+        if (binaryKmer.length != kmerBits) {
+            return -1;
+        }
+
+        long lo = 0;
+        long hi = numEntries;
+
+        double key = unsigned(Long.reverseBytes(binaryKmer[0]));
+
+        for (int step = 0; step < MAX_INTERPOLATION_STEPS && hi - lo > BINARY_SEARCH_THRESHOLD; step++) {
+            double keyLo = leadingKey(lo);
+            double keyHi = leadingKey(hi - 1);
+
+            if (key < keyLo || key > keyHi) {
+                return -1;
+            }
+
+            if (keyHi == keyLo) {
+                break;
+            }
+
+            long mid = lo + (long) ((key - keyLo) / (keyHi - keyLo) * (hi - 1 - lo));
+            mid = Math.max(lo, Math.min(hi - 1, mid));
+
+            int c = compare(mid, binaryKmer);
+
+            if (c == 0) { return mid; }
+            else if (c < 0) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            int c = compare(mid, binaryKmer);
+
+            if (c == 0) { return mid; }
+            else if (c < 0) { lo = mid + 1; }
+            else { hi = mid; }
+        }
+
+        return -1;
+    }
+}
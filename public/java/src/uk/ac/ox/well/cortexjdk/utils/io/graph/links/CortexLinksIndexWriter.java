@@ -0,0 +1,305 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.links;
+
+import org.json.JSONObject;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.utils.ParallelBlockCompressedOutputStream;
+import uk.ac.ox.well.cortexjdk.utils.sort.ExternalRecordSorter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes an indexed links file: the records, bgzipped (.ctp.bgz), and the sorted kmer table that
+ * {@link CortexLinksRandomAccess} searches (.ctp.bgz.idx).  Records may be added in any kmer order.  Compression
+ * runs on a pool of threads, and index entries go through an {@link ExternalRecordSorter}, so neither the records
+ * nor the index need to fit in memory.  Callers write the links file's JSON header and comments with
+ * {@link #writeHeader(String, String)} before the first record.
+ */
+public class CortexLinksIndexWriter implements AutoCloseable {
+    /**
+     * The JSON header field that marks a links file whose records are binary, and so can only be read through its
+     * index.
+     */
+    public static final String BINARY_RECORDS_FIELD = "binary_records";
+
+    // The offset of the entry count in the index header (magic word, colors, kmer size, kmers in graph).
+    private static final int NUM_ENTRIES_OFFSET = 6 + 4 + 4 + 8;
+
+    private final File bgzipFile;
+    private final File indexFile;
+    private final int kmerBits;
+    private final boolean binary;
+
+    private final ParallelBlockCompressedOutputStream bc;
+    private final ExternalRecordSorter sorter;
+    private final FileChannel fc;
+    private final long[] entry;
+
+    private long numRecords = 0;
+    private long numEntries = 0;
+    private boolean closed = false;
+
+    /**
+     * @param bgzipFile  the links file to write (the index is written alongside, with .idx appended)
+     * @param source  the link source recorded in the index
+     * @param sampleNames  the sample name of each color
+     * @param kmerSize  the kmer size
+     * @param numKmersInGraph  the number of kmers in the graph the links were built from
+     * @param linkBytes  the link byte count from the links file header
+     * @param binary  whether records are in the compact binary format rather than text
+     * @param compressionLevel  the deflate level (0-9)
+     * @param numThreads  the number of compression and sorting threads
+     * @param memoryBytes  the memory budget for sorting the index in memory
+     * @param tempDir  the directory for temporary sort runs, or null for the system default
+     */
+    public CortexLinksIndexWriter(File bgzipFile, String source, List<String> sampleNames, int kmerSize, long numKmersInGraph, long linkBytes, boolean binary, int compressionLevel, int numThreads, long memoryBytes, File tempDir) {
+        this.bgzipFile = bgzipFile;
+        this.indexFile = new File(bgzipFile.getAbsolutePath() + ".idx");
+        this.kmerBits = CortexRecord.getKmerBits(kmerSize);
+        this.binary = binary;
+
+        if (indexFile.exists()) {
+            indexFile.delete();
+        }
+
+        // Each sort record is a binary kmer (byte-swapped, so unsigned word order is the index's kmer order), the
+        // record's pending position in the bgzipped file, and its length.  The position is part of the key so that a
+        // repeated kmer resolves to its last record.
+        this.sorter = new ExternalRecordSorter(kmerBits + 2, kmerBits + 1, true, memoryBytes, tempDir);
+        this.sorter.setNumThreads(numThreads);
+        this.entry = new long[kmerBits + 2];
+
+        try {
+            this.fc = FileChannel.open(indexFile.toPath(), CREATE_NEW, READ, WRITE);
+            storeHeader(source, sampleNames, kmerSize, numKmersInGraph, linkBytes);
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to open '" + indexFile.getAbsolutePath() + "' for writing", e);
+        }
+
+        this.bc = new ParallelBlockCompressedOutputStream(bgzipFile, compressionLevel, numThreads);
+    }
+
+    public File getFile() { return bgzipFile; }
+
+    public File getIndexFile() { return indexFile; }
+
+    public boolean isBinary() { return binary; }
+
+    public long getNumRecords() { return numRecords; }
+
+    public int getNumSortRuns() { return sorter.getNumRuns(); }
+
+    /**
+     * Encode a record the way this writer stores it.  This is safe to call from several threads at once.
+     *
+     * @param clr  the record
+     * @param kmerSize  the kmer size
+     * @param numColors  the number of colors per link
+     * @param binary  whether to use the compact binary format rather than text
+     * @return  the encoded record
+     */
+    public static byte[] encode(CortexLinksRecord clr, int kmerSize, int numColors, boolean binary) {
+        return binary ? CortexLinksBinaryRecord.encode(clr, kmerSize, numColors) : clr.toString().getBytes();
+    }
+
+    /**
+     * Write the links file's JSON header and comments.  Binary files are marked in the header, so that readers
+     * without the index reject them rather than parse them as text.
+     *
+     * @param jsonHeader  the JSON header
+     * @param comments  the comment lines that follow the header
+     */
+    public void writeHeader(String jsonHeader, String comments) {
+        if (binary) {
+            jsonHeader = new JSONObject(jsonHeader).put(BINARY_RECORDS_FIELD, true).toString(8);
+        }
+
+        writeText(jsonHeader + "\n" + comments + "\n");
+    }
+
+    /**
+     * Write unindexed text to the links file.
+     *
+     * @param text  the text
+     */
+    private void writeText(String text) {
+        try {
+            bc.write(text.getBytes());
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to write to '" + bgzipFile.getAbsolutePath() + "'", e);
+        }
+    }
+
+    /**
+     * Write a record and queue its index entry.
+     *
+     * @param binaryKmer  the record's canonical binary kmer
+     * @param record  the record, as returned by {@link #encode}
+     */
+    public void add(long[] binaryKmer, byte[] record) {
+        for (int w = 0; w < kmerBits; w++) {
+            entry[w] = Long.reverseBytes(binaryKmer[w]);
+        }
+
+        entry[kmerBits] = bc.getPosition();
+        entry[kmerBits + 1] = record.length;
+
+        try {
+            bc.write(record);
+
+            // Text records are newline-terminated in the file, but indexed without the newline.
+            if (!binary) {
+                bc.write('\n');
+            }
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to write to '" + bgzipFile.getAbsolutePath() + "'", e);
+        }
+
+        sorter.add(entry);
+        numRecords++;
+    }
+
+    private String magicWord() {
+        return binary ? CortexLinksRandomAccess.BINARY_MAGIC_WORD : CortexLinksRandomAccess.TEXT_MAGIC_WORD;
+    }
+
+    private void storeHeader(String source, List<String> sampleNames, int kmerSize, long numKmersInGraph, long linkBytes) throws IOException {
+        int capacity = 6 + 4 + 4 + 8 + 8 + 8;
+        capacity += 4 + source.length();
+        for (String sn : sampleNames) {
+            capacity += 4 + sn.length();
+        }
+        capacity += 6;
+
+        ByteBuffer bb = ByteBuffer.allocateDirect(capacity);
+
+        bb.put(magicWord().getBytes());
+        bb.putInt(sampleNames.size());
+        bb.putInt(kmerSize);
+        bb.putLong(numKmersInGraph);
+        bb.putLong(0);
+        bb.putLong(linkBytes);
+
+        bb.putInt(source.length());
+        bb.put(source.getBytes());
+
+        for (String sn : sampleNames) {
+            bb.putInt(sn.length());
+            bb.put(sn.getBytes());
+        }
+
+        bb.put(magicWord().getBytes());
+
+        bb.flip();
+        fc.write(bb);
+    }
+
+    /**
+     * Finish the links file, then sort and write the index.
+     *
+     * @return  the number of distinct kmers indexed
+     */
+    public long finish() {
+        if (closed) {
+            return numEntries;
+        }
+
+        closed = true;
+
+        try {
+            bc.close();
+
+            storeIndex();
+
+            ByteBuffer count = ByteBuffer.allocate(8);
+            count.putLong(numEntries);
+            count.flip();
+            fc.write(count, NUM_ENTRIES_OFFSET);
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to write links index '" + indexFile.getAbsolutePath() + "'", e);
+        } catch (UncheckedIOException e) {
+            throw new CortexJDKException("Unable to write links index '" + indexFile.getAbsolutePath() + "'", e.getCause());
+        } finally {
+            close();
+        }
+
+        return numEntries;
+    }
+
+    private void storeIndex() throws IOException {
+        ByteBuffer bb = ByteBuffer.allocateDirect(1 << 20);
+        int entrySize = 8*kmerBits + 8 + 4;
+
+        long[] pending = new long[kmerBits + 2];
+
+        sorter.forEachSorted(r -> {
+            boolean same = numEntries > 0;
+            for (int w = 0; same && w < kmerBits; w++) {
+                same = r[w] == pending[w];
+            }
+
+            if (!same && numEntries > 0) {
+                putEntry(bb, pending, entrySize);
+            }
+
+            if (!same) {
+                numEntries++;
+            }
+
+            System.arraycopy(r, 0, pending, 0, pending.length);
+        });
+
+        if (numEntries > 0) {
+            putEntry(bb, pending, entrySize);
+        }
+
+        bb.flip();
+        while (bb.hasRemaining()) {
+            fc.write(bb);
+        }
+    }
+
+    private void putEntry(ByteBuffer bb, long[] e, int entrySize) {
+        try {
+            if (bb.remaining() < entrySize) {
+                bb.flip();
+                while (bb.hasRemaining()) {
+                    fc.write(bb);
+                }
+                bb.clear();
+            }
+
+            for (int w = 0; w < kmerBits; w++) {
+                bb.putLong(Long.reverseBytes(e[w]));
+            }
+            bb.putLong(bc.resolve(e[kmerBits]));
+            bb.putInt((int) e[kmerBits + 1]);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Release the writer's files and temporary sort runs.  Call {@link #finish()} first to complete the output.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        try {
+            bc.close();
+            fc.close();
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to close links index '" + indexFile.getAbsolutePath() + "'", e);
+        } finally {
+            sorter.close();
+        }
+    }
+}
@@ -73,6 +73,10 @@ public class CortexLinksIterable implements Iterable<CortexLinksRecord>, Iterato
             }
             version = header.has("formatVersion") ? header.getInt("formatVersion") : header.getInt("format_version");
 
+            if (header.optBoolean(CortexLinksIndexWriter.BINARY_RECORDS_FIELD, false)) {
+                throw new CortexJDKException("Links file '" + cortexLinks.getAbsolutePath() + "' stores binary records, which can only be read through its index ('" + cortexLinks.getName() + ".idx')");
+            }
+
             if (version != 2 && version != 3 && version != 4) {
                 throw new CortexJDKException("Cannot parse CortexLinks format version '" + version + "'");
             }
@@ -146,7 +150,9 @@ public class CortexLinksIterable implements Iterable<CortexLinksRecord>, Iterato
         }
     }
 
-    private void moveToBeginningOfRecordsSection() {
+    private void moveToBeginningOfRecordsSection() { moveToBeginningOfRecordsSection(true); }
+
+    private void moveToBeginningOfRecordsSection(boolean prefetch) {
         try {
             buffered.reset();
             recordsSeen = 0;
@@ -166,10 +172,21 @@ public class CortexLinksIterable implements Iterable<CortexLinksRecord>, Iterato
             }
         }
 
-        nextRecord = getNextRecord();
+        nextRecord = prefetch ? getNextRecord() : null;
     }
 
     private CortexLinksRecord getNextRecord() {
+        String[] lines = getNextRawRecord();
+
+        return lines == null ? null : parseRecord(lines);
+    }
+
+    /**
+     * Read the lines of the next record without parsing them.
+     *
+     * @return  the kmer line followed by one line per link, or null at the end of the records
+     */
+    private String[] getNextRawRecord() {
         if (recordsSeen < numKmersWithLinks) {
             try {
                 String line = buffered.readLine();
@@ -187,42 +204,120 @@ public class CortexLinksIterable implements Iterable<CortexLinksRecord>, Iterato
                 recordsSeen++;
 
                 if (line != null) {
-                    String[] kmerLine = line.split("\\s+");
-
-                    String kmer = kmerLine[0];
-                    int numLinks = Integer.valueOf(kmerLine[1]);
+                    int numLinks = Integer.valueOf(line.split("\\s+")[1]);
 
-                    List<CortexJunctionsRecord> cjs = new ArrayList<>();
+                    String[] lines = new String[numLinks + 1];
+                    lines[0] = line;
 
                     for (int i = 0; i < numLinks; i++) {
-                        String[] linkLine = buffered.readLine().split("[,\\s]+");
+                        lines[i + 1] = buffered.readLine();
+                    }
 
-                        String orientation = linkLine[0];
-                        int numKmers = version == 4 ? -1 : Integer.valueOf(linkLine[1]);
-                        int numJunctions = version == 4 ? Integer.valueOf(linkLine[1]) : Integer.valueOf(linkLine[2]);
-                        int[] coverages = new int[numColors];
+                    return lines;
+                }
+            } catch (IOException e) {
+                throw new CortexJDKException("Unable to parse CortexLinks record", e);
+            }
+        }
 
-                        int offset = version == 4 ? 2 : 3;
+        return null;
+    }
 
-                        for (int c = 0; c < numColors; c++) {
-                            coverages[c] = Integer.valueOf(linkLine[offset + c]);
-                        }
+    /**
+     * Parse the lines of a record.  This does not touch the file, so records read with {@link #rawRecords()} can be
+     * parsed on several threads at once.
+     *
+     * @param lines  the kmer line followed by one line per link
+     * @return  the record
+     */
+    public CortexLinksRecord parseRecord(String[] lines) {
+        String[] kmerLine = lines[0].split("\\s+");
 
-                        String junctions = linkLine[offset + numColors];
+        String kmer = kmerLine[0];
+        int numLinks = Integer.valueOf(kmerLine[1]);
 
-                        CortexJunctionsRecord cj = new CortexJunctionsRecord(orientation.equals("F"), numKmers, numJunctions, coverages, junctions);
-                        cjs.add(cj);
-                    }
+        List<CortexJunctionsRecord> cjs = new ArrayList<>();
 
+        for (int i = 0; i < numLinks; i++) {
+            String[] linkLine = lines[i + 1].split("[,\\s]+");
 
-                    return new CortexLinksRecord(kmer, cjs);
-                }
-            } catch (IOException e) {
-                throw new CortexJDKException("Unable to parse CortexLinks record", e);
+            String orientation = linkLine[0];
+            int numKmers = version == 4 ? -1 : Integer.valueOf(linkLine[1]);
+            int numJunctions = version == 4 ? Integer.valueOf(linkLine[1]) : Integer.valueOf(linkLine[2]);
+            int[] coverages = new int[numColors];
+
+            int offset = version == 4 ? 2 : 3;
+
+            for (int c = 0; c < numColors; c++) {
+                coverages[c] = Integer.valueOf(linkLine[offset + c]);
             }
+
+            String junctions = linkLine[offset + numColors];
+
+            CortexJunctionsRecord cj = new CortexJunctionsRecord(orientation.equals("F"), numKmers, numJunctions, coverages, junctions);
+            cjs.add(cj);
         }
 
-        return null;
+        return new CortexLinksRecord(kmer, cjs);
+    }
+
+    /**
+     * Iterate over the records' unparsed lines, from the start of the records section.  This shares the file
+     * handle with the record iterator, so the two cannot be used at the same time.
+     *
+     * @return  an iterator over each record's lines (see {@link #parseRecord(String[])})
+     */
+    public Iterator<String[]> rawRecords() {
+        moveToBeginningOfRecordsSection(false);
+
+        return new Iterator<String[]>() {
+            private String[] next = getNextRawRecord();
+
+            @Override
+            public boolean hasNext() { return next != null; }
+
+            @Override
+            public String[] next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+
+                String[] current = next;
+                next = getNextRawRecord();
+
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Group the records' unparsed lines into batches, e.g. to hand to parser threads.  Batches are read lazily as
+     * the returned iterable's iterator is advanced.
+     *
+     * @param batchSize  the maximum number of records per batch
+     * @return  the batches
+     */
+    public Iterable<List<String[]>> rawRecordBatches(int batchSize) {
+        return () -> new Iterator<List<String[]>>() {
+            private final Iterator<String[]> records = rawRecords();
+
+            @Override
+            public boolean hasNext() { return records.hasNext(); }
+
+            @Override
+            public List<String[]> next() {
+                if (!records.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                List<String[]> batch = new ArrayList<>(batchSize);
+                while (records.hasNext() && batch.size() < batchSize) {
+                    batch.add(records.next());
+                }
+
+                return batch;
+            }
+        };
     }
 
     @Override
@@ -5,21 +5,32 @@ import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexColor;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
-
+import java.util.List;
+
+/**
+ * Links loaded wholesale into memory, for links files that have not been indexed.  The gzipped file is read on the
+ * calling thread and handed in batches of raw lines to parser threads, which encode each record in its compact
+ * binary form.  Encoded batches are stored in a {@link CortexLinksTable} in file order, so a kmer that appears more
+ * than once resolves to its last record.  Records are decoded again on lookup.
+ */
 public class CortexLinksMap implements ConnectivityAnnotations {
+    // The number of records parsed per task.
+    private static final int BATCH_SIZE = 4096;
+
     private CortexLinksIterable cortexGraphLinks;
-    private Map<CortexBinaryKmer, CortexLinksRecord> recordHash;
+    private CortexLinksTable recordTable;
     private CortexHeader header;
 
-    public CortexLinksMap(String cortexLinksPath) { initialize(new File(cortexLinksPath)); }
+    public CortexLinksMap(String cortexLinksPath) { initialize(new File(cortexLinksPath), Runtime.getRuntime().availableProcessors()); }
+
+    public CortexLinksMap(File cortexLinksFile) { initialize(cortexLinksFile, Runtime.getRuntime().availableProcessors()); }
 
-    public CortexLinksMap(File cortexLinksFile) { initialize(cortexLinksFile); }
+    public CortexLinksMap(File cortexLinksFile, int numThreads) { initialize(cortexLinksFile, numThreads); }
 
-    private void initialize(File cortexLinksFile) {
+    private void initialize(File cortexLinksFile, int numThreads) {
         this.cortexGraphLinks = new CortexLinksIterable(cortexLinksFile);
 
         header = new CortexHeader();
@@ -35,27 +46,67 @@ public class CortexLinksMap implements ConnectivityAnnotations {
             header.addColor(cc);
         }
 
-        recordHash = new HashMap<>((int) cortexGraphLinks.getNumLinks());
+        recordTable = new CortexLinksTable(header.getKmerBits(), cortexGraphLinks.getNumKmersWithLinks());
+
+        ParallelUtils.mapReduce(cortexGraphLinks.rawRecordBatches(BATCH_SIZE), numThreads, this::encode, this::store);
+
+        cortexGraphLinks.close();
+    }
+
+    private static class EncodedBatch {
+        private final long[][] binaryKmers;
+        private final byte[][] records;
+
+        private EncodedBatch(int size) {
+            binaryKmers = new long[size][];
+            records = new byte[size][];
+        }
+    }
+
+    private EncodedBatch encode(List<String[]> batch) {
+        EncodedBatch eb = new EncodedBatch(batch.size());
+
+        for (int i = 0; i < batch.size(); i++) {
+            CortexLinksRecord clr = cortexGraphLinks.parseRecord(batch.get(i));
+
+            eb.binaryKmers[i] = new CortexBinaryKmer(clr.getKmer().getKmerAsBytes()).getBinaryKmer();
+            eb.records[i] = CortexLinksBinaryRecord.encode(clr, header.getKmerSize(), header.getNumColors());
+        }
+
+        return eb;
+    }
 
-        for (CortexLinksRecord clr : cortexGraphLinks) {
-            recordHash.put(new CortexBinaryKmer(clr.getKmer().getKmerAsBytes()), clr);
+    private void store(EncodedBatch eb) {
+        for (int i = 0; i < eb.records.length; i++) {
+            recordTable.put(eb.binaryKmers[i], eb.records[i]);
         }
     }
 
+    @Override
+    public CortexLinksBinaryRecord getBinaryRecord(Object key) {
+        byte[] record = recordTable.get(convert(key).getBinaryKmer());
+
+        return record == null ? null : new CortexLinksBinaryRecord(record, header.getKmerSize(), header.getNumColors());
+    }
+
     @Override
     public File getFile() { return cortexGraphLinks.getFile(); }
 
     @Override
-    public int size() { return recordHash.size(); }
+    public int size() { return (int) recordTable.size(); }
 
     @Override
-    public boolean isEmpty() { return recordHash.isEmpty(); }
+    public boolean isEmpty() { return recordTable.size() == 0; }
 
     @Override
-    public boolean containsKey(Object key) { return recordHash.containsKey(convert(key)); }
+    public boolean containsKey(Object key) { return recordTable.get(convert(key).getBinaryKmer()) != null; }
 
     @Override
-    public CortexLinksRecord get(Object key) { return recordHash.get(convert(key)); }
+    public CortexLinksRecord get(Object key) {
+        CortexLinksBinaryRecord blr = getBinaryRecord(key);
+
+        return blr == null ? null : blr.toRecord();
+    }
 
     @Override
     public CortexHeader getHeader() { return header; }
@@ -1,30 +1,48 @@
 package uk.ac.ox.well.cortexjdk.utils.io.graph.links;
 
-import htsjdk.samtools.util.BlockCompressedInputStream;
-import org.apache.commons.math3.util.Pair;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.BlockGunzipper;
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.ConnectivityAnnotations;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexColor;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecordCacheStats;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.StripedCache;
 import uk.ac.ox.well.cortexjdk.utils.io.utils.BinaryFile;
-import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
- * Created by kiran on 14/09/2017.
+ * Random access to an indexed, bgzipped links file.  Lookups go through two caches: records in their compact binary
+ * form, keyed by their index entry, and inflated BGZF blocks, keyed by block address, so that consecutive lookups during a walk
+ * rarely inflate the same block twice.  Blocks are read with positional reads on a shared channel and inflated
+ * with a per-thread decompressor, so lookups are safe from several threads at once.
+ *
+ * The caches start with the default budgets; modules that walk links heavily can change them with setCacheBudgets().
  */
 public class CortexLinksRandomAccess implements ConnectivityAnnotations {
+    public static final String TEXT_MAGIC_WORD = "LNKIDX";
+    public static final String BINARY_MAGIC_WORD = "LNKBIN";
+
+    public static final long DEFAULT_BLOCK_CACHE_MB = 32;
+    public static final long DEFAULT_RECORD_CACHE_MB = 16;
+
     private File cortexLinksFile;
-    private BlockCompressedInputStream bi;
-    private Map<CortexBinaryKmer, Pair<Long, Integer>> index;
+    private FileChannel channel;
+    private final ThreadLocal<BlockGunzipper> gunzipper = ThreadLocal.withInitial(BlockGunzipper::new);
+    private StripedCache<byte[]> blockCache;
+    private StripedCache<CortexLinksBinaryRecord> recordCache;
+    private CortexLinksIndex index;
     private CortexHeader header;
     private String source;
+    private boolean binaryRecords;
 
     public CortexLinksRandomAccess(String cortexLinksPath) { initialize(new File(cortexLinksPath)); }
 
@@ -35,14 +53,27 @@ public class CortexLinksRandomAccess implements ConnectivityAnnotations {
         File cortexLinksIndex = new File(cortexLinksFile.getAbsolutePath() + ".idx");
 
         try {
-            bi = new BlockCompressedInputStream(cortexLinksFile.getAbsoluteFile());
-            index = new HashMap<>();
+            channel = FileChannel.open(cortexLinksFile.toPath(), StandardOpenOption.READ);
 
-            BinaryFile bf = new BinaryFile(cortexLinksIndex, "r");
+            setCacheBudgets(DEFAULT_BLOCK_CACHE_MB * 1024L * 1024L, DEFAULT_RECORD_CACHE_MB * 1024L * 1024L);
 
+        } catch (IOException e) {
+            throw new CortexJDKException("IOException", e);
+        }
+
+        // The index table is memory-mapped, and the mapping outlives the index file's channel.
+        try (BinaryFile bf = new BinaryFile(cortexLinksIndex, "r")) {
             byte[] magicWordStart = new byte[6];
             bf.read(magicWordStart);
 
+            if (Arrays.equals(magicWordStart, BINARY_MAGIC_WORD.getBytes())) {
+                binaryRecords = true;
+            } else if (Arrays.equals(magicWordStart, TEXT_MAGIC_WORD.getBytes())) {
+                binaryRecords = false;
+            } else {
+                throw new CortexJDKException("'" + cortexLinksIndex.getAbsolutePath() + "' is not a Cortex links index");
+            }
+
             header = new CortexHeader();
             header.setNumColors(bf.readInt());
             header.setKmerSize(bf.readInt());
@@ -72,17 +103,7 @@ public class CortexLinksRandomAccess implements ConnectivityAnnotations {
                 throw new CortexJDKException("Error in decoding Cortex links index");
             }
 
-            for (int i = 0; i < numKmersWithLinks; i++) {
-                long[] kmer = new long[header.getKmerBits()];
-                for (int j = 0; j < header.getKmerBits(); j++) {
-                    kmer[j] = bf.readLong();
-                }
-
-                long pos = bf.readLong();
-                int length = bf.readInt();
-
-                index.put(new CortexBinaryKmer(kmer), new Pair<>(pos, length));
-            }
+            index = new CortexLinksIndex(bf.getChannel(), bf.getFilePointer(), header.getKmerBits(), numKmersWithLinks);
         } catch (IOException e) {
             throw new CortexJDKException("IOException", e);
         }
@@ -92,29 +113,144 @@ public class CortexLinksRandomAccess implements ConnectivityAnnotations {
     public File getFile() { return cortexLinksFile; }
 
     @Override
-    public int size() { return index.size(); }
+    public int size() { return (int) index.size(); }
 
     @Override
-    public boolean isEmpty() { return index.isEmpty(); }
+    public boolean isEmpty() { return index.size() == 0; }
 
     @Override
-    public boolean containsKey(Object key) { return index.containsKey(convert(key)); }
+    public boolean containsKey(Object key) { return index.find(convert(key).getBinaryKmer()) >= 0; }
 
     @Override
     public CortexLinksRecord get(Object key) {
+        CortexLinksBinaryRecord blr = getBinaryRecord(key);
+
+        return blr == null ? null : blr.toRecord();
+    }
+
+    /**
+     * Get a kmer's links without decoding them into strings.  Records stored as text are encoded once, when they
+     * enter the record cache.
+     *
+     * @param key  the kmer, in any form accepted by {@link #get(Object)}
+     * @return  the links, or null if the kmer has none
+     */
+    @Override
+    public CortexLinksBinaryRecord getBinaryRecord(Object key) {
+        long i = index.find(convert(key).getBinaryKmer());
+
+        if (i < 0) {
+            return null;
+        }
+
+        return recordCache.get(i, entry -> {
+            byte[] recbuf = read(entry);
+
+            if (!binaryRecords) {
+                recbuf = CortexLinksBinaryRecord.encode(new CortexLinksRecord(recbuf), header.getKmerSize(), header.getNumColors());
+            }
+
+            return new CortexLinksBinaryRecord(recbuf, header.getKmerSize(), header.getNumColors());
+        });
+    }
+
+    public boolean hasBinaryRecords() { return binaryRecords; }
+
+    public CortexRecordCacheStats getBlockCacheStats() { return blockCache.getStats(); }
+
+    public CortexRecordCacheStats getRecordCacheStats() { return recordCache.getStats(); }
+
+    /**
+     * Replace the block and record caches with empty ones of the given sizes.
+     *
+     * @param blockCacheBytes  the memory budget for inflated blocks, in bytes
+     * @param recordCacheBytes  the memory budget for decoded records, in bytes
+     */
+    public void setCacheBudgets(long blockCacheBytes, long recordCacheBytes) {
+        blockCache = new StripedCache<>(blockCacheBytes, CortexLinksRandomAccess::estimateBlockBytes);
+        recordCache = new StripedCache<>(recordCacheBytes, CortexLinksRandomAccess::estimateRecordBytes);
+    }
+
+    // An inflated block (with the trailing next-block address) and its cache entry.
+    private static long estimateBlockBytes(byte[] block) {
+        return StripedCache.ENTRY_OVERHEAD + StripedCache.align(StripedCache.ARRAY_HEADER + block.length);
+    }
+
+    // A binary record: its fields, its encoded bytes, its five per-link offset tables and its cache entry.
+    private static long estimateRecordBytes(CortexLinksBinaryRecord blr) {
+        long record = StripedCache.OBJECT_HEADER + 6*8 + 3*4;
+        long encoded = StripedCache.ARRAY_HEADER + blr.getEncodedLength();
+        long offsets = StripedCache.ARRAY_HEADER + 4L*blr.getNumLinks();
+
+        return StripedCache.ENTRY_OVERHEAD + StripedCache.align(record) + StripedCache.align(encoded) + 5*StripedCache.align(offsets);
+    }
+
+    public void clearCaches() {
+        blockCache.clear();
+        recordCache.clear();
+    }
+
+    /**
+     * Read the raw bytes of an index entry's record, which may span several BGZF blocks.
+     */
+    private byte[] read(long i) {
+        long virtualOffset = index.getPosition(i);
+        long blockAddress = virtualOffset >>> 16;
+        int offset = (int) (virtualOffset & 0xFFFF);
+
+        byte[] recbuf = new byte[index.getLength(i)];
+        int filled = 0;
+
+        while (filled < recbuf.length) {
+            byte[] block = blockCache.get(blockAddress, this::inflateBlock);
+
+            if (block == null || block.length <= 8 || offset >= block.length - 8) {
+                throw new CortexJDKException("Links record at " + virtualOffset + " runs past the end of '" + cortexLinksFile.getAbsolutePath() + "'");
+            }
+
+            // Each cached block is its inflated contents followed by the address of the next block.
+            int available = block.length - 8 - offset;
+            int n = Math.min(available, recbuf.length - filled);
+            System.arraycopy(block, offset, recbuf, filled, n);
+
+            filled += n;
+            offset = 0;
+            blockAddress = ByteBuffer.wrap(block, block.length - 8, 8).getLong();
+        }
+
+        return recbuf;
+    }
+
+    private byte[] inflateBlock(long blockAddress) {
         try {
-            Pair<Long, Integer> p = index.get(convert(key));
-            byte[] recbuf = new byte[p.getSecond()];
+            ByteBuffer head = ByteBuffer.allocate(BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(head, blockAddress);
+
+            int blockSize = (head.getShort(BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET) & 0xFFFF) + 1;
 
-            bi.seek(p.getFirst());
-            bi.read(recbuf);
+            ByteBuffer compressed = ByteBuffer.allocate(blockSize);
+            readFully(compressed, blockAddress);
 
-            return new CortexLinksRecord(recbuf);
+            byte[] inflated = new byte[BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE];
+            int n = gunzipper.get().unzipBlock(inflated, compressed.array(), blockSize);
+
+            byte[] block = Arrays.copyOf(inflated, n + 8);
+            ByteBuffer.wrap(block, n, 8).putLong(blockAddress + blockSize);
+
+            return block;
         } catch (IOException e) {
             throw new CortexJDKException("Failed to load links record from disk", e);
         }
     }
 
+    private void readFully(ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            if (channel.read(bb, position + bb.position()) < 0) {
+                throw new CortexJDKException("Unexpected end of links file '" + cortexLinksFile.getAbsolutePath() + "'");
+            }
+        }
+    }
+
     @Override
     public CortexHeader getHeader() { return header; }
 
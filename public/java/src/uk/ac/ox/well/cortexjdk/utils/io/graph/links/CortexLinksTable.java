@@ -0,0 +1,120 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.links;
+
+import it.unimi.dsi.fastutil.HashCommon;
+
+/**
+ * A kmer-keyed table of encoded links records ({@link CortexLinksBinaryRecord}), filled by the links loader.
+ * Kmers are stored as primitive words in a flat open-addressing array rather than as objects.  The table has a
+ * single writer: the loader parses records on several threads but inserts them all from one thread, in file order,
+ * so a repeated kmer keeps its last record.  Lookups take no locks, so they must not overlap with insertions; the
+ * loader finishes all insertions before the table is handed out.
+ */
+class CortexLinksTable {
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final int kmerBits;
+
+    private long[] keys;
+    private byte[][] values;
+    private int mask;
+    private int size;
+
+    /**
+     * @param kmerBits  the number of 64-bit words per kmer
+     * @param expectedRecords  the number of records expected (the table grows if this is exceeded)
+     */
+    CortexLinksTable(int kmerBits, long expectedRecords) {
+        int capacity = HashCommon.arraySize((int) Math.min(1 << 29, Math.max(1, expectedRecords)), LOAD_FACTOR);
+
+        this.kmerBits = kmerBits;
+        this.keys = new long[capacity*kmerBits];
+        this.values = new byte[capacity][];
+        this.mask = capacity - 1;
+    }
+
+    private static long hash(long[] binaryKmer) {
+        long h = 0;
+        for (long w : binaryKmer) {
+            h = HashCommon.mix(h ^ w);
+        }
+
+        return h;
+    }
+
+    private int probe(long[] binaryKmer) {
+        int slot = (int) hash(binaryKmer) & mask;
+
+        while (values[slot] != null && !kmerEquals(slot, binaryKmer)) {
+            slot = (slot + 1) & mask;
+        }
+
+        return slot;
+    }
+
+    private boolean kmerEquals(int slot, long[] binaryKmer) {
+        int o = slot*kmerBits;
+
+        for (int w = 0; w < kmerBits; w++) {
+            if (keys[o + w] != binaryKmer[w]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Store an encoded record, replacing any record with the same kmer.  Not safe to call from several threads.
+     *
+     * @param binaryKmer  the canonical binary kmer
+     * @param record  the encoded record
+     */
+    void put(long[] binaryKmer, byte[] record) {
+        int slot = probe(binaryKmer);
+
+        if (values[slot] == null) {
+            System.arraycopy(binaryKmer, 0, keys, slot*kmerBits, kmerBits);
+            size++;
+        }
+
+        values[slot] = record;
+
+        if (size > LOAD_FACTOR*values.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        byte[][] oldValues = values;
+
+        keys = new long[2*oldKeys.length];
+        values = new byte[2*oldValues.length][];
+        mask = values.length - 1;
+
+        long[] binaryKmer = new long[kmerBits];
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                System.arraycopy(oldKeys, i*kmerBits, binaryKmer, 0, kmerBits);
+
+                int slot = probe(binaryKmer);
+                System.arraycopy(binaryKmer, 0, keys, slot*kmerBits, kmerBits);
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * @param binaryKmer  the canonical binary kmer
+     * @return  the encoded record, or null if the kmer has no links
+     */
+    byte[] get(long[] binaryKmer) {
+        if (binaryKmer.length != kmerBits) {
+            return null;
+        }
+
+        return values[probe(binaryKmer)];
+    }
+
+    long size() { return size; }
+}
@@ -0,0 +1,330 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.server;
+
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.ConnectivityAnnotations;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRecord;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps graphs and links loaded in one long-lived process and answers batched lookups from other processes, so
+ * that many short-running commands can share the (expensive) loading and warm caches of the same files.
+ *
+ * The server listens on the loopback interface only.  Each connection is served on its own thread; graph lookups
+ * run concurrently, while lookups against a links file are serialized because the links readers are not
+ * thread-safe.
+ */
+public class GraphQueryServer {
+    private final Map<String, DeBruijnGraph> graphs = new ConcurrentHashMap<>();
+    private final Map<String, ConnectivityAnnotations> links = new ConcurrentHashMap<>();
+
+    private final int requestedPort;
+    private ServerSocket serverSocket;
+    private ExecutorService pool;
+
+    /**
+     * @param port  the port to listen on, or 0 to pick a free one
+     */
+    public GraphQueryServer(int port) {
+        this.requestedPort = port;
+    }
+
+    public GraphQueryServer() { this(GraphServerProtocol.DEFAULT_PORT); }
+
+    /**
+     * Serve a graph.  Clients can address it by its file name or absolute path, or by the given name.
+     *
+     * @param name  the name to register
+     * @param graph  the graph
+     */
+    public void addGraph(String name, DeBruijnGraph graph) {
+        graphs.put(name, graph);
+
+        if (graph.getFile() != null) {
+            graphs.putIfAbsent(graph.getFile().getName(), graph);
+            graphs.putIfAbsent(graph.getFile().getAbsolutePath(), graph);
+        }
+    }
+
+    public void addGraph(DeBruijnGraph graph) { addGraph(graph.getFile().getName(), graph); }
+
+    /**
+     * Serve a links file.  Clients can address it by its file name or absolute path, or by the given name.
+     *
+     * @param name  the name to register
+     * @param lm  the links
+     */
+    public void addLinks(String name, ConnectivityAnnotations lm) {
+        links.put(name, lm);
+
+        if (lm.getFile() != null) {
+            links.putIfAbsent(lm.getFile().getName(), lm);
+            links.putIfAbsent(lm.getFile().getAbsolutePath(), lm);
+        }
+    }
+
+    public void addLinks(ConnectivityAnnotations lm) { addLinks(lm.getFile().getName(), lm); }
+
+    /**
+     * Start accepting connections on a background thread.
+     */
+    public void start() {
+        try {
+            serverSocket = new ServerSocket(requestedPort, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to listen on port " + requestedPort, e);
+        }
+
+        pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "GraphQueryServer");
+            t.setDaemon(true);
+            return t;
+        });
+
+        pool.submit(this::acceptLoop);
+    }
+
+    /**
+     * Stop accepting connections and close any open ones.
+     */
+    public void stop() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            throw new CortexJDKException("Error while closing server socket", e);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return  the port the server is listening on
+     */
+    public int getPort() { return serverSocket.getLocalPort(); }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+
+                pool.submit(() -> serve(socket));
+            } catch (SocketException e) {
+                // The server socket was closed by stop().
+                return;
+            } catch (IOException e) {
+                throw new CortexJDKException("Error while accepting connection", e);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+
+            if (in.readInt() != GraphServerProtocol.MAGIC || in.readInt() != GraphServerProtocol.VERSION) {
+                return;
+            }
+
+            out.writeInt(GraphServerProtocol.MAGIC);
+            out.writeInt(GraphServerProtocol.VERSION);
+            out.flush();
+
+            DeBruijnGraph graph = null;
+            ConnectivityAnnotations lm = null;
+
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    return;
+                }
+
+                try {
+                    switch (op) {
+                        case GraphServerProtocol.OP_OPEN: {
+                            byte kind = in.readByte();
+                            String name = in.readUTF();
+
+                            if (kind == GraphServerProtocol.KIND_GRAPH) {
+                                graph = resolve(graphs, name);
+                                openGraph(out, graph);
+                            } else {
+                                lm = resolve(links, name);
+                                openLinks(out, lm);
+                            }
+                            break;
+                        }
+                        case GraphServerProtocol.OP_FIND_RECORDS: findRecords(in, out, opened(graph)); break;
+                        case GraphServerProtocol.OP_GET_RECORDS: getRecords(in, out, opened(graph)); break;
+                        case GraphServerProtocol.OP_FIND_LINKS: findLinks(in, out, opened(lm)); break;
+                        default:
+                            throw new CortexJDKException("Unknown request type " + op);
+                    }
+                } catch (CortexJDKException e) {
+                    // Requests are read in full before any lookups, so the stream is still in step with the client.
+                    out.writeByte(GraphServerProtocol.STATUS_ERROR);
+                    out.writeUTF(e.getMessage() == null ? e.toString() : e.getMessage());
+                }
+
+                out.flush();
+            }
+        } catch (IOException e) {
+            // The client went away; nothing else to clean up.
+        }
+    }
+
+    private static <T> T resolve(Map<String, T> resources, String name) {
+        T resource = resources.get(name);
+
+        if (resource == null) {
+            resource = resources.get(new File(name).getName());
+        }
+
+        if (resource == null) {
+            throw new CortexJDKException("Graph server has not loaded '" + name + "'");
+        }
+
+        return resource;
+    }
+
+    private static <T> T opened(T resource) {
+        if (resource == null) {
+            throw new CortexJDKException("No resource has been opened on this connection");
+        }
+
+        return resource;
+    }
+
+    private void openGraph(DataOutputStream out, DeBruijnGraph graph) throws IOException {
+        out.writeByte(GraphServerProtocol.STATUS_OK);
+        out.writeUTF(graph.getFile() == null ? "" : graph.getFile().getAbsolutePath());
+        out.writeLong(graph.getNumRecords());
+        GraphServerProtocol.writeHeader(out, graph.getHeader());
+    }
+
+    private void openLinks(DataOutputStream out, ConnectivityAnnotations lm) throws IOException {
+        int size;
+        synchronized (lm) {
+            size = lm.size();
+        }
+
+        out.writeByte(GraphServerProtocol.STATUS_OK);
+        out.writeUTF(lm.getFile() == null ? "" : lm.getFile().getAbsolutePath());
+        out.writeInt(size);
+        out.writeUTF(lm.getSource() == null ? "" : lm.getSource());
+        GraphServerProtocol.writeHeader(out, lm.getHeader());
+    }
+
+    private static long[][] readBinaryKmers(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        int kmerBits = in.readInt();
+
+        if (n < 0 || n > GraphServerProtocol.MAX_BATCH || kmerBits < 0) {
+            throw new IOException("Malformed batch (" + n + " kmers of " + kmerBits + " words)");
+        }
+
+        long[][] binaryKmers = new long[n][kmerBits];
+        for (int i = 0; i < n; i++) {
+            for (int w = 0; w < kmerBits; w++) {
+                binaryKmers[i][w] = in.readLong();
+            }
+        }
+
+        return binaryKmers;
+    }
+
+    private static void writeRecordBody(DataOutputStream out, CortexRecord cr, int numColors) throws IOException {
+        for (int c = 0; c < numColors; c++) {
+            out.writeInt(cr.getCoverage(c));
+        }
+
+        out.write(cr.getEdges(), 0, numColors);
+    }
+
+    private void findRecords(DataInputStream in, DataOutputStream out, DeBruijnGraph graph) throws IOException {
+        long[][] binaryKmers = readBinaryKmers(in);
+
+        if (binaryKmers.length > 0 && binaryKmers[0].length != graph.getKmerBits()) {
+            throw new CortexJDKException("Kmer width " + binaryKmers[0].length + " does not match graph (" + graph.getKmerBits() + ")");
+        }
+
+        CortexRecord[] records = new CortexRecord[binaryKmers.length];
+        for (int i = 0; i < binaryKmers.length; i++) {
+            records[i] = graph.findRecord(PackedKmer.fromBinaryKmer(binaryKmers[i], graph.getKmerSize()));
+        }
+
+        out.writeByte(GraphServerProtocol.STATUS_OK);
+        for (CortexRecord cr : records) {
+            out.writeBoolean(cr != null);
+
+            if (cr != null) {
+                writeRecordBody(out, cr, graph.getNumColors());
+            }
+        }
+    }
+
+    private void getRecords(DataInputStream in, DataOutputStream out, DeBruijnGraph graph) throws IOException {
+        long start = in.readLong();
+        int count = in.readInt();
+
+        if (start < 0 || count < 0 || count > GraphServerProtocol.MAX_BATCH) {
+            throw new CortexJDKException("Invalid record range (" + start + ", " + count + ")");
+        }
+
+        count = (int) Math.max(0, Math.min(count, graph.getNumRecords() - start));
+
+        CortexRecord[] records = new CortexRecord[count];
+        for (int i = 0; i < count; i++) {
+            records[i] = graph.getRecord(start + i);
+        }
+
+        out.writeByte(GraphServerProtocol.STATUS_OK);
+        out.writeInt(count);
+        for (CortexRecord cr : records) {
+            for (long word : cr.getBinaryKmer()) {
+                out.writeLong(word);
+            }
+
+            writeRecordBody(out, cr, graph.getNumColors());
+        }
+    }
+
+    private void findLinks(DataInputStream in, DataOutputStream out, ConnectivityAnnotations lm) throws IOException {
+        long[][] binaryKmers = readBinaryKmers(in);
+
+        CortexLinksRecord[] records = new CortexLinksRecord[binaryKmers.length];
+        synchronized (lm) {
+            for (int i = 0; i < binaryKmers.length; i++) {
+                records[i] = lm.get(new CortexBinaryKmer(binaryKmers[i]));
+            }
+        }
+
+        out.writeByte(GraphServerProtocol.STATUS_OK);
+        for (CortexLinksRecord clr : records) {
+            out.writeBoolean(clr != null);
+
+            if (clr != null) {
+                GraphServerProtocol.writeLinksRecord(out, clr);
+            }
+        }
+    }
+}
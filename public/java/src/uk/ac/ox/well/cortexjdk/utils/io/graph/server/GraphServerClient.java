@@ -0,0 +1,136 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.server;
+
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.*;
+import java.net.Socket;
+
+/**
+ * One connection to a {@link GraphQueryServer}, bound to a single graph or links resource.  Requests are
+ * synchronized, so a client can be shared between threads, although each request waits for the previous one to be
+ * answered.  If the connection drops, the next request reconnects and reopens the resource; once the client has
+ * been closed, requests fail.
+ */
+public class GraphServerClient implements AutoCloseable {
+    interface RequestWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    interface ResponseReader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    private final GraphServerProtocol.Address address;
+    private final byte kind;
+
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private ResponseReader<?> openReader;
+    private boolean closed = false;
+
+    /**
+     * @param uri  the resource address, graphserver://[host:]port/name
+     * @param kind  the kind of resource (GraphServerProtocol.KIND_GRAPH or KIND_LINKS)
+     */
+    GraphServerClient(String uri, byte kind) {
+        this.address = new GraphServerProtocol.Address(uri);
+        this.kind = kind;
+    }
+
+    public String getHost() { return address.host; }
+
+    public int getPort() { return address.port; }
+
+    public String getName() { return address.name; }
+
+    /**
+     * Connect and open the resource.
+     *
+     * @param reader  parses the server's description of the resource
+     * @return  the parsed description
+     */
+    synchronized <T> T open(ResponseReader<T> reader) {
+        this.openReader = reader;
+
+        try {
+            return connect(reader);
+        } catch (IOException e) {
+            disconnect();
+            throw new CortexJDKException("Unable to open '" + address.name + "' on graph server " + address.host + ":" + address.port, e);
+        }
+    }
+
+    private <T> T connect(ResponseReader<T> reader) throws IOException {
+        socket = new Socket(address.host, address.port);
+        socket.setTcpNoDelay(true);
+
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        out.writeInt(GraphServerProtocol.MAGIC);
+        out.writeInt(GraphServerProtocol.VERSION);
+        out.writeByte(GraphServerProtocol.OP_OPEN);
+        out.writeByte(kind);
+        out.writeUTF(address.name);
+        out.flush();
+
+        if (in.readInt() != GraphServerProtocol.MAGIC || in.readInt() != GraphServerProtocol.VERSION) {
+            throw new CortexJDKException("Server at " + address.host + ":" + address.port + " does not speak the graph server protocol");
+        }
+
+        GraphServerProtocol.checkStatus(in);
+
+        return reader.read(in);
+    }
+
+    /**
+     * Send one request and read its response.
+     *
+     * @param writer  writes the request, starting with its opcode
+     * @param reader  reads the response body (after the status byte)
+     * @return  the parsed response
+     */
+    synchronized <T> T request(RequestWriter writer, ResponseReader<T> reader) {
+        if (closed) {
+            throw new CortexJDKException("Connection to '" + address.name + "' on graph server " + address.host + ":" + address.port + " has been closed");
+        }
+
+        try {
+            if (socket == null) {
+                connect(openReader);
+            }
+
+            writer.write(out);
+            out.flush();
+
+            GraphServerProtocol.checkStatus(in);
+
+            return reader.read(in);
+        } catch (IOException e) {
+            disconnect();
+            throw new CortexJDKException("Error while communicating with graph server " + address.host + ":" + address.port, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+
+        disconnect();
+    }
+
+    private void disconnect() {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                throw new CortexJDKException("Error while closing graph server connection", e);
+            } finally {
+                socket = null;
+                in = null;
+                out = null;
+            }
+        }
+    }
+}
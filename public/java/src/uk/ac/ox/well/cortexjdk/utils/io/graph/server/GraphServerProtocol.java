@@ -0,0 +1,183 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.server;
+
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexColor;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexJunctionsRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRecord;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The wire format shared by {@link GraphQueryServer} and {@link GraphServerClient}.  Messages are big-endian
+ * primitives written with DataOutput.  A connection opens with a handshake (magic number and version, echoed by the
+ * server); each request is then an opcode followed by its arguments, and each response starts with a status byte
+ * (and an error message if the status is not OK).
+ *
+ * Resources are addressed as graphserver://[host:]port/name, where name is a file name or path that the server
+ * has loaded.
+ */
+public final class GraphServerProtocol {
+    public static final String URI_SCHEME = "graphserver://";
+    public static final int DEFAULT_PORT = 9700;
+
+    static final int MAGIC = 0x43545853; // "CTXS"
+    static final int VERSION = 1;
+
+    static final byte OP_OPEN = 1;
+    static final byte OP_FIND_RECORDS = 2;
+    static final byte OP_GET_RECORDS = 3;
+    static final byte OP_FIND_LINKS = 4;
+
+    static final byte KIND_GRAPH = 0;
+    static final byte KIND_LINKS = 1;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_ERROR = 1;
+
+    // Batches larger than this are split by the client, so neither side buffers unbounded requests.
+    static final int MAX_BATCH = 1 << 16;
+
+    private GraphServerProtocol() {}
+
+    public static boolean isServerUri(String value) {
+        return value != null && value.startsWith(URI_SCHEME);
+    }
+
+    static void writeHeader(DataOutput out, CortexHeader header) throws IOException {
+        out.writeInt(header.getVersion());
+        out.writeInt(header.getKmerSize());
+        out.writeInt(header.getKmerBits());
+        out.writeInt(header.getNumColors());
+        out.writeInt(header.getColors().size());
+
+        for (CortexColor cc : header.getColors()) {
+            out.writeUTF(cc.getSampleName() == null ? "" : cc.getSampleName());
+            out.writeInt(cc.getMeanReadLength());
+            out.writeLong(cc.getTotalSequence());
+            out.writeDouble(cc.getErrorRate());
+            out.writeBoolean(cc.isTipClippingApplied());
+            out.writeBoolean(cc.isLowCovgSupernodesRemoved());
+            out.writeBoolean(cc.isLowCovgKmersRemoved());
+            out.writeBoolean(cc.isCleanedAgainstGraph());
+            out.writeInt(cc.getLowCovSupernodesThreshold());
+            out.writeInt(cc.getLowCovKmerThreshold());
+            out.writeUTF(cc.getCleanedAgainstGraphName() == null ? "" : cc.getCleanedAgainstGraphName());
+        }
+    }
+
+    static CortexHeader readHeader(DataInput in) throws IOException {
+        CortexHeader header = new CortexHeader();
+        header.setVersion(in.readInt());
+        header.setKmerSize(in.readInt());
+        header.setKmerBits(in.readInt());
+        header.setNumColors(in.readInt());
+
+        int numColors = in.readInt();
+        for (int c = 0; c < numColors; c++) {
+            CortexColor cc = new CortexColor();
+            cc.setSampleName(in.readUTF());
+            cc.setMeanReadLength(in.readInt());
+            cc.setTotalSequence(in.readLong());
+            cc.setErrorRate(in.readDouble());
+            cc.setTipClippingApplied(in.readBoolean());
+            cc.setLowCovgSupernodesRemoved(in.readBoolean());
+            cc.setLowCovgKmersRemoved(in.readBoolean());
+            cc.setCleanedAgainstGraph(in.readBoolean());
+            cc.setLowCovSupernodesThreshold(in.readInt());
+            cc.setLowCovKmerThreshold(in.readInt());
+            cc.setCleanedAgainstGraphName(in.readUTF());
+
+            header.addColor(cc);
+        }
+
+        return header;
+    }
+
+    static void writeLinksRecord(DataOutput out, CortexLinksRecord clr) throws IOException {
+        out.writeUTF(clr.getKmerAsString());
+        out.writeInt(clr.getJunctions().size());
+
+        for (CortexJunctionsRecord cjr : clr.getJunctions()) {
+            out.writeBoolean(cjr.isForward());
+            out.writeInt(cjr.getNumKmers());
+            out.writeInt(cjr.getNumJunctions());
+            out.writeInt(cjr.getCoverages().length);
+            for (int cov : cjr.getCoverages()) {
+                out.writeInt(cov);
+            }
+            out.writeUTF(cjr.getJunctions());
+        }
+    }
+
+    static CortexLinksRecord readLinksRecord(DataInput in) throws IOException {
+        String kmer = in.readUTF();
+        int numJunctions = in.readInt();
+
+        List<CortexJunctionsRecord> cjs = new ArrayList<>(numJunctions);
+        for (int j = 0; j < numJunctions; j++) {
+            boolean isFw = in.readBoolean();
+            int numKmers = in.readInt();
+            int numJunctionChars = in.readInt();
+
+            int[] coverages = new int[in.readInt()];
+            for (int c = 0; c < coverages.length; c++) {
+                coverages[c] = in.readInt();
+            }
+
+            cjs.add(new CortexJunctionsRecord(isFw, numKmers, numJunctionChars, coverages, in.readUTF()));
+        }
+
+        return new CortexLinksRecord(kmer, cjs);
+    }
+
+    static void checkStatus(DataInput in) throws IOException {
+        if (in.readByte() != STATUS_OK) {
+            throw new CortexJDKException("Graph server error: " + in.readUTF());
+        }
+    }
+
+    /**
+     * The parts of a graphserver:// address.
+     */
+    static final class Address {
+        final String host;
+        final int port;
+        final String name;
+
+        Address(String uri) {
+            if (!isServerUri(uri)) {
+                throw new CortexJDKException("Not a graph server address: '" + uri + "'");
+            }
+
+            String rest = uri.substring(URI_SCHEME.length());
+            int slash = rest.indexOf('/');
+            if (slash < 0 || slash == rest.length() - 1) {
+                throw new CortexJDKException("Graph server address '" + uri + "' does not name a resource");
+            }
+
+            String hostPort = rest.substring(0, slash);
+            this.name = rest.substring(slash + 1);
+
+            int colon = hostPort.lastIndexOf(':');
+            try {
+                if (colon >= 0) {
+                    this.host = hostPort.substring(0, colon);
+                    this.port = Integer.valueOf(hostPort.substring(colon + 1));
+                } else if (hostPort.isEmpty()) {
+                    this.host = "localhost";
+                    this.port = DEFAULT_PORT;
+                } else {
+                    this.host = "localhost";
+                    this.port = Integer.valueOf(hostPort);
+                }
+            } catch (NumberFormatException e) {
+                throw new CortexJDKException("Invalid port in graph server address '" + uri + "'", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.server;
+
+import uk.ac.ox.well.cortexjdk.utils.io.graph.DeBruijnGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexColor;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A graph held by a {@link GraphQueryServer}.  Lookups and iteration are forwarded to the server in batches, so a
+ * short-lived command can use a large graph without loading it.  Unlike a local graph, reaching the end of an
+ * iteration does not close the graph; call {@link #close()} to drop the connection, after which lookups fail.
+ */
+public class RemoteGraph implements DeBruijnGraph {
+    private static final int ITERATION_BATCH = 4096;
+
+    private final GraphServerClient client;
+    private final File file;
+    private final long numRecords;
+    private final CortexHeader header;
+
+    private long cursor = 0;
+    private final Deque<CortexRecord> buffer = new ArrayDeque<>();
+
+    /**
+     * @param uri  the graph's address, graphserver://[host:]port/name
+     */
+    public RemoteGraph(String uri) {
+        this.client = new GraphServerClient(uri, GraphServerProtocol.KIND_GRAPH);
+
+        Object[] info = client.open(in -> new Object[] { in.readUTF(), in.readLong(), GraphServerProtocol.readHeader(in) });
+
+        this.file = ((String) info[0]).isEmpty() ? new File(client.getName()) : new File((String) info[0]);
+        this.numRecords = (Long) info[1];
+        this.header = (CortexHeader) info[2];
+    }
+
+    private CortexRecord readRecordBody(DataInputStream in, long[] binaryKmer) throws IOException {
+        int[] coverages = new int[getNumColors()];
+        byte[] edges = new byte[getNumColors()];
+
+        for (int c = 0; c < coverages.length; c++) {
+            coverages[c] = in.readInt();
+        }
+        in.readFully(edges);
+
+        return new CortexRecord(binaryKmer, coverages, edges, getKmerSize(), getKmerBits());
+    }
+
+    /**
+     * Look up a batch of canonical binary kmers.
+     *
+     * @param binaryKmers  the kmers, at most GraphServerProtocol.MAX_BATCH of them
+     * @return  the records, with null for kmers that are not in the graph
+     */
+    private CortexRecord[] findBinaryKmers(List<long[]> binaryKmers) {
+        return client.request(out -> {
+            out.writeByte(GraphServerProtocol.OP_FIND_RECORDS);
+            out.writeInt(binaryKmers.size());
+            out.writeInt(getKmerBits());
+
+            for (long[] binaryKmer : binaryKmers) {
+                for (long word : binaryKmer) {
+                    out.writeLong(word);
+                }
+            }
+        }, in -> {
+            CortexRecord[] records = new CortexRecord[binaryKmers.size()];
+
+            for (int i = 0; i < records.length; i++) {
+                if (in.readBoolean()) {
+                    records[i] = readRecordBody(in, binaryKmers.get(i));
+                }
+            }
+
+            return records;
+        });
+    }
+
+    private List<CortexRecord> getRecords(long start, int count) {
+        return client.request(out -> {
+            out.writeByte(GraphServerProtocol.OP_GET_RECORDS);
+            out.writeLong(start);
+            out.writeInt(count);
+        }, in -> {
+            int n = in.readInt();
+            List<CortexRecord> records = new ArrayList<>(n);
+
+            for (int i = 0; i < n; i++) {
+                long[] binaryKmer = new long[getKmerBits()];
+                for (int w = 0; w < binaryKmer.length; w++) {
+                    binaryKmer[w] = in.readLong();
+                }
+
+                records.add(readRecordBody(in, binaryKmer));
+            }
+
+            return records;
+        });
+    }
+
+    private boolean isValidKmer(byte[] bk) {
+        return bk.length == getKmerSize() && PackedKmer.isPackable(bk);
+    }
+
+    public long position() { return cursor; }
+
+    public void position(long i) {
+        cursor = i;
+        buffer.clear();
+    }
+
+    public Iterator<CortexRecord> iterator() {
+        position(0);
+
+        return this;
+    }
+
+    public boolean hasNext() {
+        return cursor < numRecords;
+    }
+
+    public CortexRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        if (buffer.isEmpty()) {
+            buffer.addAll(getRecords(cursor, (int) Math.min(ITERATION_BATCH, numRecords - cursor)));
+        }
+
+        cursor++;
+
+        return buffer.poll();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+        client.close();
+    }
+
+    public CortexRecord getRecord(long i) {
+        List<CortexRecord> records = getRecords(i, 1);
+
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    public CortexRecord findRecord(byte[] bk) {
+        if (!isValidKmer(bk)) {
+            return null;
+        }
+
+        return findRecord(PackedKmer.fromBytes(bk));
+    }
+
+    @Override
+    public CortexRecord findRecord(PackedKmer pk) {
+        if (pk.length() != getKmerSize()) {
+            return null;
+        }
+
+        return findBinaryKmers(Collections.singletonList(pk.canonical().toBinaryKmer()))[0];
+    }
+
+    public CortexRecord findRecord(CortexByteKmer bk) { return findRecord(bk.getKmer()); }
+    public CortexRecord findRecord(CanonicalKmer ck) { return findRecord(ck.getKmerAsBytes()); }
+    public CortexRecord findRecord(String sk) { return findRecord(sk.getBytes()); }
+
+    /**
+     * Find the records for many kmers with one round trip per GraphServerProtocol.MAX_BATCH kmers.
+     *
+     * @param kmers  the kmers to look up
+     * @return  a map from each kmer present in the graph to its record (absent kmers are omitted)
+     */
+    @Override
+    public Map<CanonicalKmer, CortexRecord> findRecords(Iterable<CanonicalKmer> kmers) {
+        Map<CanonicalKmer, CortexRecord> records = new HashMap<>();
+
+        List<CanonicalKmer> batch = new ArrayList<>();
+        List<long[]> binaryKmers = new ArrayList<>();
+
+        Iterator<CanonicalKmer> it = kmers.iterator();
+        while (it.hasNext()) {
+            CanonicalKmer ck = it.next();
+            byte[] bk = ck.getKmerAsBytes();
+
+            if (isValidKmer(bk)) {
+                batch.add(ck);
+                binaryKmers.add(PackedKmer.fromBytes(bk).canonical().toBinaryKmer());
+            }
+
+            if (binaryKmers.size() == GraphServerProtocol.MAX_BATCH || (!it.hasNext() && !binaryKmers.isEmpty())) {
+                CortexRecord[] found = findBinaryKmers(binaryKmers);
+
+                for (int i = 0; i < found.length; i++) {
+                    if (found[i] != null) {
+                        records.put(batch.get(i), found[i]);
+                    }
+                }
+
+                batch.clear();
+                binaryKmers.clear();
+            }
+        }
+
+        return records;
+    }
+
+    public File getFile() { return file; }
+    public CortexHeader getHeader() { return header; }
+    public int getVersion() { return header.getVersion(); }
+    public int getKmerSize() { return header.getKmerSize(); }
+    public int getKmerBits() { return header.getKmerBits(); }
+    public int getNumColors() { return header.getNumColors(); }
+    public long getNumRecords() { return numRecords; }
+
+    public List<CortexColor> getColors() { return header.getColors(); }
+    public boolean hasColor(int color) { return header.hasColor(color); }
+    public CortexColor getColor(int color) { return header.getColor(color); }
+    public String getSampleName(int color) { return getColor(color).getSampleName(); }
+
+    public int getColorForSampleName(String sampleName) {
+        int sampleColor = -1;
+        int sampleCopies = 0;
+
+        for (int color = 0; color < header.getNumColors(); color++) {
+            if (header.getColor(color).getSampleName().equalsIgnoreCase(sampleName)) {
+                sampleColor = color;
+                sampleCopies++;
+            }
+        }
+
+        if (sampleColor == -1) {
+            try {
+                sampleColor = Integer.valueOf(sampleName);
+                sampleCopies = 1;
+            } catch (NumberFormatException e) {}
+        }
+
+        return (sampleCopies == 1) ? sampleColor : -1;
+    }
+
+    public List<Integer> getColorsForSampleNames(Collection<String> sampleNames) {
+        List<Integer> colors = new ArrayList<>();
+
+        if (sampleNames != null && !sampleNames.isEmpty()) {
+            for (String sampleName : sampleNames) {
+                colors.add(getColorForSampleName(sampleName));
+            }
+        }
+
+        return colors;
+    }
+
+    public String toString() {
+        return "server: " + client.getHost() + ":" + client.getPort() + "\n"
+                + "file: " + file.getAbsolutePath() + "\n"
+                + "----" + "\n"
+                + "binary version: " + this.getVersion() + "\n"
+                + "kmer size: " + this.getKmerSize() + "\n"
+                + "bitfields: " + this.getKmerBits() + "\n"
+                + "colors: " + this.getNumColors() + "\n"
+                + "kmers: " + this.getNumRecords() + "\n";
+    }
+}
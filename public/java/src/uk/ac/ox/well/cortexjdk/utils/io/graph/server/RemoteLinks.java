@@ -0,0 +1,116 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.server;
+
+import uk.ac.ox.well.cortexjdk.utils.io.graph.ConnectivityAnnotations;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRecord;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * A links file held by a {@link GraphQueryServer}.  Lookups are forwarded to the server; {@link #getAll(Collection)}
+ * answers many kmers in one round trip.
+ */
+public class RemoteLinks implements ConnectivityAnnotations {
+    private final GraphServerClient client;
+    private final File file;
+    private final int size;
+    private final String source;
+    private final CortexHeader header;
+
+    /**
+     * @param uri  the links file's address, graphserver://[host:]port/name
+     */
+    public RemoteLinks(String uri) {
+        this.client = new GraphServerClient(uri, GraphServerProtocol.KIND_LINKS);
+
+        Object[] info = client.open(in -> new Object[] { in.readUTF(), in.readInt(), in.readUTF(), GraphServerProtocol.readHeader(in) });
+
+        this.file = ((String) info[0]).isEmpty() ? new File(client.getName()) : new File((String) info[0]);
+        this.size = (Integer) info[1];
+        this.source = (String) info[2];
+        this.header = (CortexHeader) info[3];
+    }
+
+    private CortexLinksRecord[] findBinaryKmers(List<CortexBinaryKmer> binaryKmers) {
+        return client.request(out -> {
+            out.writeByte(GraphServerProtocol.OP_FIND_LINKS);
+            out.writeInt(binaryKmers.size());
+            out.writeInt(header.getKmerBits());
+
+            for (CortexBinaryKmer cbk : binaryKmers) {
+                for (long word : cbk.getBinaryKmer()) {
+                    out.writeLong(word);
+                }
+            }
+        }, in -> {
+            CortexLinksRecord[] records = new CortexLinksRecord[binaryKmers.size()];
+
+            for (int i = 0; i < records.length; i++) {
+                if (in.readBoolean()) {
+                    records[i] = GraphServerProtocol.readLinksRecord(in);
+                }
+            }
+
+            return records;
+        });
+    }
+
+    /**
+     * Look up the links for many kmers at once.
+     *
+     * @param keys  the kmers, in any form accepted by {@link #get(Object)}
+     * @return  a map from each kmer with links to its record (kmers without links are omitted)
+     */
+    public Map<CortexBinaryKmer, CortexLinksRecord> getAll(Collection<?> keys) {
+        Map<CortexBinaryKmer, CortexLinksRecord> records = new HashMap<>();
+        List<CortexBinaryKmer> batch = new ArrayList<>();
+
+        Iterator<?> it = keys.iterator();
+        while (it.hasNext()) {
+            batch.add(convert(it.next()));
+
+            if (batch.size() == GraphServerProtocol.MAX_BATCH || !it.hasNext()) {
+                CortexLinksRecord[] found = findBinaryKmers(batch);
+
+                for (int i = 0; i < found.length; i++) {
+                    if (found[i] != null) {
+                        records.put(batch.get(i), found[i]);
+                    }
+                }
+
+                batch.clear();
+            }
+        }
+
+        return records;
+    }
+
+    public void close() {
+        client.close();
+    }
+
+    @Override
+    public File getFile() { return file; }
+
+    @Override
+    public int size() { return size; }
+
+    @Override
+    public boolean isEmpty() { return size == 0; }
+
+    @Override
+    public boolean containsKey(Object key) { return get(key) != null; }
+
+    @Override
+    public CortexLinksRecord get(Object key) {
+        return findBinaryKmers(Collections.singletonList(convert(key)))[0];
+    }
+
+    @Override
+    public CortexHeader getHeader() { return header; }
+
+    @Override
+    public String getSource() { return source; }
+}
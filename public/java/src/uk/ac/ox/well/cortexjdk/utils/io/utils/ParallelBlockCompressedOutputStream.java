@@ -0,0 +1,254 @@
+package uk.ac.ox.well.cortexjdk.utils.io.utils;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A BGZF writer that compresses blocks on a pool of threads and writes them in order.  Output is byte-for-byte a
+ * valid BGZF file (readable by htsjdk's BlockCompressedInputStream and by bgzip), ending with the standard empty
+ * EOF block.
+ *
+ * Because a block's file address is only known once every block before it has been compressed, positions are
+ * handed out as pending positions ({@link #getPosition()}: block number and offset within the block) and turned into
+ * BGZF virtual offsets with {@link #resolve(long)} once the blocks in question have been written, e.g. after
+ * {@link #close()}.  The writer keeps one long per block to do this.
+ */
+public class ParallelBlockCompressedOutputStream extends OutputStream {
+    // The uncompressed block size used by bgzip, small enough that even an incompressible block fits in 64KB.
+    public static final int BLOCK_SIZE = 0xff00;
+
+    private final OutputStream out;
+    private final int compressionLevel;
+    private final ExecutorService exec;
+    private final int maxInFlight;
+    private final Deque<Future<byte[]>> inFlight = new ArrayDeque<>();
+
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int filled = 0;
+    private long numBlocks = 0;
+
+    private final LongArrayList blockAddresses = new LongArrayList();
+    private long address = 0;
+    private boolean closed = false;
+
+    /**
+     * @param file  the output file
+     * @param compressionLevel  the deflate level (0-9)
+     * @param numThreads  the number of compression threads
+     */
+    public ParallelBlockCompressedOutputStream(File file, int compressionLevel, int numThreads) {
+        try {
+            this.out = new BufferedOutputStream(new FileOutputStream(file), 4*1024*1024);
+        } catch (FileNotFoundException e) {
+            throw new CortexJDKException("Unable to open '" + file.getAbsolutePath() + "' for writing", e);
+        }
+
+        this.compressionLevel = compressionLevel;
+        this.exec = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        this.maxInFlight = 2*Math.max(1, numThreads);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[filled++] = (byte) b;
+
+        if (filled == BLOCK_SIZE) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - filled);
+            System.arraycopy(b, off, buffer, filled, n);
+
+            filled += n;
+            off += n;
+            len -= n;
+
+            if (filled == BLOCK_SIZE) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * @return  the pending position of the next byte written; see {@link #resolve(long)}
+     */
+    public long getPosition() {
+        return (numBlocks << 16) | filled;
+    }
+
+    /**
+     * Turn a pending position into a BGZF virtual offset.
+     *
+     * @param pendingPosition  a position from {@link #getPosition()}, whose block has been written
+     * @return  the virtual offset
+     */
+    public long resolve(long pendingPosition) {
+        long block = pendingPosition >>> 16;
+        int offset = (int) (pendingPosition & 0xFFFF);
+
+        if (block < blockAddresses.size()) {
+            return (blockAddresses.getLong((int) block) << 16) | offset;
+        } else if (block == blockAddresses.size() && offset == 0) {
+            return address << 16;
+        }
+
+        throw new CortexJDKException("Block " + block + " has not been written yet");
+    }
+
+    private void submitBlock() throws IOException {
+        if (filled == 0) {
+            return;
+        }
+
+        byte[] data = buffer;
+        int length = filled;
+
+        buffer = new byte[BLOCK_SIZE];
+        filled = 0;
+        numBlocks++;
+
+        if (exec == null) {
+            writeBlock(compress(data, length));
+        } else {
+            if (inFlight.size() >= maxInFlight) {
+                writeBlock(take(inFlight.removeFirst()));
+            }
+
+            inFlight.addLast(exec.submit(() -> compress(data, length)));
+        }
+    }
+
+    private static byte[] take(Future<byte[]> f) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing block");
+        } catch (ExecutionException e) {
+            throw new IOException("Error while compressing block", e.getCause());
+        }
+    }
+
+    private void writeBlock(byte[] block) throws IOException {
+        blockAddresses.add(address);
+
+        out.write(block);
+        address += block.length;
+    }
+
+    private byte[] compress(byte[] data, int length) {
+        byte[] compressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE - BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH - BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH];
+
+        int n = deflate(data, length, compressed, compressionLevel);
+        if (n < 0) {
+            // Incompressible data: store it, which always fits because BLOCK_SIZE leaves room for the overhead.
+            n = deflate(data, length, compressed, Deflater.NO_COMPRESSION);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        int blockSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + n + BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        byte[] block = new byte[blockSize];
+
+        int p = 0;
+        block[p++] = BlockCompressedStreamConstants.GZIP_ID1;
+        block[p++] = (byte) BlockCompressedStreamConstants.GZIP_ID2;
+        block[p++] = BlockCompressedStreamConstants.GZIP_CM_DEFLATE;
+        block[p++] = (byte) BlockCompressedStreamConstants.GZIP_FLG;
+        p += 4; // modification time
+        block[p++] = (byte) BlockCompressedStreamConstants.GZIP_XFL;
+        block[p++] = (byte) BlockCompressedStreamConstants.GZIP_OS_UNKNOWN;
+        p = putShort(block, p, BlockCompressedStreamConstants.GZIP_XLEN);
+        block[p++] = BlockCompressedStreamConstants.BGZF_ID1;
+        block[p++] = BlockCompressedStreamConstants.BGZF_ID2;
+        p = putShort(block, p, BlockCompressedStreamConstants.BGZF_LEN);
+        p = putShort(block, p, blockSize - 1);
+
+        System.arraycopy(compressed, 0, block, p, n);
+        p += n;
+
+        p = putInt(block, p, (int) crc.getValue());
+        putInt(block, p, length);
+
+        return block;
+    }
+
+    private static int deflate(byte[] data, int length, byte[] compressed, int level) {
+        Deflater deflater = new Deflater(level, true);
+
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+
+            int n = deflater.deflate(compressed, 0, compressed.length);
+
+            return deflater.finished() ? n : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int putShort(byte[] b, int p, int v) {
+        b[p] = (byte) v;
+        b[p + 1] = (byte) (v >>> 8);
+        return p + 2;
+    }
+
+    private static int putInt(byte[] b, int p, int v) {
+        b[p] = (byte) v;
+        b[p + 1] = (byte) (v >>> 8);
+        b[p + 2] = (byte) (v >>> 16);
+        b[p + 3] = (byte) (v >>> 24);
+        return p + 4;
+    }
+
+    /**
+     * Compress and write everything buffered so far, ending the current block early.
+     */
+    @Override
+    public void flush() throws IOException {
+        submitBlock();
+
+        while (!inFlight.isEmpty()) {
+            writeBlock(take(inFlight.removeFirst()));
+        }
+
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        try {
+            flush();
+
+            out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            out.close();
+        } finally {
+            if (exec != null) {
+                exec.shutdownNow();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package uk.ac.ox.well.cortexjdk.utils.kmer;
 
 import org.jetbrains.annotations.NotNull;
+import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
 
 import java.io.Serializable;
 import java.util.Arrays;
@@ -21,6 +22,22 @@ public class CortexByteKmer implements Comparable<CortexByteKmer>, Serializable
 
     public void setKmer(byte[] kmer) { this.kmer = kmer; }
 
+    /**
+     * Check whether this kmer sorts no later than its reverse complement, comparing in place rather than building
+     * the reverse complement.
+     *
+     * @return  true if the kmer is in canonical orientation
+     */
+    public boolean isCanonical() {
+        for (int i = 0, j = kmer.length - 1; i <= j; i++, j--) {
+            byte rc = SequenceUtils.complement(kmer[j]);
+
+            if (kmer[i] != rc) { return kmer[i] < rc; }
+        }
+
+        return true;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,415 @@
+package uk.ac.ox.well.cortexjdk.utils.kmer;
+
+import it.unimi.dsi.fastutil.HashCommon;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An immutable kmer packed at two bits per base (A=0, C=1, G=2, T=3).  Bases are stored most significant first
+ * in 64-bit words; the first word holds the leading (k mod 32) bases right-aligned, and every other word holds 32
+ * bases.  Comparing the words as unsigned values therefore orders kmers exactly as Cortex graphs are sorted on
+ * disk, and each word is the byte-swapped counterpart of the matching word of a CortexRecord binary kmer.
+ *
+ * Kmers of up to 32 bases live in one long and kmers of up to 64 bases in two, with no array allocated; longer
+ * kmers fall back to an array of words.  Callers that only handle k <= 32 can avoid objects entirely with the
+ * static methods that operate on a single packed long.
+ */
+public final class PackedKmer implements Comparable<PackedKmer>, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final long PAIR_MASK = 0x5555555555555555L;
+    private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+
+    private final int k;
+    private final long w0;
+    private final long w1;
+    private final long[] words;
+
+    private PackedKmer(int k, long w0, long w1) {
+        this.k = k;
+        this.w0 = w0;
+        this.w1 = w1;
+        this.words = null;
+    }
+
+    private PackedKmer(int k, long[] words) {
+        this.k = k;
+
+        if (words.length <= 2) {
+            this.w0 = words[0];
+            this.w1 = words.length == 2 ? words[1] : 0;
+            this.words = null;
+        } else {
+            this.w0 = 0;
+            this.w1 = 0;
+            this.words = words;
+        }
+    }
+
+    public static PackedKmer fromBytes(byte[] kmer) {
+        int k = kmer.length;
+        if (k == 0) {
+            throw new CortexJDKException("Cannot pack an empty kmer");
+        }
+
+        long[] packed = new long[numWords(k)];
+        int pad = 32*packed.length - k;
+
+        for (int i = 0; i < k; i++) {
+            int base = encodeBase(kmer[i]);
+            if (base < 0) {
+                throw new CortexJDKException("Cannot pack kmer '" + new String(kmer) + "': invalid base '" + (char) kmer[i] + "'");
+            }
+
+            int p = i + pad;
+            packed[p >>> 5] |= ((long) base) << (2*(31 - (p & 31)));
+        }
+
+        return new PackedKmer(k, packed);
+    }
+
+    public static PackedKmer fromString(String kmer) { return fromBytes(kmer.getBytes()); }
+
+    /**
+     * Pack a binary kmer as stored in a CortexRecord.
+     *
+     * @param binaryKmer  the Cortex binary kmer
+     * @param k  the kmer size
+     * @return  the packed kmer
+     */
+    public static PackedKmer fromBinaryKmer(long[] binaryKmer, int k) {
+        long[] packed = new long[binaryKmer.length];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = Long.reverseBytes(binaryKmer[i]);
+        }
+
+        return new PackedKmer(k, packed);
+    }
+
+    /**
+     * Pack a kmer of up to 32 bases into a single long.
+     *
+     * @param kmer  the kmer bases
+     * @return  the packed kmer, or -1 if the kmer is longer than 32 bases or contains a base other than ACGT
+     */
+    public static long pack(byte[] kmer) {
+        if (kmer.length > 32) {
+            return -1;
+        }
+
+        long packed = 0;
+        for (byte b : kmer) {
+            int base = encodeBase(b);
+            if (base < 0) {
+                return -1;
+            }
+
+            packed = (packed << 2) | base;
+        }
+
+        return packed;
+    }
+
+    public static boolean isPackable(byte[] kmer) {
+        if (kmer.length == 0) {
+            return false;
+        }
+
+        for (byte b : kmer) {
+            if (encodeBase(b) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public static int encodeBase(byte b) {
+        switch (b) {
+            case 'A': case 'a': return 0;
+            case 'C': case 'c': return 1;
+            case 'G': case 'g': return 2;
+            case 'T': case 't': return 3;
+            default: return -1;
+        }
+    }
+
+    public static byte decodeBase(int base) { return BASES[base]; }
+
+    private static int numWords(int k) { return (k + 31) >>> 5; }
+
+    private static long mask(int bases) { return bases >= 32 ? -1L : (1L << (2*bases)) - 1; }
+
+    // Reverse the order of the 2-bit groups in a word.
+    private static long reversePairs(long x) {
+        x = Long.reverse(x);
+
+        return ((x >>> 1) & PAIR_MASK) | ((x & PAIR_MASK) << 1);
+    }
+
+    /**
+     * Reverse complement a kmer of up to 32 bases packed into a single long.
+     *
+     * @param packed  the packed kmer
+     * @param k  the kmer size
+     * @return  the packed reverse complement
+     */
+    public static long reverseComplement(long packed, int k) {
+        return ~(reversePairs(packed) >>> (64 - 2*k)) & mask(k);
+    }
+
+    /**
+     * Canonicalise a kmer of up to 32 bases packed into a single long.
+     *
+     * @param packed  the packed kmer
+     * @param k  the kmer size
+     * @return  the lesser of the kmer and its reverse complement
+     */
+    public static long canonical(long packed, int k) {
+        long rc = reverseComplement(packed, k);
+
+        return Long.compareUnsigned(packed, rc) <= 0 ? packed : rc;
+    }
+
+    /**
+     * Roll a kmer of up to 32 bases forward by one base.
+     *
+     * @param packed  the packed kmer
+     * @param k  the kmer size
+     * @param base  the 2-bit code of the base to append
+     * @return  the packed successor kmer
+     */
+    public static long shiftForward(long packed, int k, int base) {
+        return ((packed << 2) | base) & mask(k);
+    }
+
+    /**
+     * Roll a kmer of up to 32 bases backward by one base.
+     *
+     * @param packed  the packed kmer
+     * @param k  the kmer size
+     * @param base  the 2-bit code of the base to prepend
+     * @return  the packed predecessor kmer
+     */
+    public static long shiftBackward(long packed, int k, int base) {
+        return (packed >>> 2) | (((long) base) << (2*(k - 1)));
+    }
+
+    public int length() { return k; }
+
+    public int getNumWords() { return words != null ? words.length : numWords(k); }
+
+    public long getWord(int i) {
+        if (words != null) { return words[i]; }
+
+        return i == 0 ? w0 : w1;
+    }
+
+    private long[] getWords() {
+        if (words != null) { return words; }
+
+        return numWords(k) == 1 ? new long[] { w0 } : new long[] { w0, w1 };
+    }
+
+    private int firstWordBases() { return k - 32*(getNumWords() - 1); }
+
+    /**
+     * Get the 2-bit code of the i-th base.
+     *
+     * @param i  the base position
+     * @return  the base code (A=0, C=1, G=2, T=3)
+     */
+    public int getBaseCode(int i) {
+        int p = i + 32*getNumWords() - k;
+
+        return (int) ((getWord(p >>> 5) >>> (2*(31 - (p & 31)))) & 3);
+    }
+
+    public byte getBase(int i) { return BASES[getBaseCode(i)]; }
+
+    public PackedKmer reverseComplement() {
+        int n = getNumWords();
+
+        if (n == 1) {
+            return new PackedKmer(k, reverseComplement(w0, k), 0);
+        }
+
+        int shift = 2*(32*n - k);
+
+        if (n == 2) {
+            long r0 = reversePairs(w1);
+            long r1 = reversePairs(w0);
+
+            if (shift > 0) {
+                r1 = (r1 >>> shift) | (r0 << (64 - shift));
+                r0 = r0 >>> shift;
+            }
+
+            return new PackedKmer(k, ~r0 & mask(firstWordBases()), ~r1);
+        }
+
+        long[] r = new long[n];
+        for (int j = 0; j < n; j++) {
+            r[j] = reversePairs(words[n - 1 - j]);
+        }
+
+        if (shift > 0) {
+            for (int j = n - 1; j > 0; j--) {
+                r[j] = (r[j] >>> shift) | (r[j - 1] << (64 - shift));
+            }
+            r[0] >>>= shift;
+        }
+
+        for (int j = 0; j < n; j++) {
+            r[j] = ~r[j];
+        }
+        r[0] &= mask(firstWordBases());
+
+        return new PackedKmer(k, r);
+    }
+
+    public boolean isCanonical() {
+        return compareTo(reverseComplement()) <= 0;
+    }
+
+    /**
+     * Get the lesser of this kmer and its reverse complement, i.e. the orientation stored in Cortex graphs.
+     *
+     * @return  the canonical kmer
+     */
+    public PackedKmer canonical() {
+        PackedKmer rc = reverseComplement();
+
+        return compareTo(rc) <= 0 ? this : rc;
+    }
+
+    /**
+     * Roll the kmer forward: drop the first base and append a new one.
+     *
+     * @param base  the base to append
+     * @return  the successor kmer
+     */
+    public PackedKmer next(byte base) {
+        int code = encodeBase(base);
+        if (code < 0) {
+            throw new CortexJDKException("Invalid base '" + (char) base + "'");
+        }
+
+        int n = getNumWords();
+
+        if (n == 1) {
+            return new PackedKmer(k, shiftForward(w0, k, code), 0);
+        } else if (n == 2) {
+            return new PackedKmer(k, ((w0 << 2) | (w1 >>> 62)) & mask(firstWordBases()), (w1 << 2) | code);
+        }
+
+        long[] r = new long[n];
+        for (int j = 0; j < n; j++) {
+            r[j] = (words[j] << 2) | (j < n - 1 ? words[j + 1] >>> 62 : code);
+        }
+        r[0] &= mask(firstWordBases());
+
+        return new PackedKmer(k, r);
+    }
+
+    /**
+     * Roll the kmer backward: drop the last base and prepend a new one.
+     *
+     * @param base  the base to prepend
+     * @return  the predecessor kmer
+     */
+    public PackedKmer prev(byte base) {
+        int code = encodeBase(base);
+        if (code < 0) {
+            throw new CortexJDKException("Invalid base '" + (char) base + "'");
+        }
+
+        int n = getNumWords();
+
+        if (n == 1) {
+            return new PackedKmer(k, shiftBackward(w0, k, code), 0);
+        } else if (n == 2) {
+            return new PackedKmer(k, (w0 >>> 2) | (((long) code) << (2*(firstWordBases() - 1))), (w1 >>> 2) | (w0 << 62));
+        }
+
+        long[] r = new long[n];
+        for (int j = 0; j < n; j++) {
+            r[j] = (words[j] >>> 2) | (j > 0 ? words[j - 1] << 62 : 0);
+        }
+        r[0] |= ((long) code) << (2*(firstWordBases() - 1));
+
+        return new PackedKmer(k, r);
+    }
+
+    /**
+     * Convert to the binary kmer layout used by CortexRecord.
+     *
+     * @return  the Cortex binary kmer
+     */
+    public long[] toBinaryKmer() {
+        long[] binaryKmer = getWords().clone();
+        for (int i = 0; i < binaryKmer.length; i++) {
+            binaryKmer[i] = Long.reverseBytes(binaryKmer[i]);
+        }
+
+        return binaryKmer;
+    }
+
+    public byte[] getKmerAsBytes() {
+        byte[] kmer = new byte[k];
+        for (int i = 0; i < k; i++) {
+            kmer[i] = getBase(i);
+        }
+
+        return kmer;
+    }
+
+    public CanonicalKmer toCanonicalKmer() { return new CanonicalKmer(canonical().getKmerAsBytes(), true); }
+
+    public CortexByteKmer toByteKmer() { return new CortexByteKmer(getKmerAsBytes()); }
+
+    @Override
+    public int compareTo(PackedKmer o) {
+        if (k != o.k) {
+            return Integer.compare(k, o.k);
+        }
+
+        for (int i = 0; i < getNumWords(); i++) {
+            int c = Long.compareUnsigned(getWord(i), o.getWord(i));
+
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PackedKmer)) return false;
+
+        PackedKmer that = (PackedKmer) o;
+
+        return k == that.k && w0 == that.w0 && w1 == that.w1 && Arrays.equals(words, that.words);
+    }
+
+    @Override
+    public int hashCode() {
+        long h = HashCommon.mix(w0 ^ k) ^ HashCommon.mix(w1);
+
+        if (words != null) {
+            for (long w : words) {
+                h = HashCommon.mix(h ^ w);
+            }
+        }
+
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() { return new String(getKmerAsBytes()); }
+}
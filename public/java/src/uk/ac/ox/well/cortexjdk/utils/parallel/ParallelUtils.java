@@ -0,0 +1,70 @@
+package uk.ac.ox.well.cortexjdk.utils.parallel;
+
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A set of utilities for spreading independent pieces of work over several threads.
+ */
+public class ParallelUtils {
+    private ParallelUtils() {}
+
+    /**
+     * Map pieces of work on a pool of threads and hand the results to a reducer on the calling thread, in input
+     * order.  Only a few pieces per thread are in flight at once, so mappers that collect records to write (rather
+     * than counts) hold a bounded number of them in memory.
+     *
+     * @param pieces  the pieces of work (graph partitions, batches of records, shards, ...); they are drawn lazily on
+     *                the calling thread, so this can be a stream of batches read from a file
+     * @param numThreads  the number of worker threads
+     * @param mapper  the per-piece computation, called concurrently
+     * @param reducer  the consumer of each piece's result, called sequentially in input order
+     * @param <P>  the piece type
+     * @param <T>  the per-piece result type
+     */
+    public static <P, T> void mapReduce(Iterable<P> pieces, int numThreads, Function<P, T> mapper, Consumer<T> reducer) {
+        if (numThreads <= 1) {
+            for (P p : pieces) {
+                reducer.accept(mapper.apply(p));
+            }
+
+            return;
+        }
+
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        Deque<Future<T>> inFlight = new ArrayDeque<>();
+
+        try {
+            for (P p : pieces) {
+                if (inFlight.size() >= 2*numThreads) {
+                    reducer.accept(inFlight.removeFirst().get());
+                }
+
+                inFlight.addLast(exec.submit(() -> mapper.apply(p)));
+            }
+
+            while (!inFlight.isEmpty()) {
+                reducer.accept(inFlight.removeFirst().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CortexJDKException("Interrupted while processing work in parallel", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+
+            throw new CortexJDKException("Error while processing work in parallel", e.getCause());
+        } finally {
+            exec.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package uk.ac.ox.well.cortexjdk.utils.sort;
+
+import it.unimi.dsi.fastutil.Arrays;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * An out-of-core sorter for fixed-width records of primitive longs.  Each record is recordWords longs, ordered by
+ * its first keyWords longs (compared as signed or unsigned values).  Records accumulate in a single long[] buffer
+ * sized from a memory budget; when it fills, the buffer is sorted in place (in parallel, if more than one thread
+ * is allowed) and spilled to a temporary run file.  Once all records are added, the runs are combined with a k-way
+ * heap merge.  If everything fits in the budget, no temporary files are written at all.
+ */
+public class ExternalRecordSorter implements AutoCloseable {
+    // Merging more runs than this at once costs too many file handles and too little read buffer per run, so
+    // larger run sets are merged in several passes.
+    private static final int MAX_MERGE_WIDTH = 128;
+
+    // The sort buffer starts small and doubles up to the memory budget, so small inputs don't pay for it.
+    private static final int INITIAL_BUFFER_RECORDS = 1 << 16;
+
+    private static final int MIN_IO_BUFFER_SIZE = 64*1024;
+    private static final int MAX_IO_BUFFER_SIZE = 8*1024*1024;
+
+    private final int recordWords;
+    private final int keyWords;
+    private final boolean unsignedKeys;
+    private final long memoryBytes;
+    private final File tempDir;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    private long[] buffer;
+    private final int maxBufferWords;
+    private final long[] swap;
+    private int bufferedRecords = 0;
+    private long numRecords = 0;
+    private boolean finished = false;
+
+    private final List<File> runs = new ArrayList<>();
+
+    /**
+     * @param recordWords  the number of longs per record
+     * @param keyWords  the number of leading longs that form the sort key
+     * @param unsignedKeys  whether key words compare as unsigned values
+     * @param memoryBytes  the approximate number of bytes to spend on buffered records
+     * @param tempDir  the directory for run files, or null for the system default
+     */
+    public ExternalRecordSorter(int recordWords, int keyWords, boolean unsignedKeys, long memoryBytes, File tempDir) {
+        if (recordWords <= 0 || keyWords <= 0 || keyWords > recordWords) {
+            throw new CortexJDKException("Invalid record layout: " + keyWords + " key words in " + recordWords + " record words");
+        }
+
+        this.recordWords = recordWords;
+        this.keyWords = keyWords;
+        this.unsignedKeys = unsignedKeys;
+        this.memoryBytes = memoryBytes;
+        this.tempDir = tempDir;
+
+        long maxRecords = Math.max(1, memoryBytes / (8L*recordWords));
+        this.maxBufferWords = (int) Math.min(maxRecords, (Integer.MAX_VALUE - 8) / recordWords)*recordWords;
+        this.buffer = new long[Math.min(maxBufferWords, INITIAL_BUFFER_RECORDS*recordWords)];
+        this.swap = new long[recordWords];
+    }
+
+    public ExternalRecordSorter(int recordWords, int keyWords, boolean unsignedKeys, long memoryBytes) {
+        this(recordWords, keyWords, unsignedKeys, memoryBytes, null);
+    }
+
+    /**
+     * A memory budget suitable when the sorter is the main consumer of the heap: a quarter of the maximum.
+     *
+     * @return  the default budget, in bytes
+     */
+    public static long defaultMemoryBudget() {
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    public void setNumThreads(int numThreads) { this.numThreads = Math.max(1, numThreads); }
+
+    public int getRecordWords() { return recordWords; }
+
+    public int getKeyWords() { return keyWords; }
+
+    public long getNumRecords() { return numRecords; }
+
+    public int getNumRuns() { return runs.size(); }
+
+    public int getBufferCapacity() { return maxBufferWords / recordWords; }
+
+    /**
+     * Add a record, copying it into the sort buffer.
+     *
+     * @param record  an array holding the record at the given offset
+     * @param offset  the index of the record's first word
+     */
+    public void add(long[] record, int offset) {
+        if (finished) {
+            throw new CortexJDKException("Cannot add records after sorted output has been read");
+        }
+
+        if ((bufferedRecords + 1)*recordWords > buffer.length) {
+            if (buffer.length < maxBufferWords) {
+                buffer = LongArrays.ensureCapacity(buffer, (int) Math.min(maxBufferWords, 2L*buffer.length), bufferedRecords*recordWords);
+            } else {
+                spill();
+            }
+        }
+
+        System.arraycopy(record, offset, buffer, bufferedRecords*recordWords, recordWords);
+        bufferedRecords++;
+        numRecords++;
+    }
+
+    public void add(long[] record) { add(record, 0); }
+
+    private int compare(long[] a, int ia, long[] b, int ib) {
+        for (int w = 0; w < keyWords; w++) {
+            long x = a[ia + w];
+            long y = b[ib + w];
+
+            if (x != y) {
+                return unsignedKeys ? Long.compareUnsigned(x, y) : (x < y ? -1 : 1);
+            }
+        }
+
+        return 0;
+    }
+
+    private void sortBuffer() {
+        final long[] b = buffer;
+
+        AbstractIntComparator comparator = new AbstractIntComparator() {
+            @Override
+            public int compare(int i, int j) {
+                return ExternalRecordSorter.this.compare(b, i*recordWords, b, j*recordWords);
+            }
+        };
+
+        if (numThreads > 1) {
+            // Sort tasks run concurrently, so each worker swaps through its own scratch record.
+            ThreadLocal<long[]> scratch = ThreadLocal.withInitial(() -> new long[recordWords]);
+
+            Arrays.parallelQuickSort(0, bufferedRecords, comparator, (i, j) -> swapRecords(b, i, j, scratch.get()));
+        } else {
+            Arrays.quickSort(0, bufferedRecords, comparator, (i, j) -> swapRecords(b, i, j, swap));
+        }
+    }
+
+    private void swapRecords(long[] b, int i, int j, long[] tmp) {
+        System.arraycopy(b, i*recordWords, tmp, 0, recordWords);
+        System.arraycopy(b, j*recordWords, b, i*recordWords, recordWords);
+        System.arraycopy(tmp, 0, b, j*recordWords, recordWords);
+    }
+
+    private int ioBufferSize(int numReaders) {
+        long perReader = memoryBytes / Math.max(1, numReaders);
+        int size = (int) Math.max(MIN_IO_BUFFER_SIZE, Math.min(MAX_IO_BUFFER_SIZE, perReader));
+
+        return size - (size % (8*recordWords));
+    }
+
+    private File newRunFile() {
+        try {
+            File run = File.createTempFile("sort", ".run", tempDir);
+            run.deleteOnExit();
+
+            return run;
+        } catch (IOException e) {
+            throw new CortexJDKException("Unable to create temporary sort run in '" + (tempDir == null ? System.getProperty("java.io.tmpdir") : tempDir.getAbsolutePath()) + "'", e);
+        }
+    }
+
+    private void spill() {
+        if (bufferedRecords == 0) {
+            return;
+        }
+
+        sortBuffer();
+
+        File run = newRunFile();
+        try (RunWriter rw = new RunWriter(run, ioBufferSize(1))) {
+            for (int r = 0; r < bufferedRecords; r++) {
+                rw.write(buffer, r*recordWords);
+            }
+        }
+
+        runs.add(run);
+        bufferedRecords = 0;
+    }
+
+    /**
+     * Visit every record in sorted order.  The array handed to the consumer is reused between calls, so callers
+     * must copy anything they want to keep.  No records may be added afterwards.
+     *
+     * @param consumer  the record visitor
+     */
+    public void forEachSorted(Consumer<long[]> consumer) {
+        if (finished) {
+            throw new CortexJDKException("Sorted output can only be read once");
+        }
+        finished = true;
+
+        long[] record = new long[recordWords];
+
+        if (runs.isEmpty()) {
+            sortBuffer();
+
+            for (int r = 0; r < bufferedRecords; r++) {
+                System.arraycopy(buffer, r*recordWords, record, 0, recordWords);
+                consumer.accept(record);
+            }
+        } else {
+            spill();
+
+            // The sort buffer is no longer needed; give its memory to the merge.
+            buffer = null;
+
+            while (runs.size() > MAX_MERGE_WIDTH) {
+                List<File> group = new ArrayList<>(runs.subList(0, MAX_MERGE_WIDTH));
+                runs.subList(0, MAX_MERGE_WIDTH).clear();
+
+                File merged = newRunFile();
+                try (RunWriter rw = new RunWriter(merged, ioBufferSize(MAX_MERGE_WIDTH + 1))) {
+                    merge(group, r -> rw.write(r, 0));
+                }
+
+                runs.add(merged);
+            }
+
+            merge(runs, consumer);
+        }
+    }
+
+    private void merge(List<File> group, Consumer<long[]> consumer) {
+        int ioBufferSize = ioBufferSize(group.size() + 1);
+
+        PriorityQueue<RunReader> heap = new PriorityQueue<>(group.size(), (a, b) -> compare(a.record, 0, b.record, 0));
+        List<RunReader> readers = new ArrayList<>();
+
+        try {
+            for (File run : group) {
+                RunReader rr = new RunReader(run, ioBufferSize);
+                readers.add(rr);
+
+                if (rr.next()) {
+                    heap.add(rr);
+                }
+            }
+
+            while (!heap.isEmpty()) {
+                RunReader rr = heap.poll();
+
+                consumer.accept(rr.record);
+
+                if (rr.next()) {
+                    heap.add(rr);
+                }
+            }
+        } finally {
+            for (RunReader rr : readers) {
+                rr.close();
+            }
+
+            for (File run : group) {
+                run.delete();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        for (File run : runs) {
+            run.delete();
+        }
+
+        runs.clear();
+        buffer = null;
+        finished = true;
+    }
+
+    private class RunWriter implements AutoCloseable {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final ByteBuffer bb;
+
+        RunWriter(File file, int bufferSize) {
+            this.file = file;
+
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                channel = raf.getChannel();
+                bb = ByteBuffer.allocateDirect(bufferSize);
+            } catch (IOException e) {
+                throw new CortexJDKException("Unable to open sort run '" + file.getAbsolutePath() + "'", e);
+            }
+        }
+
+        void write(long[] record, int offset) {
+            if (bb.remaining() < 8*recordWords) {
+                flush();
+            }
+
+            for (int w = 0; w < recordWords; w++) {
+                bb.putLong(record[offset + w]);
+            }
+        }
+
+        private void flush() {
+            bb.flip();
+
+            try {
+                while (bb.hasRemaining()) {
+                    channel.write(bb);
+                }
+            } catch (IOException e) {
+                throw new CortexJDKException("Unable to write sort run '" + file.getAbsolutePath() + "'", e);
+            }
+
+            bb.clear();
+        }
+
+        @Override
+        public void close() {
+            flush();
+
+            try {
+                raf.close();
+            } catch (IOException e) {
+                throw new CortexJDKException("Unable to close sort run '" + file.getAbsolutePath() + "'", e);
+            }
+        }
+    }
+
+    private class RunReader {
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final ByteBuffer bb;
+        private boolean eof = false;
+
+        final long[] record = new long[recordWords];
+
+        RunReader(File file, int bufferSize) {
+            this.file = file;
+
+            try {
+                raf = new RandomAccessFile(file, "r");
+                channel = raf.getChannel();
+                bb = ByteBuffer.allocateDirect(bufferSize);
+                bb.flip();
+            } catch (IOException e) {
+                throw new CortexJDKException("Unable to open sort run '" + file.getAbsolutePath() + "'", e);
+            }
+        }
+
+        boolean next() {
+            if (bb.remaining() < 8*recordWords) {
+                if (eof) {
+                    return false;
+                }
+
+                bb.compact();
+
+                try {
+                    while (bb.hasRemaining()) {
+                        if (channel.read(bb) < 0) {
+                            eof = true;
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new CortexJDKException("Unable to read sort run '" + file.getAbsolutePath() + "'", e);
+                }
+
+                bb.flip();
+
+                if (bb.remaining() < 8*recordWords) {
+                    return false;
+                }
+            }
+
+            for (int w = 0; w < recordWords; w++) {
+                record[w] = bb.getLong();
+            }
+
+            return true;
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                throw new CortexJDKException("Unable to close sort run '" + file.getAbsolutePath() + "'", e);
+            }
+        }
+    }
+}
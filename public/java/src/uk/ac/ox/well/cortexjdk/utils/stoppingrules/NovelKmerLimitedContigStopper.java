@@ -2,7 +2,7 @@ package uk.ac.ox.well.cortexjdk.utils.stoppingrules;
 
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
-import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
 import uk.ac.ox.well.cortexjdk.utils.traversal.CortexEdge;
 import uk.ac.ox.well.cortexjdk.utils.traversal.CortexVertex;
 import uk.ac.ox.well.cortexjdk.utils.traversal.TraversalState;
@@ -17,7 +17,7 @@ public class NovelKmerLimitedContigStopper extends AbstractTraversalStoppingRule
     private boolean foundNovelKmers = false;
     private int distanceFromSeed = 0;
 
-    private Set<CanonicalKmer> rois = null;
+    private Set<PackedKmer> rois = null;
 
     @Override
     public boolean hasTraversalSucceeded(TraversalState<CortexVertex> s) {
@@ -27,14 +27,14 @@ public class NovelKmerLimitedContigStopper extends AbstractTraversalStoppingRule
             if (rois == null) {
                 rois = new HashSet<>();
                 for (CortexRecord cr : s.getRois()) {
-                    rois.add(cr.getCanonicalKmer());
+                    rois.add(cr.getPackedKmer());
                 }
             }
         } else {
             throw new CortexJDKException("This stopper requires a list of novel kmers be provided.");
         }
 
-        if (rois != null && rois.contains(s.getCurrentVertex().getCanonicalKmer())) {
+        if (rois != null && s.getCurrentVertex().getCortexRecord() != null && rois.contains(s.getCurrentVertex().getCortexRecord().getPackedKmer())) {
             foundNovelKmers = true;
             distanceFromSeed = 0;
         }
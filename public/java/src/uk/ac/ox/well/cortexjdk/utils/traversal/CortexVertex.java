@@ -6,6 +6,7 @@ import org.jetbrains.annotations.Nullable;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
 
 import java.io.Serializable;
 import java.util.Set;
@@ -44,6 +45,8 @@ public class CortexVertex implements Serializable {
 
     public CanonicalKmer getCanonicalKmer() { return cr != null ? cr.getCanonicalKmer() : null; }
 
+    public PackedKmer getPackedKmer() { return PackedKmer.fromBytes(sk.getKmer()); }
+
     public int getCopyIndex() { return copyIndex; }
 
     public int getIndex() { return index; }
@@ -2,6 +2,7 @@ package uk.ac.ox.well.cortexjdk.utils.traversal;
 
 import org.apache.commons.math3.util.Pair;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexJunctionsRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksBinaryRecord;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRecord;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
 import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
@@ -10,151 +11,282 @@ import java.util.*;
 
 /**
  * Created by kiran on 24/07/2017.
+ *
+ * The links picked up during a traversal, stored as a single trie of the junction choices still ahead of them.
+ * Every active link has agreed with every choice taken since it was added, so all of them continue from the same
+ * point: the root.  A link is inserted below the root, and taking a junction choice moves the root to the child
+ * with that label.  Links that disagree with the choice are left behind with the root's other children, and links
+ * whose last junction was the choice end at the new root, so links expire without being visited.  Links with no
+ * junctions stay active until the next choice is taken.
+ *
+ * Ages count the steps since a link was added.  A choice is only made if the oldest links all agree on it.  The
+ * choice itself, and its sources, come from the junction list of the earliest-added active link (links are
+ * ordered by when they were added, which breaks ties between equally old links): the choice is read at the
+ * position of the youngest link with that junction list, and the sources are those of every link with it.
  */
 public class LinkStore {
-    private Map<String, List<LinkStoreElement>> linkElements = new HashMap<>();
+    private static class Link {
+        private final String junctionList;
+        private final long birth;
+        private final long order;
+        private final long start;
+        private final String source;
+
+        // The node the link's last junction leads to.
+        private Node end;
+
+        private Link(String junctionList, long birth, long order, long start, String source) {
+            this.junctionList = junctionList;
+            this.birth = birth;
+            this.order = order;
+            this.start = start;
+            this.source = source;
+        }
+    }
+
+    private static class Node {
+        private char[] labels = new char[0];
+        private Node[] children = new Node[0];
+
+        // The earliest-added link through this node, which is also one of its oldest.
+        private final Link first;
+
+        // Links that pass through or end at this node.
+        private int numLinks = 0;
+
+        // Links that end at this node.
+        private List<Link> ending = null;
+
+        private Node(Link first) {
+            this.first = first;
+        }
+
+        private Node child(char label) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == label) {
+                    return children[i];
+                }
+            }
+
+            return null;
+        }
+
+        private Node addChild(char label, Link link) {
+            Node child = child(label);
+
+            if (child == null) {
+                child = new Node(link);
+
+                labels = Arrays.copyOf(labels, labels.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                labels[labels.length - 1] = label;
+                children[children.length - 1] = child;
+            }
+
+            return child;
+        }
+    }
+
+    private Node root = new Node(null);
+    private int numActive = 0;
+
+    // Links with no junctions, active until the next choice is taken.
+    private List<Link> emptyLinks = new ArrayList<>();
+
+    // Links added since the ages were last incremented.
+    private List<Link> newLinks = new ArrayList<>();
+
+    private long numSteps = 0;
+    private long numChoices = 0;
+    private long numAdded = 0;
 
     public void add(CortexByteKmer curKmer, CortexLinksRecord clr, boolean goForward, String linkSource) {
         boolean recordOrientationMatchesKmer = clr.getKmerAsByteKmer().equals(curKmer);
 
-        List<CortexJunctionsRecord> junctions = new ArrayList<>();
-        junctions.addAll(clr.getJunctions());
-
-        for (CortexJunctionsRecord cjr : junctions) {
+        for (CortexJunctionsRecord cjr : clr.getJunctions()) {
             boolean linkGoesForward = recordOrientationMatchesKmer == cjr.isForward();
-            String junctionList = linkGoesForward ? cjr.getJunctions() : SequenceUtils.complement(cjr.getJunctions());
 
             if (linkGoesForward == goForward) {
-                if (!linkElements.containsKey(junctionList)) {
-                    linkElements.put(junctionList, new ArrayList<>());
+                add(linkGoesForward ? cjr.getJunctions() : SequenceUtils.complement(cjr.getJunctions()), linkSource);
+            }
+        }
+    }
+
+    /**
+     * Add a kmer's links straight from their binary form, without decoding the record.
+     */
+    public void add(CortexByteKmer curKmer, CortexLinksBinaryRecord blr, boolean goForward, String linkSource) {
+        boolean recordOrientationMatchesKmer = blr.isKmer(curKmer.getKmer());
+
+        for (int link = 0; link < blr.getNumLinks(); link++) {
+            boolean linkGoesForward = recordOrientationMatchesKmer == blr.isForward(link);
+
+            if (linkGoesForward == goForward) {
+                byte[] junctionList = new byte[blr.getJunctionsLength(link)];
+
+                for (int i = 0; i < junctionList.length; i++) {
+                    byte b = blr.getJunction(link, i);
+                    junctionList[i] = linkGoesForward ? b : SequenceUtils.complement(b);
                 }
 
-                linkElements.get(junctionList).add(new LinkStoreElement(junctionList, 0, 0, linkSource));
+                add(new String(junctionList), linkSource);
             }
         }
     }
 
-    public void incrementAges() {
-        for (String junctionList : linkElements.keySet()) {
-            for (LinkStoreElement lse : linkElements.get(junctionList)) {
-                lse.incrementAge();
-            }
+    private void add(String junctionList, String linkSource) {
+        Link link = new Link(junctionList, numSteps, numAdded++, numChoices, linkSource);
+        newLinks.add(link);
+
+        if (junctionList.isEmpty()) {
+            emptyLinks.add(link);
+            return;
+        }
+
+        Node node = root;
+        for (int i = 0; i < junctionList.length(); i++) {
+            node = node.addChild(junctionList.charAt(i), link);
+            node.numLinks++;
+        }
+
+        if (node.ending == null) {
+            node.ending = new ArrayList<>(1);
         }
+
+        node.ending.add(link);
+        link.end = node;
+
+        numActive++;
+    }
+
+    public void incrementAges() {
+        numSteps++;
+        newLinks.clear();
     }
 
     public int numNewPaths() {
         int numNewPaths = 0;
-        for (String junctionList : linkElements.keySet()) {
-            for (LinkStoreElement lse : linkElements.get(junctionList)) {
-                if (lse.getAge() == 0) {
-                    numNewPaths++;
-                }
+
+        for (Link link : newLinks) {
+            if (isActive(link)) {
+                numNewPaths++;
             }
         }
 
         return numNewPaths;
     }
 
-    private void incrementPositionsAndExpire(String choice) {
-        Set<LinkStoreElement> toRemove = new HashSet<>();
+    private int pos(Link link) { return (int) (numChoices - link.start); }
 
-        List<LinkStoreElement> lses = new ArrayList<>();
-        for (String junctionList : linkElements.keySet()) {
-            lses.addAll(linkElements.get(junctionList));
+    // The node reached by following a junction list from the root, starting at the given position.
+    private Node find(String junctionList, int pos) {
+        Node node = root;
+
+        for (int i = pos; i < junctionList.length() && node != null; i++) {
+            node = node.child(junctionList.charAt(i));
         }
 
-        lses.sort((o1, o2) -> {
-            if (o1.getAge() != o2.getAge()) { return o1.getAge() > o2.getAge() ? -1 : 1; }
-            if (o1.length() == o2.length()) { return o2.getJunctionList().compareTo(o1.getJunctionList()); }
-            return o1.length() < o2.length() ? -1 : 1;
-        });
+        return node;
+    }
 
-        for (LinkStoreElement lse : lses) {
-            int pos = lse.getPos();
-            String junctionList = lse.getJunctionList();
+    private boolean isActive(Link link) {
+        int pos = pos(link);
 
-            if (lse.getPos() + 1 >= junctionList.length() || !junctionList.substring(pos, pos + 1).equals(choice)) {
-                toRemove.add(lse);
-            } else if (junctionList.substring(pos, pos + 1).equals(choice)) {
-                lse.incrementPos();
-            }
+        if (link.junctionList.isEmpty()) {
+            return pos == 0;
         }
 
-        for (LinkStoreElement lse : toRemove) {
-            linkElements.get(lse.getJunctionList()).remove(lse);
-
-            if (linkElements.get(lse.getJunctionList()).size() == 0) {
-                linkElements.remove(lse.getJunctionList());
-            }
-        }
+        return pos < link.junctionList.length() && find(link.junctionList, pos) == link.end;
     }
 
-    private String getOldestLink() {
-        int age = Integer.MIN_VALUE;
+    // The root's child that the oldest links all lead to, or null if they disagree or have no junctions to offer.
+    private Node getOldestChoice() {
+        long oldest = emptyLinks.isEmpty() ? Long.MAX_VALUE : emptyLinks.get(0).birth;
 
-        for (String junctionList : linkElements.keySet()) {
-            for (LinkStoreElement lse : linkElements.get(junctionList)) {
-                if (lse.getAge() > age) {
-                    age = lse.getAge();
-                }
-            }
+        for (Node child : root.children) {
+            oldest = Math.min(oldest, child.first.birth);
         }
 
-        Set<LinkStoreElement> oldestLinks = new LinkedHashSet<>();
-        for (String junctionList : linkElements.keySet()) {
-            for (LinkStoreElement lse : linkElements.get(junctionList)) {
-                if (lse.getAge() == age) {
-                    oldestLinks.add(lse);
+        Node choice = null;
+
+        for (Node child : root.children) {
+            if (child.first.birth == oldest) {
+                if (choice != null) {
+                    return null;
                 }
-            }
-        }
 
-        Set<String> junctionChoices = new LinkedHashSet<>();
-        for (LinkStoreElement lse : oldestLinks) {
-            if (lse.getPos() + 1 <= lse.length()) {
-                junctionChoices.add(lse.getJunctionList().substring(lse.getPos(), lse.getPos() + 1));
+                choice = child;
             }
         }
 
-        return junctionChoices.size() == 1 ? oldestLinks.iterator().next().getJunctionList() : null;
+        return choice;
+    }
+
+    private void take(char choice) {
+        Node next = root.child(choice);
+
+        root = next == null ? new Node(null) : next;
+        numActive = root.numLinks - (root.ending == null ? 0 : root.ending.size());
+        root.ending = null;
+
+        emptyLinks.clear();
+        numChoices++;
     }
 
     public Pair<String, Set<String>> getNextJunctionChoice() {
-        String junctionList = getOldestLink();
         String choice = null;
         Set<String> junctionSources = new TreeSet<>();
 
-        if (junctionList != null) {
-            for (LinkStoreElement lse : linkElements.get(junctionList)) {
-                int pos = lse.getPos();
+        Node oldest = getOldestChoice();
 
-                choice = junctionList.substring(pos, pos + 1);
+        if (oldest != null) {
+            String junctionList = oldest.first.junctionList;
+            Link youngest = null;
 
-                for (String jl : linkElements.keySet()) {
-                    if (pos < jl.length() && jl.substring(pos, pos + 1).equals(choice)) {
-                        junctionSources.add(lse.getSource());
+            // Every active link with this junction list ends below the root, at the rest of the list from its position.
+            for (int pos = 0; pos < junctionList.length(); pos++) {
+                Node end = find(junctionList, pos);
+
+                if (end != null && end.ending != null) {
+                    for (Link link : end.ending) {
+                        if (link.junctionList.equals(junctionList)) {
+                            junctionSources.add(link.source);
+
+                            if (youngest == null || link.order > youngest.order) {
+                                youngest = link;
+                            }
+                        }
                     }
                 }
             }
 
-            incrementPositionsAndExpire(choice);
+            char c = junctionList.charAt(pos(youngest));
+            choice = String.valueOf(c);
+
+            take(c);
         }
 
         return new Pair<>(choice, junctionSources);
     }
 
     public boolean isActive() {
-        return linkElements.size() > 0;
+        return size() > 0;
     }
 
     public int size() {
-        int numElements = 0;
+        return numActive + emptyLinks.size();
+    }
 
-        for (String junctionList : linkElements.keySet()) {
-            numElements += linkElements.get(junctionList).size();
-        }
+    private void collect(Node node, List<LinkStoreElement> elements) {
+        for (Node child : node.children) {
+            if (child.ending != null) {
+                for (Link link : child.ending) {
+                    elements.add(new LinkStoreElement(link.junctionList, (int) (numSteps - link.birth), pos(link), link.source));
+                }
+            }
 
-        return numElements;
+            collect(child, elements);
+        }
     }
 
     @Override
@@ -163,10 +295,12 @@ public class LinkStore {
 
         List<LinkStoreElement> junctionLists = new ArrayList<>();
 
-        for (String jl : linkElements.keySet()) {
-            junctionLists.addAll(linkElements.get(jl));
+        for (Link link : emptyLinks) {
+            junctionLists.add(new LinkStoreElement(link.junctionList, (int) (numSteps - link.birth), 0, link.source));
         }
 
+        collect(root, junctionLists);
+
         junctionLists.sort((o1, o2) -> {
             if (o1.getAge() != o2.getAge()) {
                 return o1.getAge() > o2.getAge() ? -1 : 1;
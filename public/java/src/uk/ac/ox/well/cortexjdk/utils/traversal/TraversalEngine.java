@@ -8,8 +8,10 @@ import uk.ac.ox.well.cortexjdk.Main;
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.ConnectivityAnnotations;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksBinaryRecord;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CanonicalKmer;
 import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
 import uk.ac.ox.well.cortexjdk.utils.stoppingrules.TraversalStoppingRule;
 
 import java.util.*;
@@ -61,14 +63,25 @@ public class TraversalEngine {
         return dfs(source.getKmerAsString());
     }
 
+    public DirectedWeightedPseudograph<CortexVertex, CortexEdge> dfs(PackedKmer source, String... sinks) {
+        return dfs(new CortexVertexFactory()
+                .bases(source.getKmerAsBytes())
+                .record(ec.getGraph().findRecord(source))
+                .copyIndex(0)
+                .index(0)
+                .make(), sinks);
+    }
+
     public DirectedWeightedPseudograph<CortexVertex, CortexEdge> dfs(String source, String... sinks) {
-        CortexVertex cv = new CortexVertexFactory()
+        return dfs(new CortexVertexFactory()
                 .bases(source)
                 .record(ec.getGraph().findRecord(source))
                 .copyIndex(0)
                 .index(0)
-                .make();
+                .make(), sinks);
+    }
 
+    private DirectedWeightedPseudograph<CortexVertex, CortexEdge> dfs(CortexVertex cv, String... sinks) {
         DirectedWeightedPseudograph<CortexVertex, CortexEdge> dfsr = (ec.getTraversalDirection() == BOTH || ec.getTraversalDirection() == REVERSE) ? dfs(cv, false, 0, 0, new HashSet<>(), sinks) : null;
         DirectedWeightedPseudograph<CortexVertex, CortexEdge> dfsf = (ec.getTraversalDirection() == BOTH || ec.getTraversalDirection() == FORWARD) ? dfs(cv, true,  0, 0, new HashSet<>(), sinks) : null;
 
@@ -107,6 +120,8 @@ public class TraversalEngine {
 
     public List<CortexVertex> walk(CanonicalKmer seed) { return TraversalUtils.toWalk(dfs(seed.getKmerAsString()), seed.getKmerAsString(), ec.getTraversalColors().iterator().next()); }
 
+    public List<CortexVertex> walk(PackedKmer seed) { return TraversalUtils.toWalk(dfs(seed), seed.toByteKmer(), ec.getTraversalColors().iterator().next()); }
+
     public List<CortexVertex> walk(String seed) { return TraversalUtils.toWalk(dfs(seed), seed, ec.getTraversalColors().iterator().next()); }
 
     public List<CortexVertex> assemble(String seed) {
@@ -145,9 +160,17 @@ public class TraversalEngine {
     }
 
     public Set<CortexVertex> getPrevVertices(CortexByteKmer sk) {
+        return getPrevVertices(sk, ec.getGraph().findRecord(sk));
+    }
+
+    public Set<CortexVertex> getPrevVertices(CortexVertex cv) {
+        return getPrevVertices(cv.getKmerAsByteKmer(), cv.getCortexRecord());
+    }
+
+    private Set<CortexVertex> getPrevVertices(CortexByteKmer sk, CortexRecord cr) {
         Set<CortexVertex> prevVertices = new HashSet<>();
 
-        Map<Integer, Set<CortexByteKmer>> prevKmers = getAllPrevKmers(sk);
+        Map<Integer, Set<CortexByteKmer>> prevKmers = getAllPrevKmers(sk, cr);
 
         Set<CortexByteKmer> combinedPrevKmers = new HashSet<>();
         for (int c : ec.getTraversalColors()) {
@@ -192,9 +215,17 @@ public class TraversalEngine {
     }
 
     public Set<CortexVertex> getNextVertices(CortexByteKmer sk) {
+        return getNextVertices(sk, ec.getGraph().findRecord(sk));
+    }
+
+    public Set<CortexVertex> getNextVertices(CortexVertex cv) {
+        return getNextVertices(cv.getKmerAsByteKmer(), cv.getCortexRecord());
+    }
+
+    private Set<CortexVertex> getNextVertices(CortexByteKmer sk, CortexRecord cr) {
         Set<CortexVertex> nextVertices = new HashSet<>();
 
-        Map<Integer, Set<CortexByteKmer>> nextKmers = getAllNextKmers(sk);
+        Map<Integer, Set<CortexByteKmer>> nextKmers = getAllNextKmers(sk, cr);
 
         Set<CortexByteKmer> combinedNextKmers = new HashSet<>();
         for (int c : ec.getTraversalColors()) {
@@ -242,7 +273,7 @@ public class TraversalEngine {
         if (nextKmer == null) { throw new NoSuchElementException("No single advance kmer from cursor '" + curKmer + "'"); }
         if (specificLinksFiles == null || !goForward) {
             goForward = true;
-            seek(new String(curKmer.getKmer()));
+            seek(curKmer, ec.getGraph().findRecord(curKmer));
 
             initializeLinkStore(goForward);
         }
@@ -255,7 +286,7 @@ public class TraversalEngine {
         prevKmer = curKmer;
         curKmer = nextKmer;
 
-        Set<CortexVertex> nextKmers = getNextVertices(curKmer);
+        Set<CortexVertex> nextKmers = getNextVertices(cv);
         nextKmer = null;
         kmerSources = null;
 
@@ -282,7 +313,7 @@ public class TraversalEngine {
         if (prevKmer == null) { throw new NoSuchElementException("No single prev kmer from cursor '" + curKmer + "'"); }
         if (specificLinksFiles == null || goForward) {
             goForward = false;
-            seek(new String(curKmer.getKmer()));
+            seek(curKmer, ec.getGraph().findRecord(curKmer));
 
             initializeLinkStore(goForward);
         }
@@ -295,7 +326,7 @@ public class TraversalEngine {
         nextKmer = curKmer;
         curKmer = prevKmer;
 
-        Set<CortexVertex> prevKmers = getPrevVertices(curKmer);
+        Set<CortexVertex> prevKmers = getPrevVertices(cv);
         prevKmer = null;
         kmerSources = null;
 
@@ -320,36 +351,41 @@ public class TraversalEngine {
 
     public void seek(String sk) {
         if (sk != null) {
-            curKmer = new CortexByteKmer(sk.getBytes());
+            seek(new CortexByteKmer(sk.getBytes()), ec.getGraph().findRecord(sk));
+        }
+    }
+
+    public void seek(PackedKmer pk) {
+        if (pk != null) {
+            seek(pk.toByteKmer(), ec.getGraph().findRecord(pk));
+        }
+    }
 
-            Set<CortexVertex> prevKmers = getPrevVertices(curKmer);
-            prevKmer = (prevKmers.size() == 1) ? prevKmers.iterator().next().getKmerAsByteKmer() : null;
+    private void seek(CortexByteKmer sk, CortexRecord cr) {
+        curKmer = sk;
 
-            Set<CortexVertex> nextKmers = getNextVertices(curKmer);
-            nextKmer = (nextKmers.size() == 1) ? nextKmers.iterator().next().getKmerAsByteKmer() : null;
+        Set<CortexVertex> prevKmers = getPrevVertices(curKmer, cr);
+        prevKmer = (prevKmers.size() == 1) ? prevKmers.iterator().next().getKmerAsByteKmer() : null;
 
-            linkStore = new LinkStore();
-            seen = new HashSet<>();
-            specificLinksFiles = null;
-        }
+        Set<CortexVertex> nextKmers = getNextVertices(curKmer, cr);
+        nextKmer = (nextKmers.size() == 1) ? nextKmers.iterator().next().getKmerAsByteKmer() : null;
+
+        linkStore = new LinkStore();
+        seen = new HashSet<>();
+        specificLinksFiles = null;
     }
 
     public boolean hasNext() { return nextKmer != null; }
 
     public boolean hasPrevious() { return prevKmer != null; }
 
-    private Map<Integer, Set<CortexByteKmer>> getAllPrevKmers(CortexByteKmer sk) {
-        CanonicalKmer ck = new CanonicalKmer(sk.getKmer());
-        CortexRecord cr = ec.getGraph().findRecord(ck);
-
-        return TraversalUtils.getAllPrevKmers(cr, ck.isFlipped());
+    // The record already found for a kmer gives its neighbours directly; only its orientation needs checking.
+    private Map<Integer, Set<CortexByteKmer>> getAllPrevKmers(CortexByteKmer sk, CortexRecord cr) {
+        return TraversalUtils.getAllPrevKmers(cr, cr != null && !sk.isCanonical());
     }
 
-    private Map<Integer, Set<CortexByteKmer>> getAllNextKmers(CortexByteKmer sk) {
-        CanonicalKmer ck = new CanonicalKmer(sk.getKmer());
-        CortexRecord cr = ec.getGraph().findRecord(ck);
-
-        return TraversalUtils.getAllNextKmers(cr, ck.isFlipped());
+    private Map<Integer, Set<CortexByteKmer>> getAllNextKmers(CortexByteKmer sk, CortexRecord cr) {
+        return TraversalUtils.getAllNextKmers(cr, cr != null && !sk.isCanonical());
     }
 
     @Nullable
@@ -361,7 +397,7 @@ public class TraversalEngine {
 
         // If links are available, reset the state of the LinkStore
         if (!ec.getLinks().isEmpty()) {
-            seek(cv.getKmerAsString());
+            seek(cv.getKmerAsByteKmer(), cv.getCortexRecord());
         }
 
         // Instantiate a new stopping rule per branch
@@ -371,8 +407,8 @@ public class TraversalEngine {
         Set<CortexVertex> rvs;
 
         do {
-            Set<CortexVertex> pvs = getPrevVertices(cv.getKmerAsByteKmer());
-            Set<CortexVertex> nvs = getNextVertices(cv.getKmerAsByteKmer());
+            Set<CortexVertex> pvs = getPrevVertices(cv);
+            Set<CortexVertex> nvs = getNextVertices(cv);
             avs = goForward ? nvs : pvs;
             rvs = goForward ? pvs : nvs;
 
@@ -558,9 +594,9 @@ public class TraversalEngine {
                 if (traversalSamples.contains(lm.getHeader().getSampleNameForColor(0))) {
                     specificLinksFiles.add(lm);
 
-                    CanonicalKmer ck = new CanonicalKmer(curKmer.getKmer());
-                    if (lm.containsKey(ck)) {
-                        linkStore.add(curKmer, lm.get(ck), goForward, lm.getSource());
+                    CortexLinksBinaryRecord blr = lm.getBinaryRecord(new CanonicalKmer(curKmer.getKmer()));
+                    if (blr != null) {
+                        linkStore.add(curKmer, blr, goForward, lm.getSource());
                     }
                 }
             }
@@ -581,14 +617,14 @@ public class TraversalEngine {
                     specificLinksFiles.add(lm);
 
                     if (goForward) {
-                        CanonicalKmer nk = nextKmer == null ? null : new CanonicalKmer(nextKmer.getKmer());
-                        if (nextKmer != null && lm.containsKey(nk)) {
-                            linkStore.add(nextKmer, lm.get(nk), true, lm.getSource());
+                        CortexLinksBinaryRecord blr = nextKmer == null ? null : lm.getBinaryRecord(new CanonicalKmer(nextKmer.getKmer()));
+                        if (blr != null) {
+                            linkStore.add(nextKmer, blr, true, lm.getSource());
                         }
                     } else {
-                        CanonicalKmer pk = prevKmer == null ? null : new CanonicalKmer(prevKmer.getKmer());
-                        if (prevKmer != null && lm.containsKey(pk)) {
-                            linkStore.add(prevKmer, lm.get(pk), false, lm.getSource());
+                        CortexLinksBinaryRecord blr = prevKmer == null ? null : lm.getBinaryRecord(new CanonicalKmer(prevKmer.getKmer()));
+                        if (blr != null) {
+                            linkStore.add(prevKmer, blr, false, lm.getSource());
                         }
                     }
                 }
@@ -609,8 +645,8 @@ public class TraversalEngine {
                     DirectedWeightedPseudograph<CortexVertex, CortexEdge> g2 = new DirectedWeightedPseudograph<>(CortexEdge.class);
 
                     for (CortexVertex v : g.vertexSet()) {
-                        Map<Integer, Set<CortexByteKmer>> pks = pkscache.containsKey(v.getKmerAsByteKmer()) ? pkscache.get(v.getKmerAsByteKmer()) : getAllPrevKmers(v.getKmerAsByteKmer());
-                        Map<Integer, Set<CortexByteKmer>> nks = nkscache.containsKey(v.getKmerAsByteKmer()) ? nkscache.get(v.getKmerAsByteKmer()) : getAllNextKmers(v.getKmerAsByteKmer());
+                        Map<Integer, Set<CortexByteKmer>> pks = pkscache.containsKey(v.getKmerAsByteKmer()) ? pkscache.get(v.getKmerAsByteKmer()) : getAllPrevKmers(v.getKmerAsByteKmer(), v.getCortexRecord());
+                        Map<Integer, Set<CortexByteKmer>> nks = nkscache.containsKey(v.getKmerAsByteKmer()) ? nkscache.get(v.getKmerAsByteKmer()) : getAllNextKmers(v.getKmerAsByteKmer(), v.getCortexRecord());
 
                         pkscache.put(v.getKmerAsByteKmer(), pks);
                         nkscache.put(v.getKmerAsByteKmer(), nks);
@@ -385,13 +385,17 @@ public class TraversalUtils {
     }
 
     public static List<CortexVertex> toWalk(DirectedWeightedPseudograph<CortexVertex, CortexEdge> g, String sk, int color) {
+        return TraversalUtils.toWalk(g, new CortexByteKmer(sk), color);
+    }
+
+    public static List<CortexVertex> toWalk(DirectedWeightedPseudograph<CortexVertex, CortexEdge> g, CortexByteKmer sk, int color) {
         List<CortexVertex> w = new ArrayList<>();
 
         if (g == null) { return w; }
 
         CortexVertex seed = null;
         for (CortexVertex v : g.vertexSet()) {
-            if (v.getKmerAsString().equals(sk) && v.getCortexRecord() != null && v.getCortexRecord().getCoverage(color) > 0 && (seed == null || v.getCopyIndex() < seed.getCopyIndex())) {
+            if (v.getKmerAsByteKmer().equals(sk) && v.getCortexRecord() != null && v.getCortexRecord().getCoverage(color) > 0 && (seed == null || v.getCopyIndex() < seed.getCopyIndex())) {
                 seed = v;
             }
         }
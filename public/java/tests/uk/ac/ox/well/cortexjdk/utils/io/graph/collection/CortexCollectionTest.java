@@ -62,6 +62,32 @@ public class CortexCollectionTest {
         }
     }
 
+    @Test(dataProvider = "joinedTempGraph")
+    public void testIndexedParallelLookup(CortexCollection cc, CortexGraph g0, CortexGraph g1) {
+        CortexCollection icc = new CortexCollection(g0, g1);
+        icc.buildCollectionIndex();
+        icc.setNumLookupThreads(2);
+
+        Set<String> kmers = new TreeSet<>();
+        for (CortexRecord cr : g0) { kmers.add(cr.getKmerAsString()); }
+        for (CortexRecord cr : g1) { kmers.add(cr.getKmerAsString()); }
+        kmers.add("GGG");
+        kmers.add("NAC");
+
+        for (String sk : kmers) {
+            CortexRecord expected = cc.findRecord(sk);
+            CortexRecord actual = icc.findRecord(sk);
+
+            if (expected == null) {
+                Assert.assertNull(actual);
+            } else {
+                Assert.assertEquals(expected.toString(), actual.toString());
+            }
+        }
+
+        Assert.assertNull(icc.findRecord("NAC"));
+    }
+
     @Test(dataProvider = "joinedTempGraph")
     public void testSingleFileCollection(CortexCollection ccUnused, CortexGraph g0, CortexGraph g1Unused) {
         CortexCollection cc = new CortexCollection(g0);
@@ -103,13 +129,45 @@ public class CortexCollectionTest {
                 }
 
                 if (c1 != null) {
-                    Assert.assertEquals(c1.getCoverage(0), cr.getCoverage(1));
-                    Assert.assertEquals(c1.getEdgesAsString(0), cr.getEdgesAsString(1));
+                    Assert.assertEquals(c1.getCoverage(0), cr.getCoverage(g0.getNumColors()));
+                    Assert.assertEquals(c1.getEdgesAsString(0), cr.getEdgesAsString(g0.getNumColors()));
                 }
             }
         }
     }
 
+    @Test(dataProvider = "joinedTempGraph")
+    public void testRangedMerging(CortexCollection cc, CortexGraph g0, CortexGraph g1) {
+        List<String> expected = new ArrayList<>();
+        for (CortexRecord cr : cc) {
+            expected.add(cr.toString());
+        }
+
+        for (int n : new int[] { 1, 3, 100 }) {
+            List<String> ranged = new ArrayList<>();
+            for (Iterable<CortexRecord> range : cc.ranges(n)) {
+                for (CortexRecord cr : range) {
+                    ranged.add(cr.toString());
+                }
+            }
+
+            Assert.assertEquals(expected, ranged);
+        }
+
+        for (int numThreads : new int[] { 1, 3 }) {
+            List<String> processed = new ArrayList<>();
+            cc.process(numThreads, range -> {
+                List<String> l = new ArrayList<>();
+                for (CortexRecord cr : range) {
+                    l.add(cr.toString());
+                }
+                return l;
+            }, processed::addAll);
+
+            Assert.assertEquals(expected, processed);
+        }
+    }
+
     @Test(dataProvider = "joinedTempGraph")
     public void testNumColors(CortexCollection cc, CortexGraph g1, CortexGraph g2) {
         Assert.assertEquals(g1.getNumColors() + g2.getNumColors(), cc.getNumColors());
@@ -1,17 +1,41 @@
 package uk.ac.ox.well.cortexjdk.utils.io.graph.links;
 
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import org.testng.Assert;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import uk.ac.ox.well.cortexjdk.commands.index.links.BuildLinks;
+import uk.ac.ox.well.cortexjdk.commands.index.links.IndexLinks;
 import uk.ac.ox.well.cortexjdk.utils.assembler.TempGraphAssembler;
 import uk.ac.ox.well.cortexjdk.utils.assembler.TempLinksAssembler;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.reads.Reads;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CortexBinaryKmer;
+import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.GZIPInputStream;
 
 public class CortexLinksTest {
     @DataProvider(name = "constructLinkData")
@@ -70,4 +94,400 @@ public class CortexLinksTest {
         Assert.assertEquals(cprLast1, cprLast2);
         Assert.assertNotEquals(cprFirst1, cprLast1);
     }
+
+    /**
+     * A random haplotype with a short repeat planted between segments, so its graph is guaranteed to have links.
+     */
+    private static Map<String, Collection<String>> repeatHaplotypes(int numRepeats) {
+        String repeat = new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(30));
+
+        StringBuilder sb = new StringBuilder(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(300)));
+        for (int i = 0; i < numRepeats; i++) {
+            sb.append(repeat).append(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(300)));
+        }
+
+        Map<String, Collection<String>> haplotypes = new LinkedHashMap<>();
+        haplotypes.put("test", Collections.singletonList(sb.toString()));
+
+        return haplotypes;
+    }
+
+    /**
+     * The text form of a record with its links in a fixed order (records hold links in a hash set).
+     */
+    private static String describe(CortexLinksRecord clr) {
+        if (clr == null) {
+            return "null";
+        }
+
+        Set<String> links = new TreeSet<>();
+        for (CortexJunctionsRecord cjr : clr.getJunctions()) {
+            links.add(cjr.toString());
+        }
+
+        return clr.getKmerAsString() + " " + links;
+    }
+
+    private static File indexLinks(CortexLinks l, boolean binary) throws IOException {
+        return indexLinks(l, binary, 1, null);
+    }
+
+    private static File indexLinks(CortexLinks l, boolean binary, int numThreads, Integer memoryMb) throws IOException {
+        File linksFile = File.createTempFile("indexlinks", ".ctp.gz");
+        linksFile.deleteOnExit();
+        Files.copy(l.getFile().toPath(), linksFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        IndexLinks il = new IndexLinks();
+        il.LINKS = new CortexLinksIterable(linksFile);
+        il.SOURCE = "test";
+        il.BINARY = binary;
+        il.NUM_THREADS = numThreads;
+        il.MEMORY_MB = memoryMb;
+        il.execute();
+
+        File bgzFile = new File(linksFile.getAbsolutePath().replace(".ctp.gz", ".ctp.bgz"));
+        bgzFile.deleteOnExit();
+        new File(bgzFile.getAbsolutePath() + ".idx").deleteOnExit();
+
+        return bgzFile;
+    }
+
+    @Test
+    public void testMappedIndexLookups() throws IOException {
+        Map<String, Collection<String>> haplotypes = repeatHaplotypes(4);
+
+        CortexGraph g = TempGraphAssembler.buildGraph(haplotypes, 11);
+        CortexLinks l = TempLinksAssembler.buildLinks(g, haplotypes, "test");
+
+        CortexLinksRandomAccess ra = new CortexLinksRandomAccess(indexLinks(l, false));
+        CortexLinksMap lm = new CortexLinksMap(l.getFile());
+
+        Assert.assertTrue(lm.size() > 0);
+        Assert.assertEquals(ra.size(), lm.size());
+        Assert.assertEquals(ra.getSource(), "test");
+
+        for (CortexRecord cr : g) {
+            Assert.assertEquals(ra.containsKey(cr.getKmerAsString()), lm.containsKey(cr.getKmerAsString()));
+            Assert.assertEquals(describe(ra.get(cr.getKmerAsString())), describe(lm.get(cr.getKmerAsString())));
+            Assert.assertEquals(describe(ra.get(SequenceUtils.reverseComplement(cr.getKmerAsString()))), describe(lm.get(cr.getKmerAsString())));
+        }
+
+        Assert.assertNull(ra.get("AAAAAAAAAAA"));
+    }
+
+    @Test
+    public void testParallelIndexWithSpilledSort() throws IOException {
+        Map<String, Collection<String>> haplotypes = repeatHaplotypes(20);
+
+        CortexGraph g = TempGraphAssembler.buildGraph(haplotypes, 11);
+        CortexLinks l = TempLinksAssembler.buildLinks(g, haplotypes, "test");
+        CortexLinksMap lm = new CortexLinksMap(l.getFile());
+
+        for (boolean binary : new boolean[] { false, true }) {
+            // A zero memory budget spills every index entry to its own sort run.
+            CortexLinksRandomAccess ra = new CortexLinksRandomAccess(indexLinks(l, binary, 4, 0));
+
+            Assert.assertEquals(ra.size(), lm.size());
+
+            for (CortexRecord cr : g) {
+                Assert.assertEquals(describe(ra.get(cr.getKmerAsString())), describe(lm.get(cr.getKmerAsString())));
+            }
+        }
+    }
+
+    @Test
+    public void testBinaryRecords() throws IOException {
+        Map<String, Collection<String>> haplotypes = repeatHaplotypes(4);
+
+        CortexGraph g = TempGraphAssembler.buildGraph(haplotypes, 11);
+        CortexLinks l = TempLinksAssembler.buildLinks(g, haplotypes, "test");
+
+        CortexLinksRandomAccess ra = new CortexLinksRandomAccess(indexLinks(l, true));
+        CortexLinksMap lm = new CortexLinksMap(l.getFile());
+
+        Assert.assertTrue(ra.hasBinaryRecords());
+        Assert.assertEquals(ra.size(), lm.size());
+
+        for (CortexRecord cr : g) {
+            CortexLinksRecord expected = lm.get(cr.getKmerAsString());
+
+            Assert.assertEquals(ra.get(cr.getKmerAsString()), expected);
+
+            CortexLinksBinaryRecord blr = ra.getBinaryRecord(cr.getKmerAsString());
+            if (expected == null) {
+                Assert.assertNull(blr);
+            } else {
+                Assert.assertEquals(new String(blr.getKmerAsBytes()), expected.getKmerAsString());
+                Assert.assertEquals(blr.getNumLinks(), expected.getJunctions().size());
+
+                Set<CortexJunctionsRecord> junctions = new HashSet<>();
+                for (int link = 0; link < blr.getNumLinks(); link++) {
+                    byte[] choices = new byte[blr.getJunctionsLength(link)];
+                    for (int j = 0; j < choices.length; j++) {
+                        choices[j] = blr.getJunction(link, j);
+                    }
+
+                    junctions.add(new CortexJunctionsRecord(blr.isForward(link), blr.getNumKmers(link), blr.getNumJunctions(link), blr.getCoverages(link), new String(choices)));
+                }
+
+                Assert.assertEquals(junctions, expected.getJunctions());
+                Assert.assertSame(ra.getBinaryRecord(cr.getKmerAsString()), blr);
+            }
+        }
+
+        CortexLinksRecord clr = new CortexLinksRecord("ACGTACGTACG", Collections.singletonList(new CortexJunctionsRecord(true, 12, 3, new int[] { 5, 300, 70000 }, "ACG")));
+        CortexLinksBinaryRecord blr = new CortexLinksBinaryRecord(CortexLinksBinaryRecord.encode(clr, 11, 3), 11, 3);
+
+        Assert.assertEquals(blr.getCoverages(0), new int[] { 5, 300, 70000 });
+        Assert.assertEquals(blr.toRecord(), clr);
+        Assert.assertTrue(blr.isKmer("ACGTACGTACG".getBytes()));
+        Assert.assertFalse(blr.isKmer(SequenceUtils.reverseComplement("ACGTACGTACG").getBytes()));
+    }
+
+    @Test(expectedExceptions = CortexJDKException.class)
+    public void testUnindexedBinaryLinksThrowsException() throws IOException {
+        Map<String, Collection<String>> haplotypes = repeatHaplotypes(4);
+
+        CortexGraph g = TempGraphAssembler.buildGraph(haplotypes, 11);
+        CortexLinks l = TempLinksAssembler.buildLinks(g, haplotypes, "test");
+
+        File bgzFile = indexLinks(l, true);
+        Files.delete(new File(bgzFile.getAbsolutePath() + ".idx").toPath());
+
+        new CortexLinks(bgzFile);
+    }
+
+    @Test
+    public void testMappedIndexSearch() throws IOException {
+        for (int kmerSize : new int[] { 21, 47 }) {
+            Set<CortexBinaryKmer> kmers = new TreeSet<>((a, b) -> CortexRecord.compareBinaryKmers(a.getBinaryKmer(), b.getBinaryKmer()));
+            while (kmers.size() < 20000) {
+                kmers.add(new CortexBinaryKmer(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(kmerSize)));
+            }
+
+            int kmerBits = CortexRecord.getKmerBits(kmerSize);
+            File indexFile = File.createTempFile("mappedsearch", ".idx");
+            indexFile.deleteOnExit();
+
+            ByteBuffer bb = ByteBuffer.allocate(16 + kmers.size()*(8*kmerBits + 12));
+            bb.putLong(0L).putLong(0L);
+
+            long pos = 0;
+            for (CortexBinaryKmer cbk : kmers) {
+                for (long l : cbk.getBinaryKmer()) {
+                    bb.putLong(l);
+                }
+                bb.putLong(pos++).putInt(kmerSize);
+            }
+
+            Files.write(indexFile.toPath(), bb.array());
+
+            try (FileChannel fc = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                CortexLinksIndex index = new CortexLinksIndex(fc, 16, kmerBits, kmers.size());
+
+                long i = 0;
+                for (CortexBinaryKmer cbk : kmers) {
+                    Assert.assertEquals(index.find(cbk.getBinaryKmer()), i);
+                    Assert.assertEquals(index.getPosition(i), i);
+                    Assert.assertEquals(index.getLength(i), kmerSize);
+                    i++;
+                }
+
+                for (int j = 0; j < 1000; j++) {
+                    CortexBinaryKmer cbk = new CortexBinaryKmer(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(kmerSize));
+                    Assert.assertEquals(index.find(cbk.getBinaryKmer()) >= 0, kmers.contains(cbk));
+                }
+            }
+        }
+    }
+
+    @Test(expectedExceptions = CortexJDKException.class)
+    public void testUnknownIndexMagicWordThrowsException() throws IOException {
+        Map<String, Collection<String>> haplotypes = repeatHaplotypes(20);
+
+        CortexGraph g = TempGraphAssembler.buildGraph(haplotypes, 11);
+        CortexLinks l = TempLinksAssembler.buildLinks(g, haplotypes, "test");
+
+        File bgzFile = indexLinks(l, true);
+
+        // Rewrite both copies of the magic word, so only the word itself is wrong.
+        File indexFile = new File(bgzFile.getAbsolutePath() + ".idx");
+        String index = new String(Files.readAllBytes(indexFile.toPath()), StandardCharsets.ISO_8859_1);
+        Files.write(indexFile.toPath(), index.replace(CortexLinksRandomAccess.BINARY_MAGIC_WORD, "LNKXXX").getBytes(StandardCharsets.ISO_8859_1));
+
+        new CortexLinksRandomAccess(bgzFile);
+    }
+
+    @Test
+    public void testConcurrentCachedLookups() throws IOException {
+        Map<String, Collection<String>> haplotypes = repeatHaplotypes(20);
+
+        CortexGraph g = TempGraphAssembler.buildGraph(haplotypes, 11);
+        CortexLinks l = TempLinksAssembler.buildLinks(g, haplotypes, "test");
+        CortexLinksMap lm = new CortexLinksMap(l.getFile());
+
+        for (boolean binary : new boolean[] { false, true }) {
+            CortexLinksRandomAccess ra = new CortexLinksRandomAccess(indexLinks(l, binary));
+
+            List<String> kmers = new ArrayList<>();
+            for (CortexRecord cr : g) {
+                kmers.add(cr.getKmerAsString());
+            }
+
+            for (int pass = 0; pass < 2; pass++) {
+                kmers.parallelStream().forEach(sk -> Assert.assertEquals(describe(ra.get(sk)), describe(lm.get(sk))));
+            }
+
+            Assert.assertTrue(ra.getBlockCacheStats().getHits() > 0);
+            Assert.assertTrue(ra.getRecordCacheStats().getHits() >= lm.size());
+
+            ra.clearCaches();
+            for (String sk : kmers) {
+                Assert.assertEquals(describe(ra.get(sk)), describe(lm.get(sk)));
+            }
+        }
+    }
+
+    @Test
+    public void testParallelLinksMap() {
+        Map<String, Collection<String>> haplotypes = repeatHaplotypes(20);
+
+        CortexGraph g = TempGraphAssembler.buildGraph(haplotypes, 11);
+        CortexLinks l = TempLinksAssembler.buildLinks(g, haplotypes, "test");
+
+        CortexLinksMap serial = new CortexLinksMap(l.getFile(), 1);
+        CortexLinksMap parallel = new CortexLinksMap(l.getFile(), 4);
+
+        int numRecords = 0;
+        for (CortexLinksRecord clr : new CortexLinksIterable(l.getFile())) {
+            Assert.assertEquals(describe(serial.get(clr.getKmerAsString())), describe(clr));
+            Assert.assertEquals(describe(parallel.get(clr.getKmerAsString())), describe(clr));
+            Assert.assertEquals(parallel.getBinaryRecord(clr.getKmerAsString()).toRecord(), parallel.get(clr.getKmerAsString()));
+
+            numRecords++;
+        }
+
+        Assert.assertTrue(numRecords > 0);
+        Assert.assertEquals(serial.size(), numRecords);
+        Assert.assertEquals(parallel.size(), numRecords);
+        Assert.assertFalse(parallel.containsKey("AAAAAAAAAAA"));
+        Assert.assertNull(parallel.get("AAAAAAAAAAA"));
+    }
+
+    @Test
+    public void testParallelLinksMapKeepsLastRepeatedRecord() throws IOException {
+        Map<String, Collection<String>> haplotypes = repeatHaplotypes(20);
+
+        CortexGraph g = TempGraphAssembler.buildGraph(haplotypes, 11);
+        CortexLinks l = TempLinksAssembler.buildLinks(g, haplotypes, "test");
+
+        StringBuilder text = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(l.getFile()))))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                text.append(line).append("\n");
+            }
+        }
+
+        List<CortexLinksRecord> records = new ArrayList<>();
+        for (CortexLinksRecord clr : new CortexLinksIterable(l.getFile())) {
+            records.add(clr);
+        }
+
+        // Repeat every record with a different coverage on each pass, over enough passes that copies of the same
+        // kmer fall in different parser batches.  The last pass must win.
+        int numPasses = 2 + 3*4096 / records.size();
+        Map<String, CortexLinksRecord> expected = new LinkedHashMap<>();
+
+        File repeatedFile = File.createTempFile("repeatedlinks", ".ctp.bgz");
+        repeatedFile.deleteOnExit();
+
+        try (BlockCompressedOutputStream os = new BlockCompressedOutputStream(repeatedFile)) {
+            // The header's record count bounds how many records are read, so it must count the repeats too.
+            String header = text.toString().trim().replaceFirst("\"num_kmers_with_paths\": \\d+", "\"num_kmers_with_paths\": " + (numPasses + 1)*records.size());
+            Assert.assertNotEquals(header, text.toString().trim());
+
+            os.write(header.getBytes());
+            os.write("\n".getBytes());
+
+            for (int pass = 0; pass < numPasses; pass++) {
+                for (CortexLinksRecord clr : records) {
+                    List<CortexJunctionsRecord> cjs = new ArrayList<>();
+                    for (CortexJunctionsRecord cjr : clr.getJunctions()) {
+                        cjs.add(new CortexJunctionsRecord(cjr.isForward(), cjr.getNumKmers(), cjr.getNumJunctions(), new int[] { pass + 2 }, cjr.getJunctions()));
+                    }
+
+                    CortexLinksRecord repeated = new CortexLinksRecord(clr.getKmerAsString(), cjs);
+                    expected.put(clr.getKmerAsString(), repeated);
+
+                    os.write(repeated.toString().getBytes());
+                    os.write("\n".getBytes());
+                }
+            }
+
+            os.write("\n".getBytes());
+        }
+
+        for (int numThreads : new int[] { 1, 4 }) {
+            CortexLinksMap lm = new CortexLinksMap(repeatedFile, numThreads);
+
+            Assert.assertEquals(lm.size(), records.size());
+            for (String sk : expected.keySet()) {
+                Assert.assertEquals(describe(lm.get(sk)), describe(expected.get(sk)));
+            }
+        }
+    }
+
+    private static Set<String> junctionLists(CortexLinksRecord clr) {
+        Set<String> jls = new TreeSet<>();
+
+        if (clr != null) {
+            for (CortexJunctionsRecord cjr : clr.getJunctions()) {
+                jls.add((cjr.isForward() ? "F " : "R ") + cjr.getJunctions());
+            }
+        }
+
+        return jls;
+    }
+
+    @Test
+    public void testBuildLinksFromReads() throws IOException {
+        Map<String, Collection<String>> haplotypes = repeatHaplotypes(6);
+
+        CortexGraph g = TempGraphAssembler.buildGraph(haplotypes, 11);
+        CortexLinks expected = TempLinksAssembler.buildLinks(g, haplotypes, "test");
+
+        File readsFile = File.createTempFile("buildlinks", ".fa");
+        readsFile.deleteOnExit();
+        Files.write(readsFile.toPath(), (">hap\n" + haplotypes.get("test").iterator().next() + "\n").getBytes());
+
+        for (boolean binary : new boolean[] { false, true }) {
+            File outFile = File.createTempFile("buildlinks", ".ctp.bgz");
+            outFile.deleteOnExit();
+            new File(outFile.getAbsolutePath() + ".idx").deleteOnExit();
+
+            BuildLinks bl = new BuildLinks();
+            bl.GRAPH = g;
+            bl.READS = new ArrayList<>(Collections.singletonList(new Reads(readsFile)));
+            bl.SAMPLE = "test";
+            bl.OUT = outFile;
+            bl.BINARY = binary;
+            bl.NUM_THREADS = 4;
+            bl.execute();
+
+            CortexLinksRandomAccess ra = new CortexLinksRandomAccess(outFile);
+
+            Assert.assertTrue(ra.size() > 0);
+            Assert.assertEquals(ra.size(), expected.size());
+            Assert.assertEquals(ra.getSource(), "test");
+
+            for (CortexRecord cr : g) {
+                Assert.assertEquals(junctionLists(ra.get(cr.getKmerAsString())), junctionLists(expected.get(cr.getKmerAsString())));
+            }
+
+            if (!binary) {
+                Assert.assertEquals(new CortexLinksMap(outFile).size(), expected.size());
+            }
+        }
+    }
 }
@@ -0,0 +1,100 @@
+package uk.ac.ox.well.cortexjdk.utils.io.graph.server;
+
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import uk.ac.ox.well.cortexjdk.utils.assembler.TempGraphAssembler;
+import uk.ac.ox.well.cortexjdk.utils.assembler.TempLinksAssembler;
+import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinks;
+import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+public class GraphServerTest {
+    private CortexGraph g;
+    private CortexLinks l;
+    private GraphQueryServer server;
+
+    @BeforeClass
+    public void setup() {
+        Map<String, Collection<String>> haplotypes = new LinkedHashMap<>();
+        haplotypes.put("test", Collections.singletonList("ACTGATTTCGATGCGATGCGATGCCACGGTGG"));
+
+        Map<String, Collection<String>> reads = new LinkedHashMap<>();
+        reads.put("test", Collections.singletonList("TTTCGATGCGATGCGATGCCACG"));
+
+        g = TempGraphAssembler.buildGraph(haplotypes, 5);
+        l = TempLinksAssembler.buildLinks(g, reads, "test");
+
+        server = new GraphQueryServer(0);
+        server.addGraph(g);
+        server.addLinks(l);
+        server.start();
+    }
+
+    @AfterClass
+    public void teardown() {
+        server.stop();
+    }
+
+    @Test
+    public void testRemoteGraphAndLinksMatchLocal() {
+        RemoteGraph rg = new RemoteGraph(GraphServerProtocol.URI_SCHEME + server.getPort() + "/" + g.getFile().getName());
+        CortexLinks rl = new CortexLinks(GraphServerProtocol.URI_SCHEME + server.getPort() + "/" + l.getFile().getAbsolutePath());
+
+        Assert.assertEquals(rg.getNumRecords(), g.getNumRecords());
+        Assert.assertEquals(rg.getKmerSize(), g.getKmerSize());
+        Assert.assertEquals(rg.getSampleName(0), g.getSampleName(0));
+        Assert.assertEquals(rl.size(), l.size());
+
+        List<CortexRecord> records = new ArrayList<>();
+        for (CortexRecord cr : g) {
+            records.add(cr);
+        }
+
+        List<CortexRecord> remoteRecords = new ArrayList<>();
+        for (CortexRecord cr : rg) {
+            remoteRecords.add(cr);
+        }
+
+        Assert.assertEquals(remoteRecords, records);
+
+        for (int i = 0; i < records.size(); i++) {
+            CortexRecord cr = records.get(i);
+
+            Assert.assertEquals(rg.getRecord(i), cr);
+            Assert.assertEquals(rg.findRecord(cr.getKmerAsString()), cr);
+            Assert.assertEquals(rg.findRecord(SequenceUtils.reverseComplement(cr.getKmerAsString())), cr);
+            Assert.assertEquals(rl.get(cr.getKmerAsString()), l.get(cr.getKmerAsString()));
+        }
+
+        Assert.assertEquals(rg.findRecords(records.stream().map(CortexRecord::getCanonicalKmer).collect(Collectors.toList())).size(), records.size());
+        Assert.assertNull(rg.findRecord("NNNNN"));
+        Assert.assertNull(rg.getRecord(records.size()));
+
+        rg.close();
+    }
+
+    @Test(expectedExceptions = CortexJDKException.class)
+    public void testClosedRemoteGraphThrows() {
+        RemoteGraph rg = new RemoteGraph(GraphServerProtocol.URI_SCHEME + server.getPort() + "/" + g.getFile().getName());
+        CortexRecord cr = g.getRecord(0);
+
+        Assert.assertEquals(rg.findRecord(cr.getKmerAsString()), cr);
+
+        rg.close();
+        rg.close();
+
+        rg.findRecord(cr.getKmerAsString());
+    }
+}
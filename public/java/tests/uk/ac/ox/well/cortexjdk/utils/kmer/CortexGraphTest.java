@@ -3,15 +3,35 @@ package uk.ac.ox.well.cortexjdk.utils.kmer;
 import org.testng.Assert;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
+import uk.ac.ox.well.cortexjdk.utils.assembler.TempGraphAssembler;
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphBloomFilter;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphIndex;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphMinimalPerfectHash;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphPartition;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexHeader;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphSequentialIterator;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexMap;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecordCacheStats;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.StripedCache;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.StripedCortexRecordCache;
+import uk.ac.ox.well.cortexjdk.utils.parallel.ParallelUtils;
 import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 public class CortexGraphTest {
     private class SimpleCortexRecord {
@@ -264,6 +284,66 @@ public class CortexGraphTest {
         }
     }
 
+    @Test
+    public void testScanMatchesIterator() {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+
+        List<CortexRecord> scanned = new ArrayList<>();
+        cg.scan(cv -> scanned.add(cv.toRecord()));
+
+        int index = 0;
+        for (CortexRecord cr : cg) {
+            Assert.assertEquals(scanned.get(index), cr);
+            Assert.assertEquals(cg.getRecordView(index).getKmerAsString(), cr.getKmerAsString());
+
+            index++;
+        }
+
+        Assert.assertEquals(scanned.size(), cg.getNumRecords());
+    }
+
+    @Test
+    public void testSequentialIteratorMatchesIterator() {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+
+        // A tiny window forces several refills over the 66-record test graph.
+        try (CortexGraphSequentialIterator it = new CortexGraphSequentialIterator(cg, 0, cg.getNumRecords(), 200)) {
+            for (CortexRecord cr : cg) {
+                Assert.assertTrue(it.hasNext());
+                Assert.assertEquals(it.next(), cr);
+            }
+
+            Assert.assertFalse(it.hasNext());
+        }
+
+        // An iterator closed before it is drained reports no further records.
+        CortexGraphSequentialIterator early = cg.sequentialIterator();
+        try (CortexGraphSequentialIterator closing = early) {
+            Assert.assertEquals(closing.next(), cg.getRecord(0));
+        }
+
+        Assert.assertFalse(early.hasNext());
+    }
+
+    @Test
+    public void testCortexMapLookups() {
+        Map<String, Collection<String>> haplotypes = new HashMap<>();
+        haplotypes.put("sample", Collections.singletonList(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(1000))));
+
+        for (File file : new File[] { new File("testdata/two_short_contigs.ctx"), TempGraphAssembler.buildGraph(haplotypes, 71).getFile() }) {
+            CortexGraph cg = new CortexGraph(file);
+            CortexMap cm = new CortexMap(file);
+
+            for (CortexRecord cr : cg) {
+                Assert.assertEquals(cm.findRecord(cr.getKmerAsString()), cr);
+                Assert.assertEquals(cm.findRecord(SequenceUtils.reverseComplement(cr.getKmerAsString())), cr);
+            }
+
+            Assert.assertNull(cm.findRecord(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(cg.getKmerSize() - 1)));
+            Assert.assertNull(cm.findRecord(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(cg.getKmerSize() - 1)) + "N"));
+        }
+    }
+
     @Test
     public void testEncodeBinaryKmer() {
         CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
@@ -307,6 +387,32 @@ public class CortexGraphTest {
     }
     */
 
+    @Test(expectedExceptions = CortexJDKException.class)
+    public void testUnsortedFindRecordThrowsException() throws IOException {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+
+        List<CortexRecord> records = new ArrayList<>();
+        for (CortexRecord cr : cg) {
+            records.add(cr);
+        }
+        Collections.reverse(records);
+
+        File unsortedFile = File.createTempFile("two_short_contigs_unsorted", ".ctx");
+        unsortedFile.deleteOnExit();
+
+        CortexGraphWriter cgw = new CortexGraphWriter(unsortedFile);
+        cgw.setHeader(cg.getHeader());
+        for (CortexRecord cr : records) {
+            cgw.addRecord(cr);
+        }
+        cgw.close();
+
+        CortexGraph unsorted = new CortexGraph(unsortedFile);
+        for (SimpleCortexRecord scr : recs) {
+            unsorted.findRecord(scr.kmer);
+        }
+    }
+
     @Test
     public void testSortedFindRecord() {
         CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
@@ -319,6 +425,255 @@ public class CortexGraphTest {
         }
     }
 
+    @Test
+    public void testIndexedFindRecord() throws IOException {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+
+        File indexFile = File.createTempFile("two_short_contigs", ".ctx.idx");
+        indexFile.deleteOnExit();
+
+        CortexGraphIndex.build(cg).write(indexFile);
+        cg.setIndex(CortexGraphIndex.load(indexFile, cg));
+
+        Assert.assertNotNull(cg.getIndex());
+
+        for (SimpleCortexRecord scr : recs) {
+            CortexRecord cr = cg.findRecord(SequenceUtils.reverseComplement(scr.kmer));
+
+            Assert.assertNotNull(cr);
+            Assert.assertEquals(scr.equals(cr), true);
+        }
+
+        Assert.assertNull(cg.findRecord("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"));
+    }
+
+    @Test
+    public void testMinimalPerfectHashFindRecord() throws IOException {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+
+        File mphFile = File.createTempFile("two_short_contigs", ".ctx.mph");
+        mphFile.deleteOnExit();
+
+        CortexGraphMinimalPerfectHash.build(cg, mphFile);
+        cg.setMinimalPerfectHash(CortexGraphMinimalPerfectHash.load(mphFile, cg));
+
+        Assert.assertNotNull(cg.getMinimalPerfectHash());
+
+        for (SimpleCortexRecord scr : recs) {
+            CortexRecord cr = cg.findRecord(SequenceUtils.reverseComplement(scr.kmer));
+
+            Assert.assertNotNull(cr);
+            Assert.assertEquals(scr.equals(cr), true);
+        }
+
+        Assert.assertNull(cg.findRecord("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"));
+    }
+
+    @Test
+    public void testBloomFilterFindRecord() throws IOException {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+
+        File bloomFile = File.createTempFile("two_short_contigs", ".ctx.bloom");
+        bloomFile.deleteOnExit();
+
+        CortexGraphBloomFilter.build(cg, 0.01, 0).write(bloomFile, cg);
+        cg.setBloomFilter(CortexGraphBloomFilter.load(bloomFile, cg));
+
+        Assert.assertNotNull(cg.getBloomFilter());
+
+        for (SimpleCortexRecord scr : recs) {
+            CortexRecord cr = cg.findRecord(SequenceUtils.reverseComplement(scr.kmer));
+
+            Assert.assertNotNull(cr);
+            Assert.assertEquals(scr.equals(cr), true);
+        }
+
+        Assert.assertNull(cg.findRecord("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"));
+    }
+
+    @Test
+    public void testRecordCacheStats() {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+        cg.setCache(new StripedCortexRecordCache(1024*1024, cg.getKmerBits(), cg.getNumColors()));
+
+        for (SimpleCortexRecord scr : recs) {
+            CortexRecord cr1 = cg.findRecord(scr.kmer);
+            CortexRecord cr2 = cg.findRecord(SequenceUtils.reverseComplement(scr.kmer));
+
+            Assert.assertEquals(scr.equals(cr1), true);
+            Assert.assertSame(cr1, cr2);
+        }
+
+        CortexRecordCacheStats stats = cg.getCacheStats();
+        Assert.assertEquals(stats.getMisses(), recs.size());
+        Assert.assertEquals(stats.getHits(), recs.size());
+        Assert.assertEquals(stats.getEvictions(), 0);
+
+        cg.setCache(new StripedCortexRecordCache(0, cg.getKmerBits(), cg.getNumColors()));
+        Assert.assertNotNull(cg.findRecord(recs.get(0).kmer));
+        Assert.assertEquals(cg.getCacheStats().getHits(), 0);
+    }
+
+    @Test
+    public void testStripedCacheEvictsByWeight() {
+        StripedCache<byte[]> cache = new StripedCache<>(1000, 1, b -> b.length);
+
+        cache.put(1, new byte[400]);
+        cache.put(2, new byte[400]);
+        Assert.assertEquals(cache.getStats().getSizeInBytes(), 800);
+
+        // The third entry takes the cache over budget, so the least recently used one goes.
+        Assert.assertNotNull(cache.getIfPresent(1));
+        cache.put(3, new byte[300]);
+
+        Assert.assertNull(cache.getIfPresent(2));
+        Assert.assertNotNull(cache.getIfPresent(1));
+        Assert.assertNotNull(cache.getIfPresent(3));
+        Assert.assertEquals(cache.getStats().getSizeInBytes(), 700);
+        Assert.assertEquals(cache.getStats().getEvictions(), 1);
+
+        // Replacing an entry counts only its new size.
+        cache.put(1, new byte[100]);
+        Assert.assertEquals(cache.getStats().getSizeInBytes(), 400);
+
+        // An entry bigger than the whole budget is not kept.
+        cache.put(4, new byte[2000]);
+        Assert.assertNull(cache.getIfPresent(4));
+        Assert.assertEquals(cache.getStats().getSizeInBytes(), 0);
+    }
+
+    @Test
+    public void testConcurrentFindRecord() throws InterruptedException {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int rep = 0; rep < 100; rep++) {
+                        for (int i = 0; i < recs.size(); i++) {
+                            Assert.assertEquals(recs.get(i).equals(cg.findRecord(recs.get(i).kmer)), true);
+                            Assert.assertEquals(recs.get(i).equals(cg.getRecord(i)), true);
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+
+        for (Thread t : threads) { t.start(); }
+        for (Thread t : threads) { t.join(); }
+
+        Assert.assertTrue(errors.isEmpty(), errors.toString());
+    }
+
+    @Test
+    public void testBatchedFindRecords() {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+
+        List<CanonicalKmer> kmers = new ArrayList<>();
+        for (int i = recs.size() - 1; i >= 0; i--) {
+            kmers.add(new CanonicalKmer(SequenceUtils.reverseComplement(recs.get(i).kmer)));
+        }
+        kmers.add(new CanonicalKmer("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"));
+
+        Map<CanonicalKmer, CortexRecord> found = cg.findRecords(kmers);
+
+        Assert.assertEquals(found.size(), recs.size());
+        for (SimpleCortexRecord scr : recs) {
+            Assert.assertEquals(scr.equals(found.get(new CanonicalKmer(scr.kmer))), true);
+        }
+
+        int[] numJoined = { 0 };
+        cg.joinSorted(new CortexGraph("testdata/two_short_contigs.ctx"), (a, b) -> {
+            Assert.assertEquals(a.getCanonicalKmer(), b.getCanonicalKmer());
+            numJoined[0]++;
+        });
+
+        Assert.assertEquals(numJoined[0], recs.size());
+
+        Map<String, Collection<String>> haplotypes = new HashMap<>();
+        haplotypes.put("other", Collections.singletonList(recs.get(0).kmer));
+        CortexGraph other = TempGraphAssembler.buildGraph(haplotypes, recs.get(0).kmer.length());
+
+        int[] numVisited = { 0 }, numShared = { 0 };
+        cg.joinSorted(other, (a, b) -> {
+            numVisited[0]++;
+            if (b != null) {
+                Assert.assertEquals(a.getCanonicalKmer(), b.getCanonicalKmer());
+                numShared[0]++;
+            }
+        });
+
+        Assert.assertEquals(numVisited[0], recs.size());
+        Assert.assertEquals(numShared[0], 1);
+    }
+
+    @Test
+    public void testColorProjection() {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx", Collections.singletonList(1));
+
+        Assert.assertEquals(cg.getNumColors(), 1);
+        Assert.assertEquals(cg.getSampleName(0), "two");
+        Assert.assertEquals(cg.getColorForSampleName("two"), 0);
+        Assert.assertEquals(cg.getFileColor(0), 1);
+        Assert.assertEquals(cg.getNumRecords(), recs.size());
+
+        for (SimpleCortexRecord scr : recs) {
+            CortexRecord cr = cg.findRecord(scr.kmer);
+
+            Assert.assertNotNull(cr);
+            Assert.assertEquals(cr.getNumColors(), 1);
+            Assert.assertEquals(cr.getCoverage(0), scr.coverage[1]);
+            Assert.assertEquals(cr.getEdgeAsStrings()[0], scr.edges[1]);
+        }
+
+        int numRecords = 0;
+        for (CortexRecord cr : cg) {
+            Assert.assertEquals(cr.getCoverages().length, 1);
+            numRecords++;
+        }
+
+        Assert.assertEquals(numRecords, recs.size());
+    }
+
+    @Test
+    public void testReadHeaderResolvesSampleNames() {
+        CortexHeader header = CortexGraph.readHeader(new File("testdata/two_short_contigs.ctx"));
+
+        Assert.assertEquals(header.getNumColors(), 2);
+        Assert.assertEquals(CortexGraph.getColorForSampleName(header, "TWO"), 1);
+        Assert.assertEquals(CortexGraph.getColorForSampleName(header, "1"), 1);
+        Assert.assertEquals(CortexGraph.getColorForSampleName(header, "three"), -1);
+    }
+
+    @Test
+    public void testPartitionedScan() {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+
+        List<CortexGraphPartition> partitions = cg.partitions(4);
+        Assert.assertEquals(partitions.size(), 4);
+
+        List<String> kmers = new ArrayList<>();
+        ParallelUtils.mapReduce(partitions, 4, p -> {
+            List<String> partial = new ArrayList<>();
+            p.scan(cr -> partial.add(cr.getKmerAsString()));
+
+            return partial;
+        }, kmers::addAll);
+
+        Assert.assertEquals(kmers.size(), recs.size());
+        for (int i = 0; i < recs.size(); i++) {
+            Assert.assertEquals(kmers.get(i), recs.get(i).kmer);
+        }
+
+        Assert.assertEquals(cg.parallelStream().count(), recs.size());
+        Assert.assertEquals(cg.parallelStream().map(CortexRecord::getKmerAsString).collect(Collectors.toList()), kmers);
+    }
+
     @Test
     public void testFindNonExistentRecord() {
         CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
@@ -6,13 +6,17 @@ import org.testng.annotations.Test;
 import uk.ac.ox.well.cortexjdk.utils.assembler.TempGraphAssembler;
 import uk.ac.ox.well.cortexjdk.utils.exceptions.CortexJDKException;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexColor;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexCompressedGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexCompressedGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphSorter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraphWriter;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
 import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
 
 public class CortexGraphWriterTest {
@@ -76,4 +80,224 @@ public class CortexGraphWriterTest {
             throw new CortexJDKException("Could not create temp file", e);
         }
     }
+
+    @Test
+    public void bufferedWriterTest() throws IOException {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+        byte[] expected = Files.readAllBytes(cg.getFile().toPath());
+
+        int kmerBits = cg.getKmerBits();
+        int numColors = cg.getNumColors();
+        int numRecords = (int) cg.getNumRecords();
+
+        long[] binaryKmers = new long[numRecords*kmerBits];
+        int[] coverages = new int[numRecords*numColors];
+        byte[] edges = new byte[numRecords*numColors];
+
+        for (int i = 0; i < numRecords; i++) {
+            CortexRecord cr = cg.getRecord(i);
+
+            System.arraycopy(cr.getBinaryKmer(), 0, binaryKmers, i*kmerBits, kmerBits);
+            System.arraycopy(cr.getCoverages(), 0, coverages, i*numColors, numColors);
+            System.arraycopy(cr.getEdges(), 0, edges, i*numColors, numColors);
+        }
+
+        // Tiny buffers force many flushes, in both the synchronous and the asynchronous mode.
+        for (boolean async : new boolean[] { false, true }) {
+            File perRecordFile = File.createTempFile("buffered", ".ctx");
+            perRecordFile.deleteOnExit();
+
+            CortexGraphWriter cgw = new CortexGraphWriter(perRecordFile, 100, async);
+            cgw.setHeader(cg.getHeader(), cg.getRawHeader());
+            for (int i = 0; i < numRecords; i++) {
+                cgw.addRecord(cg.getRecord(i));
+            }
+            cgw.close();
+
+            Assert.assertEquals(Files.readAllBytes(perRecordFile.toPath()), expected);
+
+            File bulkFile = File.createTempFile("buffered", ".ctx");
+            bulkFile.deleteOnExit();
+
+            cgw = new CortexGraphWriter(bulkFile, 100, async);
+            cgw.setHeader(cg.getHeader(), cg.getRawHeader());
+            cgw.addRecords(binaryKmers, coverages, edges, numRecords);
+            cgw.close();
+
+            Assert.assertEquals(Files.readAllBytes(bulkFile.toPath()), expected);
+        }
+    }
+
+    @Test
+    public void externalSortTest() throws IOException {
+        CortexGraph cg = new CortexGraph("testdata/two_short_contigs.ctx");
+        byte[] expected = Files.readAllBytes(cg.getFile().toPath());
+
+        List<CortexRecord> shuffled = new ArrayList<>();
+        for (CortexRecord cr : cg) {
+            shuffled.add(cr);
+        }
+        Collections.shuffle(shuffled, new Random(0));
+
+        // A budget of a few records forces many spilled runs, sorted both sequentially and in parallel.
+        long memoryBytes = 8*(cg.getKmerBits() + 2)*7;
+
+        for (int numThreads : new int[] { 1, 4 }) {
+            File sortedFile = File.createTempFile("sorted", ".ctx");
+            sortedFile.deleteOnExit();
+
+            try (CortexGraphSorter sorter = new CortexGraphSorter(cg.getHeader(), memoryBytes, null)) {
+                sorter.setNumThreads(numThreads);
+                for (CortexRecord cr : shuffled) {
+                    sorter.add(cr);
+                }
+
+                Assert.assertTrue(sorter.getNumRuns() > 1);
+
+                CortexGraphWriter cgw = new CortexGraphWriter(sortedFile);
+                cgw.setHeader(cg.getHeader(), cg.getRawHeader());
+                Assert.assertEquals(sorter.write(cgw), cg.getNumRecords());
+                cgw.close();
+            }
+
+            Assert.assertEquals(Files.readAllBytes(sortedFile.toPath()), expected);
+        }
+
+        File mergedFile = File.createTempFile("merged", ".ctx");
+        mergedFile.deleteOnExit();
+
+        try (CortexGraphSorter sorter = new CortexGraphSorter(cg.getHeader(), memoryBytes, null)) {
+            sorter.setMergeDuplicates(true);
+            for (CortexRecord cr : shuffled) {
+                sorter.add(cr);
+                sorter.add(cr);
+            }
+
+            CortexGraphWriter cgw = new CortexGraphWriter(mergedFile);
+            cgw.setHeader(cg.getHeader());
+            sorter.write(cgw);
+            cgw.close();
+        }
+
+        CortexGraph merged = new CortexGraph(mergedFile);
+        Assert.assertEquals(merged.getNumRecords(), cg.getNumRecords());
+
+        for (long i = 0; i < cg.getNumRecords(); i++) {
+            CortexRecord a = cg.getRecord(i);
+            CortexRecord b = merged.getRecord(i);
+
+            Assert.assertEquals(b.getKmerAsString(), a.getKmerAsString());
+            Assert.assertEquals(b.getEdges(), a.getEdges());
+            for (int c = 0; c < cg.getNumColors(); c++) {
+                Assert.assertEquals(b.getCoverage(c), 2*a.getCoverage(c));
+            }
+        }
+    }
+
+    @Test
+    public void compressedRoundTripTest() throws IOException {
+        Map<String, Collection<String>> haplotypes = new HashMap<>();
+        haplotypes.put("mom", Collections.singletonList(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(500))));
+        haplotypes.put("dad", Collections.singletonList(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(500))));
+
+        for (CortexGraph cg : Arrays.asList(new CortexGraph("testdata/two_short_contigs.ctx"), TempGraphAssembler.buildGraph(haplotypes, 47))) {
+            File ctzFile = File.createTempFile("roundtrip", ".ctz");
+            ctzFile.deleteOnExit();
+
+            CortexCompressedGraphWriter ccgw = new CortexCompressedGraphWriter(ctzFile);
+            ccgw.setHeader(cg.getHeader(), cg.getRawHeader());
+            ccgw.setRecordsPerBlock(16);
+
+            for (CortexRecord cr : cg) {
+                ccgw.addRecord(cr);
+            }
+
+            ccgw.close();
+
+            CortexCompressedGraph ccg = new CortexCompressedGraph(ctzFile);
+
+            Assert.assertEquals(ccg.getNumRecords(), cg.getNumRecords());
+            Assert.assertEquals(ccg.getNumColors(), cg.getNumColors());
+            Assert.assertEquals(ccg.getSampleName(0), cg.getSampleName(0));
+
+            for (long i = 0; i < cg.getNumRecords(); i++) {
+                CortexRecord cr = cg.getRecord(i);
+
+                Assert.assertEquals(ccg.getRecord(i), cr);
+                Assert.assertEquals(ccg.findRecord(cr.getKmerAsString()), cr);
+                Assert.assertEquals(ccg.findRecord(SequenceUtils.reverseComplement(cr.getKmerAsString())), cr);
+            }
+
+            Assert.assertNull(ccg.findRecord(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(cg.getKmerSize() - 1))));
+
+            File ctxFile = File.createTempFile("roundtrip", ".ctx");
+            ctxFile.deleteOnExit();
+
+            CortexGraphWriter cgw = new CortexGraphWriter(ctxFile);
+            cgw.setHeader(ccg.getHeader(), ccg.getRawHeader());
+
+            for (CortexRecord cr : ccg) {
+                cgw.addRecord(cr);
+            }
+
+            cgw.close();
+
+            Assert.assertEquals(Files.readAllBytes(ctxFile.toPath()), Files.readAllBytes(cg.getFile().toPath()));
+        }
+    }
+
+    @Test
+    public void compressedColorProjectionRoundTripTest() throws IOException {
+        Map<String, Collection<String>> haplotypes = new LinkedHashMap<>();
+        haplotypes.put("mom", Collections.singletonList(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(300))));
+        haplotypes.put("dad", Collections.singletonList(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(300))));
+        haplotypes.put("kid", Collections.singletonList(new String(SequenceUtils.generateRandomNucleotideSequenceOfLengthN(300))));
+
+        CortexGraph full = TempGraphAssembler.buildGraph(haplotypes, 31);
+        CortexGraph cg = new CortexGraph(full.getFile(), Arrays.asList(full.getColorForSampleName("kid"), full.getColorForSampleName("mom")));
+
+        File ctzFile = File.createTempFile("projected", ".ctz");
+        ctzFile.deleteOnExit();
+
+        CortexCompressedGraphWriter ccgw = new CortexCompressedGraphWriter(ctzFile);
+        ccgw.setHeader(cg.getHeader(), cg.getRawHeader());
+        ccgw.setRecordsPerBlock(16);
+
+        for (CortexRecord cr : cg) {
+            ccgw.addRecord(cr);
+        }
+
+        ccgw.close();
+
+        CortexCompressedGraph ccg = new CortexCompressedGraph(ctzFile);
+
+        Assert.assertEquals(ccg.getNumColors(), 2);
+        Assert.assertEquals(ccg.getSampleName(0), "kid");
+        Assert.assertEquals(ccg.getSampleName(1), "mom");
+        Assert.assertEquals(ccg.getNumRecords(), cg.getNumRecords());
+
+        File ctxFile = File.createTempFile("projected", ".ctx");
+        ctxFile.deleteOnExit();
+
+        CortexGraphWriter cgw = new CortexGraphWriter(ctxFile);
+        cgw.setHeader(ccg.getHeader(), ccg.getRawHeader());
+
+        for (CortexRecord cr : ccg) {
+            cgw.addRecord(cr);
+        }
+
+        cgw.close();
+
+        CortexGraph decompressed = new CortexGraph(ctxFile);
+
+        Assert.assertEquals(decompressed.getNumColors(), 2);
+        Assert.assertEquals(decompressed.getSampleName(0), "kid");
+        Assert.assertEquals(decompressed.getSampleName(1), "mom");
+        Assert.assertEquals(decompressed.getNumRecords(), cg.getNumRecords());
+
+        for (long i = 0; i < cg.getNumRecords(); i++) {
+            Assert.assertEquals(ccg.getRecord(i), cg.getRecord(i));
+            Assert.assertEquals(decompressed.getRecord(i), cg.getRecord(i));
+        }
+    }
 }
@@ -0,0 +1,59 @@
+package uk.ac.ox.well.cortexjdk.utils.kmer;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
+
+import java.util.Random;
+
+public class PackedKmerTest {
+    private String randomKmer(Random r, int k) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < k; i++) {
+            sb.append("ACGT".charAt(r.nextInt(4)));
+        }
+
+        return sb.toString();
+    }
+
+    @Test
+    public void testMatchesStringOperations() {
+        Random r = new Random(0);
+
+        for (int k = 1; k <= 100; k++) {
+            for (int t = 0; t < 20; t++) {
+                String sk = randomKmer(r, k);
+                PackedKmer pk = PackedKmer.fromString(sk);
+
+                Assert.assertEquals(pk.toString(), sk);
+                Assert.assertEquals(pk.reverseComplement().toString(), SequenceUtils.reverseComplement(sk));
+                Assert.assertEquals(pk.canonical().toString(), SequenceUtils.alphanumericallyLowestOrientation(sk));
+                Assert.assertEquals(pk.next((byte) 'G').toString(), sk.substring(1) + "G");
+                Assert.assertEquals(pk.prev((byte) 'T').toString(), "T" + sk.substring(0, k - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesCortexBinaryKmerOrder() {
+        Random r = new Random(1);
+
+        for (int k : new int[] { 15, 31, 32, 33, 47, 63, 64, 65, 95 }) {
+            for (int t = 0; t < 50; t++) {
+                String s1 = SequenceUtils.alphanumericallyLowestOrientation(randomKmer(r, k));
+                String s2 = SequenceUtils.alphanumericallyLowestOrientation(randomKmer(r, k));
+
+                PackedKmer p1 = PackedKmer.fromString(s1);
+                PackedKmer p2 = PackedKmer.fromString(s2);
+
+                long[] b1 = CortexRecord.encodeBinaryKmer(s1.getBytes());
+
+                Assert.assertEquals(p1.toBinaryKmer(), b1);
+                Assert.assertEquals(PackedKmer.fromBinaryKmer(b1, k), p1);
+                Assert.assertEquals(Integer.signum(p1.compareTo(p2)), Integer.signum(s1.compareTo(s2)));
+                Assert.assertEquals(p1.equals(p2), s1.equals(s2));
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package uk.ac.ox.well.cortexjdk.utils.traversal;
 
+import org.apache.commons.math3.util.Pair;
 import org.jgrapht.GraphPath;
 import org.jgrapht.graph.DirectedWeightedPseudograph;
 import org.testng.Assert;
@@ -8,7 +9,13 @@ import uk.ac.ox.well.cortexjdk.utils.assembler.TempGraphAssembler;
 import uk.ac.ox.well.cortexjdk.utils.assembler.TempLinksAssembler;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexGraph;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.cortex.CortexRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexJunctionsRecord;
 import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinks;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksBinaryRecord;
+import uk.ac.ox.well.cortexjdk.utils.io.graph.links.CortexLinksRecord;
+import uk.ac.ox.well.cortexjdk.utils.kmer.CortexByteKmer;
+import uk.ac.ox.well.cortexjdk.utils.kmer.PackedKmer;
+import uk.ac.ox.well.cortexjdk.utils.sequence.SequenceUtils;
 import uk.ac.ox.well.cortexjdk.utils.stoppingrules.ContigStopper;
 import uk.ac.ox.well.cortexjdk.utils.stoppingrules.DestinationStopper;
 import uk.ac.ox.well.cortexjdk.utils.stoppingrules.ExplorationStopper;
@@ -118,6 +125,7 @@ public class TraversalEngineTest {
             String contig = TraversalUtils.toContig(e.walk("CTGGG"));
 
             Assert.assertEquals(contig, expectations.get(g.getSampleName(c)));
+            Assert.assertEquals(TraversalUtils.toContig(e.walk(PackedKmer.fromString("CTGGG"))), contig);
         }
     }
 
@@ -247,6 +255,7 @@ public class TraversalEngineTest {
         String contig = TraversalUtils.toContig(e.walk("ACTGA"));
 
         Assert.assertEquals(contig, "ACTGATTTCGATGCGATGCGATGCCACGGTGG");
+        Assert.assertEquals(TraversalUtils.toContig(e.walk(PackedKmer.fromString("ACTGA"))), contig);
     }
 
     @Test
@@ -408,4 +417,158 @@ public class TraversalEngineTest {
 
         Assert.assertEquals(contig, haplotypes.get("mom").iterator().next());
     }
+
+    private CortexLinksRecord linksRecord(String kmer, String... junctionLists) {
+        List<CortexJunctionsRecord> cjs = new ArrayList<>();
+        for (String jl : junctionLists) {
+            cjs.add(new CortexJunctionsRecord(true, 10, jl.length(), new int[] { 1 }, jl));
+        }
+
+        return new CortexLinksRecord(kmer, cjs);
+    }
+
+    @Test
+    public void testLinkStoreFollowsOldestLinks() {
+        String kmer = "ACGTACGTACG";
+        CortexByteKmer ck = new CortexByteKmer(kmer.getBytes());
+
+        LinkStore ls = new LinkStore();
+        ls.add(ck, linksRecord(kmer, "ACG", "ACT"), true, "old");
+        Assert.assertEquals(ls.numNewPaths(), 2);
+        ls.incrementAges();
+
+        ls.add(ck, linksRecord(kmer, "TTT"), true, "young");
+        Assert.assertEquals(ls.size(), 3);
+
+        // The older links agree on the first two choices, and outvote the younger one.
+        Assert.assertEquals(ls.getNextJunctionChoice(), new Pair<>("A", Collections.singleton("old")));
+        Assert.assertEquals(ls.size(), 2);
+        ls.incrementAges();
+
+        Assert.assertEquals(ls.getNextJunctionChoice().getFirst(), "C");
+        Assert.assertEquals(ls.size(), 2);
+
+        // ...but disagree on the third, so there is no choice and nothing advances.
+        Assert.assertNull(ls.getNextJunctionChoice().getFirst());
+        Assert.assertEquals(ls.size(), 2);
+
+        // A link whose last junction is taken expires.
+        LinkStore one = new LinkStore();
+        one.add(ck, linksRecord(kmer, "GA"), true, "young");
+        Assert.assertEquals(one.getNextJunctionChoice().getFirst(), "G");
+        Assert.assertTrue(one.isActive());
+        Assert.assertEquals(one.getNextJunctionChoice().getFirst(), "A");
+        Assert.assertFalse(one.isActive());
+        Assert.assertNull(one.getNextJunctionChoice().getFirst());
+    }
+
+    @Test
+    public void testLinkStoreTieBreaksAndSources() {
+        String kmer = "ACGTACGTACG";
+        CortexByteKmer ck = new CortexByteKmer(kmer.getBytes());
+
+        // Equally old links that agree: the choice comes from the earliest-added list, with the sources of every link
+        // holding it.
+        LinkStore ls = new LinkStore();
+        ls.add(ck, linksRecord(kmer, "AC"), true, "s1");
+        ls.add(ck, linksRecord(kmer, "AG"), true, "s2");
+        ls.add(ck, linksRecord(kmer, "AC"), true, "s3");
+        Assert.assertEquals(ls.numNewPaths(), 3);
+
+        Assert.assertEquals(ls.getNextJunctionChoice(), new Pair<>("A", new TreeSet<>(Arrays.asList("s1", "s3"))));
+        Assert.assertEquals(ls.numNewPaths(), 3);
+        Assert.assertEquals(ls.size(), 3);
+
+        Assert.assertEquals(ls.getNextJunctionChoice(), new Pair<>(null, new TreeSet<>()));
+        Assert.assertEquals(ls.size(), 3);
+
+        // A younger link with the same list sets the position the choice is read from, even when that puts the older
+        // link off its path.
+        LinkStore shifted = new LinkStore();
+        shifted.add(ck, linksRecord(kmer, "AC"), true, "old");
+        Assert.assertEquals(shifted.getNextJunctionChoice(), new Pair<>("A", Collections.singleton("old")));
+        shifted.incrementAges();
+
+        shifted.add(ck, linksRecord(kmer, "AC"), true, "young");
+        Assert.assertEquals(shifted.size(), 2);
+        Assert.assertEquals(shifted.getNextJunctionChoice(), new Pair<>("A", new TreeSet<>(Arrays.asList("old", "young"))));
+        Assert.assertEquals(shifted.size(), 1);
+        Assert.assertEquals(shifted.numNewPaths(), 1);
+
+        Assert.assertEquals(shifted.getNextJunctionChoice(), new Pair<>("C", Collections.singleton("young")));
+        Assert.assertFalse(shifted.isActive());
+        Assert.assertEquals(shifted.numNewPaths(), 0);
+    }
+
+    @Test
+    public void testLinkStoreEmptyLinks() {
+        String kmer = "ACGTACGTACG";
+        CortexByteKmer ck = new CortexByteKmer(kmer.getBytes());
+
+        // Links with no junctions count until the next choice is taken...
+        LinkStore ls = new LinkStore();
+        ls.add(ck, linksRecord(kmer, "", "G"), true, "s");
+        Assert.assertEquals(ls.size(), 2);
+        Assert.assertEquals(ls.numNewPaths(), 2);
+
+        Assert.assertEquals(ls.getNextJunctionChoice(), new Pair<>("G", Collections.singleton("s")));
+        Assert.assertEquals(ls.size(), 0);
+        Assert.assertFalse(ls.isActive());
+
+        // ...and, when they are the oldest, they offer no choice, so younger links cannot be followed.
+        LinkStore blocked = new LinkStore();
+        blocked.add(ck, linksRecord(kmer, ""), true, "empty");
+        blocked.incrementAges();
+        blocked.add(ck, linksRecord(kmer, "T"), true, "t");
+
+        Assert.assertEquals(blocked.getNextJunctionChoice(), new Pair<>(null, new TreeSet<>()));
+        Assert.assertEquals(blocked.size(), 2);
+        Assert.assertTrue(blocked.isActive());
+    }
+
+    @Test
+    public void testLinkStoreReverseLinks() {
+        String kmer = "ACGTACGTACG";
+        CortexByteKmer fw = new CortexByteKmer(kmer.getBytes());
+        CortexByteKmer rc = new CortexByteKmer(SequenceUtils.reverseComplement(kmer).getBytes());
+
+        CortexLinksRecord clr = new CortexLinksRecord(kmer, Arrays.asList(
+                new CortexJunctionsRecord(true, 10, 2, new int[] { 1 }, "AC"),
+                new CortexJunctionsRecord(false, 10, 2, new int[] { 1 }, "GT")
+        ));
+
+        // Seen from the kmer's own orientation, only forward links are followed going forward...
+        LinkStore forward = new LinkStore();
+        forward.add(fw, clr, true, "s");
+        Assert.assertEquals(forward.size(), 1);
+        Assert.assertEquals(forward.getNextJunctionChoice().getFirst(), "A");
+
+        // ...from the reverse complement, it is the reverse link...
+        LinkStore reverse = new LinkStore();
+        reverse.add(rc, clr, true, "s");
+        Assert.assertEquals(reverse.size(), 1);
+        Assert.assertEquals(reverse.getNextJunctionChoice().getFirst(), "G");
+        Assert.assertEquals(reverse.getNextJunctionChoice().getFirst(), "T");
+        Assert.assertFalse(reverse.isActive());
+
+        // ...and going backward, the links running against the kmer are followed with their junctions complemented.
+        LinkStore backward = new LinkStore();
+        backward.add(fw, clr, false, "s");
+        Assert.assertEquals(backward.size(), 1);
+        Assert.assertEquals(backward.getNextJunctionChoice().getFirst(), "C");
+        Assert.assertEquals(backward.getNextJunctionChoice().getFirst(), "A");
+
+        // The binary form of the record is followed the same way.
+        CortexLinksBinaryRecord blr = new CortexLinksBinaryRecord(CortexLinksBinaryRecord.encode(clr, kmer.length(), 1), kmer.length(), 1);
+
+        LinkStore decoded = new LinkStore();
+        decoded.add(rc, clr, true, "s");
+
+        LinkStore binary = new LinkStore();
+        binary.add(rc, blr, true, "s");
+        Assert.assertEquals(binary.toString(), decoded.toString());
+        Assert.assertEquals(binary.getNextJunctionChoice().getFirst(), "G");
+        Assert.assertEquals(binary.getNextJunctionChoice().getFirst(), "T");
+    }
+
 }